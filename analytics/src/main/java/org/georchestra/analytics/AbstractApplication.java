@@ -1,9 +1,14 @@
 package org.georchestra.analytics;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -31,6 +36,9 @@ public abstract class AbstractApplication {
 	String sort = "count DESC";
 	String filter = "";
 
+	/** size of the buffers between the database and the browser when exporting */
+	private static final int CSV_BUFFER_SIZE = 8192;
+
     private static List<String> allowedProperties = Arrays.asList("service", "layer", "request", // Layer tab
             "user_name", // User tab
             "org", // organization tab
@@ -129,18 +137,27 @@ public abstract class AbstractApplication {
 	}
 
 	/**
-	 * Updates the response ContentType and header to make the browser download the CSV file
+	 * Updates the response ContentType and header to make the browser download the CSV file.
+	 * The length is not known before the rows are written, so the response is chunked. The
+	 * CSV is compressed if the browser accepts it.
 	 *
-	 * @param csv the CSV content as String
 	 * @param filename the filename the CSV will be saved under
+	 * @param request
 	 * @param response
-	 * @throws Exception
+	 * @return the stream to write the CSV to
+	 * @throws IOException
 	 */
-	protected void respondCSV(String csv, final String filename, HttpServletResponse response) throws Exception {
-		response.setContentType("text/csv");
-		response.setContentLength(csv.getBytes().length);
+	protected OutputStream respondCSV(final String filename, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType("text/csv; charset=" + CSVUtil.CSV_ENCODING);
 		response.setHeader("Content-Disposition", "attachment; filename=\""+filename+CSVUtil.CSV_EXT+"\"");
-		response.getWriter().write(csv);
+		response.setHeader("Vary", "Accept-Encoding");
+
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if ((acceptEncoding != null) && acceptEncoding.toLowerCase().contains("gzip")) {
+			response.setHeader("Content-Encoding", "gzip");
+			return new GZIPOutputStream(response.getOutputStream(), CSV_BUFFER_SIZE);
+		}
+		return response.getOutputStream();
 	}
 
 	/**
@@ -177,8 +194,8 @@ public abstract class AbstractApplication {
 
 	/**
 	 * Generic method from all WS. Will call the strategy.process method which refers to the
-	 * WS' model. This model will return result as JSONObject. This object will then be
-	 * parsed to write a CSV file which will be returned in the response, using response header as
+	 * WS' model. This model will write the results as CSV rows while they are read from the
+	 * database, they are sent to the browser as they come, using response header as
 	 * CSV file.
 	 *
 	 * @param request
@@ -186,24 +203,29 @@ public abstract class AbstractApplication {
 	 * @param strategy contain the method to call the model an retrieve results
 	 * @throws Exception
 	 */
-	protected void exportCSV(HttpServletRequest request, HttpServletResponse response, String csvFileName, StrategyController strategy) throws Exception {
+	protected void exportCSV(HttpServletRequest request, HttpServletResponse response, String csvFileName, CSVStrategyController strategy) throws Exception {
 
 		if(!this.getDateParameters(request)) {
 			OutputStream out  = response.getOutputStream();
 			sendSuccessFalse(out, "Invalid parameters");
 		}
 		else {
-			String csv=null;
+			csvFileName = String.valueOf(year) + "-" + String.format("%02d", month) + "-" + csvFileName;
 			try {
-				JSONObject object  = strategy.process();
-				csv = CSVUtil.JSONToCSV(object);
-				csvFileName = String.valueOf(year) + "-" + String.format("%02d", month) + "-" + csvFileName;
+				OutputStream out = respondCSV(csvFileName, request, response);
+				Writer writer = new BufferedWriter(new OutputStreamWriter(out, CSVUtil.CSV_ENCODING), CSV_BUFFER_SIZE);
+				strategy.process(writer);
+				writer.close();
 
 			} catch (Exception e) {
-				OutputStream out  = response.getOutputStream();
-				reportError(out, response, e);
+				if (response.isCommitted()) {
+					// the first rows are already sent, the browser gets a truncated file
+					logger.error("Caught exception while exporting CSV: ", e);
+					return;
+				}
+				response.reset();
+				reportError(response.getOutputStream(), response, e);
 			}
-			respondCSV(csv, csvFileName, response);
 		}
 	}
 
@@ -216,4 +238,14 @@ public abstract class AbstractApplication {
 
 		protected abstract JSONObject process() throws SQLException, JSONException;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Inner Abstract class to pass the call of the specific model to the generic
+	 * exportCSV method.
+	 *
+	 */
+	protected abstract class CSVStrategyController {
+
+		protected abstract void process(Writer out) throws SQLException, JSONException, IOException;
+	}
+}
@@ -1,5 +1,7 @@
 package org.georchestra.analytics.model;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -7,6 +9,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.georchestra.analytics.util.CSVUtil;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -17,6 +20,9 @@ public class AbstractModel {
 
 	private final String countQ = "SELECT count(*) from (@query@) as res;";
 
+	/** number of rows read at a time by the exports */
+	private static final int FETCH_SIZE = 1000;
+
 	public AbstractModel(PostGresqlConnection pgpool) {
 		postgresqlConnection = pgpool;
 	}
@@ -131,10 +137,49 @@ public class AbstractModel {
 		Connection con = null;
 		PreparedStatement st = null;
 
-		// The current block code corresponds to the deprecated
-		// addFilters() method
-		String q = new String(query);
 		List<String> extraFilters = new ArrayList<String>();
+		String q = addFilters(query, filter, extraFilters);
+
+		try {
+			con = postgresqlConnection.getConnection();
+			int count = getCount(con, q, month, year, sort, extraFilters);
+			st = prepareStatement(con, q, month, year, start, limit, sort, extraFilters);
+			rs = st.executeQuery();
+
+			JSONArray jsarr = strategy.process(rs);
+			object.put("success", true);
+			object.put("results", jsarr);
+			object.put("total", count);
+
+			return object;
+
+		} catch (SQLException e) {
+			throw e;
+
+		}  catch (JSONException e) {
+			throw e;
+
+		} finally {
+			if (st != null) st.close();
+			if (rs != null) rs.close();
+
+			if (con != null) {
+				con.close();
+			}
+		}
+	}
+
+	/**
+	 * Adds the filters to the WHERE clause of the query. The current block code
+	 * corresponds to the deprecated addFilters() method.
+	 *
+	 * @param extraFilters receives the values of the filters
+	 * @return the filtered query
+	 * @throws JSONException
+	 */
+	private String addFilters(final String query, String filter, List<String> extraFilters) throws JSONException {
+
+		String q = new String(query);
 
 		if ((filter != null) && (! "".equals(filter))) {
 
@@ -157,33 +202,42 @@ public class AbstractModel {
 	        // Case-sensivity of the where
 	        q = q.replace("WHERE", sb.toString());
 		}
-        // end block
+		return q;
+	}
 
+	/**
+	 * Generic statistics export. Gets all statistics of a type, filtered by date and ordered,
+	 * and writes them as CSV rows while they are read. The rows are fetched from the database
+	 * FETCH_SIZE at a time (the connections are not in auto-commit mode, so the PostgreSQL
+	 * driver uses a cursor), thus the memory used does not depend on the number of rows.
+	 *
+	 * @param out receives the CSV rows
+	 * @throws SQLException
+	 * @throws JSONException
+	 * @throws IOException
+	 */
+	public void exportStats(final int month, final int year, final String sort, String filter,
+			final String query, Writer out) throws SQLException, JSONException, IOException {
 
-		try {
-			//String q = addFilters(query, filter);
+		ResultSet rs = null;
+		Connection con = null;
+		PreparedStatement st = null;
 
+		List<String> extraFilters = new ArrayList<String>();
+		String q = addFilters(query, filter, extraFilters);
+
+		try {
 			con = postgresqlConnection.getConnection();
-			int count = getCount(con, q, month, year, sort, extraFilters);
-			st = prepareStatement(con, q, month, year, start, limit, sort, extraFilters);
+			st = prepareStatement(con, q, month, year, 0, Integer.MAX_VALUE, sort, extraFilters);
+			st.setFetchSize(FETCH_SIZE);
 			rs = st.executeQuery();
 
-			JSONArray jsarr = strategy.process(rs);
-			object.put("success", true);
-			object.put("results", jsarr);
-			object.put("total", count);
-
-			return object;
-
-		} catch (SQLException e) {
-			throw e;
-
-		}  catch (JSONException e) {
-			throw e;
-
+			while (rs.next()) {
+				CSVUtil.writeRow(rs, out);
+			}
 		} finally {
-			if (st != null) st.close();
 			if (rs != null) rs.close();
+			if (st != null) st.close();
 
 			if (con != null) {
 				con.close();
@@ -1,5 +1,7 @@
 package org.georchestra.analytics.model;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
@@ -123,4 +125,19 @@ public class ExtractorStatsModel extends AbstractModel  {
 			}
 		});
 	}
+
+	public void exportLayersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectLayersQ, out);
+	}
+
+	public void exportUsersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectUsersQ, out);
+	}
+
+	public void exportGroupsStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectGroupsQ, out);
+	}
 }
@@ -1,5 +1,7 @@
 package org.georchestra.analytics.model;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
@@ -13,54 +15,44 @@ public class OGCStatsModel extends AbstractModel  {
 		super(pgpool);
 	}
 
-	private final String selectLayersQ = "SELECT "
-	        + "    service"
-	        + "    , layer"
-	        + "    , request"
-	        + "    , COUNT(*) AS count "
-	        + "FROM "
-	        + "    ogcstatistics.ogc_services_log "
-	        + "WHERE "
-	        + "    date >= ?::timestamp "
-	        + "AND "
-	        + "    date < ?::timestamp "
-	        + "GROUP BY "
-	        + "    layer"
-	        + "    , service"
-	        + "    , request "
-	        + "ORDER BY "
-	        + "    @sort@ "
-	        + "LIMIT ? OFFSET ?;";
-
-	private final String selectUsersQ = "SELECT "
-	        + "    user_name "
-	        + "    , COUNT(*) AS count "
-	        + "FROM "
-	        + "    ogcstatistics.ogc_services_log "
-	        +"WHERE "
-	        + "    date >= ?::timestamp "
-	        + "AND "
-	        + "    date < ?::timestamp "
-	        + "GROUP BY "
-	        + "    user_name "
-	        + "ORDER BY "
-	        + "    @sort@ "
-	        + "LIMIT ? OFFSET ?;";
-
-	private final String selectGroupsQ = "SELECT "
-	        + "    org"
-	        + "    , COUNT(*) AS count "
-	        + "FROM "
-	        + "    ogcstatistics.ogc_services_log "
-	        + "WHERE "
-	        + "    date >= ?::timestamp "
-	        + "AND "
-	        + "    date < ?::timestamp "
-	        + "GROUP BY "
-	        + "    org "
-	        + "ORDER BY "
-	        + "    @sort@ "
-	        + "LIMIT ? OFFSET ?;";
+	/**
+	 * The statistics are read from the monthly rollups (see {@link OGCStatsRollup}),
+	 * plus the log rows which are not rolled up yet. The rows of a rollup are dated
+	 * on the first day of their month, so the month and global date ranges select
+	 * whole months.
+	 *
+	 * The inner queries must not contain the WHERE keyword, which is replaced by
+	 * the filters in {@link AbstractModel#getStats}.
+	 */
+	private static String rollupQuery(final String rollup, final String columns) {
+		return "SELECT "
+		        + "    " + columns
+		        + "    , SUM(count) AS count "
+		        + "FROM ("
+		        + "    SELECT month AS date, " + columns + ", count "
+		        + "    FROM ogcstatistics." + rollup
+		        + "    UNION ALL"
+		        + "    SELECT log.date, " + columns.replaceAll("(\\w+)", "log.$1") + ", 1 "
+		        + "    FROM ogcstatistics.ogc_services_log AS log "
+		        + "    INNER JOIN ogcstatistics.ogc_services_rollup_state AS state "
+		        + "    ON state.name = '" + OGCStatsRollup.WATERMARK + "' AND log.id > state.last_id"
+		        + ") AS stats "
+		        + "WHERE "
+		        + "    date >= ?::timestamp "
+		        + "AND "
+		        + "    date < ?::timestamp "
+		        + "GROUP BY "
+		        + "    " + columns + " "
+		        + "ORDER BY "
+		        + "    @sort@ "
+		        + "LIMIT ? OFFSET ?;";
+	}
+
+	private final String selectLayersQ = rollupQuery("ogc_layers_monthly", "service, layer, request");
+
+	private final String selectUsersQ = rollupQuery("ogc_users_monthly", "user_name");
+
+	private final String selectGroupsQ = rollupQuery("ogc_groups_monthly", "org");
 
 	public JSONObject getLayersStats(final int month, final int year, final int start, final int limit, final String sort, final String filter) throws SQLException, JSONException {
 
@@ -112,4 +104,19 @@ public class OGCStatsModel extends AbstractModel  {
 			}
 		});
 	}
+
+	public void exportLayersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectLayersQ, out);
+	}
+
+	public void exportUsersStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectUsersQ, out);
+	}
+
+	public void exportGroupsStats(final int month, final int year, final String sort, final String filter, Writer out) throws SQLException, JSONException, IOException {
+
+		exportStats(month, year, sort, filter, selectGroupsQ, out);
+	}
 }
@@ -0,0 +1,271 @@
+package org.georchestra.analytics.model;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Maintains the monthly rollups of ogcstatistics.ogc_services_log (see
+ * ogc-server-statistics/database.sql), from which the statistics are read (see
+ * {@link OGCStatsModel}).
+ *
+ * The log rows whose id is greater than the watermark are aggregated by batches,
+ * each batch is merged into the rollups and moves the watermark in the same
+ * transaction, thus a row is never counted twice. The rollups are updated
+ * periodically by a background thread, the existing history is loaded by running
+ * this class from the command line:
+ *
+ * <pre>
+ * java org.georchestra.analytics.model.OGCStatsRollup jdbc:postgresql://host:5432/db?user=u&amp;password=p [batchSize]
+ * </pre>
+ */
+public class OGCStatsRollup {
+
+	protected static final Log LOG = LogFactory.getLog(OGCStatsRollup.class.getPackage().getName());
+
+	static final String WATERMARK = "ogc_services_log";
+
+	private static final String lockLogQ = "LOCK TABLE ogcstatistics.ogc_services_log IN SHARE MODE;";
+
+	private static final String maxIdQ = "SELECT max(id) FROM ogcstatistics.ogc_services_log;";
+
+	private static final String watermarkQ = "SELECT last_id FROM ogcstatistics.ogc_services_rollup_state "
+			+ "WHERE name = ? FOR UPDATE;";
+
+	private static final String updateWatermarkQ = "UPDATE ogcstatistics.ogc_services_rollup_state "
+			+ "SET last_id = ?, last_update = now() WHERE name = ?;";
+
+	private static final String createBatchQ = "CREATE TEMPORARY TABLE ogc_rollup_batch ("
+			+ "day date, service character varying(5), layer character varying(255), "
+			+ "request character varying(20), user_name character varying(255), "
+			+ "org character varying(255), count bigint) ON COMMIT DROP;";
+
+	private static final String fillBatchQ = "INSERT INTO ogc_rollup_batch "
+			+ "SELECT date::date, service, layer, request, user_name, org, COUNT(*) "
+			+ "FROM ogcstatistics.ogc_services_log "
+			+ "WHERE id > ? AND id <= ? "
+			+ "GROUP BY date::date, service, layer, request, user_name, org;";
+
+	private static final Rollup[] ROLLUPS = {
+		new Rollup("ogc_layers_monthly", "month", "date_trunc('month', day)::date", "service", "layer", "request"),
+		new Rollup("ogc_users_monthly", "month", "date_trunc('month', day)::date", "user_name"),
+		new Rollup("ogc_groups_monthly", "month", "date_trunc('month', day)::date", "org")
+	};
+
+	private final PostGresqlConnection postgresqlConnection;
+
+	private int batchSize = 100000;
+	private int period = 5;
+	private ScheduledExecutorService executor;
+
+	public OGCStatsRollup(PostGresqlConnection pgpool) {
+		postgresqlConnection = pgpool;
+	}
+
+	/**
+	 * @param batchSize the maximum number of log ids aggregated in one transaction
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * @param period the time between two updates of the rollups, in minutes
+	 */
+	public void setPeriod(int period) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("The period must be positive: " + period);
+		}
+		this.period = period;
+	}
+
+	/**
+	 * Starts the background updates
+	 */
+	public synchronized void start() {
+		if (executor != null) {
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor();
+		executor.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					catchUp();
+				} catch (Exception e) {
+					LOG.error("Unable to update the OGC statistics rollups", e);
+				}
+			}
+		}, 0, period, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stops the background updates, the current batch is rolled back if it is
+	 * interrupted
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Aggregates all the log rows which are not in the rollups yet
+	 *
+	 * @return the new watermark
+	 * @throws SQLException
+	 */
+	public long catchUp() throws SQLException {
+		long watermark = -1;
+		long next;
+		while ((next = update()) != watermark && !Thread.currentThread().isInterrupted()) {
+			watermark = next;
+		}
+		return next;
+	}
+
+	/**
+	 * Aggregates the next batch of log rows
+	 *
+	 * @return the watermark after the update
+	 * @throws SQLException
+	 */
+	public long update() throws SQLException {
+
+		Connection con = null;
+		PreparedStatement st = null;
+		ResultSet rs = null;
+		try {
+			con = postgresqlConnection.getConnection();
+			con.setAutoCommit(false);
+
+			// The ids are given when the rows are inserted, not when they are
+			// committed. The lock waits for the running inserts, so that no row
+			// below max(id) can appear after the watermark has passed it.
+			long maxId;
+			st = con.prepareStatement(lockLogQ);
+			st.execute();
+			st.close();
+			st = con.prepareStatement(maxIdQ);
+			rs = st.executeQuery();
+			rs.next();
+			maxId = rs.getLong(1);
+			rs.close();
+			st.close();
+			con.commit();
+
+			// concurrent updates (several analytics instances) wait here
+			long from;
+			st = con.prepareStatement(watermarkQ);
+			st.setString(1, WATERMARK);
+			rs = st.executeQuery();
+			if (!rs.next()) {
+				throw new SQLException("The ogcstatistics.ogc_services_rollup_state table has no '" + WATERMARK
+						+ "' row, see ogc-server-statistics/database.sql");
+			}
+			from = rs.getLong(1);
+			rs.close();
+			st.close();
+
+			long to = Math.min(maxId, from + batchSize);
+			if (to <= from) {
+				con.commit();
+				return from;
+			}
+
+			st = con.prepareStatement(createBatchQ);
+			st.execute();
+			st.close();
+			st = con.prepareStatement(fillBatchQ);
+			st.setLong(1, from);
+			st.setLong(2, to);
+			st.executeUpdate();
+			st.close();
+
+			for (Rollup rollup : ROLLUPS) {
+				rollup.merge(con);
+			}
+
+			st = con.prepareStatement(updateWatermarkQ);
+			st.setLong(1, to);
+			st.setString(2, WATERMARK);
+			st.executeUpdate();
+			con.commit();
+
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("OGC statistics rolled up to id " + to);
+			}
+			return to;
+
+		} catch (SQLException e) {
+			if (con != null) {
+				con.rollback();
+			}
+			throw e;
+		} finally {
+			if (rs != null) rs.close();
+			if (st != null) st.close();
+			if (con != null) con.close();
+		}
+	}
+
+	/**
+	 * Loads the existing history into the rollups
+	 */
+	public static void main(String[] args) throws SQLException {
+		if (args.length < 1) {
+			System.err.println("Usage: OGCStatsRollup <jdbcUrl> [batchSize]");
+			System.exit(1);
+		}
+		OGCStatsRollup rollup = new OGCStatsRollup(new PostGresqlConnection(args[0]));
+		if (args.length > 1) {
+			rollup.setBatchSize(Integer.parseInt(args[1]));
+		}
+		System.out.println("OGC statistics rolled up to id " + rollup.catchUp());
+	}
+
+	/**
+	 * A rollup table: the batch is grouped by the period and the keys, the existing
+	 * rows are incremented and the missing ones are inserted.
+	 */
+	private static final class Rollup {
+
+		private final String updateQ;
+		private final String insertQ;
+
+		Rollup(String table, String periodColumn, String periodExpression, String... keys) {
+			StringBuilder columns = new StringBuilder();
+			StringBuilder match = new StringBuilder("r." + periodColumn + " = b.period");
+			for (String key : keys) {
+				columns.append(", ").append(key);
+				match.append(" AND r.").append(key).append(" IS NOT DISTINCT FROM b.").append(key);
+			}
+			String batch = "(SELECT " + periodExpression + " AS period" + columns + ", SUM(count) AS count "
+					+ "FROM ogc_rollup_batch GROUP BY 1" + columns + ") AS b";
+
+			updateQ = "UPDATE ogcstatistics." + table + " AS r SET count = r.count + b.count "
+					+ "FROM " + batch + " WHERE " + match + ";";
+			insertQ = "INSERT INTO ogcstatistics." + table + " (" + periodColumn + columns + ", count) "
+					+ "SELECT b.period" + columns.toString().replace(", ", ", b.") + ", b.count FROM " + batch
+					+ " WHERE NOT EXISTS (SELECT 1 FROM ogcstatistics." + table + " AS r WHERE " + match + ");";
+		}
+
+		void merge(Connection con) throws SQLException {
+			Statement st = con.createStatement();
+			try {
+				st.executeUpdate(updateQ);
+				st.executeUpdate(insertQ);
+			} finally {
+				st.close();
+			}
+		}
+	}
+}
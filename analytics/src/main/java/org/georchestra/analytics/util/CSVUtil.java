@@ -1,10 +1,9 @@
 package org.georchestra.analytics.util;
 
-import java.util.Iterator;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 
 /**
  * Static Class providing utilities concerning CSV format
@@ -14,35 +13,27 @@ import org.json.JSONObject;
 public class CSVUtil {
 
 	public static final String CSV_SEP = ";";
-    public static final String RES_FIELD = "results";
     public static final String CSV_EXT = ".csv";
+    public static final String CSV_ENCODING = "UTF-8";
     
     /**
-     * Format a JSON Object to a CSV String. All sub objects of the field
-     * "RES_FIELD" are parsed and format to the CSV
-     * 
-     * @param obj
-     * @return CSV String 
-     * @throws JSONException
+     * Writes the current row of the ResultSet as a CSV line, the columns in the
+     * order of the query. The null values are written as empty fields.
+     *
+     * @param rs
+     * @param out
+     * @throws SQLException
+     * @throws IOException
      */
-    public static final String JSONToCSV(JSONObject obj) throws JSONException {
-    	StringBuilder sBuilder = new StringBuilder();
-    	JSONArray jArr = obj.getJSONArray(RES_FIELD);
-    	
-    	for(int i=0;i<jArr.length();++i) {
-    		JSONObject curObj = jArr.getJSONObject(i);
-			
-    		@SuppressWarnings("unchecked")
-			Iterator<String> it = curObj.keys();
-    		
-    		while(it.hasNext()) {
-    			String key = it.next();
-    			sBuilder.append(curObj.getString(key));
-    			sBuilder.append(CSV_SEP);
+    public static final void writeRow(ResultSet rs, Writer out) throws SQLException, IOException {
+    	int columns = rs.getMetaData().getColumnCount();
+    	for(int i=1;i<=columns;++i) {
+    		String value = rs.getString(i);
+    		if(value != null) {
+    			out.write(value);
     		}
-    		sBuilder.append("\r\n");
+    		out.write(CSV_SEP);
     	}
-    	return sBuilder.toString();
+    	out.write("\r\n");
     }
 }
-
@@ -0,0 +1,161 @@
+package org.georchestra.analytics.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Checks the statements which read the rollups, against a connection which
+ * records them.
+ */
+public class OGCStatsModelTest {
+
+	/** the statements prepared, with their whitespace collapsed */
+	private final List<String> queries = new ArrayList<String>();
+
+	/** the parameters of each statement */
+	private final List<Map<Integer, Object>> parameters = new ArrayList<Map<Integer, Object>>();
+
+	/**
+	 * The figures are the sum of the monthly rollup and of the log rows above the
+	 * watermark, the filters and the date range apply to both.
+	 */
+	@Test
+	public void testUsersStats() throws Exception {
+
+		OGCStatsModel model = new OGCStatsModel(stubPool());
+		JSONObject stats = model.getUsersStats(3, 2015, 0, 10, "count DESC",
+				"[{\"property\":\"user_name\",\"value\":\"bob\"}]");
+
+		assertEquals(2, queries.size());
+		String count = queries.get(0);
+		String select = queries.get(1);
+
+		assertTrue(select.startsWith("SELECT user_name , SUM(count) AS count FROM ("));
+		assertTrue(select.contains("SELECT month AS date, user_name, count FROM ogcstatistics.ogc_users_monthly UNION ALL"));
+		assertTrue(select.contains("SELECT log.date, log.user_name, 1 FROM ogcstatistics.ogc_services_log AS log"));
+		assertTrue(select.contains("ON state.name = 'ogc_services_log' AND log.id > state.last_id"));
+		assertTrue(select.endsWith(") AS stats WHERE user_name::text = ? AND date >= ?::timestamp AND date < ?::timestamp "
+				+ "GROUP BY user_name ORDER BY count DESC LIMIT ? OFFSET ?;"));
+		assertEquals(Arrays.<Object> asList("bob", "2015-03-01 00:00", "2015-04-01 00:00", 10, 0),
+				new ArrayList<Object>(parameters.get(1).values()));
+
+		// the total is counted on the same union
+		assertTrue(count.startsWith("SELECT count(*) from (" + select.substring(0, select.indexOf(" LIMIT"))));
+		assertEquals(Arrays.<Object> asList("bob", "2015-03-01 00:00", "2015-04-01 00:00"),
+				new ArrayList<Object>(parameters.get(0).values()));
+
+		assertEquals(1, stats.getInt("total"));
+		JSONArray results = stats.getJSONArray("results");
+		assertEquals(1, results.length());
+		assertEquals("bob", results.getJSONObject(0).getString("user_name"));
+		assertEquals(42, results.getJSONObject(0).getInt("count"));
+	}
+
+	/**
+	 * The layers are grouped by service, layer and request on both sides of the union
+	 */
+	@Test
+	public void testLayersStats() throws Exception {
+
+		OGCStatsModel model = new OGCStatsModel(stubPool());
+		model.getLayersStats(12, 2014, 20, 10, "layer ASC", null);
+
+		String select = queries.get(1);
+		assertTrue(select.contains("SELECT month AS date, service, layer, request, count FROM ogcstatistics.ogc_layers_monthly"));
+		assertTrue(select.contains("SELECT log.date, log.service, log.layer, log.request, 1 FROM ogcstatistics.ogc_services_log AS log"));
+		assertTrue(select.endsWith(") AS stats WHERE date >= ?::timestamp AND date < ?::timestamp "
+				+ "GROUP BY service, layer, request ORDER BY layer ASC LIMIT ? OFFSET ?;"));
+		assertEquals(Arrays.<Object> asList("2014-12-01 00:00", "2015-01-01 00:00", 10, 20),
+				new ArrayList<Object>(parameters.get(1).values()));
+	}
+
+	private PostGresqlConnection stubPool() {
+
+		return new PostGresqlConnection("jdbc:postgresql://localhost:5432/test") {
+			@Override
+			public Connection getConnection() throws SQLException {
+				return stubConnection();
+			}
+		};
+	}
+
+	private Connection stubConnection() {
+
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("prepareStatement")) {
+							queries.add(((String) args[0]).trim().replaceAll("\\s+", " "));
+							Map<Integer, Object> params = new TreeMap<Integer, Object>();
+							parameters.add(params);
+							return stubStatement(params);
+						}
+						return null;
+					}
+				});
+	}
+
+	private PreparedStatement stubStatement(final Map<Integer, Object> params) {
+
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.startsWith("set")) {
+							params.put((Integer) args[0], args[1]);
+						} else if (name.equals("executeQuery")) {
+							Map<String, Object> row = new HashMap<String, Object>();
+							row.put("user_name", "bob");
+							row.put("count", 42);
+							row.put("1", 1);
+							return stubResultSet(row);
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * @return a result set of one row, whose columns are read by name or index
+	 */
+	private ResultSet stubResultSet(final Map<String, Object> row) {
+
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+					private boolean read = false;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("next")) {
+							boolean next = !read;
+							read = true;
+							return next;
+						} else if (name.startsWith("get")) {
+							return row.get(String.valueOf(args[0]));
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,245 @@
+package org.georchestra.analytics.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Checks how the watermark moves, against a connection which simulates the
+ * log ids and the ogc_services_rollup_state table.
+ */
+public class OGCStatsRollupTest {
+
+	private static final Pattern TABLE = Pattern.compile("ogcstatistics\\.(\\w+)");
+
+	/** highest id of the log */
+	private long maxId;
+
+	/** committed watermark */
+	private long watermark;
+
+	/** watermark written by the current transaction */
+	private Long pending;
+
+	/** the rollup merges fail */
+	private boolean failing = false;
+
+	/** id ranges of the batches, as "from-to" */
+	private final List<String> batches = new ArrayList<String>();
+
+	/** rollup tables merged */
+	private final List<String> merged = new ArrayList<String>();
+
+	private final List<String> calls = new ArrayList<String>();
+
+	/**
+	 * A batch aggregates at most batchSize ids above the watermark, and moves the watermark to the last one
+	 */
+	@Test
+	public void testUpdate() throws Exception {
+
+		maxId = 250;
+		watermark = 100;
+		OGCStatsRollup rollup = new OGCStatsRollup(stubPool());
+		rollup.setBatchSize(100);
+
+		assertEquals(200, rollup.update());
+
+		assertEquals(200, watermark);
+		assertEquals(Arrays.asList("100-200"), batches);
+		// each monthly rollup is updated, then completed with the missing rows
+		assertEquals(6, merged.size());
+		assertEquals(new HashSet<String>(Arrays.asList("ogc_layers_monthly", "ogc_users_monthly", "ogc_groups_monthly")),
+				new HashSet<String>(merged));
+		assertEquals(1, count("close"));
+	}
+
+	@Test
+	public void testUpToDate() throws Exception {
+
+		maxId = 100;
+		watermark = 100;
+		OGCStatsRollup rollup = new OGCStatsRollup(stubPool());
+
+		assertEquals(100, rollup.update());
+
+		assertEquals(100, watermark);
+		assertTrue(batches.isEmpty());
+		assertTrue(merged.isEmpty());
+	}
+
+	/**
+	 * The batches follow each other without gap nor overlap up to the highest id
+	 */
+	@Test
+	public void testCatchUp() throws Exception {
+
+		maxId = 250;
+		watermark = 0;
+		OGCStatsRollup rollup = new OGCStatsRollup(stubPool());
+		rollup.setBatchSize(100);
+
+		assertEquals(250, rollup.catchUp());
+
+		assertEquals(250, watermark);
+		assertEquals(Arrays.asList("0-100", "100-200", "200-250"), batches);
+		assertEquals(18, merged.size());
+	}
+
+	/**
+	 * A batch which fails is rolled back with its watermark, its rows are aggregated by the next update
+	 */
+	@Test
+	public void testRollback() throws Exception {
+
+		maxId = 250;
+		watermark = 100;
+		failing = true;
+		OGCStatsRollup rollup = new OGCStatsRollup(stubPool());
+		rollup.setBatchSize(100);
+		try {
+			rollup.update();
+			fail("SQLException expected");
+		} catch (SQLException e) {
+			// expected
+		}
+		assertEquals(100, watermark);
+		assertEquals(1, count("rollback"));
+		assertEquals(1, count("close"));
+
+		failing = false;
+		assertEquals(200, rollup.update());
+		assertEquals(Arrays.asList("100-200", "100-200"), batches);
+	}
+
+	private int count(String call) {
+
+		return Collections.frequency(calls, call);
+	}
+
+	private PostGresqlConnection stubPool() {
+
+		return new PostGresqlConnection("jdbc:postgresql://localhost:5432/test") {
+			@Override
+			public Connection getConnection() throws SQLException {
+				return stubConnection();
+			}
+		};
+	}
+
+	private Connection stubConnection() {
+
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						calls.add(name);
+						if (name.equals("prepareStatement")) {
+							return stubStatement((String) args[0]);
+						} else if (name.equals("createStatement")) {
+							return stubMerge();
+						} else if (name.equals("commit")) {
+							if (pending != null) {
+								watermark = pending;
+							}
+							pending = null;
+						} else if (name.equals("rollback")) {
+							pending = null;
+						}
+						return null;
+					}
+				});
+	}
+
+	private PreparedStatement stubStatement(final String sql) {
+
+		final Map<Integer, Object> params = new HashMap<Integer, Object>();
+		return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.startsWith("set")) {
+							params.put((Integer) args[0], args[1]);
+						} else if (name.equals("execute")) {
+							return false;
+						} else if (name.equals("executeQuery")) {
+							return stubResultSet(sql.contains("max(id)") ? maxId : watermark);
+						} else if (name.equals("executeUpdate")) {
+							if (sql.startsWith("INSERT INTO ogc_rollup_batch")) {
+								batches.add(params.get(1) + "-" + params.get(2));
+							} else if (sql.startsWith("UPDATE ogcstatistics.ogc_services_rollup_state")) {
+								pending = (Long) params.get(1);
+							}
+							return 1;
+						}
+						return null;
+					}
+				});
+	}
+
+	private Statement stubMerge() {
+
+		return (Statement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Statement.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("executeUpdate")) {
+							if (failing) {
+								throw new SQLException("deadlock detected");
+							}
+							Matcher m = TABLE.matcher((String) args[0]);
+							m.find();
+							merged.add(m.group(1));
+							return 1;
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * @return a result set of one row holding the given value
+	 */
+	private ResultSet stubResultSet(final long value) {
+
+		return (ResultSet) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { ResultSet.class }, new InvocationHandler() {
+					private boolean read = false;
+
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("next")) {
+							boolean next = !read;
+							read = true;
+							return next;
+						} else if (name.equals("getLong")) {
+							return value;
+						}
+						return null;
+					}
+				});
+	}
+}
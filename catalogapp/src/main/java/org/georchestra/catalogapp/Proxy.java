@@ -5,27 +5,31 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.log4j.Logger;
+import org.georchestra.proxyengine.ProxyHttpEngine;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -59,6 +63,26 @@ public class Proxy {
                                         "application/vnd.google-earth.kml+xml", // KML
                                     };
 
+    private static final Logger LOG = Logger.getLogger(Proxy.class);
+
+    /**
+     * Number of bytes read at most to find the encoding of the responses without charset
+     */
+    private static final int CHARSET_LOOKUP_SIZE = 1024;
+
+    /**
+     * Connections to the remote hosts
+     */
+    private ProxyHttpEngine engine = new ProxyHttpEngine();
+
+    public ProxyHttpEngine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(ProxyHttpEngine engine) {
+        this.engine = engine;
+    }
+
     /**
      * Proxy entry point. Accessible via POST.
      * @param request. Must contains a "url" parameter pointing to the remote host
@@ -113,65 +137,94 @@ public class Proxy {
                 }
             }
 
-            String requestMethod = request.getMethod();
+            URI uri = null;
+            try {
+                uri = ProxyHttpEngine.toURI(url);
+            }
+            catch (URISyntaxException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+
+            proxyRequest(request, response, uri);
+        }
+        catch (ConnectionPoolTimeoutException e) {
+            // every connection to the host is in use
+            LOG.warn("No connection available to forward the request to " + sURL, e);
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The remote host is busy, please retry later");
+        }
+        catch (IOException e) {
+            // connection problem with the host
+            LOG.error("Cannot forward the request to " + sURL, e);
+            sendError(response, HttpServletResponse.SC_BAD_GATEWAY, "The remote host cannot be reached");
+        }
+    }
+
+    /**
+     * Sends an error to the client, unless a part of the response has already been sent
+     */
+    private void sendError(HttpServletResponse response, int status, String message) {
+        if (response.isCommitted()) {
+            return;
+        }
+        try {
+            response.sendError(status, message);
+        } catch (IOException e) {
+            LOG.debug("The error cannot be sent to the client", e);
+        }
+    }
+
+    /**
+     * Forwards the request to the remote host and its response to the client
+     */
+    private void proxyRequest(HttpServletRequest request, HttpServletResponse response, URI uri) throws IOException {
 
-            // open communication between proxy and final host
-            // all actions before the connection can be taken now
-            HttpURLConnection connectionWithFinalHost = (HttpURLConnection) url.openConnection();
+        HttpRequestBase requestToFinalHost;
+        if (request.getMethod().equalsIgnoreCase("POST")) {
+            // the body is streamed to the remote host
+            HttpPost post = new HttpPost(uri);
+            post.setEntity(new InputStreamEntity(request.getInputStream(), request.getContentLength()));
+            requestToFinalHost = post;
+        } else {
+            requestToFinalHost = new HttpGet(uri);
+        }
 
-            // set request method
-            connectionWithFinalHost.setRequestMethod(requestMethod);
+        // copy headers from client's request to request that will be send to the final host
+        copyHeadersToRequest(request, requestToFinalHost);
+
+        // waits until a connection to the remote host is available
+        CloseableHttpResponse responseFromFinalHost = engine.execute(requestToFinalHost);
+        try {
+            int statusCode = responseFromFinalHost.getStatusLine().getStatusCode();
+            HttpEntity entity = responseFromFinalHost.getEntity();
 
-            // set doOutput to true if we are POSTing
-            if (requestMethod.equalsIgnoreCase("POST")) {
-                connectionWithFinalHost.setDoOutput(true);
-            }
-            
-            // copy headers from client's request to request that will be send to the final host
-            copyHeadersToConnection(request, connectionWithFinalHost);
-            connectionWithFinalHost.setRequestProperty("Accept-Encoding", "");
-            
-            // connect to remote host
-            // interactions with the resource are enabled now
-            connectionWithFinalHost.connect();
-
-            if (requestMethod.equalsIgnoreCase("POST")) {
-                ServletInputStream in = request.getInputStream();
-                OutputStream out = connectionWithFinalHost.getOutputStream();
-                byte[] buf = new byte[1024]; // read maximum 1024 bytes
-                int len;                     // number of bytes read from the stream
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
-            }
-            
             // get content type
-            String contentType = connectionWithFinalHost.getContentType();
-            if (contentType == null) {
+            Header contentTypeHeader = responseFromFinalHost.getFirstHeader("Content-Type");
+            if (entity == null || contentTypeHeader == null) {
                 response.sendError(HttpServletResponse.SC_FORBIDDEN, 
                         "Host url has been validated by proxy but content type given by remote host is null");
                 return;
             }
-            
+            String contentType = contentTypeHeader.getValue();
+
             // content type has to be valid
             if (!isContentTypeValid(contentType)) {
-                
-                if (connectionWithFinalHost.getResponseMessage() != null) {
-                    if (connectionWithFinalHost.getResponseMessage().equalsIgnoreCase("Not Found")) {
-                        // content type was not valid because it was a not found page (text/html)
-                        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Remote host not found"); 
-                        return;
-                    }
+                if (statusCode == HttpServletResponse.SC_NOT_FOUND) {
+                    // content type was not valid because it was a not found page (text/html)
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "Remote host not found");
+                    return;
                 }
-                
+
                 response.sendError(HttpServletResponse.SC_FORBIDDEN, 
-                        "The content type of the remote host's response \"" + contentType 
-                        + "\" is not allowed by the proxy rules");
+                        "The content type of the remote host's response \""
+                                + contentType
+                                + "\" is not allowed by the proxy rules");
                 return;
             }
-            
+
             // send remote host's response to client
-            
+
             /* Here comes the tricky part because some host send files without the charset
              * in the header, therefore we do not know how they are text encoded. It can result
              * in serious issues on IE browsers when parsing those files.
@@ -190,95 +243,58 @@ public class Proxy {
              *     Once the charset is found, the content-type header is overridden and the
              *     charset is appended.    
              *     
-             *     /!\ Special case: whenever data are compressed in gzip/deflate the stream has to
-             *     be uncompressed and compressed
+             *     /!\ Special case: whenever data are compressed in gzip/deflate the beginning
+             *     of the stream is decompressed to find the charset, the compressed stream itself
+             *     is forwarded unchanged, with its Content-Length
              */
-            
-            boolean isCharsetKnown = connectionWithFinalHost.getContentType().toLowerCase().contains("charset");
-            String contentEncoding = getContentEncoding(connectionWithFinalHost.getHeaderFields());
-             
-            // copy headers from the remote server's response to the response to send to the client
-            if (isCharsetKnown) {
-                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost);
-            } else {
-                // copy everything except Content-Type header
-                // because we need to concatenate the charset later
-                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost, new String[] {"Content-Type"});
-            }
-                
-            InputStream streamFromServer = null;
-            OutputStream streamToClient = null;
-            if(contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = connectionWithFinalHost.getInputStream();  
-                streamToClient = response.getOutputStream();
-            }
-            else if ("gzip".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream content
-                streamFromServer = new GZIPInputStream(connectionWithFinalHost.getInputStream());
-                streamToClient = new GZIPOutputStream(response.getOutputStream());
-            }
-            else if("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(connectionWithFinalHost.getInputStream());
-                streamToClient = new DeflaterOutputStream(response.getOutputStream());
-            } else {
-                throw new UnsupportedOperationException("Please handle the stream when it is encoded in " + contentEncoding);
-            }
-            
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len;                     // number of bytes read from the stream
-            boolean first = true;        // helps to find the encoding once and only once
-            String s = "";               // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-                
-                if (first && !isCharsetKnown) {
-                    // charset is unknown try to find it in the file content
-                    for(int i=0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as ASCII
-                    }
-                    
-                    // s has to be long enough to contain the encoding
-                    if(s.length() > 200) {  
-                        String charset = getCharset(s); // extract charset
-                        
-                        if (charset == null) {
-                            // the charset cannot be found, IE users must be warned
-                            // that the request cannot be fulfilled, nothing good would happen otherwise
-                            if(request.getHeader("User-Agent").toLowerCase().contains("msie")) {
-                                response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
-                                    "Charset of the response is unknown");
-                                streamFromServer.close();
-                                connectionWithFinalHost.disconnect();
-                                streamToClient.close();
-                                return;
-                            }
-                        } else {
-                            // override content-type header and add the charset found
-                            response.addHeader("Content-Type", 
-                                    connectionWithFinalHost.getContentType() 
-                                    + ";charset=" + charset);
-                            first = false; // we found the encoding, don't try to do it again
-                        }  
+
+            boolean isCharsetKnown = contentType.toLowerCase().contains("charset");
+            String contentEncoding = getContentEncoding(responseFromFinalHost);
+
+            InputStream streamFromServer = entity.getContent();
+            // beginning of the file as sent by the remote host, should contain the encoding
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            if (!isCharsetKnown) {
+                // charset is unknown try to find it in the file content
+                byte[] decodedHead = engine.readHead(streamFromServer, contentEncoding, CHARSET_LOOKUP_SIZE, head);
+
+                // get the beginning of the file as ASCII and extract charset
+                String charset = getCharset(new String(decodedHead, "ISO-8859-1"));
+
+                if (charset == null) {
+                    // the charset cannot be found, IE users must be warned
+                    // that the request cannot be fulfilled, nothing good would happen otherwise
+                    String userAgent = request.getHeader("User-Agent");
+                    if (userAgent != null && userAgent.toLowerCase().contains("msie")) {
+                        response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+                            "Charset of the response is unknown");
+                        return;
                     }
+                } else {
+                    // override content-type header and add the charset found
+                    contentType = contentType + ";charset=" + charset;
                 }
-                
-                // for everyone, the stream is just forwarded to the client
-                streamToClient.write(buf, 0, len);
             }
-            
-            streamFromServer.close();
-            connectionWithFinalHost.disconnect();
+
+            response.setStatus(statusCode);
+
+            // copy headers from the remote server's response to the response to send to the client,
+            // except Content-Type header because the charset may have been concatenated
+            copyHeadersFromResponse(response, responseFromFinalHost, new String[] {"Content-Type"});
+            response.addHeader("Content-Type", contentType);
+
+            // for everyone, the stream is just forwarded to the client
+            OutputStream streamToClient = response.getOutputStream();
+            head.writeTo(streamToClient);
+            engine.copy(streamFromServer, streamToClient);
+
             streamToClient.close();
-        }
-        catch (IOException e) {
-            // connection problem with the host 
-            e.printStackTrace();
+        } finally {
+            // the connection goes back to the pool when the response is entirely read
+            engine.release(responseFromFinalHost);
         }
     }
-    
+
     /**
      * Extract the encoding from a string which is the header node of an xml file
      * @param header String that should contain the encoding attribute and its value
@@ -307,56 +323,35 @@ public class Proxy {
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
-     * @param headerFields headers of the HttpURLConnection
+     * @param responseFromFinalHost response of the remote host
      * @return null if not exists otherwise name of the encoding (gzip, deflate...)
      */
-    private String getContentEncoding(Map<String, List<String>> headerFields) {
-        for (Iterator<String> i = headerFields.keySet().iterator() ; i.hasNext() ; ) {
-            String headerName = i.next(); 
-            if(headerName != null) {
-                if("Content-Encoding".equalsIgnoreCase(headerName)) {
-                    List<String> valuesList = headerFields.get(headerName);
-                    StringBuilder sBuilder = new StringBuilder();
-                    for(String value : valuesList) {
-                        sBuilder.append(value);
-                    }
-                    
-                    return sBuilder.toString().toLowerCase();
-                }
-            }
+    private String getContentEncoding(HttpResponse responseFromFinalHost) {
+        Header header = responseFromFinalHost.getFirstHeader("Content-Encoding");
+        if (header == null) {
+            return null;
         }
-        return null;
+        return header.getValue().toLowerCase();
     }
 
     /**
-     * Copy headers from the connection to the response
+     * Copy headers from the response of the remote host to the response
      * @param response to copy headers in
-     * @param uc contains headers to copy
+     * @param responseFromFinalHost contains headers to copy
      * @param ignoreList list of headers that mustn't be copied
      */
-    private void copyHeadersFromConnectionToResponse(HttpServletResponse response, HttpURLConnection uc, String... ignoreList) {
-        Map<String, List<String>> map =  uc.getHeaderFields();
-        for (Iterator<String> i = map.keySet().iterator() ; i.hasNext() ; ) {
+    private void copyHeadersFromResponse(HttpServletResponse response, HttpResponse responseFromFinalHost, String... ignoreList) {
+        for (Header header : responseFromFinalHost.getAllHeaders()) {
             
-            String headerName = i.next(); 
+            String headerName = header.getName();
             
             if(! isInIgnoreList(headerName, ignoreList)) {
-                
-                // concatenate all values from the header
-                List<String> valuesList = map.get(headerName);
-                StringBuilder sBuilder = new StringBuilder();
-                for(String value : valuesList) {
-                    sBuilder.append(value);
+                if("Transfer-Encoding".equalsIgnoreCase(headerName) && "chunked".equalsIgnoreCase(header.getValue())) {
+                    // do not write this header because Tomcat already assembled the chunks itself
+                    continue;
                 }
-
                 // add header to HttpServletResponse object
-                if (headerName != null) {
-                    if("Transfer-Encoding".equalsIgnoreCase(headerName) && "chunked".equalsIgnoreCase(sBuilder.toString())) {
-                        // do not write this header because Tomcat already assembled the chunks itself
-                        continue;
-                    }
-                    response.addHeader(headerName, sBuilder.toString());
-                } 
+                response.addHeader(headerName, header.getValue());
             }
         }
     }
@@ -381,18 +376,29 @@ public class Proxy {
      * Copy client's headers in the request to send to the final host
      * Trick the host by hiding the proxy indirection and keep useful headers information
      * @param request
-     * @param uc. Contains now headers from client request except Host
+     * @param requestToFinalHost. Contains now headers from client request except Host and the length of the body,
+     * the Accept-Encoding header keeps the encodings the proxy can decode
      */
-    protected void copyHeadersToConnection(HttpServletRequest request, HttpURLConnection uc) {
+    protected void copyHeadersToRequest(HttpServletRequest request, HttpRequestBase requestToFinalHost) {
         
         for (Enumeration enumHeader=request.getHeaderNames(); enumHeader.hasMoreElements();) {
             String headerName = (String)enumHeader.nextElement();
             String headerValue = request.getHeader(headerName);
             
-            // copy every header except host
-            if (!"host".equalsIgnoreCase(headerName)) {
-                uc.setRequestProperty(headerName, headerValue);
+            // copy every header except host and the ones of the connection with the proxy,
+            // the length of the body is given by the entity
+            if ("host".equalsIgnoreCase(headerName) || "connection".equalsIgnoreCase(headerName)
+                    || "content-length".equalsIgnoreCase(headerName)
+                    || "transfer-encoding".equalsIgnoreCase(headerName)) {
+                continue;
             }       
+            if ("accept-encoding".equalsIgnoreCase(headerName)) {
+                headerValue = ProxyHttpEngine.acceptedEncodings(headerValue);
+                if (headerValue == null) {
+                    continue;
+                }
+            }
+            requestToFinalHost.setHeader(headerName, headerValue);
         }         
     }
     
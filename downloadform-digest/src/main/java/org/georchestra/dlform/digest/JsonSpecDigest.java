@@ -0,0 +1,35 @@
+package org.georchestra.dlform.digest;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of an extraction JSON spec, stored in downloadform.extractorapp_log.json_spec_hash by
+ * downloadform and used by extractorapp to look the specs up.
+ */
+public final class JsonSpecDigest {
+
+    private JsonSpecDigest() {
+    }
+
+    /**
+     * @return the MD5 of the trimmed spec encoded in UTF-8, as 32 hexadecimal characters
+     */
+    public static String digest(String jsonSpec) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] hash = md.digest(jsonSpec.trim().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
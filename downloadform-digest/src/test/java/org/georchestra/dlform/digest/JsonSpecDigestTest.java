@@ -0,0 +1,17 @@
+package org.georchestra.dlform.digest;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class JsonSpecDigestTest {
+
+    /**
+     * The digests already stored in the database must not change
+     */
+    @Test
+    public void testDigest() {
+        assertEquals("31cb8451bf5ccb1622ebf29621a29c20", JsonSpecDigest.digest("{\"layers\":[]}"));
+        assertEquals("31cb8451bf5ccb1622ebf29621a29c20", JsonSpecDigest.digest("{\"layers\":[]}\n"));
+    }
+}
@@ -33,10 +33,12 @@ create index geonetwork_log_id_fname on geonetwork_log using btree (metadata_id,
 
 -- extractorapp log table, which contains just the JSON spec for now (could be exploited later client side to display extracted stuff)
 -- json_spec example : {"emails":["toto@titi.com"],"globalProperties":{"projection":"EPSG:4326","resolution":0.5,"rasterFormat":"geotiff","vectorFormat":"shp","bbox":{"srs":"EPSG:4326","value":[-2.2,42.6,1.9,46]}},"layers":[{"projection":null,"resolution":null,"format":null,"bbox":null,"owsUrl":"http://s.com/geoserver/wfs/WfsDispatcher?","owsType":"WFS","layerName":"pigma:cantons"},{"projection":null,"resolution":null,"format":null,"bbox":null,"owsUrl":"http://s.com/geoserver/pigma/wcs?","owsType":"WCS","layerName":"pigma:protected_layer_for_integration_testing"}]}
+-- json_spec_hash is the md5 of the trimmed json_spec, looked up by extractorapp before each extraction
 create table extractorapp_log (
-  json_spec text not null
+  json_spec text not null,
+  json_spec_hash char(32) not null
 ) inherits (log_table);
-create index extractorapp_log_json_spec on extractorapp_log using btree (json_spec);
+create index extractorapp_log_username_json_spec_hash on extractorapp_log using btree (username, json_spec_hash);
 
 
 create table data_use (
@@ -11,6 +11,7 @@ import javax.sql.DataSource;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.dlform.digest.JsonSpecDigest;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.stereotype.Controller;
@@ -30,8 +31,8 @@ public class ExtractorApp extends AbstractApplication {
     private final Log logger = LogFactory.getLog(getClass());
 
     private static String INSERT_DOWNLOAD_QUERY = "INSERT INTO downloadform.extractorapp_log (username, sessionid, first_name, second_name, " +
-            "company, email, phone, comment, json_spec) " +
-            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?);";
+            "company, email, phone, comment, json_spec, json_spec_hash) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
 
     private final String insertLayersQuery = "INSERT INTO downloadform.extractorapp_layers(" +
             "extractorapp_log_id, projection, resolution, format, bbox_srs, " +
@@ -78,6 +79,8 @@ public class ExtractorApp extends AbstractApplication {
 				st = prepareStatement(connection, q);
 
 				st.setString(9, q.getJsonSpec());
+				// looked up by extractorapp CheckFormAcceptance
+				st.setString(10, JsonSpecDigest.digest(q.getJsonSpec()));
 
 				st.executeUpdate();
 				resultSet = st.getGeneratedKeys();
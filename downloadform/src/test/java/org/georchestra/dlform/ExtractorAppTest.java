@@ -10,6 +10,7 @@ import java.sql.ResultSet;
 import javax.servlet.http.HttpServletRequest;
 import javax.sql.DataSource;
 
+import org.georchestra.dlform.digest.JsonSpecDigest;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -127,5 +128,29 @@ public class ExtractorAppTest extends AbstractApplicationTest {
         assertTrue(ret.getString("msg").equals("Successfully added the record in database."));
     }
 
+    /**
+     * The digest of the JSON spec is stored along with it, it must be the one
+     * computed by extractorapp CheckFormAcceptance.
+     */
+    @Test
+    public final void testJsonSpecDigest() throws Exception {
+        HttpServletRequest req = generateLegitRequest();
+        MockHttpServletResponse resp = new MockHttpServletResponse();
+        ctrl.setActivated(true);
+        DataSource ds = Mockito.mock(DataSource.class);
+        Connection c  = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        ResultSet rs = Mockito.mock(ResultSet.class);
+        Mockito.when(ds.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString(), Mockito.anyInt())).thenReturn(st);
+        Mockito.when(st.getGeneratedKeys()).thenReturn(rs);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        ctrl.setDataSource(ds);
+
+        ctrl.handleRequest(req, resp);
+
+        Mockito.verify(st).setString(10, JsonSpecDigest.digest(generateLegitJsonSpec()));
+    }
+
 
 }
@@ -7,9 +7,10 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.InetAddress;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
-import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletContext;
 
 import org.georchestra.extractorapp.ws.extractor.ExpiredArchiveDaemon;
 
@@ -36,7 +37,13 @@ public abstract class AbstractEmailFactory {
         // this is the default constructor for use by spring
     }
 
-	public abstract Email createEmail(HttpServletRequest request,
+	/**
+	 * @param context where the templates are read
+	 * @param headers the headers of the user's request, lower case names
+	 * @param recipients
+	 * @param url link to the extraction
+	 */
+	public abstract Email createEmail(ServletContext context, Map<String, String> headers,
 			final String[] recipients, final String url) throws IOException;
 
 	// -------------- Not public API -------------- //
@@ -80,8 +87,8 @@ public abstract class AbstractEmailFactory {
         }
     }
 
-    protected String readFile(HttpServletRequest request, final String path) throws IOException {
-    	String realPath = request.getSession().getServletContext().getRealPath(path);
+    protected String readFile(ServletContext context, final String path) throws IOException {
+    	String realPath = context.getRealPath(path);
     	BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(realPath), "UTF-8") );
         StringBuilder builder = new StringBuilder();
         try {
@@ -13,7 +13,6 @@ import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
-import javax.servlet.http.HttpServletRequest;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -38,7 +37,7 @@ public abstract class Email {
     private String[] recipients;
     private String subject;
 
-    public Email(HttpServletRequest request, String[] recipients,
+    public Email(String[] recipients,
             final String emailSubject, final String smtpHost,
             final int smtpPort, final String emailHtml, final String replyTo,
             final String from, final String bodyEncoding,
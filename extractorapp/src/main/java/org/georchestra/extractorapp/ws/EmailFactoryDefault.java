@@ -4,23 +4,24 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
-import javax.servlet.http.HttpServletRequest;
+import javax.servlet.ServletContext;
 
 public class EmailFactoryDefault extends AbstractEmailFactory {
 
     @Override
-    public Email createEmail(HttpServletRequest request,
+    public Email createEmail(ServletContext context, Map<String, String> headers,
             final String[] recipients, final String url) throws IOException {
 
         final long expiry = this.expireDeamon.getExpiry();
-        final String msgAck = readFile(request, emailAckTemplateFile);
-        final String msgDone = readFile(request, emailTemplateFile);
+        final String msgAck = readFile(context, emailAckTemplateFile);
+        final String msgDone = readFile(context, emailTemplateFile);
         final HashMap<String, String> extraKeywords = readExtraKeywords(extraKeywordsFile);
 
-        return new Email(request, recipients, emailSubject, this.smtpHost,
+        return new Email(recipients, emailSubject, this.smtpHost,
                 this.smtpPort, this.emailHtml, this.replyTo, this.from,
                 this.bodyEncoding, this.subjectEncoding, this.languages) {
             public void sendDone(List<String> successes, List<String> failures,
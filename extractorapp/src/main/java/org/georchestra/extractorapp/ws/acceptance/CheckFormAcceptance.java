@@ -3,27 +3,49 @@ package org.georchestra.extractorapp.ws.acceptance;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.apache.commons.dbcp.BasicDataSource;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.dlform.digest.JsonSpecDigest;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionTask;
 
+/**
+ * Checks that the download form has been filled in before an extraction.
+ * <p>
+ * The forms are looked up in downloadform.extractorapp_log by username and digest of the JSON
+ * spec (json_spec_hash, indexed with the username, see {@link JsonSpecDigest#digest(String)}). The
+ * acceptances found are kept <code>cacheTimeToLive</code> seconds, the refusals are not kept since
+ * the form may be submitted right after.
+ * </p>
+ */
 public class CheckFormAcceptance {
 
     private BasicDataSource basicDataSource;
     private boolean activated = false;
 
+    private int cacheTimeToLive = 300;
+    private int maxCacheEntries = 1000;
+
+    /**
+     * username + digest -> time the acceptance was found, oldest first
+     */
+    private final LinkedHashMap<String, Long> acceptances = new LinkedHashMap<String, Long>();
+
     private static final Log LOG = LogFactory.getLog(ExtractionTask.class
             .getPackage().getName());
 
     private final static String CHECK_FORM_ACCEPTANCE_QUERY = "SELECT "
-            + "           COUNT(id) "
+            + "           1 "
             + "FROM "
             + "           downloadform.extractorapp_log "
             + "WHERE "
-            + "           (username = null AND sessionid = ?) OR (username = ?  AND username IS NOT null) "
-            + "AND " + "           json_spec = ?;";
+            + "           username = ? "
+            + "AND " + "           json_spec_hash = ? "
+            + "LIMIT 1;";
 
     public CheckFormAcceptance(boolean _activated, String jdbcUrl) {
 
@@ -46,12 +68,44 @@ public class CheckFormAcceptance {
         }
     }
 
+    /**
+     * Convenience method used for testing purposes.
+     * @param ds a DataSource
+     */
+    public void setDataSource(BasicDataSource ds) {
+        basicDataSource = ds;
+    }
+
+    /**
+     * @param cacheTimeToLive time an acceptance is kept in memory, in seconds (0 disables the cache)
+     */
+    public void setCacheTimeToLive(int cacheTimeToLive) {
+        this.cacheTimeToLive = cacheTimeToLive;
+    }
+
+    /**
+     * @param maxCacheEntries maximum number of acceptances kept in memory
+     */
+    public void setMaxCacheEntries(int maxCacheEntries) {
+        this.maxCacheEntries = maxCacheEntries;
+    }
+
     public boolean isFormAccepted(String session, String username,
             String jsonSpec) {
 
         if (activated == false)
             return true;
 
+        // anonymous forms cannot be matched: the available sessionid is not
+        // a stable identifier across security-proxified webapps
+        if (username == null || jsonSpec == null)
+            return false;
+
+        String digest = JsonSpecDigest.digest(jsonSpec);
+        String key = username + "\n" + digest;
+        if (isCached(key))
+            return true;
+
         Connection connection = null;
         PreparedStatement checkformentryst = null;
         ResultSet rs = null;
@@ -66,17 +120,17 @@ public class CheckFormAcceptance {
             // and it is not available in case of anonymous extraction requests.
             // As a result, it is not used to check if the user actually
             // validated the form.
-            checkformentryst.setString(1, session);
-            checkformentryst.setString(2, username);
-            // Extra \n to be removed with the trim() call
-            checkformentryst.setString(3, jsonSpec.trim());
+            checkformentryst.setString(1, username);
+            // Extra \n removed by the trim() call of JsonSpecDigest.digest()
+            checkformentryst.setString(2, digest);
 
             rs = checkformentryst.executeQuery();
 
-            rs.next();
-            int numResults = rs.getInt(1);
+            boolean accepted = rs.next();
+            if (accepted)
+                cache(key);
 
-            return (numResults > 0);
+            return accepted;
 
         } catch (Exception e) {
             LOG.error("Error occured while trying to check form validation", e);
@@ -112,4 +166,30 @@ public class CheckFormAcceptance {
         }
     }
 
+    private synchronized boolean isCached(String key) {
+        Long found = acceptances.get(key);
+        if (found == null)
+            return false;
+        if (System.currentTimeMillis() - found > cacheTimeToLive * 1000L) {
+            acceptances.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void cache(String key) {
+        if (cacheTimeToLive <= 0)
+            return;
+        long now = System.currentTimeMillis();
+        acceptances.remove(key);
+        acceptances.put(key, now);
+        // the oldest acceptances are the first ones
+        for (Iterator<Map.Entry<String, Long>> i = acceptances.entrySet().iterator(); i.hasNext();) {
+            Map.Entry<String, Long> entry = i.next();
+            if (acceptances.size() <= maxCacheEntries
+                    && now - entry.getValue() <= cacheTimeToLive * 1000L)
+                break;
+            i.remove();
+        }
+    }
 }
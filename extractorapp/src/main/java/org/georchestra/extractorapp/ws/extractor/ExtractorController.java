@@ -6,11 +6,16 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.Channels;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.servlet.ServletContext;
@@ -26,6 +31,7 @@ import org.georchestra.extractorapp.ws.Email;
 import org.georchestra.extractorapp.ws.acceptance.CheckFormAcceptance;
 import org.georchestra.extractorapp.ws.extractor.task.ExecutionMetadata;
 import org.georchestra.extractorapp.ws.extractor.task.ExecutionPriority;
+import org.georchestra.extractorapp.ws.extractor.task.ExtractionJobStore;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionManager;
 import org.georchestra.extractorapp.ws.extractor.task.ExtractionTask;
 import org.json.JSONObject;
@@ -51,6 +57,7 @@ public class ExtractorController implements ServletContextAware {
 	private static final String   TEST_EXTRACTOR_MAPPING = BASE_MAPPING + "test/initiate";
 	private static final String   RESULTS_MAPPING   = BASE_MAPPING + "package";
 	private static final String   UUID_PARAM = "uuid";
+	private static final String   SECURITY_HEADER_PREFIX = "sec-";
 
 	private static final String   EXTRACTOR_TASKS = BASE_MAPPING + "tasks";
 
@@ -81,6 +88,29 @@ public class ExtractorController implements ServletContextAware {
 				throw new AssertionError("extractorapp does not have access to "+storageFile+" and cannot create it");
 			}
 		}
+		resumeExtractions();
+	}
+
+	/**
+	 * Resumes the extractions which were not finished when the application stopped.
+	 * The acknowledgment email is not sent again.
+	 */
+	private void resumeExtractions() {
+		for (ExtractionJobStore.Job job : extractionManager.unfinishedJobs()) {
+			try {
+				UUID requestUuid = UUID.fromString(job.getUuid());
+				List<ExtractorLayerRequest> requests = Collections.unmodifiableList(ExtractorLayerRequest.parseJson(job.getRequest()));
+				Map<String, String> headers = job.getHeaders();
+				Email email = emailFactory.createEmail(servletContext, headers, requests.get(0)._emails, archiveUrl(requestUuid));
+
+				ExtractionTask extractor = new ExtractionTask(requestConfiguration(requests, requestUuid, email, false, headers, job.getRequest()));
+				extractionManager.resume(extractor, job);
+				LOG.info("Extraction resumed, request uuid = " + requestUuid);
+			} catch (Exception e) {
+				LOG.error("Unable to resume the extraction " + job.getUuid() + ", it is discarded", e);
+				extractionManager.discardJob(job.getUuid());
+			}
+		}
 	}
 
 	@RequestMapping(value = RESULTS_MAPPING, method = RequestMethod.GET)
@@ -260,29 +290,16 @@ public class ExtractorController implements ServletContextAware {
 		if (checkFormAcceptance.isFormAccepted(sessionId,request.getHeader("sec-username"), postData)) {
 			UUID requestUuid = UUID.randomUUID();
 
-			URL urlObj = new URL(servletUrl);
-			if (urlObj.getPort() == urlObj.getDefaultPort()) {
-				urlObj = new URL(urlObj.getProtocol(), urlObj.getHost(), urlObj.getFile());
-			}
-			StringBuilder url = new StringBuilder(urlObj.toString());
-			url.append(RESULTS_MAPPING);
-			url.append("?");
-			url.append(UUID_PARAM);
-			url.append("=");
-			url.append(requestUuid);
+			String url = archiveUrl(requestUuid);
 
 			List<ExtractorLayerRequest> requests = Collections.unmodifiableList(ExtractorLayerRequest.parseJson(postData));
 			if (requests.size() > 0) {
 
 				String[] recipients = requests.get(0)._emails;
-				Email email = emailFactory.createEmail(request, recipients, url.toString());
-
-				String username = request.getHeader("sec-username");
-				String roles = request.getHeader("sec-roles");
-				RequestConfiguration requestConfig = new RequestConfiguration(
-						requests, requestUuid, email,
-						servletContext, testing, username, roles, adminCredentials, secureHost, extractionFolderPrefix,
-						maxCoverageExtractionSize, remoteReproject, useCommandLineGDAL, postData);
+				Map<String, String> headers = securityHeaders(request);
+				Email email = emailFactory.createEmail(servletContext, headers, recipients, url);
+
+				RequestConfiguration requestConfig = requestConfiguration(requests, requestUuid, email, testing, headers, postData);
 				ExtractionTask extractor = new ExtractionTask(requestConfig);
 
 				LOG.info("Sending mail to user");
@@ -296,11 +313,11 @@ public class ExtractorController implements ServletContextAware {
 				if (testing) {
 					extractor.run();
 				} else {
-					extractionManager.submit(extractor);
+					extractionManager.submit(extractor, headers);
 				}
 
 				reponseData = replace(readFile(responseTemplateFile),
-						url.toString(), recipients);
+						url, recipients);
 
 				response.setCharacterEncoding(responseCharset);
 				response.setContentType(reponseMimeType);
@@ -320,6 +337,48 @@ public class ExtractorController implements ServletContextAware {
 		}
 	}
 
+	/**
+	 * @return the link to the archive of the extraction
+	 * @throws MalformedURLException
+	 */
+	private String archiveUrl(UUID requestUuid) throws MalformedURLException {
+		URL urlObj = new URL(servletUrl);
+		if (urlObj.getPort() == urlObj.getDefaultPort()) {
+			urlObj = new URL(urlObj.getProtocol(), urlObj.getHost(), urlObj.getFile());
+		}
+		StringBuilder url = new StringBuilder(urlObj.toString());
+		url.append(RESULTS_MAPPING);
+		url.append("?");
+		url.append(UUID_PARAM);
+		url.append("=");
+		url.append(requestUuid);
+		return url.toString();
+	}
+
+	private RequestConfiguration requestConfiguration(List<ExtractorLayerRequest> requests, UUID requestUuid,
+			Email email, boolean testing, Map<String, String> headers, String postData) {
+		String username = headers.get("sec-username");
+		String roles = headers.get("sec-roles");
+		return new RequestConfiguration(
+				requests, requestUuid, email,
+				servletContext, testing, username, roles, adminCredentials, secureHost, extractionFolderPrefix,
+				maxCoverageExtractionSize, remoteReproject, useCommandLineGDAL, postData);
+	}
+
+	/**
+	 * @return the headers set by the security proxy (lower case names), they are kept with the extraction
+	 */
+	private static Map<String, String> securityHeaders(HttpServletRequest request) {
+		Map<String, String> headers = new HashMap<String, String>();
+		for (Enumeration<?> names = request.getHeaderNames(); names.hasMoreElements();) {
+			String name = ((String) names.nextElement()).toLowerCase(Locale.ENGLISH);
+			if (name.startsWith(SECURITY_HEADER_PREFIX)) {
+				headers.put(name, request.getHeader(name));
+			}
+		}
+		return headers;
+	}
+
 	// ----------------- JavaBean methods ----------------- //
 
 
@@ -44,6 +44,9 @@ final class ExtractorGetTaskQueueResponse {
      * <b>JSON format:</b> {"tasks":[ {"uuid":"value", "priority":value,"status":value,...}, ...]}
      * 
      * </pre>
+     * The waiting tasks also have their position in the queue (1 is the next task to run) and,
+     * if it can be estimated, the time they should start ("eta").
+     * 
      * 
 	 * @return the list of task as a json array 
 	 * @throws JSONException 
@@ -73,6 +76,12 @@ final class ExtractorGetTaskQueueResponse {
     		jsonTask.put(TaskDescriptor.REQUEST_TS_KEY, requestTimeStamp);
     		jsonTask.put(TaskDescriptor.BEGIN_TS_KEY, beginTimeStamp);
     		jsonTask.put(TaskDescriptor.END_TS_KEY, endTimeStamp);
+    		if (metadata.getQueuePosition() > 0) {
+    			jsonTask.put(TaskDescriptor.QUEUE_POSITION_KEY, metadata.getQueuePosition());
+    		}
+    		if (metadata.getEstimatedStart() != null) {
+    			jsonTask.put(TaskDescriptor.ETA_KEY, TaskDescriptor.formatDate(metadata.getEstimatedStart()));
+    		}
 
     		jsonTaskArray.put(i, jsonTask);
     		i++;
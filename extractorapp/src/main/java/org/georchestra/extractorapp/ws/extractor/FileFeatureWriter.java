@@ -10,6 +10,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.feature.FeatureCollection;
+import org.geotools.feature.FeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
@@ -70,7 +71,15 @@ abstract class FileFeatureWriter implements FeatureWriterStrategy {
 	        CoordinateReferenceSystem outCRS = this.features.getSchema().getCoordinateReferenceSystem();
 	        writeFeatures = new WriteFeatures(this.schema, this.basedir, outCRS, ds);
 
-	        this.features.accepts(writeFeatures, this.progresListener);
+	        // the features are iterated once, visiting the collection would request its size first
+	        FeatureIterator<SimpleFeature> iter = this.features.features();
+	        try {
+	        	while (iter.hasNext() && !this.progresListener.isCanceled()) {
+	        		writeFeatures.visit(iter.next());
+	        	}
+	        } finally {
+	        	iter.close();
+	        }
 
 	        files = writeFeatures.getShapeFiles ();
 	        
@@ -0,0 +1,481 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Zip archive of an extraction, filled while the layers are extracted.
+ * <p>
+ * Each file added is written once into the archive and then deleted, thus the
+ * extraction does not need to keep the whole bundle on disk until the end.
+ * Files which are already compressed (images, rasters whose first block does not
+ * deflate) are stored without compression.
+ * </p>
+ * <p>
+ * The archive is written in a <code>.part</code> file which is renamed to the
+ * storage file when the archive is closed, so an incomplete archive is never
+ * served.
+ * </p>
+ * <p>
+ * The files of a layer are added all or none: if one of them cannot be
+ * added, the <code>.part</code> file is rewritten with the entries which were
+ * complete before, so the layer can be added again. If the archive cannot
+ * be rewritten it fails, nothing can be added anymore.
+ * </p>
+ * <p>
+ * The complete entries are listed, with their layer, in an <code>.index</code>
+ * file next to the <code>.part</code> file. An archive interrupted by a restart
+ * is reopened with {@link #resume(File, String, Set)}.
+ * </p>
+ */
+public class IncrementalZipArchive {
+
+    private static final Log LOG = LogFactory.getLog(IncrementalZipArchive.class.getPackage().getName());
+
+    /** extensions of the files which are always stored */
+    private static final List<String> COMPRESSED_EXTENSIONS = Arrays.asList(
+            "png", "jpg", "jpeg", "gif", "jp2", "ecw", "sid", "zip", "gz", "kmz");
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    /** a sample which deflates to more than this ratio is considered already compressed */
+    private static final double STORED_RATIO = 0.9;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** layer of the files which do not belong to a layer */
+    private static final int NO_LAYER = -1;
+
+    private final File storageFile;
+    private final File partFile;
+    private final File indexFile;
+    private final String baseName;
+    private FileOutputStream out;
+    private ZipOutputStream zip;
+    /** entries in the order they were written */
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Set<String> names = new HashSet<String>();
+    /** number of entries written before the layer which is being added, they are listed in the index file */
+    private int completeEntries = 0;
+    private boolean failed = false;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * @param storageFile the archive
+     * @param baseName directory of the archive where the files are added
+     * @throws IOException
+     */
+    public IncrementalZipArchive(File storageFile, String baseName) throws IOException {
+        this.storageFile = storageFile;
+        this.partFile = new File(storageFile.getPath() + ".part");
+        this.indexFile = new File(storageFile.getPath() + ".index");
+        this.baseName = baseName;
+        if (!storageFile.getParentFile().exists()) {
+            storageFile.getParentFile().mkdirs();
+        }
+        openPart();
+        writeIndex();
+    }
+
+    /**
+     * Reopens the archive of an interrupted extraction. The archive is rewritten with the entries of
+     * the layers which are kept, the entries of the other layers are dropped.
+     *
+     * @param storageFile the archive
+     * @param baseName directory of the archive where the files are added
+     * @param layers the layers which are kept
+     * @return the archive, null if the extraction did not leave an archive
+     * @throws IOException if the archive cannot be reopened, it is deleted then
+     */
+    public static IncrementalZipArchive resume(File storageFile, String baseName, Set<Integer> layers)
+            throws IOException {
+        File partFile = new File(storageFile.getPath() + ".part");
+        File indexFile = new File(storageFile.getPath() + ".index");
+        if (!partFile.exists() || !indexFile.exists()) {
+            partFile.delete();
+            indexFile.delete();
+            return null;
+        }
+        return new IncrementalZipArchive(storageFile, baseName, layers);
+    }
+
+    private IncrementalZipArchive(File storageFile, String baseName, Set<Integer> layers) throws IOException {
+        this.storageFile = storageFile;
+        this.partFile = new File(storageFile.getPath() + ".part");
+        this.indexFile = new File(storageFile.getPath() + ".index");
+        this.baseName = baseName;
+        try {
+            this.entries.addAll(readIndex());
+            this.completeEntries = this.entries.size();
+            rewrite(layers);
+        } catch (IOException e) {
+            discard();
+            throw e;
+        }
+    }
+
+    private void openPart() throws IOException {
+        this.out = new FileOutputStream(this.partFile);
+        this.zip = new ZipOutputStream(new BufferedOutputStream(this.out, BUFFER_SIZE));
+    }
+
+    /**
+     * Moves the content of the layer's directory into the archive. The files are deleted once they are archived.
+     *
+     * @param layer position of the layer in the extraction
+     * @param dir
+     * @throws IOException if the files cannot be added, none of them is in the archive then
+     */
+    public synchronized void addContent(int layer, File dir) throws IOException {
+        addAll(layer, dir.listFiles());
+    }
+
+    /**
+     * Moves the file (or directory) into the archive, at the base of the archive.
+     *
+     * @param file
+     * @throws IOException if the file cannot be added, it is not in the archive then
+     */
+    public synchronized void add(File file) throws IOException {
+        addAll(NO_LAYER, new File[] { file });
+    }
+
+    /**
+     * @return true if the archive could not be rewritten after an error, nothing can be added anymore
+     */
+    public synchronized boolean isFailed() {
+        return this.failed;
+    }
+
+    /**
+     * @return the layers which have files in the archive
+     */
+    public synchronized Set<Integer> getLayers() {
+        Set<Integer> layers = new HashSet<Integer>();
+        for (Entry entry : this.entries.subList(0, this.completeEntries)) {
+            if (entry.layer != NO_LAYER) {
+                layers.add(entry.layer);
+            }
+        }
+        return layers;
+    }
+
+    private void addAll(int layer, File[] files) throws IOException {
+        if (this.failed) {
+            throw new IOException("The archive " + this.partFile + " failed, nothing can be added");
+        }
+        try {
+            for (File file : files) {
+                add(layer, file, file.getName());
+            }
+            // the complete entries are written, they can be read by a rollback or a resumed extraction
+            this.zip.flush();
+            this.out.getFD().sync();
+            appendIndex(this.entries.subList(this.completeEntries, this.entries.size()));
+        } catch (IOException e) {
+            rollback(e);
+            throw e;
+        }
+        this.completeEntries = this.entries.size();
+    }
+
+    /**
+     * Rewrites the archive with the entries which were complete before the files being added,
+     * the archive fails if it cannot be rewritten
+     */
+    private void rollback(IOException cause) {
+        LOG.warn("Unable to add files to " + this.partFile + ", the archive is rewritten without them", cause);
+        closePart();
+        try {
+            rewrite(null);
+        } catch (IOException e) {
+            LOG.error("Unable to rewrite the archive " + this.partFile + ", it fails", e);
+            this.failed = true;
+            closePart();
+        }
+    }
+
+    /**
+     * Copies the complete entries of the part file into a new part file
+     *
+     * @param layers the layers whose entries are copied, null to copy all the complete entries
+     */
+    private void rewrite(Set<Integer> layers) throws IOException {
+        File previous = new File(this.partFile.getPath() + ".old");
+        previous.delete();
+        if (!this.partFile.renameTo(previous)) {
+            throw new IOException("Unable to rename " + this.partFile);
+        }
+        try {
+            openPart();
+            List<Entry> kept = new ArrayList<Entry>();
+            ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(previous), BUFFER_SIZE));
+            try {
+                for (Entry entry : this.entries.subList(0, this.completeEntries)) {
+                    ZipEntry zipEntry = in.getNextEntry();
+                    if (zipEntry == null || !zipEntry.getName().equals(entry.name)) {
+                        throw new IOException("The entry " + entry.name + " is missing in " + previous);
+                    }
+                    if (layers == null || layers.contains(entry.layer)) {
+                        write(entry, in);
+                        kept.add(entry);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            this.zip.flush();
+            this.out.getFD().sync();
+
+            this.entries.clear();
+            this.entries.addAll(kept);
+            this.names.clear();
+            for (Entry entry : kept) {
+                this.names.add(entry.name);
+            }
+            this.completeEntries = kept.size();
+            writeIndex();
+        } finally {
+            previous.delete();
+        }
+    }
+
+    /**
+     * Closes the part file, whether the zip stream can be completed or not
+     */
+    private void closePart() {
+        if (this.zip == null) {
+            return;
+        }
+        try {
+            this.zip.close();
+        } catch (IOException e) {
+            LOG.debug(e.getMessage());
+        } finally {
+            try {
+                this.out.close();
+            } catch (IOException e) {
+                LOG.debug(e.getMessage());
+            }
+        }
+    }
+
+    private void write(Entry entry, InputStream in) throws IOException {
+        this.zip.setLevel(entry.level);
+        this.zip.putNextEntry(new ZipEntry(entry.name));
+        int read;
+        while ((read = in.read(this.buffer)) != -1) {
+            this.zip.write(this.buffer, 0, read);
+        }
+        this.zip.closeEntry();
+    }
+
+    /**
+     * Protected to allow unit test to override
+     */
+    protected InputStream open(File file) throws IOException {
+        return new FileInputStream(file);
+    }
+
+    private void add(int layer, File file, String relativeName) throws IOException {
+        if (file.isDirectory()) {
+            for (File child : file.listFiles()) {
+                add(layer, child, relativeName + "/" + child.getName());
+            }
+            file.delete();
+            return;
+        }
+        Entry entry = new Entry(layer, uniqueName(this.baseName + "/" + relativeName),
+                isCompressed(file) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+        this.entries.add(entry);
+        this.names.add(entry.name);
+
+        InputStream in = open(file);
+        try {
+            write(entry, in);
+        } finally {
+            in.close();
+        }
+        if (!file.delete()) {
+            LOG.warn("Unable to delete the archived file: " + file);
+        }
+    }
+
+    /**
+     * Lists the entries at the end of the index file
+     */
+    private void appendIndex(List<Entry> added) throws IOException {
+        writeEntries(this.indexFile, true, added);
+    }
+
+    /**
+     * Writes the index file of the complete entries in a temporary file then renames it, thus it is always complete
+     */
+    private void writeIndex() throws IOException {
+        File tmpFile = new File(this.indexFile.getPath() + ".tmp");
+        writeEntries(tmpFile, false, this.entries.subList(0, this.completeEntries));
+        if (!tmpFile.renameTo(this.indexFile)) {
+            // some platforms do not replace an existing file
+            this.indexFile.delete();
+            if (!tmpFile.renameTo(this.indexFile)) {
+                throw new IOException("Unable to write " + this.indexFile);
+            }
+        }
+    }
+
+    private static void writeEntries(File file, boolean append, List<Entry> list) throws IOException {
+        FileOutputStream fileOut = new FileOutputStream(file, append);
+        try {
+            Writer writer = new OutputStreamWriter(fileOut, "UTF-8");
+            for (Entry entry : list) {
+                writer.write(entry.layer + " " + entry.level + " " + entry.name + "\n");
+            }
+            writer.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+    }
+
+    private List<Entry> readIndex() throws IOException {
+        List<Entry> index = new ArrayList<Entry>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.indexFile), "UTF-8"));
+        try {
+            StringBuilder content = new StringBuilder();
+            char[] chars = new char[BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                content.append(chars, 0, read);
+            }
+            // the last line is ignored if it was not completely written
+            for (String line : content.substring(0, content.lastIndexOf("\n") + 1).split("\n")) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] fields = line.split(" ", 3);
+                try {
+                    index.add(new Entry(Integer.parseInt(fields[0]), fields[2], Integer.parseInt(fields[1])));
+                } catch (RuntimeException e) {
+                    throw new IOException("Invalid line in " + this.indexFile + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return index;
+    }
+
+    /**
+     * Two layers could produce files with the same name, the last one gets a suffix
+     */
+    private String uniqueName(String name) {
+        String unique = name;
+        int dot = name.lastIndexOf('.');
+        for (int i = 1; this.names.contains(unique); i++) {
+            unique = (dot > name.lastIndexOf('/')) ? name.substring(0, dot) + "_" + i + name.substring(dot) : name + "_" + i;
+        }
+        return unique;
+    }
+
+    /**
+     * @return true if the file is not worth deflating: a known compressed format, or its first block does not deflate
+     */
+    static boolean isCompressed(File file) throws IOException {
+        String fileName = file.getName();
+        String ext = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase(Locale.ENGLISH);
+        if (COMPRESSED_EXTENSIONS.contains(ext)) {
+            return true;
+        }
+        if (file.length() < SAMPLE_SIZE) {
+            return false;
+        }
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while (length < SAMPLE_SIZE && (read = in.read(sample, length, SAMPLE_SIZE - length)) != -1) {
+                length += read;
+            }
+        } finally {
+            in.close();
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] out = new byte[SAMPLE_SIZE];
+            int deflated = 0;
+            while (!deflater.finished()) {
+                deflated += deflater.deflate(out);
+            }
+            return deflated > length * STORED_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Completes the archive and renames it to the storage file
+     *
+     * @return the storage file
+     * @throws IOException
+     */
+    public synchronized File close() throws IOException {
+        if (this.failed) {
+            throw new IOException("The archive " + this.partFile + " failed");
+        }
+        this.zip.close();
+        if (this.storageFile.exists()) {
+            this.storageFile.delete();
+        }
+        if (!this.partFile.renameTo(this.storageFile)) {
+            FileUtils.moveFile(this.partFile, this.storageFile);
+            this.partFile.delete();
+        }
+        this.indexFile.delete();
+        return this.storageFile;
+    }
+
+    /**
+     * Closes and deletes an archive which is not completed
+     */
+    public synchronized void discard() {
+        closePart();
+        this.partFile.delete();
+        this.indexFile.delete();
+    }
+
+    /**
+     * File of the archive and the layer it belongs to
+     */
+    private static final class Entry {
+        private final int layer;
+        private final String name;
+        private final int level;
+
+        private Entry(int layer, String name, int level) {
+            this.layer = layer;
+            this.name = name;
+            this.level = level;
+        }
+    }
+}
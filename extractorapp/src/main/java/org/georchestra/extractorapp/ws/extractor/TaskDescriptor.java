@@ -31,6 +31,8 @@ final class TaskDescriptor {
     public static final String REQUEST_TS_KEY =  "request_ts";
     public static final String BEGIN_TS_KEY = "begin_ts";
     public static final String END_TS_KEY = "end_ts";
+    public static final String QUEUE_POSITION_KEY = "queue_position";
+    public static final String ETA_KEY = "eta";
 
 	private final String id;
 	private final ExecutionPriority priority;
@@ -4,6 +4,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 import org.apache.commons.logging.Log;
@@ -33,12 +34,27 @@ public class WcsExtractor {
     private final File      _basedir;
     private final WcsFormat _format;
     private RequestConfiguration requestConfig;
+    private long _maxTileSize = 0;
+    private int _downloadThreads = 1;
+    private Semaphore _hostPermits;
 
     public WcsExtractor(File requestBaseDir, RequestConfiguration requestConfig) {
         this._basedir = requestBaseDir;
         this._format = new WcsFormat(requestConfig.maxCoverageExtractionSize);
         this.requestConfig = requestConfig;
     }
+
+    /**
+     * @param maxTileSize coverages larger than this size (pixels times bands) are downloaded by tiles, 0 means never
+     * @param downloadThreads number of tiles downloaded at the same time
+     * @param hostPermits the permits of the requests to the host of the layer, the caller holds one of them,
+     *                    null means unlimited
+     */
+    public void setTiling(long maxTileSize, int downloadThreads, Semaphore hostPermits) {
+        this._maxTileSize = maxTileSize;
+        this._downloadThreads = downloadThreads;
+        this._hostPermits = hostPermits;
+    }
     protected static final Log LOG = LogFactory.getLog(WcsExtractor.class.getPackage().getName());
 
 	public void checkPermission(ExtractorLayerRequest request, String secureHost, String username, String roles)
@@ -116,6 +132,7 @@ public class WcsExtractor {
         }
 
         WcsCoverageReader reader = _format.getReader(request._url);
+        reader.setTiling(_maxTileSize, _downloadThreads, _hostPermits);
 
         File basedir = request.createContainingDir(_basedir);
         if (!basedir.mkdirs() && !basedir.exists()) {
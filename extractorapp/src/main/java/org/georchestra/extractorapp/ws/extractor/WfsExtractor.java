@@ -28,6 +28,7 @@ import org.geotools.data.DataStore;
 import org.geotools.data.DataStoreFinder;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.factory.GeoTools;
@@ -109,6 +110,7 @@ public class WfsExtractor {
     private final String _adminUsername;
     private final String _adminPassword;
     private final String _secureHost;
+    private int _pageSize = 0;
 
     /**
      *
@@ -134,6 +136,13 @@ public class WfsExtractor {
         this._secureHost = secureHost;
     }
 
+    /**
+     * @param pageSize max number of features requested at once, 0 means all the features in a single request
+     */
+    public void setPageSize(int pageSize) {
+        this._pageSize = pageSize;
+    }
+
     public void checkPermission(ExtractorLayerRequest request, String secureHost, String username, String roles) throws IOException {
         URL capabilitiesURL = request.capabilitiesURL("WFS", "1.0.0");
 
@@ -220,7 +229,13 @@ public class WfsExtractor {
         DataStore sourceDs = DataStoreFinder.getDataStore(params);
         SimpleFeatureType sourceSchema = sourceDs.getSchema (request.getWFSName());
         Query query = createQuery(request, sourceSchema);
-		SimpleFeatureCollection features = sourceDs.getFeatureSource(request.getWFSName()).getFeatures(query);
+        SimpleFeatureSource featureSource = sourceDs.getFeatureSource(request.getWFSName());
+        SimpleFeatureCollection features;
+        if (_pageSize > 0) {
+            features = new WfsPagedFeatureCollection(featureSource, query, sourceBBox(request, sourceSchema), _pageSize);
+        } else {
+            features = featureSource.getFeatures(query);
+        }
 
         ProgressListener progressListener = new NullProgressListener () {
             @Override
@@ -234,7 +249,6 @@ public class WfsExtractor {
 
         FeatureWriterStrategy featuresWriter;
         BBoxWriter bboxWriter;
-        LOG.debug("Number of features returned : " + features.size());
         if ("shp".equalsIgnoreCase(request._format)) {
             featuresWriter = new ShpFeatureWriter(progressListener, sourceSchema, basedir, features);
         	bboxWriter = new BBoxWriter(request._bbox, basedir, OGRFeatureWriter.FileFormat.shp, request._projection, progressListener );
@@ -265,21 +279,7 @@ public class WfsExtractor {
         switch (request._owsType) {
         case WFS:
 
-            // bbox may not be in the same projection as the data so it sometimes necessary to reproject the request BBOX
-            ReferencedEnvelope bbox = request._bbox;
-            if (schema.getCoordinateReferenceSystem () != null) {
-                bbox = request._bbox.transform (schema.getCoordinateReferenceSystem (), true, 10);
-            }
-
-            FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2 (GeoTools.getDefaultHints ());
-            String propertyName = schema.getGeometryDescriptor ().getLocalName ();
-            PropertyName geomProperty = filterFactory.property (propertyName);
-            Geometry bboxGeom = new GeometryFactory ().toGeometry (bbox);
-            String epsgCode = "EPSG:"+CRS.lookupEpsgCode(bbox.getCoordinateReferenceSystem(),false);
-            bboxGeom.setUserData(epsgCode);
-
-            Literal geometry = filterFactory.literal (bboxGeom);
-            Intersects filter = filterFactory.intersects (geomProperty, geometry);
+            Intersects filter = intersects (schema, sourceBBox (request, schema));
 
             List<String> properties = new ArrayList<String> ();
             for (PropertyDescriptor desc : schema.getDescriptors ()) {
@@ -302,4 +302,33 @@ public class WfsExtractor {
             return null;
         }
     }
+
+    /**
+     * bbox may not be in the same projection as the data so it sometimes necessary to reproject the request BBOX
+     *
+     * @return the request bbox in the projection of the layer
+     */
+    static ReferencedEnvelope sourceBBox (ExtractorLayerRequest request, FeatureType schema) throws TransformException,
+            FactoryException {
+        ReferencedEnvelope bbox = request._bbox;
+        if (schema.getCoordinateReferenceSystem () != null) {
+            bbox = request._bbox.transform (schema.getCoordinateReferenceSystem (), true, 10);
+        }
+        return bbox;
+    }
+
+    /**
+     * @return the filter of the features of the layer which intersect the bbox
+     */
+    static Intersects intersects (FeatureType schema, ReferencedEnvelope bbox) throws FactoryException {
+        FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2 (GeoTools.getDefaultHints ());
+        String propertyName = schema.getGeometryDescriptor ().getLocalName ();
+        PropertyName geomProperty = filterFactory.property (propertyName);
+        Geometry bboxGeom = new GeometryFactory ().toGeometry (bbox);
+        String epsgCode = "EPSG:"+CRS.lookupEpsgCode(bbox.getCoordinateReferenceSystem(),false);
+        bboxGeom.setUserData(epsgCode);
+
+        Literal geometry = filterFactory.literal (bboxGeom);
+        return filterFactory.intersects (geomProperty, geometry);
+    }
 }
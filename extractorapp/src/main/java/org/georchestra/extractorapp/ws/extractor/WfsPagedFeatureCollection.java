@@ -0,0 +1,329 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.geotools.data.Query;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+
+/**
+ * Features of a WFS layer, requested by pages of at most <code>pageSize</code> features.
+ * <p>
+ * When the server supports it (WFS 2.0) the pages are requested with a start index. Otherwise (WFS 1.0) the
+ * bbox is split in tiles: a tile which holds more than <code>pageSize</code> features is split again in four
+ * tiles. The features crossing the border of a tile are returned by several tiles, only the first one is kept.
+ * </p>
+ * <p>
+ * The pages are requested by a producer thread while the features are consumed, thus the download overlaps with
+ * the writing of the files. At most a few batches of features are kept in memory, whatever the size of the layer.
+ * </p>
+ * <p>
+ * The features are requested each time the collection is iterated, {@link #size()} and {@link #getBounds()}
+ * iterate the whole collection.
+ * </p>
+ */
+final class WfsPagedFeatureCollection extends AbstractFeatureCollection {
+
+    private static final Log LOG = LogFactory.getLog(WfsPagedFeatureCollection.class.getPackage().getName());
+
+    /** beyond this number of subdivisions the tile is requested at once */
+    private static final int MAX_TILE_DEPTH = 8;
+    /** number of features handed over to the consumer at once */
+    private static final int BATCH_SIZE = 500;
+    /** number of batches the producer can request in advance */
+    private static final int QUEUE_SIZE = 4;
+    private static final List<SimpleFeature> END = Collections.emptyList();
+
+    private final SimpleFeatureSource source;
+    private final Query query;
+    private final ReferencedEnvelope bbox;
+    private final int pageSize;
+
+    /**
+     * @param source the WFS layer
+     * @param query the query of the features within the bbox
+     * @param bbox the requested bbox, in the projection of the layer
+     * @param pageSize max number of features per request
+     * @throws IOException
+     */
+    WfsPagedFeatureCollection(SimpleFeatureSource source, Query query, ReferencedEnvelope bbox, int pageSize)
+            throws IOException {
+        super(source.getFeatures(query).getSchema());
+        this.source = source;
+        this.query = query;
+        this.bbox = bbox;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    protected Iterator<SimpleFeature> openIterator() {
+        return new PageIterator();
+    }
+
+    @Override
+    protected void closeIterator(Iterator<SimpleFeature> close) {
+        ((PageIterator) close).close();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        PageIterator iter = (PageIterator) openIterator();
+        try {
+            while (iter.hasNext()) {
+                iter.next();
+                size++;
+            }
+        } finally {
+            iter.close();
+        }
+        return size;
+    }
+
+    @Override
+    public ReferencedEnvelope getBounds() {
+        ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+        PageIterator iter = (PageIterator) openIterator();
+        try {
+            while (iter.hasNext()) {
+                bounds.expandToInclude(ReferencedEnvelope.reference(iter.next().getBounds()));
+            }
+        } finally {
+            iter.close();
+        }
+        return bounds;
+    }
+
+    /**
+     * Requests the pages and hands the features over to the iterator by batches.
+     */
+    private final class Producer extends Thread {
+
+        private final BlockingQueue<List<SimpleFeature>> queue;
+        /** features found on the border of a tile, they could be returned by the neighbour tiles */
+        private final Set<String> borderFeatures = new HashSet<String>();
+        private List<SimpleFeature> batch = new ArrayList<SimpleFeature>(BATCH_SIZE);
+        private volatile Exception failure;
+        private MathTransform toSourceCRS;
+
+        Producer(BlockingQueue<List<SimpleFeature>> queue) {
+            super("Extractorapp-wfs-" + query.getTypeName());
+            setDaemon(true);
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (source.getQueryCapabilities().isOffsetSupported()) {
+                    producePages();
+                } else {
+                    CoordinateReferenceSystem outputCRS = getSchema().getCoordinateReferenceSystem();
+                    CoordinateReferenceSystem sourceCRS = bbox.getCoordinateReferenceSystem();
+                    if (outputCRS != null && sourceCRS != null && !CRS.equalsIgnoreMetadata(outputCRS, sourceCRS)) {
+                        this.toSourceCRS = CRS.findMathTransform(outputCRS, sourceCRS, true);
+                    }
+                    produceTile(bbox, 0);
+                }
+                flush();
+            } catch (InterruptedException e) {
+                // the consumer closed the iterator
+                return;
+            } catch (Exception e) {
+                LOG.error("Failed to request the features of " + query.getTypeName(), e);
+                this.failure = e;
+            }
+            try {
+                this.queue.put(END);
+            } catch (InterruptedException e) {
+                // the consumer closed the iterator
+            }
+        }
+
+        /**
+         * Requests the pages of the whole bbox with a start index
+         */
+        private void producePages() throws IOException, InterruptedException {
+            int startIndex = 0;
+            int read;
+            do {
+                Query page = new Query(query);
+                page.setStartIndex(startIndex);
+                page.setMaxFeatures(pageSize);
+                read = 0;
+                SimpleFeatureIterator features = source.getFeatures(page).features();
+                try {
+                    while (features.hasNext()) {
+                        hand(features.next());
+                        read++;
+                    }
+                } finally {
+                    features.close();
+                }
+                startIndex += read;
+            } while (read == pageSize);
+        }
+
+        /**
+         * Requests the features of the tile, the tile is split if it holds more than a page.
+         */
+        private void produceTile(ReferencedEnvelope tile, int depth) throws Exception {
+            Query tileQuery = new Query(query);
+            tileQuery.setFilter(WfsExtractor.intersects(getSchema(), tile));
+
+            if (depth >= MAX_TILE_DEPTH) {
+                LOG.debug("Tile " + tile + " of " + query.getTypeName() + " requested at once");
+                SimpleFeatureIterator features = source.getFeatures(tileQuery).features();
+                try {
+                    while (features.hasNext()) {
+                        handTileFeature(features.next(), tile);
+                    }
+                } finally {
+                    features.close();
+                }
+                return;
+            }
+
+            // one more feature than a page tells that the tile is too large
+            tileQuery.setMaxFeatures(pageSize + 1);
+            List<SimpleFeature> page = new ArrayList<SimpleFeature>();
+            SimpleFeatureIterator features = source.getFeatures(tileQuery).features();
+            try {
+                while (features.hasNext() && page.size() <= pageSize) {
+                    page.add(features.next());
+                }
+            } finally {
+                features.close();
+            }
+            if (page.size() > pageSize) {
+                // the features of the discarded page are released before the tiles are requested
+                page = null;
+                double midX = tile.getMedian(0);
+                double midY = tile.getMedian(1);
+                CoordinateReferenceSystem crs = tile.getCoordinateReferenceSystem();
+                produceTile(new ReferencedEnvelope(tile.getMinX(), midX, tile.getMinY(), midY, crs), depth + 1);
+                produceTile(new ReferencedEnvelope(midX, tile.getMaxX(), tile.getMinY(), midY, crs), depth + 1);
+                produceTile(new ReferencedEnvelope(tile.getMinX(), midX, midY, tile.getMaxY(), crs), depth + 1);
+                produceTile(new ReferencedEnvelope(midX, tile.getMaxX(), midY, tile.getMaxY(), crs), depth + 1);
+            } else {
+                for (SimpleFeature feature : page) {
+                    handTileFeature(feature, tile);
+                }
+            }
+        }
+
+        /**
+         * Hands the feature over unless it crosses the border of the tile and was already returned by a neighbour tile
+         */
+        private void handTileFeature(SimpleFeature feature, ReferencedEnvelope tile) throws Exception {
+            Geometry geometry = (Geometry) feature.getDefaultGeometry();
+            if (geometry != null && crossesBorder(geometry.getEnvelopeInternal(), tile)
+                    && !this.borderFeatures.add(feature.getID())) {
+                return;
+            }
+            hand(feature);
+        }
+
+        /**
+         * @return true if the envelope reaches a border of the tile which is shared with another tile
+         */
+        private boolean crossesBorder(Envelope envelope, ReferencedEnvelope tile) throws Exception {
+            Envelope env = (this.toSourceCRS == null) ? envelope : JTS.transform(envelope, this.toSourceCRS);
+            return (env.getMinX() <= tile.getMinX() && tile.getMinX() > bbox.getMinX())
+                    || (env.getMaxX() >= tile.getMaxX() && tile.getMaxX() < bbox.getMaxX())
+                    || (env.getMinY() <= tile.getMinY() && tile.getMinY() > bbox.getMinY())
+                    || (env.getMaxY() >= tile.getMaxY() && tile.getMaxY() < bbox.getMaxY());
+        }
+
+        private void hand(SimpleFeature feature) throws InterruptedException {
+            this.batch.add(feature);
+            if (this.batch.size() >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            if (!this.batch.isEmpty()) {
+                this.queue.put(this.batch);
+                this.batch = new ArrayList<SimpleFeature>(BATCH_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Iterates the features handed over by the producer
+     */
+    private final class PageIterator implements Iterator<SimpleFeature> {
+
+        private final BlockingQueue<List<SimpleFeature>> queue = new ArrayBlockingQueue<List<SimpleFeature>>(QUEUE_SIZE);
+        private final Producer producer = new Producer(this.queue);
+        private Iterator<SimpleFeature> batch = END.iterator();
+        private boolean ended = false;
+
+        PageIterator() {
+            this.producer.start();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!this.batch.hasNext() && !this.ended) {
+                List<SimpleFeature> next;
+                try {
+                    next = this.queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException(e);
+                }
+                if (next == END) {
+                    this.ended = true;
+                    if (this.producer.failure != null) {
+                        throw new RuntimeException(this.producer.failure);
+                    }
+                } else {
+                    this.batch = next.iterator();
+                }
+            }
+            return this.batch.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return this.batch.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        void close() {
+            this.ended = true;
+            this.producer.interrupt();
+            this.queue.clear();
+        }
+    }
+}
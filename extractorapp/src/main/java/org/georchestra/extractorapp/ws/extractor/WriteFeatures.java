@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -14,8 +15,8 @@ import org.geotools.data.DataStore;
 import org.geotools.data.DefaultTransaction;
 import org.geotools.data.FeatureStore;
 import org.geotools.data.Transaction;
+import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.feature.AttributeTypeBuilder;
-import org.geotools.feature.DefaultFeatureCollection;
 import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.opengis.feature.Feature;
@@ -44,8 +45,10 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 public class WriteFeatures implements FeatureVisitor {
 
     private static final int                                                    MAX_TRANSACTION_FEATURES = 200000;
+    private static final int                                                    BATCH_SIZE = 1000;
     private final SimpleFeatureType                                             _type;
     private final Map<GeomType, FeatureStore<SimpleFeatureType, SimpleFeature>> _dsFiles;
+    private final Map<GeomType, List<SimpleFeature>>                            _batches = new HashMap<GeomType, List<SimpleFeature>>();
     private final File                                                          _baseDir;
     private final ArrayList<File>                                               _files          = new ArrayList<File>();
     private final Map<String, String>                                           _attNameMapping = new HashMap<String, String>();
@@ -130,19 +133,29 @@ public class WriteFeatures implements FeatureVisitor {
 
             SimpleFeature copy = copyFeature (simpleFeature, dsFile.getSchema ());
 
-            DefaultFeatureCollection collection = new DefaultFeatureCollection(null, null);
-
-            collection.add(copy);
-            
-            dsFile.addFeatures (collection);
+            List<SimpleFeature> batch = _batches.get (geomType);
+            if (batch == null) {
+                batch = new ArrayList<SimpleFeature> (BATCH_SIZE);
+                _batches.put (geomType, batch);
+            }
+            batch.add (copy);
+            if (batch.size () >= BATCH_SIZE) {
+                flush (dsFile, batch);
+            }
         } catch (IOException e) {
             throw new RuntimeException (e);
         }
     }
     
     public void close() throws IOException {
-        _transaction.commit();
-        _transaction.close();
+        try {
+            for (Entry<GeomType, List<SimpleFeature>> entry : _batches.entrySet ()) {
+                flush (_dsFiles.get (entry.getKey ()), entry.getValue ());
+            }
+            _transaction.commit();
+        } finally {
+            _transaction.close();
+        }
     }
     
     /**
@@ -158,6 +171,17 @@ public class WriteFeatures implements FeatureVisitor {
     /* -------------------  Private Methods  -------------------------------*/
     
     /* -------------------  Support methods for visit  -------------------------------*/
+    /**
+     * The features are added by batches, adding them one at a time costs a collection and a writer each.
+     */
+    private void flush (FeatureStore<SimpleFeatureType, SimpleFeature> dsFile, List<SimpleFeature> batch) throws IOException {
+        if (batch.isEmpty ()) {
+            return;
+        }
+        dsFile.addFeatures (new ListFeatureCollection (dsFile.getSchema (), batch));
+        batch.clear ();
+    }
+
     private SimpleFeature copyFeature (SimpleFeature simpleFeature, SimpleFeatureType baseType) throws IOException {
         if(_featuresInTransaction>MAX_TRANSACTION_FEATURES){
             _featuresInTransaction = 0;
@@ -12,6 +12,9 @@ public class ExecutionMetadata {
 	private Date beginTime = null;
     private Date endTime = null;
     private ExecutionPriority priority = ExecutionPriority.MEDIUM;
+    /** position of a waiting task in the queue, 1 is the next task to run. 0 if unknown */
+    private int queuePosition = 0;
+    private Date estimatedStart = null;
 
     // this values are immutables
     private final String requestor;
@@ -40,6 +43,8 @@ public class ExecutionMetadata {
         this.future = toCopy.future;
         this.uuid = toCopy.uuid;
         this.requests = toCopy.requests;
+        this.queuePosition = toCopy.queuePosition;
+        this.estimatedStart = toCopy.estimatedStart;
     }
 
     public String getUuid() {
@@ -103,6 +108,25 @@ public class ExecutionMetadata {
 		return endTime;
 	}
 
+    public synchronized int getQueuePosition() {
+        return queuePosition;
+    }
+
+    public synchronized void setQueuePosition(int queuePosition) {
+        this.queuePosition = queuePosition;
+    }
+
+    /**
+     * @return when the waiting task should start, null if unknown
+     */
+    public synchronized Date getEstimatedStart() {
+        return estimatedStart;
+    }
+
+    public synchronized void setEstimatedStart(Date estimatedStart) {
+        this.estimatedStart = estimatedStart;
+    }
+
     public synchronized void setPriority(ExecutionPriority priority) {
         this.priority = priority;
     }
@@ -0,0 +1,297 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+
+/**
+ * Keeps the extractions which are not finished on disk, so they survive a restart of the application.
+ * <p>
+ * Each job has its own directory named after its uuid. It holds a <code>job.properties</code> file (the request,
+ * the headers of the user, the priority, the state and the outcome of the layers already extracted) and the
+ * working directory of the extraction. The properties file is written in a temporary file then renamed, thus
+ * it is always complete. The jobs are indexed by uuid in memory, the files are only read at startup.
+ * </p>
+ */
+public class ExtractionJobStore {
+
+	private static final Log LOG = LogFactory.getLog(ExtractionJobStore.class.getPackage().getName());
+
+	private static final String JOB_FILE = "job.properties";
+	private static final String WORK_DIR = "work";
+
+	private static final String REQUEST = "request";
+	private static final String REQUEST_TIME = "requestTime";
+	private static final String PRIORITY = "priority";
+	private static final String STATE = "state";
+	private static final String HEADER_PREFIX = "header.";
+	private static final String LAYER_PREFIX = "layer.";
+
+	private final File directory;
+	private final Map<String, Properties> jobs = new ConcurrentHashMap<String, Properties>();
+
+	/**
+	 * Opens the store, the jobs found in the directory are loaded.
+	 *
+	 * @param directory where the jobs are stored, created if needed
+	 */
+	public ExtractionJobStore(File directory) {
+		this.directory = directory;
+		if (!directory.exists() && !directory.mkdirs()) {
+			throw new IllegalStateException("Unable to create the job store directory: " + directory);
+		}
+		for (File jobDir : directory.listFiles()) {
+			File jobFile = new File(jobDir, JOB_FILE);
+			if (!jobFile.exists()) {
+				// the job was removed or never completely written
+				FileUtils.delete(jobDir);
+				continue;
+			}
+			try {
+				this.jobs.put(jobDir.getName(), read(jobFile));
+			} catch (IOException e) {
+				LOG.error("Unable to read the job " + jobFile + ", it is discarded", e);
+				FileUtils.delete(jobDir);
+			}
+		}
+		LOG.info(this.jobs.size() + " unfinished extractions found in " + directory);
+	}
+
+	/**
+	 * Stores a new job
+	 *
+	 * @param uuid identifier of the extraction
+	 * @param requestTime
+	 * @param request the request in json syntax
+	 * @param headers the headers of the user's request needed to run the extraction
+	 * @param priority
+	 * @throws IOException
+	 */
+	public void create(String uuid, Date requestTime, String request, Map<String, String> headers,
+			ExecutionPriority priority) throws IOException {
+		Properties job = new Properties();
+		job.setProperty(REQUEST, request);
+		job.setProperty(REQUEST_TIME, String.valueOf(requestTime.getTime()));
+		job.setProperty(PRIORITY, priority.name());
+		job.setProperty(STATE, ExecutionState.WAITING.name());
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			if (header.getValue() != null) {
+				job.setProperty(HEADER_PREFIX + header.getKey(), header.getValue());
+			}
+		}
+		write(uuid, job);
+		this.jobs.put(uuid, job);
+	}
+
+	public void updatePriority(String uuid, ExecutionPriority priority) {
+		update(uuid, PRIORITY, priority.name());
+	}
+
+	/**
+	 * @param uuid
+	 * @param state only WAITING and PAUSED are meaningful, a running job is resumed as a waiting job
+	 */
+	public void updateState(String uuid, ExecutionState state) {
+		update(uuid, STATE, state.name());
+	}
+
+	/**
+	 * Records the outcome of a layer, the layer is not extracted again if the job is resumed
+	 *
+	 * @param uuid
+	 * @param layerIndex position of the layer in the request
+	 * @param outcome
+	 */
+	public void checkpoint(String uuid, int layerIndex, String outcome) {
+		update(uuid, LAYER_PREFIX + layerIndex, outcome);
+	}
+
+	/**
+	 * Deletes the job and its working directory
+	 */
+	public void remove(String uuid) {
+		Properties job = this.jobs.remove(uuid);
+		if (job != null) {
+			synchronized (job) {
+				FileUtils.delete(jobDirectory(uuid));
+			}
+		}
+	}
+
+	/**
+	 * @return the job, null if there is no such job
+	 */
+	public Job get(String uuid) {
+		Properties job = this.jobs.get(uuid);
+		if (job == null) {
+			return null;
+		}
+		synchronized (job) {
+			return new Job(uuid, job);
+		}
+	}
+
+	/**
+	 * @return the jobs of the store, ordered by request time
+	 */
+	public List<Job> list() {
+		List<Job> list = new ArrayList<Job>();
+		for (String uuid : this.jobs.keySet()) {
+			Job job = get(uuid);
+			if (job != null) {
+				list.add(job);
+			}
+		}
+		Collections.sort(list);
+		return list;
+	}
+
+	/**
+	 * @return the directory where the job is extracted, it is kept until the job is removed
+	 */
+	public File workDirectory(String uuid) {
+		File workDir = new File(jobDirectory(uuid), WORK_DIR);
+		workDir.mkdirs();
+		return workDir;
+	}
+
+	private File jobDirectory(String uuid) {
+		return new File(this.directory, FileUtils.toSafeFileName(uuid));
+	}
+
+	private void update(String uuid, String key, String value) {
+		Properties job = this.jobs.get(uuid);
+		if (job == null) {
+			return;
+		}
+		synchronized (job) {
+			if (this.jobs.get(uuid) != job) {
+				// removed meanwhile
+				return;
+			}
+			job.setProperty(key, value);
+			try {
+				write(uuid, job);
+			} catch (IOException e) {
+				LOG.error("Unable to store the job " + uuid, e);
+			}
+		}
+	}
+
+	private void write(String uuid, Properties job) throws IOException {
+		File jobDir = jobDirectory(uuid);
+		jobDir.mkdirs();
+		File tmpFile = new File(jobDir, JOB_FILE + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmpFile);
+		try {
+			job.store(out, "extraction " + uuid);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		File jobFile = new File(jobDir, JOB_FILE);
+		if (!tmpFile.renameTo(jobFile)) {
+			// some platforms do not replace an existing file
+			jobFile.delete();
+			if (!tmpFile.renameTo(jobFile)) {
+				throw new IOException("Unable to write " + jobFile);
+			}
+		}
+	}
+
+	private static Properties read(File jobFile) throws IOException {
+		Properties job = new Properties();
+		InputStream in = new FileInputStream(jobFile);
+		try {
+			job.load(in);
+		} finally {
+			in.close();
+		}
+		if (job.getProperty(REQUEST) == null) {
+			throw new IOException("No request in " + jobFile);
+		}
+		return job;
+	}
+
+	/**
+	 * Copy of a stored job
+	 */
+	public static final class Job implements Comparable<Job> {
+
+		private final String uuid;
+		private final String request;
+		private final Date requestTime;
+		private final ExecutionPriority priority;
+		private final ExecutionState state;
+		private final Map<String, String> headers = new HashMap<String, String>();
+		private final Map<Integer, String> layerOutcomes = new HashMap<Integer, String>();
+
+		private Job(String uuid, Properties job) {
+			this.uuid = uuid;
+			this.request = job.getProperty(REQUEST);
+			this.requestTime = new Date(Long.parseLong(job.getProperty(REQUEST_TIME, "0")));
+			this.priority = ExecutionPriority.valueOf(job.getProperty(PRIORITY, ExecutionPriority.MEDIUM.name()));
+			this.state = ExecutionState.valueOf(job.getProperty(STATE, ExecutionState.WAITING.name()));
+			for (String key : job.stringPropertyNames()) {
+				if (key.startsWith(HEADER_PREFIX)) {
+					this.headers.put(key.substring(HEADER_PREFIX.length()), job.getProperty(key));
+				} else if (key.startsWith(LAYER_PREFIX)) {
+					this.layerOutcomes.put(Integer.valueOf(key.substring(LAYER_PREFIX.length())), job.getProperty(key));
+				}
+			}
+		}
+
+		public String getUuid() {
+			return uuid;
+		}
+
+		/**
+		 * @return the request in json syntax
+		 */
+		public String getRequest() {
+			return request;
+		}
+
+		public Date getRequestTime() {
+			return requestTime;
+		}
+
+		public ExecutionPriority getPriority() {
+			return priority;
+		}
+
+		public ExecutionState getState() {
+			return state;
+		}
+
+		public Map<String, String> getHeaders() {
+			return Collections.unmodifiableMap(headers);
+		}
+
+		/**
+		 * @return the outcome of the layers already extracted, by position of the layer in the request
+		 */
+		public Map<Integer, String> getLayerOutcomes() {
+			return Collections.unmodifiableMap(layerOutcomes);
+		}
+
+		@Override
+		public int compareTo(Job other) {
+			return this.requestTime.compareTo(other.requestTime);
+		}
+	}
+}
@@ -1,16 +1,18 @@
 package org.georchestra.extractorapp.ws.extractor.task;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.TreeSet;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
@@ -18,15 +20,31 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
 
 
 public class ExtractionManager {
 	
     private static final Log LOG = LogFactory.getLog(ExtractionManager.class.getPackage().getName());
+
+    /** directory of the job store, in the extractor storage directory */
+    private static final String JOB_STORE_DIR = "jobs";
+    private static final long MINUTE = 60 * 1000;
     
     private PriorityThreadPoolExecutor executor;
     private int maxExtractions;
     private int minThreads;
+    private int maxLayersPerExtraction = 1;
+    private boolean incrementalArchive = false;
+    private int wfsPageSize = 0;
+    private long coverageTileSize = 0;
+    private int coverageDownloadThreads = 1;
+    private HostRequestLimiter hostLimiter = new HostRequestLimiter(0);
+    private boolean persistentJobs = false;
+    private ExtractionJobStore jobStore;
+    private long agingPeriod = 0;
+    private Map<String, Integer> roleWeights = new HashMap<String, Integer>();
+    private FairTaskQueue workQueue;
 
     // ThreadPoolExecutor API says that the internal queue should not be
     // accessed except for debugging so this
@@ -41,10 +59,16 @@ public class ExtractionManager {
     private Collection<ExtractionTask> cancelledTaskQueue = new PriorityBlockingQueue<ExtractionTask>();
     
     /** maintains the paused tasks. They can be selected by the user in random way */
-    private Map<String, ExtractionTask> pausedTasks = Collections.synchronizedMap(new HashMap<String, ExtractionTask>());
+    private Map<String, ExtractionTask> pausedTasks = new ConcurrentHashMap<String, ExtractionTask>();
+
+    /** the last submitted (or paused) task of each uuid */
+    private ConcurrentMap<String, ExtractionTask> tasksById = new ConcurrentHashMap<String, ExtractionTask>();
     
     public synchronized void init() {
-        BlockingQueue<Runnable> workQueue = new PriorityBlockingQueue<Runnable>();
+        if (this.persistentJobs) {
+            this.jobStore = new ExtractionJobStore(FileUtils.storageFile(JOB_STORE_DIR));
+        }
+        this.workQueue = new FairTaskQueue(new FairScheduler(this.agingPeriod, this.roleWeights, this.hostLimiter));
         ThreadFactory threadFactory = new ThreadFactory() {
             @Override
             public Thread newThread(Runnable r) {
@@ -56,7 +80,7 @@ public class ExtractionManager {
             }
         };
         executor = new PriorityThreadPoolExecutor(minThreads, maxExtractions, 5,
-                TimeUnit.SECONDS, workQueue, threadFactory);
+                TimeUnit.SECONDS, this.workQueue, threadFactory);
     }
 
     public void setMaxExtractions(int maxExtractions) {
@@ -67,6 +91,93 @@ public class ExtractionManager {
         this.minThreads = minThreads;
     }
 
+    /**
+     * @param maxLayersPerExtraction max number of layers of an extraction extracted at the same time
+     */
+    public void setMaxLayersPerExtraction(int maxLayersPerExtraction) {
+        this.maxLayersPerExtraction = maxLayersPerExtraction;
+    }
+
+    /**
+     * @param incrementalArchive if true the layers are added to the archive as soon as they are extracted
+     */
+    public void setIncrementalArchive(boolean incrementalArchive) {
+        this.incrementalArchive = incrementalArchive;
+    }
+
+    /**
+     * @param wfsPageSize max number of features requested at once from a WFS, 0 means a single request per layer
+     */
+    public void setWfsPageSize(int wfsPageSize) {
+        this.wfsPageSize = wfsPageSize;
+    }
+
+    /**
+     * @param coverageTileSize coverages larger than this size (pixels times bands) are downloaded by tiles,
+     *                         then mosaicked. 0 means a single GetCoverage per layer
+     */
+    public void setCoverageTileSize(long coverageTileSize) {
+        this.coverageTileSize = coverageTileSize;
+    }
+
+    /**
+     * @param coverageDownloadThreads number of tiles of a coverage downloaded at the same time
+     */
+    public void setCoverageDownloadThreads(int coverageDownloadThreads) {
+        this.coverageDownloadThreads = coverageDownloadThreads;
+    }
+
+    /**
+     * @param maxRequestsPerHost max number of layers extracted at the same time from an OGC host,
+     *                           whatever the extraction they belong to. 0 means unlimited.
+     */
+    public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.hostLimiter = new HostRequestLimiter(maxRequestsPerHost);
+    }
+
+    /**
+     * @param agingPeriod minutes after which a LOW priority task is scheduled as a MEDIUM one, 0 means never
+     */
+    public void setAgingPeriod(long agingPeriod) {
+        this.agingPeriod = agingPeriod * MINUTE;
+    }
+
+    /**
+     * @param roleWeights share of the extraction threads of the users of each role, relative to the users whose
+     *                    roles are not listed (weight 1)
+     */
+    public void setRoleWeights(Map<String, Integer> roleWeights) {
+        this.roleWeights = roleWeights;
+    }
+
+    /**
+     * @param persistentJobs if true the extractions are kept on disk until they are finished, the unfinished
+     *                       extractions can be resumed when the application restarts
+     */
+    public void setPersistentJobs(boolean persistentJobs) {
+        this.persistentJobs = persistentJobs;
+    }
+
+    /**
+     * Stores then submits a new task. The headers are stored with the task, they are needed to resume it.
+     * If the task cannot be stored it is submitted anyway.
+     * 
+     * @param extractor the new task
+     * @param headers the headers of the user's request
+     */
+    public synchronized void submit(ExtractionTask extractor, Map<String, String> headers) {
+        if (this.jobStore != null) {
+            ExecutionMetadata metadata = extractor.executionMetadata;
+            try {
+                this.jobStore.create(metadata.getUuid(), metadata.getRequestTime(), metadata.getSpec(), headers,
+                        metadata.getPriority());
+            } catch (IOException e) {
+                LOG.error("Unable to store the extraction " + metadata.getUuid() + ", it won't be resumed on restart", e);
+            }
+        }
+        submit(extractor);
+    }
+
     /**
      * Submits the task taking into account the task priorities.
      * 
@@ -75,13 +186,66 @@ public class ExtractionManager {
      */
 	public synchronized void submit(ExtractionTask extractor) {
 
+		extractor.setLayerConcurrency(this.maxLayersPerExtraction, this.hostLimiter);
+		extractor.setIncrementalArchive(this.incrementalArchive);
+		extractor.setWfsPageSize(this.wfsPageSize);
+		extractor.setCoverageTiling(this.coverageTileSize, this.coverageDownloadThreads);
+		if (this.jobStore != null && this.jobStore.get(extractor.executionMetadata.getUuid()) != null) {
+			extractor.setJobStore(this.jobStore);
+		}
+
 		// creates the waiting task queue ordered by priority task
 		this.readyTaskQueue.offer(extractor);
+		this.tasksById.put(extractor.executionMetadata.getUuid(), extractor);
 
 		Future<?> future = executor.submit(extractor);
 		extractor.executionMetadata.setFuture(future);
 	}
 
+    /**
+     * @return the extractions which were not finished when the application stopped, ordered by request time
+     */
+    public List<ExtractionJobStore.Job> unfinishedJobs() {
+        if (this.jobStore == null) {
+            return Collections.emptyList();
+        }
+        List<ExtractionJobStore.Job> jobs = new ArrayList<ExtractionJobStore.Job>();
+        for (ExtractionJobStore.Job job : this.jobStore.list()) {
+            if (!this.tasksById.containsKey(job.getUuid())) {
+                jobs.add(job);
+            }
+        }
+        return jobs;
+    }
+
+    /**
+     * Resumes an unfinished extraction with its stored priority and state
+     *
+     * @param extractor the task rebuilt from the stored job
+     * @param job
+     */
+    public synchronized void resume(ExtractionTask extractor, ExtractionJobStore.Job job) {
+        extractor.executionMetadata.setPriority(job.getPriority());
+        if (job.getState() == ExecutionState.PAUSED) {
+            extractor.executionMetadata.setPaused();
+            this.pausedTasks.put(job.getUuid(), extractor);
+            this.tasksById.put(job.getUuid(), extractor);
+        } else {
+            submit(extractor);
+        }
+    }
+
+    /**
+     * Deletes an unfinished extraction which cannot be resumed
+     *
+     * @param uuid
+     */
+    public void discardJob(String uuid) {
+        if (this.jobStore != null) {
+            this.jobStore.remove(uuid);
+        }
+    }
+
 
     /**
      * Updates the priority if the task is in waiting status.
@@ -92,18 +256,7 @@ public class ExtractionManager {
     public synchronized void updatePriority(final String id, final ExecutionPriority newPriority) {
     	
         // search in the waiting tasks and updates the priority of the task
-        ExtractionTask foundTask = null;
-		for (ExtractionTask task : this.readyTaskQueue) {
-			if(task.executionMetadata.getState().equals(ExecutionState.WAITING) ){
-				Future<?> future = task.executionMetadata.getFuture();
-				if(!future.isCancelled() && !future.isDone()){					
-		            if (task.equalId(id)) {
-		            	foundTask = task;
-		            	break;
-		            }
-				}
-			}
-        }
+        ExtractionTask foundTask = findWaitingTask(id);
 		if(foundTask != null){
             // sets the new priority and reinsert the task
 //			this.readyTaskQueue.remove(foundTask);
@@ -123,17 +276,46 @@ public class ExtractionManager {
 			this.readyTaskQueue.remove(foundTask);
 			
 			submit(taskCloned);
-			
+			updateStoredPriority(id, newPriority);
 			
         } else {
         	// searches if the task is in the paused queue
         	ExtractionTask pausedTask = this.pausedTasks.get(id);
         	if(pausedTask != null){
             	pausedTask.executionMetadata.setPriority(newPriority);
+            	updateStoredPriority(id, newPriority);
         	}
         }
     }
 
+    /**
+     * @return the task if it is waiting to be executed, null otherwise
+     */
+    private ExtractionTask findWaitingTask(final String id) {
+        ExtractionTask task = this.tasksById.get(id);
+        if (task == null || !task.executionMetadata.isWaiting()) {
+            return null;
+        }
+        Future<?> future = task.executionMetadata.getFuture();
+        return (!future.isCancelled() && !future.isDone()) ? task : null;
+    }
+
+    private void updateStoredPriority(final String id, final ExecutionPriority priority) {
+        if (this.jobStore != null) {
+            this.jobStore.updatePriority(id, priority);
+        }
+    }
+
+    private void updateStoredState(final String id, final ExecutionState state) {
+        if (this.jobStore != null) {
+            if (state == ExecutionState.CANCELLED) {
+                this.jobStore.remove(id);
+            } else {
+                this.jobStore.updateState(id, state);
+            }
+        }
+    }
+
     
 
 	/**
@@ -160,6 +342,7 @@ public class ExtractionManager {
                 } else {
                     task.executionMetadata.cancel();
                     cancelledTaskQueue.add(task);
+                    updateStoredState(task.executionMetadata.getUuid(), ExecutionState.CANCELLED);
                 }
             }
         }
@@ -167,6 +350,7 @@ public class ExtractionManager {
         for (ExtractionTask task : newWaitingTasks) {
             task.executionMetadata.setPriority(ExecutionPriority.MEDIUM);
             submit(task);
+            updateStoredPriority(task.executionMetadata.getUuid(), ExecutionPriority.MEDIUM);
         }
     }
     
@@ -176,17 +360,14 @@ public class ExtractionManager {
      */
     public synchronized void removeTask(String uuid) {
     	
-        for (ExtractionTask task : this.readyTaskQueue) {
-        	if(task.executionMetadata.getPriority().equals(ExecutionState.WAITING) ){
-                if (task.equalId(uuid)) {
-                    task.executionMetadata.cancel();
-                    this.executor.remove(task);
-                    // move from ready to canceled list
-                    readyTaskQueue.remove(task);
-                    this.cancelledTaskQueue.add(task);
-                    break;
-                }
-        	}
+        ExtractionTask task = this.tasksById.get(uuid);
+        if (task != null && task.executionMetadata.isWaiting()) {
+            task.executionMetadata.cancel();
+            this.executor.remove(task);
+            // move from ready to canceled list
+            readyTaskQueue.remove(task);
+            this.cancelledTaskQueue.add(task);
+            updateStoredState(uuid, ExecutionState.CANCELLED);
         }
     }
 
@@ -194,7 +375,7 @@ public class ExtractionManager {
      * Gets a deep copy of task queue metadata. The metadata objects are only copies 
      * (defensive copy) so no changes will be reflected on the actual tasks
      */
-    public synchronized List<ExecutionMetadata> getTaskQueue() {
+    public List<ExecutionMetadata> getTaskQueue() {
         List<ExecutionMetadata> queue = new ArrayList<ExecutionMetadata>();
         for (ExtractionTask task : this.readyTaskQueue) {
             queue.add(new ExecutionMetadata(task.executionMetadata));
@@ -205,9 +386,48 @@ public class ExtractionManager {
         for (ExtractionTask task : this.cancelledTaskQueue) {
             queue.add(new ExecutionMetadata(task.executionMetadata));
         }
+        if (this.workQueue != null) {
+            estimateStarts(queue);
+        }
         return queue;
     }
 
+    /**
+     * Sets the queue position and the estimated start of the waiting tasks. The estimation assumes the waiting
+     * tasks last as long as the average of the completed tasks.
+     */
+    private void estimateStarts(List<ExecutionMetadata> queue) {
+        final long now = System.currentTimeMillis();
+        List<SchedulableTask> scheduled = this.workQueue.scheduledTasks(now);
+        Map<String, Integer> positions = new HashMap<String, Integer>();
+        for (int i = 0; i < scheduled.size(); i++) {
+            positions.put(scheduled.get(i).getId(), i);
+        }
+        long totalDuration = 0;
+        int completed = 0;
+        int running = 0;
+        for (ExecutionMetadata metadata : queue) {
+            if (metadata.isCompleted() && metadata.getBeginTime() != null && metadata.getEndTime() != null) {
+                totalDuration += metadata.getEndTime().getTime() - metadata.getBeginTime().getTime();
+                completed++;
+            } else if (metadata.isRunning()) {
+                running++;
+            }
+        }
+        final int threads = Math.max(1, this.executor.getCorePoolSize());
+        for (ExecutionMetadata metadata : queue) {
+            Integer position = positions.get(metadata.getUuid());
+            if (position == null || !metadata.isWaiting()) {
+                continue;
+            }
+            metadata.setQueuePosition(position + 1);
+            if (completed > 0) {
+                long rounds = (position + running) / threads;
+                metadata.setEstimatedStart(new Date(now + rounds * (totalDuration / completed)));
+            }
+        }
+    }
+
     /**
      * Search the task with the indeed uuid in the ready and paused tasks.
      * The search is done between the waiting, paused tasks
@@ -215,35 +435,15 @@ public class ExtractionManager {
      * @param uuid	identifier of task to find
      * @return the {@link ExtractionTask} it exists, null in other case.
      */
-    public synchronized ExtractionTask findTask(final String uuid) {
+    public ExtractionTask findTask(final String uuid) {
     	
-    	List<ExtractionTask> tasks = queryRunableTask();
-        for (ExtractionTask task: tasks) {
-            if (task.equalId(uuid)) {
-            	return task;
-            }
+        ExtractionTask task = this.tasksById.get(uuid);
+        if (task != null && (task.executionMetadata.isWaiting() || task.executionMetadata.isPaused())) {
+            return task;
         }
-        return this.pausedTasks.get(uuid);
+        return null;
     }
-    
-    /**
-     * @return Returns the waiting, paused tasks. That is all runnable tasks.
-     */
-    private List<ExtractionTask> queryRunableTask(){
-    	
-        List<ExtractionTask> queue = new LinkedList<ExtractionTask>();
-        for (ExtractionTask task : this.readyTaskQueue) {
-        	ExecutionState st = task.executionMetadata.getState();
-        	if(st.equals(ExecutionState.WAITING)){
-                queue.add(task);
-        	}
-        }
-        for (ExtractionTask pausedTask : this.pausedTasks.values()) {
-            queue.add(pausedTask);
-        }
-        return queue;
 
-    }
     /**
      * Changes the task's status
      * 
@@ -287,12 +487,14 @@ public class ExtractionManager {
 		    this.readyTaskQueue.remove(foundTask);
 		    this.cancelledTaskQueue.add(foundTask);
 		    cancelProcess(foundTask);
+		    updateStoredState(id, ExecutionState.CANCELLED);
 			
 		} else if( foundTask.executionMetadata.isPaused() ) {
 
         	this.pausedTasks.remove(id);
         	this.cancelledTaskQueue.add(foundTask);
 			cancelProcess(foundTask);
+			updateStoredState(id, ExecutionState.CANCELLED);
 		}
 	}
     
@@ -315,17 +517,7 @@ public class ExtractionManager {
      */
     private synchronized void pauseTask(final String id){
 
-    	ExtractionTask foundTask = null;
-        for (ExtractionTask task: this.readyTaskQueue) {
-        	if(task.executionMetadata.getState().equals(ExecutionState.WAITING)){
-        		if(!task.executionMetadata.getFuture().isCancelled() && !task.executionMetadata.getFuture().isDone()){
-                    if (task.equalId(id)) {
-                    	foundTask = task;
-                    	break;
-                    }
-        		}
-        	}
-        }
+    	ExtractionTask foundTask = findWaitingTask(id);
 		if(foundTask == null){
 			return;
 		}
@@ -347,7 +539,8 @@ public class ExtractionManager {
 		this.readyTaskQueue.remove(foundTask);
 		
         this.pausedTasks.put(id, taskCloned);
-        
+        this.tasksById.put(id, taskCloned);
+        updateStoredState(id, ExecutionState.PAUSED);
     }
     
     /**
@@ -362,6 +555,7 @@ public class ExtractionManager {
     		foundTask.executionMetadata.setWaiting();
     		
     		submit(foundTask);
+    		updateStoredState(id, ExecutionState.WAITING);
     	}
     }
 	
@@ -374,6 +568,7 @@ public class ExtractionManager {
             }
         }
         readyTaskQueue.removeAll(toRemove);
+        forget(toRemove);
         toRemove.clear();
         for (ExtractionTask task : cancelledTaskQueue) {
             ExecutionMetadata metadata = task.executionMetadata;
@@ -382,6 +577,16 @@ public class ExtractionManager {
             }
         }
         cancelledTaskQueue.removeAll(toRemove);
+        forget(toRemove);
+    }
+
+    /**
+     * Removes the tasks from the index, unless they were replaced by a newer task
+     */
+    private void forget(Collection<ExtractionTask> tasks) {
+        for (ExtractionTask task : tasks) {
+            this.tasksById.remove(task.executionMetadata.getUuid(), task);
+        }
     }
 
 
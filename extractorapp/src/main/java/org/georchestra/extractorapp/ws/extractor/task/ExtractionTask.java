@@ -4,14 +4,29 @@ import java.io.*;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.georchestra.extractorapp.ws.extractor.ExtractorController;
 import org.georchestra.extractorapp.ws.extractor.ExtractorLayerRequest;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.georchestra.extractorapp.ws.extractor.IncrementalZipArchive;
 import org.georchestra.extractorapp.ws.extractor.OversizedCoverageRequestException;
 import org.georchestra.extractorapp.ws.extractor.RequestConfiguration;
 import org.georchestra.extractorapp.ws.extractor.WcsExtractor;
@@ -29,7 +44,7 @@ import org.opengis.referencing.operation.TransformException;
  *
  * @author jeichar
  */
-public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
+public class ExtractionTask implements Runnable, Comparable<ExtractionTask>, SchedulableTask {
 	private static final Log LOG = LogFactory.getLog(ExtractionTask.class
 			.getPackage().getName());
 
@@ -38,6 +53,25 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 	private RequestConfiguration requestConfig;
 
+	/** max number of layers of this extraction extracted at the same time */
+	private int layerConcurrency = 1;
+	/** limits the concurrent requests to each host, shared by the extractions (null means unlimited) */
+	private HostRequestLimiter hostLimiter;
+	/** the layers are added to the archive as soon as they are extracted */
+	private boolean incrementalArchive = false;
+	/** max number of features requested at once from a WFS, 0 means a single request per layer */
+	private int wfsPageSize = 0;
+	/** coverages larger than this size are downloaded by tiles, 0 means never */
+	private long coverageTileSize = 0;
+	/** number of tiles of a coverage downloaded at the same time */
+	private int coverageDownloadThreads = 1;
+	/** keeps the extraction on disk until it is finished, null if the extraction is not persistent */
+	private ExtractionJobStore jobStore;
+
+	private enum LayerOutcome {
+		SUCCESS, FAILURE, OVERSIZED
+	}
+
 	public ExtractionTask(RequestConfiguration requestConfig)
 			throws NoSuchAuthorityCodeException, MalformedURLException, JSONException, FactoryException {
 		this.requestConfig = requestConfig;
@@ -51,99 +85,116 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 
 		this.requestConfig = toCopy.requestConfig;
 		this.executionMetadata = toCopy.executionMetadata;
+		this.layerConcurrency = toCopy.layerConcurrency;
+		this.hostLimiter = toCopy.hostLimiter;
+		this.incrementalArchive = toCopy.incrementalArchive;
+		this.wfsPageSize = toCopy.wfsPageSize;
+		this.coverageTileSize = toCopy.coverageTileSize;
+		this.coverageDownloadThreads = toCopy.coverageDownloadThreads;
+		this.jobStore = toCopy.jobStore;
+	}
+
+	/**
+	 * Sets how the layers of this extraction are extracted
+	 *
+	 * @param layerConcurrency max number of layers extracted at the same time
+	 * @param hostLimiter limits the concurrent requests to each host, null means unlimited
+	 */
+	void setLayerConcurrency(int layerConcurrency, HostRequestLimiter hostLimiter) {
+		this.layerConcurrency = layerConcurrency;
+		this.hostLimiter = hostLimiter;
+	}
+
+	/**
+	 * @param incrementalArchive if true each layer is added to the archive as soon as it is extracted,
+	 *                           otherwise the archive is built once all the layers are extracted
+	 */
+	void setIncrementalArchive(boolean incrementalArchive) {
+		this.incrementalArchive = incrementalArchive;
 	}
 
+	/**
+	 * @param wfsPageSize max number of features requested at once from a WFS, 0 means a single request per layer
+	 */
+	void setWfsPageSize(int wfsPageSize) {
+		this.wfsPageSize = wfsPageSize;
+	}
+
+	/**
+	 * @param coverageTileSize coverages larger than this size (pixels times bands) are downloaded by tiles, 0 means never
+	 * @param coverageDownloadThreads number of tiles of a coverage downloaded at the same time
+	 */
+	void setCoverageTiling(long coverageTileSize, int coverageDownloadThreads) {
+		this.coverageTileSize = coverageTileSize;
+		this.coverageDownloadThreads = coverageDownloadThreads;
+	}
+
+	/**
+	 * @param jobStore the store where the extraction is kept until it is finished, the extraction is
+	 *                 extracted in its working directory and the outcome of each layer is recorded
+	 */
+	void setJobStore(ExtractionJobStore jobStore) {
+		this.jobStore = jobStore;
+	}
 
 	@Override
 	public void run() {
 		executionMetadata.setRunning();
 		requestConfig.setThreadLocal();
 
-		final File tmpDir = FileUtils.createTempDirectory();
-		final File tmpExtractionBundle = mkDirTmpExtractionBundle(tmpDir, requestConfig.extractionFolderPrefix+requestConfig.requestUuid .toString());
+		final String uuid = requestConfig.requestUuid.toString();
+		final String bundleName = FileUtils.toSafeFileName(requestConfig.extractionFolderPrefix + uuid);
+		final Map<Integer, String> checkpoints = new HashMap<Integer, String>(checkpoints());
+		final File tmpDir;
+		if (this.jobStore != null) {
+			tmpDir = this.jobStore.workDirectory(uuid);
+			cleanWorkDirectory(tmpDir, checkpoints.isEmpty() ? null : bundleName);
+		} else {
+			tmpDir = FileUtils.createTempDirectory();
+		}
+		final File tmpExtractionBundle = mkDirTmpExtractionBundle(tmpDir, bundleName);
+		// a resumed extraction goes on in the archive or the bundle which holds the layers already extracted
+		IncrementalZipArchive zipArchive = openArchive(tmpExtractionBundle.getName(), checkpoints);
 
 		try {
 			long start = System.currentTimeMillis();
 			LOG.info("Starting extraction into directory: "
 					+ tmpExtractionBundle);
+			if (!checkpoints.isEmpty()) {
+				LOG.info("Resuming the extraction, " + checkpoints.size() + " layers were already extracted");
+			}
 
 			final File failureFile = new File(tmpExtractionBundle,
 					"failures.html");
 			final List<String> successes = new ArrayList<String>();
 			final List<String> failures = new ArrayList<String>();
 			final List<String> oversized = new ArrayList<String>();
-			for (ExtractorLayerRequest request : requestConfig.requests) {
-
-				int tries = 0;
-				while (tries < EXTRACTION_ATTEMPTS) {
-
-					tries++;
-					String name = String.format("%s__%s",
-							request._url.getHost(), request._layerName);
-					File layerTmpDir = mkDirTmpExtractionBundle(tmpDir, name);
-					LOG.info("Attempt " + tries + " for extracting layer: "
-							+ request._url + " -- " + request._layerName);
-
-					try {
-						// extracts the layer in the temporal directory
-						File newDir;
-						switch (request._owsType) {
-						case WCS:
-							newDir = extractWcsLayer(request, layerTmpDir);
-							break;
-						case WFS:
-							newDir = extractWfsLayer(request, layerTmpDir);
-							break;
-						default:
-							throw new IllegalArgumentException(request._owsType
-									+ " not supported");
-						}
-						// extracts the metadata into the temporal directory
-						if(request._isoMetadataURL != null && !"".equals(request._isoMetadataURL) ){
-							extractMetadata(request, newDir);
-						}
-
-						for (File from : layerTmpDir.listFiles()) {
-							File to = new File(tmpExtractionBundle,
-									from.getName());
-							FileUtils.moveFile(from, to);
-						}
-						FileUtils.delete(layerTmpDir);
-						LOG.info("Finished extracting layer: " + request._url
-								+ " -- " + request._layerName);
-						tries = EXTRACTION_ATTEMPTS + 1;
-						successes.add(name);
-					} catch (OversizedCoverageRequestException e) {
-						tries = EXTRACTION_ATTEMPTS + 1; // don't re-try
-						oversized.add(name);
-						handleExtractionException(request, e, failureFile);
-					} catch (SecurityException e) {
-						tries = EXTRACTION_ATTEMPTS + 1; // don't re-try
 
-						try {
-							FileUtils.delete(layerTmpDir);
-						} catch (Throwable t) { /* ignore */
-						}
-
-						failures.add(name);
-						handleExtractionException(request, e, failureFile);
-					} catch (Throwable e) {
-						try {
-							FileUtils.delete(layerTmpDir);
-						} catch (Throwable t) { /* ignore */
-						}
-
-						if (tries >= EXTRACTION_ATTEMPTS) {
-							failures.add(name);
-							handleExtractionException(request, e, failureFile);
-						}
-					}
+			final List<ExtractorLayerRequest> requests = requestConfig.requests;
+			final LayerOutcome[] outcomes = extractLayers(requests, checkpoints, tmpDir, tmpExtractionBundle, zipArchive, failureFile);
+			for (int i = 0; i < outcomes.length; i++) {
+				String name = layerName(requests.get(i));
+				switch (outcomes[i]) {
+				case SUCCESS:
+					successes.add(name);
+					break;
+				case OVERSIZED:
+					oversized.add(name);
+					break;
+				default:
+					failures.add(name);
 				}
 			}
 
 			closeFailuresFile(failureFile);
 
-			File archive = archiveExtraction(tmpExtractionBundle);
+			File archive;
+			if (zipArchive != null) {
+				archive = closeArchive(zipArchive, failureFile);
+				zipArchive = null;
+			} else {
+				archive = archiveExtraction(tmpExtractionBundle);
+			}
 			long fileSize = archive.length();
 			long end = System.currentTimeMillis();
 
@@ -162,13 +213,230 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 				throw new RuntimeException(Arrays.toString(failures.toArray()));
 			}
 		} finally {
+			if (zipArchive != null) {
+				zipArchive.discard();
+			}
 			executionMetadata.setCompleted();
 			FileUtils.delete(tmpExtractionBundle);
 			FileUtils.delete(tmpDir);
+			if (this.jobStore != null) {
+				this.jobStore.remove(uuid);
+			}
+		}
+	}
+
+	/**
+	 * @return the outcome of the layers extracted before the extraction was interrupted, by position of the layer
+	 */
+	private Map<Integer, String> checkpoints() {
+		if (this.jobStore == null) {
+			return Collections.emptyMap();
+		}
+		ExtractionJobStore.Job job = this.jobStore.get(requestConfig.requestUuid.toString());
+		return (job == null) ? Collections.<Integer, String> emptyMap() : job.getLayerOutcomes();
+	}
+
+	/**
+	 * Deletes what an interrupted extraction left in the working directory
+	 *
+	 * @param workDir
+	 * @param bundleName the bundle which is kept, null to delete everything
+	 */
+	private void cleanWorkDirectory(File workDir, String bundleName) {
+		for (File file : workDir.listFiles()) {
+			if (!file.getName().equals(bundleName)) {
+				FileUtils.delete(file);
+			}
+		}
+	}
+
+	/**
+	 * Records the outcome of the layer, a resumed extraction does not extract it again. The files of the layer
+	 * are already in the bundle or in the archive, whose index lists the layers it holds.
+	 */
+	private void checkpoint(int index, LayerOutcome outcome) {
+		if (this.jobStore != null) {
+			this.jobStore.checkpoint(requestConfig.requestUuid.toString(), index, outcome.name());
+		}
+	}
+
+	/**
+	 * Extracts the layers, up to {@link #layerConcurrency} at the same time.
+	 *
+	 * @param checkpoints outcome of the layers already extracted, they are not extracted again
+	 * @return the outcome of each layer, in the order of the requests
+	 */
+	private LayerOutcome[] extractLayers(final List<ExtractorLayerRequest> requests, final Map<Integer, String> checkpoints,
+			final File tmpDir, final File tmpExtractionBundle, final IncrementalZipArchive zipArchive, final File failureFile) {
 
+		final LayerOutcome[] outcomes = new LayerOutcome[requests.size()];
+		for (Map.Entry<Integer, String> checkpoint : checkpoints.entrySet()) {
+			outcomes[checkpoint.getKey()] = LayerOutcome.valueOf(checkpoint.getValue());
+		}
+		final int threads = Math.min(this.layerConcurrency, requests.size() - checkpoints.size());
+		if (threads <= 1) {
+			for (int i = 0; i < outcomes.length; i++) {
+				if (outcomes[i] == null) {
+					outcomes[i] = extractLayer(i, requests.get(i), tmpDir, tmpExtractionBundle, zipArchive, failureFile);
+					checkpoint(i, outcomes[i]);
+				}
+			}
+			return outcomes;
+		}
+		ExecutorService layerExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r);
+				thread.setName("Extractorapp-layer-" + requestConfig.requestUuid);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			List<Future<LayerOutcome>> futures = new ArrayList<Future<LayerOutcome>>(outcomes.length);
+			for (int i = 0; i < outcomes.length; i++) {
+				if (outcomes[i] != null) {
+					futures.add(null);
+					continue;
+				}
+				final int index = i;
+				final ExtractorLayerRequest request = requests.get(i);
+				futures.add(layerExecutor.submit(new Callable<LayerOutcome>() {
+					@Override
+					public LayerOutcome call() {
+						requestConfig.setThreadLocal();
+						LayerOutcome outcome = extractLayer(index, request, tmpDir, tmpExtractionBundle, zipArchive, failureFile);
+						checkpoint(index, outcome);
+						return outcome;
+					}
+				}));
+			}
+			for (int i = 0; i < outcomes.length; i++) {
+				if (futures.get(i) == null) {
+					continue;
+				}
+				try {
+					outcomes[i] = futures.get(i).get();
+				} catch (ExecutionException e) {
+					outcomes[i] = LayerOutcome.FAILURE;
+					handleExtractionException(requests.get(i), e.getCause(), failureFile);
+				}
+			}
+			return outcomes;
+		} catch (InterruptedException e) {
+			// the extraction was cancelled
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Extraction " + requestConfig.requestUuid + " interrupted", e);
+		} finally {
+			layerExecutor.shutdownNow();
 		}
 	}
 
+	/**
+	 * Extracts the layer into the extraction bundle, retrying up to {@link #EXTRACTION_ATTEMPTS} times.
+	 * The number of layers extracted at the same time from the layer's host is limited by the {@link HostRequestLimiter}.
+	 *
+	 * @param index position of the layer in the request, it makes the temporal directory unique
+	 * @param zipArchive if not null the layer's files are moved into this archive, otherwise into the bundle
+	 * @return the outcome of the extraction
+	 */
+	private LayerOutcome extractLayer(final int index, final ExtractorLayerRequest request, final File tmpDir,
+			final File tmpExtractionBundle, final IncrementalZipArchive zipArchive, final File failureFile) {
+
+		final String host = request._url.getHost();
+		if (this.hostLimiter != null) {
+			try {
+				this.hostLimiter.acquire(host);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				handleExtractionException(request, e, failureFile);
+				return LayerOutcome.FAILURE;
+			}
+		}
+		try {
+			String name = layerName(request);
+			int tries = 0;
+			while (tries < EXTRACTION_ATTEMPTS) {
+
+				tries++;
+				File layerTmpDir = mkDirTmpExtractionBundle(tmpDir, index + "__" + name);
+				LOG.info("Attempt " + tries + " for extracting layer: "
+						+ request._url + " -- " + request._layerName);
+
+				try {
+					// extracts the layer in the temporal directory
+					File newDir;
+					switch (request._owsType) {
+					case WCS:
+						newDir = extractWcsLayer(request, layerTmpDir);
+						break;
+					case WFS:
+						newDir = extractWfsLayer(request, layerTmpDir);
+						break;
+					default:
+						throw new IllegalArgumentException(request._owsType
+								+ " not supported");
+					}
+					// extracts the metadata into the temporal directory
+					if(request._isoMetadataURL != null && !"".equals(request._isoMetadataURL) ){
+						extractMetadata(request, newDir);
+					}
+
+					if (zipArchive != null) {
+						// the archive is rolled back if the files cannot be added, the layer can be extracted again
+						zipArchive.addContent(index, layerTmpDir);
+					} else {
+						for (File from : layerTmpDir.listFiles()) {
+							File to = new File(tmpExtractionBundle,
+									from.getName());
+							FileUtils.moveFile(from, to);
+						}
+					}
+					FileUtils.delete(layerTmpDir);
+					LOG.info("Finished extracting layer: " + request._url
+							+ " -- " + request._layerName);
+					return LayerOutcome.SUCCESS;
+				} catch (OversizedCoverageRequestException e) {
+					// don't re-try
+					handleExtractionException(request, e, failureFile);
+					return LayerOutcome.OVERSIZED;
+				} catch (SecurityException e) {
+					// don't re-try
+					try {
+						FileUtils.delete(layerTmpDir);
+					} catch (Throwable t) { /* ignore */
+					}
+
+					handleExtractionException(request, e, failureFile);
+					return LayerOutcome.FAILURE;
+				} catch (Throwable e) {
+					try {
+						FileUtils.delete(layerTmpDir);
+					} catch (Throwable t) { /* ignore */
+					}
+
+					if (zipArchive != null && zipArchive.isFailed()) {
+						// don't re-try, nothing can be added to the archive anymore
+						handleExtractionException(request, e, failureFile);
+						return LayerOutcome.FAILURE;
+					}
+					if (tries >= EXTRACTION_ATTEMPTS) {
+						handleExtractionException(request, e, failureFile);
+					}
+				}
+			}
+			return LayerOutcome.FAILURE;
+		} finally {
+			if (this.hostLimiter != null) {
+				this.hostLimiter.release(host);
+			}
+		}
+	}
+
+	private static String layerName(final ExtractorLayerRequest request) {
+		return String.format("%s__%s", request._url.getHost(), request._layerName);
+	}
+
 	private String time(long start, long end) {
 		long seconds = (end - start) / 1000;
 		if (seconds > 60) {
@@ -206,9 +474,7 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 	 * @return
 	 */
 	protected File archiveExtraction(File tmpExtractionBundle) {
-		String filename = requestConfig.requestUuid.toString()
-				+ ExtractorController.EXTRACTION_ZIP_EXT;
-		File storageFile = FileUtils.storageFile(filename);
+		File storageFile = storageFile();
 		if (!storageFile.getParentFile().exists()) {
 			storageFile.getParentFile().mkdirs();
 		}
@@ -220,7 +486,73 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 		return storageFile;
 	}
 
-	private void handleExtractionException(ExtractorLayerRequest request,
+	private File storageFile() {
+		String filename = requestConfig.requestUuid.toString()
+				+ ExtractorController.EXTRACTION_ZIP_EXT;
+		return FileUtils.storageFile(filename);
+	}
+
+	/**
+	 * Opens the archive filled while the layers are extracted. A resumed extraction reopens the archive left by
+	 * the interrupted one, if any, whatever {@link #incrementalArchive} is.
+	 *
+	 * @param bundleName name of the archive's directory
+	 * @param checkpoints outcome of the layers already extracted, the successful layers which are not in the
+	 *                    reopened archive are removed so that they are extracted again
+	 * @return the archive, null if the layers are moved into the bundle (the archive will be built at the end)
+	 */
+	private IncrementalZipArchive openArchive(String bundleName, Map<Integer, String> checkpoints) {
+		if (!checkpoints.isEmpty()) {
+			Set<Integer> successes = new HashSet<Integer>();
+			for (Map.Entry<Integer, String> checkpoint : checkpoints.entrySet()) {
+				if (LayerOutcome.SUCCESS.name().equals(checkpoint.getValue())) {
+					successes.add(checkpoint.getKey());
+				}
+			}
+			try {
+				IncrementalZipArchive archive = IncrementalZipArchive.resume(storageFile(), bundleName, successes);
+				if (archive == null) {
+					// the interrupted extraction moved the layers into the bundle
+					return null;
+				}
+				successes.removeAll(archive.getLayers());
+				checkpoints.keySet().removeAll(successes);
+				return archive;
+			} catch (IOException e) {
+				LOG.warn("Unable to reopen the archive, its layers are extracted again", e);
+				checkpoints.keySet().removeAll(successes);
+			}
+		}
+		if (!this.incrementalArchive) {
+			return null;
+		}
+		try {
+			return new IncrementalZipArchive(storageFile(), bundleName);
+		} catch (IOException e) {
+			LOG.warn("Unable to create the archive, it will be built once the layers are extracted", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Adds the failures file then completes the archive
+	 *
+	 * @return the archive
+	 */
+	private File closeArchive(IncrementalZipArchive zipArchive, File failureFile) {
+		try {
+			if (failureFile.exists()) {
+				zipArchive.add(failureFile);
+			}
+			return zipArchive.close();
+		} catch (IOException e) {
+			handleException(e);
+			zipArchive.discard();
+			return storageFile();
+		}
+	}
+
+	private synchronized void handleExtractionException(ExtractorLayerRequest request,
 			Throwable e, File failureFile) {
 		if (!failureFile.getParentFile().exists()) {
 			throw new AssertionError(
@@ -363,6 +695,9 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 			throws IOException, TransformException, FactoryException {
 
 		WcsExtractor extractor = new WcsExtractor(requestBaseDir, requestConfig);
+		// the layer holds a permit of its host, the tiles downloaded along take their own ones
+		Semaphore hostPermits = (this.hostLimiter == null) ? null : this.hostLimiter.permits(request._url.getHost());
+		extractor.setTiling(this.coverageTileSize, this.coverageDownloadThreads, hostPermits);
 
 		extractor.checkPermission(request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
 
@@ -387,6 +722,7 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 				requestConfig.adminCredentials.getUserName(),
 				requestConfig.adminCredentials.getPassword(),
 				requestConfig.secureHost);
+		extractor.setPageSize(this.wfsPageSize);
 
 		extractor.checkPermission(request, requestConfig.secureHost, requestConfig.username, requestConfig.roles);
 
@@ -429,4 +765,45 @@ public class ExtractionTask implements Runnable, Comparable<ExtractionTask> {
 	public boolean equalId(String uuid) {
 		return requestConfig.requestUuid.toString().equals(uuid);
 	}
+
+	// ----------------- scheduling ----------------- //
+
+	@Override
+	public String getId() {
+		return executionMetadata.getUuid();
+	}
+
+	@Override
+	public String getUser() {
+		return requestConfig.username;
+	}
+
+	@Override
+	public String getRoles() {
+		return requestConfig.roles;
+	}
+
+	@Override
+	public ExecutionPriority getPriority() {
+		return executionMetadata.getPriority();
+	}
+
+	@Override
+	public long getQueuedTime() {
+		return executionMetadata.getRequestTime().getTime();
+	}
+
+	@Override
+	public Collection<String> getHosts() {
+		Set<String> hosts = new LinkedHashSet<String>();
+		for (ExtractorLayerRequest request : requestConfig.requests) {
+			hosts.add(request._url.getHost());
+		}
+		return hosts;
+	}
+
+	@Override
+	public int getCost() {
+		return requestConfig.requests.size();
+	}
 }
@@ -0,0 +1,177 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the next task to run among the waiting tasks.
+ * <p>
+ * The tasks are ordered by:
+ * <ol>
+ * <li>the hosts they request: a task whose hosts are all saturated (see {@link HostRequestLimiter}) runs after the others</li>
+ * <li>their priority. A LOW task which has waited for the aging period is considered MEDIUM, HIGH is only set
+ * by the administrator</li>
+ * <li>the share of each user (start-time fair queuing): each task costs its number of layers divided by the weight of
+ * the user, the user who has received the least service so far goes first. The weight of a user is the highest
+ * weight of its roles, 1 by default</li>
+ * <li>their submission time</li>
+ * </ol>
+ * </p>
+ * <p>
+ * The time is given by the caller, thus the scheduler can be simulated.
+ * </p>
+ */
+final class FairScheduler {
+
+	private final long agingPeriod;
+	private final Map<String, Integer> roleWeights;
+	private final HostRequestLimiter hostLimiter;
+
+	/** start tag of the last dispatched task */
+	private double virtualTime = 0;
+	/** finish tag of the last dispatched task of each user, the users who are not ahead of the virtual time are removed */
+	private final Map<String, Double> finishTags = new HashMap<String, Double>();
+
+	/**
+	 * @param agingPeriod after this time (milliseconds) a LOW task is considered MEDIUM, 0 means never
+	 * @param roleWeights weight of the users of each role, the roles which are not listed weigh 1
+	 * @param hostLimiter the limits of the hosts, null means the hosts are not taken into account
+	 */
+	FairScheduler(long agingPeriod, Map<String, Integer> roleWeights, HostRequestLimiter hostLimiter) {
+		this.agingPeriod = agingPeriod;
+		this.roleWeights = (roleWeights == null) ? Collections.<String, Integer> emptyMap()
+				: new HashMap<String, Integer>(roleWeights);
+		this.hostLimiter = hostLimiter;
+	}
+
+	/**
+	 * @param waiting the waiting tasks, not empty
+	 * @param now
+	 * @return the index of the next task to run
+	 */
+	synchronized int select(List<? extends SchedulableTask> waiting, long now) {
+		return select(waiting, now, this.virtualTime, this.finishTags);
+	}
+
+	/**
+	 * Charges the user of the task which is about to run
+	 */
+	synchronized void dispatched(SchedulableTask task) {
+		this.virtualTime = dispatch(task, this.virtualTime, this.finishTags);
+		for (Iterator<Double> tags = this.finishTags.values().iterator(); tags.hasNext();) {
+			if (tags.next() <= this.virtualTime) {
+				tags.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return the waiting tasks in the order they should run, if no other task is submitted
+	 */
+	synchronized <T extends SchedulableTask> List<T> order(List<T> waiting, long now) {
+		List<T> remaining = new ArrayList<T>(waiting);
+		List<T> order = new ArrayList<T>(waiting.size());
+		double time = this.virtualTime;
+		Map<String, Double> tags = new HashMap<String, Double>(this.finishTags);
+		while (!remaining.isEmpty()) {
+			T next = remaining.remove(select(remaining, now, time, tags));
+			time = dispatch(next, time, tags);
+			order.add(next);
+		}
+		return order;
+	}
+
+	private int select(List<? extends SchedulableTask> waiting, long now, double time, Map<String, Double> tags) {
+		int best = 0;
+		for (int i = 1; i < waiting.size(); i++) {
+			if (compare(waiting.get(i), waiting.get(best), now, time, tags) < 0) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return a negative number if the first task should run before the second
+	 */
+	private int compare(SchedulableTask task1, SchedulableTask task2, long now, double time, Map<String, Double> tags) {
+		boolean saturated1 = isSaturated(task1);
+		boolean saturated2 = isSaturated(task2);
+		if (saturated1 != saturated2) {
+			return saturated1 ? 1 : -1;
+		}
+		int priority1 = effectivePriority(task1, now);
+		int priority2 = effectivePriority(task2, now);
+		if (priority1 != priority2) {
+			return priority2 - priority1;
+		}
+		int share = Double.compare(startTag(task1, time, tags), startTag(task2, time, tags));
+		if (share != 0) {
+			return share;
+		}
+		return (task1.getQueuedTime() < task2.getQueuedTime()) ? -1 : ((task1.getQueuedTime() == task2.getQueuedTime()) ? 0 : 1);
+	}
+
+	/**
+	 * @return the start tag of the dispatched task, the new virtual time
+	 */
+	private double dispatch(SchedulableTask task, double time, Map<String, Double> tags) {
+		double start = startTag(task, time, tags);
+		tags.put(user(task), start + Math.max(1, task.getCost()) / (double) weight(task));
+		return Math.max(time, start);
+	}
+
+	private double startTag(SchedulableTask task, double time, Map<String, Double> tags) {
+		Double finishTag = tags.get(user(task));
+		return (finishTag == null) ? time : Math.max(time, finishTag);
+	}
+
+	int effectivePriority(SchedulableTask task, long now) {
+		int priority = task.getPriority().ordinal();
+		int aged = ExecutionPriority.MEDIUM.ordinal();
+		if (this.agingPeriod > 0 && priority < aged) {
+			long periods = (now - task.getQueuedTime()) / this.agingPeriod;
+			priority = (int) Math.min(aged, priority + Math.max(0, periods));
+		}
+		return priority;
+	}
+
+	/**
+	 * @return true if all the hosts of the task already receive as many requests as they are allowed to
+	 */
+	private boolean isSaturated(SchedulableTask task) {
+		Collection<String> hosts = task.getHosts();
+		if (this.hostLimiter == null || hosts.isEmpty()) {
+			return false;
+		}
+		for (String host : hosts) {
+			if (this.hostLimiter.availablePermits(host) > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	int weight(SchedulableTask task) {
+		int weight = 1;
+		String roles = task.getRoles();
+		if (roles != null) {
+			for (String role : roles.split(";")) {
+				Integer roleWeight = this.roleWeights.get(role.trim());
+				if (roleWeight != null && roleWeight > weight) {
+					weight = roleWeight;
+				}
+			}
+		}
+		return weight;
+	}
+
+	private static String user(SchedulableTask task) {
+		return (task.getUser() == null) ? "" : task.getUser();
+	}
+}
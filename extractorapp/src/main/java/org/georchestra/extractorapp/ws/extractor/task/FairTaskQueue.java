@@ -0,0 +1,254 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue of the extraction executor. The next task is chosen by the {@link FairScheduler} when a thread is
+ * available, thus the order takes into account the time the tasks have waited and the tasks which are running.
+ * <p>
+ * The tasks which cannot be scheduled (not an {@link ExtractionTask}) and the cancelled tasks are taken first.
+ * </p>
+ */
+final class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+	private final FairScheduler scheduler;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = this.lock.newCondition();
+	private final List<Runnable> items = new ArrayList<Runnable>();
+
+	FairTaskQueue(FairScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @return the waiting tasks in the order they should run
+	 */
+	List<SchedulableTask> scheduledTasks(long now) {
+		List<SchedulableTask> tasks = new ArrayList<SchedulableTask>();
+		this.lock.lock();
+		try {
+			for (Runnable item : this.items) {
+				SchedulableTask task = task(item);
+				if (task != null && !isCancelled(item)) {
+					tasks.add(task);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return this.scheduler.order(tasks, now);
+	}
+
+	@Override
+	public boolean offer(Runnable runnable) {
+		if (runnable == null) {
+			throw new NullPointerException();
+		}
+		this.lock.lock();
+		try {
+			this.items.add(runnable);
+			this.notEmpty.signal();
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public void put(Runnable runnable) {
+		offer(runnable);
+	}
+
+	@Override
+	public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+		return offer(runnable);
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		this.lock.lockInterruptibly();
+		try {
+			while (this.items.isEmpty()) {
+				this.notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		this.lock.lockInterruptibly();
+		try {
+			while (this.items.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = this.notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll() {
+		this.lock.lock();
+		try {
+			return this.items.isEmpty() ? null : dequeue();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		this.lock.lock();
+		try {
+			return this.items.isEmpty() ? null : this.items.get(next());
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		this.lock.lock();
+		try {
+			return this.items.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		this.lock.lock();
+		try {
+			return this.items.remove(o);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		this.lock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && !this.items.isEmpty()) {
+				c.add(this.items.remove(0));
+				n++;
+			}
+			return n;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return an iterator over a copy of the queue, its remove method removes the task from the queue
+	 */
+	@Override
+	public Iterator<Runnable> iterator() {
+		final List<Runnable> copy;
+		this.lock.lock();
+		try {
+			copy = new ArrayList<Runnable>(this.items);
+		} finally {
+			this.lock.unlock();
+		}
+		final Iterator<Runnable> iter = copy.iterator();
+		return new Iterator<Runnable>() {
+			private Runnable last;
+
+			@Override
+			public boolean hasNext() {
+				return iter.hasNext();
+			}
+
+			@Override
+			public Runnable next() {
+				this.last = iter.next();
+				return this.last;
+			}
+
+			@Override
+			public void remove() {
+				if (this.last == null) {
+					throw new IllegalStateException();
+				}
+				FairTaskQueue.this.remove(this.last);
+				this.last = null;
+			}
+		};
+	}
+
+	/**
+	 * Removes the next task, the lock must be held and the queue must not be empty
+	 */
+	private Runnable dequeue() {
+		int next = next();
+		SchedulableTask task = task(this.items.get(next));
+		if (task != null && !isCancelled(this.items.get(next))) {
+			this.scheduler.dispatched(task);
+		}
+		return this.items.remove(next);
+	}
+
+	/**
+	 * @return the index of the next task, the lock must be held and the queue must not be empty
+	 */
+	private int next() {
+		List<SchedulableTask> tasks = new ArrayList<SchedulableTask>(this.items.size());
+		for (int i = 0; i < this.items.size(); i++) {
+			Runnable item = this.items.get(i);
+			SchedulableTask task = task(item);
+			if (task == null || isCancelled(item)) {
+				return i;
+			}
+			tasks.add(task);
+		}
+		return this.scheduler.select(tasks, System.currentTimeMillis());
+	}
+
+	private static boolean isCancelled(Runnable item) {
+		return (item instanceof Future) && ((Future<?>) item).isCancelled();
+	}
+
+	private static SchedulableTask task(Runnable item) {
+		if (item instanceof SchedulableTask) {
+			return (SchedulableTask) item;
+		}
+		if (item instanceof PriorityThreadPoolExecutor.ComparableFutureTask
+				&& ((PriorityThreadPoolExecutor.ComparableFutureTask<?>) item).comparable instanceof SchedulableTask) {
+			return (SchedulableTask) ((PriorityThreadPoolExecutor.ComparableFutureTask<?>) item).comparable;
+		}
+		return null;
+	}
+}
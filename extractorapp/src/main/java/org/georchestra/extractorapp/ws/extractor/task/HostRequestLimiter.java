@@ -0,0 +1,82 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of layers extracted at the same time from each OGC host.
+ * A coverage downloaded by tiles takes one more permit for each tile downloaded
+ * at the same time as the first one. One instance is shared by all the extraction tasks, thus the limit applies
+ * to the whole extractor, whatever the number of running extractions.
+ */
+final class HostRequestLimiter {
+
+	private final int maxRequestsPerHost;
+	private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+	/**
+	 * @param maxRequestsPerHost max number of concurrent requests to a host, 0 or less means unlimited
+	 */
+	HostRequestLimiter(int maxRequestsPerHost) {
+		this.maxRequestsPerHost = maxRequestsPerHost;
+	}
+
+	/**
+	 * Waits until a request to the host can be done
+	 *
+	 * @param host
+	 * @throws InterruptedException
+	 */
+	void acquire(final String host) throws InterruptedException {
+		if (this.maxRequestsPerHost <= 0) {
+			return;
+		}
+		getPermits(host).acquire();
+	}
+
+	/**
+	 * The request acquired by {@link #acquire(String)} is done
+	 *
+	 * @param host
+	 */
+	void release(final String host) {
+		if (this.maxRequestsPerHost <= 0) {
+			return;
+		}
+		getPermits(host).release();
+	}
+
+	/**
+	 * @return the number of requests that can still be done to the host
+	 */
+	int availablePermits(final String host) {
+		if (this.maxRequestsPerHost <= 0) {
+			return Integer.MAX_VALUE;
+		}
+		return getPermits(host).availablePermits();
+	}
+
+	/**
+	 * @return the permits of the host, to take one permit per request when a layer is extracted by several
+	 *         requests at the same time. null if unlimited
+	 */
+	Semaphore permits(final String host) {
+		if (this.maxRequestsPerHost <= 0) {
+			return null;
+		}
+		return getPermits(host);
+	}
+
+	private Semaphore getPermits(final String host) {
+		Semaphore semaphore = this.permits.get(host);
+		if (semaphore == null) {
+			Semaphore created = new Semaphore(this.maxRequestsPerHost, true);
+			semaphore = this.permits.putIfAbsent(host, created);
+			if (semaphore == null) {
+				semaphore = created;
+			}
+		}
+		return semaphore;
+	}
+}
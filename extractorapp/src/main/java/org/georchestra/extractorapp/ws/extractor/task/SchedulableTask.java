@@ -0,0 +1,38 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import java.util.Collection;
+
+/**
+ * What the {@link FairScheduler} needs to know about a task to choose the next one to run.
+ */
+interface SchedulableTask {
+
+	String getId();
+
+	/**
+	 * @return the user who submitted the task, the tasks are shared fairly between the users
+	 */
+	String getUser();
+
+	/**
+	 * @return the roles of the user separated by ';'
+	 */
+	String getRoles();
+
+	ExecutionPriority getPriority();
+
+	/**
+	 * @return when the task was submitted, in milliseconds
+	 */
+	long getQueuedTime();
+
+	/**
+	 * @return the hosts which are requested by the task
+	 */
+	Collection<String> getHosts();
+
+	/**
+	 * @return the amount of work of the task, for instance its number of layers
+	 */
+	int getCost();
+}
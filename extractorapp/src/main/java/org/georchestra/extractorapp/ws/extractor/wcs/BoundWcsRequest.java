@@ -12,6 +12,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -438,12 +439,60 @@ class BoundWcsRequest extends WcsReaderRequest {
         return new BoundWcsRequest(version, coverage, newBBox, responseCRS, groundResolutionX, format, usePost, remoteReproject, useCommandLineGDAL, username, password, _wcsUrl, _capabilities, _describeCoverage);
     }
 
+    /**
+     * @return the size of the requested raster: number of pixels times number of bands
+     */
+    public double size() throws IOException {
+        double xmin = requestBbox.getMinX();
+        double xmax = requestBbox.getMaxX();
+        double ymin = requestBbox.getMinY();
+        double ymax = requestBbox.getMaxY();
+        return ((xmax - xmin) / groundResolutionX) * ((ymax - ymin) / groundResolutionX) * numBands();
+    }
+
+    /**
+     * Splits this request in a grid of requests whose {@link #size()} is at most maxTileSize. The tiles are
+     * expressed in the response CRS and aligned on its pixels so they can be mosaicked without seams.
+     *
+     * @param maxTileSize max size of a tile (pixels times bands)
+     * @return the requests of the tiles, row by row from the upper left corner
+     */
+    public List<BoundWcsRequest> split(long maxTileSize) throws IOException {
+        int n = (int) Math.ceil(Math.sqrt(size() / maxTileSize));
+        if (n <= 1) {
+            return Collections.singletonList(this);
+        }
+        ReferencedEnvelope bbox = requestBbox;
+        if (!CRS.equalsIgnoreMetadata(bbox.getCoordinateReferenceSystem(), responseCRS)) {
+            try {
+                bbox = requestBbox.transform(responseCRS, true, 10);
+            } catch (Exception e) {
+                throw new ExtractorException(e);
+            }
+        }
+        double res = crsResolution();
+        double tileWidth = Math.ceil(bbox.getWidth() / res / n) * res;
+        double tileHeight = Math.ceil(bbox.getHeight() / res / n) * res;
+
+        List<BoundWcsRequest> tiles = new ArrayList<BoundWcsRequest>(n * n);
+        for (int row = 0; bbox.getMaxY() - row * tileHeight > bbox.getMinY(); row++) {
+            double maxy = bbox.getMaxY() - row * tileHeight;
+            double miny = Math.max(bbox.getMinY(), maxy - tileHeight);
+            for (int col = 0; bbox.getMinX() + col * tileWidth < bbox.getMaxX(); col++) {
+                double minx = bbox.getMinX() + col * tileWidth;
+                double maxx = Math.min(bbox.getMaxX(), minx + tileWidth);
+                tiles.add(withRequestBBox(new ReferencedEnvelope(minx, maxx, miny, maxy, responseCRS)));
+            }
+        }
+        return tiles;
+    }
+
     public void assertLegalSize(long maxSize) throws IOException {
         double xmin = requestBbox.getMinX();
         double xmax = requestBbox.getMaxX();
         double ymin = requestBbox.getMinY();
         double ymax = requestBbox.getMaxY();
-        double size = ((xmax - xmin) / groundResolutionX) * ((ymax - ymin) / groundResolutionX) * numBands();
+        double size = size();
 
         LOG.debug("Raster to extract => xSize : " + (xmax - xmin) / groundResolutionX +
         	" - ySize : " + (ymax - ymin) / groundResolutionX + " - nbBands : " + (double)numBands() +
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,6 +35,52 @@ class GDALCommandLine {
         }
     }
 
+    /**
+     * Mosaics the tiles in a single GeoTIFF, through a virtual raster
+     */
+    static void mosaic(List<File> tiles, File outFile) throws IOException {
+        LOG.info("using GDAL command line to mosaic " + tiles.size() + " tiles");
+
+        File tmpDir = FileUtils.createTempDirectory();
+        try {
+            File tileList = new File(tmpDir, "tiles.txt");
+            PrintWriter out = new PrintWriter(tileList, "UTF-8");
+            try {
+                for (File tile : tiles) {
+                    out.println(tile.getAbsolutePath());
+                }
+            } finally {
+                out.close();
+            }
+            File vrt = new File(tmpDir, "mosaic.vrt");
+
+            List<String> command = new ArrayList<String>();
+            command.add(findBuildVrtBinary());
+            addQuietParam(command);
+            command.add("-input_file_list");
+            command.add(tileList.getAbsolutePath());
+            command.add(vrt.getAbsolutePath());
+            executeCommand(command);
+
+            command = new ArrayList<String>();
+            command.add(findTranslateBinary());
+            command.add("-of");
+            command.add("GTiff");
+            command.add("-co");
+            command.add("TILED=YES");
+            // the mosaic may be larger than the 4GB of a classic tiff
+            command.add("-co");
+            command.add("BIGTIFF=IF_SAFER");
+            addQuietParam(command);
+            command.add(vrt.getAbsolutePath());
+            command.add(outFile.getAbsolutePath());
+            outFile.delete();
+            executeCommand(command);
+        } finally {
+            FileUtils.delete(tmpDir);
+        }
+    }
+
     private static void transformFormat(File sourceFile, WcsReaderRequest executedRequest, WcsReaderRequest targetRequest, File outFile) throws IOException {
         if(Formats.isGeotiff(executedRequest.format) && Formats.isGeotiff(targetRequest.format)) {
             for (File f : sourceFile.getParentFile().listFiles()) {
@@ -179,6 +226,9 @@ class GDALCommandLine {
     private static String findTranslateBinary() {
         return findGdalBinary("gdal_translate");
     }
+    private static String findBuildVrtBinary() {
+        return findGdalBinary("gdalbuildvrt");
+    }
 
     private static String findGdalBinary(String command) {
         String gdalHome = System.getProperty("gdal.home");
@@ -5,6 +5,9 @@ import static org.georchestra.extractorapp.ws.extractor.wcs.WcsParameters.FORMAT
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Point2D;
+import java.awt.image.RenderedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -15,6 +18,7 @@ import java.net.URL;
 import java.nio.channels.Channels;
 import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
@@ -22,10 +26,20 @@ import java.util.List;
 import java.util.Properties;
 import java.util.ServiceConfigurationError;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
+import javax.media.jai.operator.MosaicDescriptor;
+import javax.media.jai.operator.TranslateDescriptor;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
@@ -33,6 +47,9 @@ import org.apache.commons.logging.LogFactory;
 import org.georchestra.extractorapp.ws.ExtractorException;
 import org.georchestra.extractorapp.ws.extractor.FileUtils;
 import org.geotools.coverage.grid.GridCoverage2D;
+import org.geotools.coverage.grid.GridCoverageFactory;
+import org.geotools.coverage.grid.GridEnvelope2D;
+import org.geotools.coverage.grid.GridGeometry2D;
 import org.geotools.coverage.grid.io.AbstractGridCoverage2DReader;
 import org.geotools.coverage.grid.io.AbstractGridFormat;
 import org.geotools.coverage.grid.io.GridFormatFinder;
@@ -47,12 +64,14 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.parameter.Parameter;
 import org.geotools.referencing.CRS;
 import org.geotools.referencing.operation.matrix.XAffineTransform;
+import org.geotools.referencing.operation.transform.AffineTransform2D;
 import org.geotools.renderer.lite.RendererUtilities;
 import org.geotools.resources.CRSUtilities;
 import org.opengis.coverage.Coverage;
 import org.opengis.coverage.grid.Format;
 import org.opengis.coverage.grid.GridCoverage;
 import org.opengis.coverage.grid.GridCoverageWriter;
+import org.opengis.metadata.spatial.PixelOrientation;
 import org.opengis.parameter.GeneralParameterValue;
 import org.opengis.parameter.ParameterValue;
 import org.opengis.parameter.ParameterValueGroup;
@@ -60,6 +79,7 @@ import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.NoSuchAuthorityCodeException;
 import org.opengis.referencing.ReferenceIdentifier;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.datum.PixelInCell;
 import org.opengis.referencing.operation.TransformException;
 
 
@@ -93,6 +113,9 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
 
     private final URL _wcsUrl;
     private final long _maxCoverageExtractionSize;
+    private long _maxTileSize = 0;
+    private int _downloadThreads = 1;
+    private Semaphore _hostPermits;
 
     /**
      * @param url
@@ -104,6 +127,24 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
         _maxCoverageExtractionSize = maxSize;
     }
 
+    /**
+     * GeoTIFF requests larger than maxTileSize are split in tiles which are downloaded concurrently, then
+     * mosaicked in a single GeoTIFF.
+     *
+     * @param maxTileSize
+     *            max size of a GetCoverage request (pixels times bands), 0 means the coverage is requested at once
+     * @param downloadThreads
+     *            number of tiles downloaded at the same time
+     * @param hostPermits
+     *            the permits of the requests to the WCS host, the caller holds one of them. Each tile downloaded
+     *            concurrently beyond the first one takes another permit. null means unlimited
+     */
+    public void setTiling(long maxTileSize, int downloadThreads, Semaphore hostPermits) {
+        _maxTileSize = maxTileSize;
+        _downloadThreads = Math.max(1, downloadThreads);
+        _hostPermits = hostPermits;
+    }
+
     @Override
     public WcsFormat getFormat() {
         return new WcsFormat(_maxCoverageExtractionSize);
@@ -212,8 +253,6 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             requestNegotiatedFormatCrs2
                     .assertLegalSize(_maxCoverageExtractionSize);
 
-            input = requestNegotiatedFormatCrs2.getCoverage();
-
             // file = new File (new File("/tmp/"),
             // baseFilename+"."+request.fileExtension());
             File file = null;
@@ -222,8 +261,16 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             LOG.debug("Writing GridCoverage obtained from " + _wcsUrl
                     + " to file " + file);
 
-            convertFormat(baseFilename, input, file, request,
-                    requestNegotiatedFormatCrs2);
+            if (request.format.equals(requestNegotiatedFormatCrs2.format)
+                    && Formats.isGeotiff(request.format)
+                    && isTiled(requestNegotiatedFormatCrs2)) {
+                downloadTiles(requestNegotiatedFormatCrs2, file);
+            } else {
+                input = requestNegotiatedFormatCrs2.getCoverage();
+
+                convertFormat(baseFilename, input, file, request,
+                        requestNegotiatedFormatCrs2);
+            }
 
             transformCoverage(file, file, request, requestNegotiatedFormatCrs2,false);
 
@@ -244,14 +291,17 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
             BoundWcsRequest requestNativeFormat = geotiffRequest.withCRS(geotiffRequest.getNativeCRSs().iterator().next());
             requestNativeFormat.assertLegalSize(_maxCoverageExtractionSize);
 
-            input = requestNativeFormat.getCoverage();
-
             File file = null;
             file = new File(containingDirectory, baseFilename + "." + request.fileExtension());
             LOG.debug("Writing GridCoverage obtained from " + _wcsUrl + " to file " + file);
 
             tmpFile = File.createTempFile(baseFilename, ".tif");
-            writeToFile(tmpFile, input);
+            if (isTiled(requestNativeFormat)) {
+                downloadTiles(requestNativeFormat, tmpFile);
+            } else {
+                input = requestNativeFormat.getCoverage();
+                writeToFile(tmpFile, input);
+            }
 
             transformCoverage(tmpFile, file, request, requestNativeFormat, true);
             return file;
@@ -264,6 +314,149 @@ public class WcsCoverageReader extends AbstractGridCoverage2DReader {
         }
     }
 
+    private boolean isTiled(BoundWcsRequest request) throws IOException {
+        return _maxTileSize > 0 && request.size() > _maxTileSize;
+    }
+
+    /**
+     * Downloads the tiles of the request, up to {@link #_downloadThreads} at the same time, and mosaics them in the
+     * file. The first download uses the permit of the caller, each other one runs only if a permit of the host
+     * is free when the download starts, so that the limit of requests per host applies to the tiles.
+     *
+     * @param request a GeoTIFF request
+     * @param file the mosaic
+     * @throws IOException
+     */
+    private void downloadTiles(BoundWcsRequest request, File file) throws IOException {
+        final List<BoundWcsRequest> tiles = request.split(_maxTileSize);
+        LOG.info("Downloading " + request.coverage + " in " + tiles.size() + " tiles");
+
+        File tmpDir = FileUtils.createTempDirectory();
+        final File[] tileFiles = new File[tiles.size()];
+        final ConcurrentLinkedQueue<Integer> pending = new ConcurrentLinkedQueue<Integer>();
+        for (int i = 0; i < tiles.size(); i++) {
+            tileFiles[i] = new File(tmpDir, "tile" + i + ".tif");
+            pending.add(i);
+        }
+        int threads = Math.min(_downloadThreads, tiles.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> downloads = new ArrayList<Future<Void>>(threads);
+            for (int t = 0; t < threads; t++) {
+                final boolean ownPermit = (t > 0) && (_hostPermits != null);
+                if (ownPermit && !_hostPermits.tryAcquire(0, TimeUnit.SECONDS)) {
+                    break;
+                }
+                downloads.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try {
+                            Integer i;
+                            while ((i = pending.poll()) != null) {
+                                InputStream input = tiles.get(i).getCoverage();
+                                try {
+                                    writeToFile(tileFiles[i], input);
+                                } finally {
+                                    IOUtils.closeQuietly(input);
+                                }
+                            }
+                        } finally {
+                            if (ownPermit) {
+                                _hostPermits.release();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> download : downloads) {
+                download.get();
+            }
+
+            if (request.useCommandLineGDAL) {
+                GDALCommandLine.mosaic(Arrays.asList(tileFiles), file);
+            } else {
+                geotoolsMosaic(Arrays.asList(tileFiles), file);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExtractorException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ExtractorException((Exception) cause);
+        } finally {
+            executor.shutdownNow();
+            FileUtils.delete(tmpDir);
+        }
+    }
+
+    /**
+     * Mosaics the GeoTIFF tiles, which share the same resolution and CRS, in a single GeoTIFF
+     */
+    private void geotoolsMosaic(List<File> tiles, File file) throws IOException {
+        LOG.info("using Geotools libraries to mosaic " + tiles.size() + " tiles");
+        List<GridCoverage2D> coverages = new ArrayList<GridCoverage2D>(tiles.size());
+        try {
+            for (File tile : tiles) {
+                coverages.add((GridCoverage2D) CoverageTransformation.lookupFormat(tile).getReader(tile)
+                        .read(new GeneralParameterValue[0]));
+            }
+            GridCoverage2D first = coverages.get(0);
+            AffineTransform gridToCRS = (AffineTransform) first.getGridGeometry().getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+            AffineTransform crsToGrid = gridToCRS.createInverse();
+
+            // position of each tile in the grid of the first one
+            int[] xs = new int[tiles.size()];
+            int[] ys = new int[tiles.size()];
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            for (int i = 0; i < coverages.size(); i++) {
+                AffineTransform tileToCRS = (AffineTransform) coverages.get(i).getGridGeometry().getGridToCRS2D(PixelOrientation.UPPER_LEFT);
+                Point2D upperLeft = crsToGrid.transform(tileToCRS.transform(new Point2D.Double(0, 0), null), null);
+                xs[i] = (int) Math.round(upperLeft.getX());
+                ys[i] = (int) Math.round(upperLeft.getY());
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+            }
+            RenderedImage[] sources = new RenderedImage[coverages.size()];
+            for (int i = 0; i < coverages.size(); i++) {
+                RenderedImage image = coverages.get(i).getRenderedImage();
+                sources[i] = TranslateDescriptor.create(image, (float) (xs[i] - minX - image.getMinX()),
+                        (float) (ys[i] - minY - image.getMinY()), null, null);
+            }
+            RenderedImage mosaic = MosaicDescriptor.create(sources, MosaicDescriptor.MOSAIC_TYPE_OVERLAY, null, null,
+                    null, null, null);
+
+            AffineTransform mosaicToCRS = new AffineTransform(gridToCRS);
+            mosaicToCRS.translate(minX - mosaic.getMinX(), minY - mosaic.getMinY());
+            GridGeometry2D gridGeometry = new GridGeometry2D(new GridEnvelope2D(mosaic.getMinX(), mosaic.getMinY(),
+                    mosaic.getWidth(), mosaic.getHeight()), PixelInCell.CELL_CORNER, new AffineTransform2D(mosaicToCRS),
+                    first.getCoordinateReferenceSystem(), null);
+            GridCoverage2D coverage = new GridCoverageFactory().create(first.getName(), mosaic, gridGeometry,
+                    null, null, null);
+
+            GeoTiffWriter writer = new GeoTiffWriter(file);
+            try {
+                writer.write(coverage, new GeneralParameterValue[0]);
+            } finally {
+                writer.dispose();
+            }
+        } catch (NoninvertibleTransformException e) {
+            throw new ExtractorException(e);
+        } finally {
+            for (GridCoverage2D coverage : coverages) {
+                coverage.dispose(true);
+            }
+        }
+    }
+
     void transformCoverage(final File sourceFile, final File file,
             final WcsReaderRequest targetRequest,
             final WcsReaderRequest executedRequest, final boolean handleFormatTranform) throws IOException {
@@ -0,0 +1,68 @@
+package org.georchestra.extractorapp.ws.acceptance;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class CheckFormAcceptanceTest {
+
+    private BasicDataSource ds;
+    private PreparedStatement st;
+    private ResultSet rs;
+    private CheckFormAcceptance check;
+
+    @Before
+    public void setUp() throws Exception {
+        ds = Mockito.mock(BasicDataSource.class);
+        Connection c = Mockito.mock(Connection.class);
+        st = Mockito.mock(PreparedStatement.class);
+        rs = Mockito.mock(ResultSet.class);
+        Mockito.when(ds.getConnection()).thenReturn(c);
+        Mockito.when(c.prepareStatement(Mockito.anyString())).thenReturn(st);
+        Mockito.when(st.executeQuery()).thenReturn(rs);
+
+        // the pool is not used, nothing is connected
+        check = new CheckFormAcceptance(true, "jdbc:postgresql://localhost/georchestra");
+        check.setDataSource(ds);
+    }
+
+    @Test
+    public void testLookupByDigest() throws Exception {
+        Mockito.when(rs.next()).thenReturn(true);
+
+        assertTrue(check.isFormAccepted("session", "testadmin", "{\"layers\":[]}\n"));
+
+        Mockito.verify(st).setString(1, "testadmin");
+        Mockito.verify(st).setString(2, "31cb8451bf5ccb1622ebf29621a29c20");
+    }
+
+    /**
+     * Acceptances are kept in memory, refusals are not
+     */
+    @Test
+    public void testAcceptanceCache() throws Exception {
+        Mockito.when(rs.next()).thenReturn(false);
+        assertFalse(check.isFormAccepted(null, "testadmin", "{}"));
+
+        Mockito.when(rs.next()).thenReturn(true);
+        assertTrue(check.isFormAccepted(null, "testadmin", "{}"));
+        assertTrue(check.isFormAccepted(null, "testadmin", "{}"));
+
+        Mockito.verify(st, Mockito.times(2)).executeQuery();
+    }
+
+    @Test
+    public void testAnonymousNotAccepted() throws Exception {
+        assertFalse(check.isFormAccepted("session", null, "{}"));
+
+        Mockito.verify(ds, Mockito.never()).getConnection();
+    }
+}
@@ -0,0 +1,214 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IncrementalZipArchiveTest {
+
+	private File tmpDir;
+
+	@Before
+	public void setUp() {
+		tmpDir = FileUtils.createTempDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.delete(tmpDir);
+	}
+
+	@Test
+	public void testAddLayers() throws Exception {
+		File storageFile = new File(tmpDir, "test" + ExtractorController.EXTRACTION_ZIP_EXT);
+		IncrementalZipArchive archive = new IncrementalZipArchive(storageFile, "bundle");
+
+		File layer1 = new File(tmpDir, "layer1");
+		File text = write(new File(layer1, "layer.gml"), repeated(200000));
+		write(new File(layer1, "metadata/layer.xml"), repeated(1000));
+		archive.addContent(0, layer1);
+		// the archived files are deleted
+		assertFalse(text.exists());
+		// the archive is not available until it is complete
+		assertFalse(storageFile.exists());
+
+		File layer2 = new File(tmpDir, "layer2");
+		write(new File(layer2, "layer.gml"), repeated(1000));
+		write(new File(layer2, "coverage.tif"), random(200000));
+		archive.addContent(1, layer2);
+
+		assertEquals(storageFile, archive.close());
+		assertTrue(storageFile.exists());
+
+		List<String> entries = FileUtils.listZip(storageFile);
+		assertEquals(new HashSet<String>(Arrays.asList("bundle/layer.gml", "bundle/metadata/layer.xml", "bundle/layer_1.gml", "bundle/coverage.tif")),
+				new HashSet<String>(entries));
+
+		ZipFile zip = new ZipFile(storageFile);
+		try {
+			ZipEntry deflated = zip.getEntry("bundle/layer.gml");
+			assertTrue(deflated.getCompressedSize() < deflated.getSize() / 10);
+			// random data does not deflate, it is stored
+			ZipEntry stored = zip.getEntry("bundle/coverage.tif");
+			assertTrue(stored.getCompressedSize() >= stored.getSize());
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * A layer which cannot be added leaves no entry in the archive, it can be added again
+	 */
+	@Test
+	public void testAddFailure() throws Exception {
+		File storageFile = new File(tmpDir, "test" + ExtractorController.EXTRACTION_ZIP_EXT);
+		IncrementalZipArchive archive = new IncrementalZipArchive(storageFile, "bundle") {
+			@Override
+			protected InputStream open(File file) throws IOException {
+				if (!file.getName().equals("broken.gml")) {
+					return super.open(file);
+				}
+				// the beginning of the file is written in the archive, then the file cannot be read
+				return new SequenceInputStream(new ByteArrayInputStream(repeated(100000)), new InputStream() {
+					@Override
+					public int read() throws IOException {
+						throw new IOException("unreadable");
+					}
+				});
+			}
+		};
+
+		File layer1 = new File(tmpDir, "layer1");
+		write(new File(layer1, "layer1.gml"), repeated(100000));
+		archive.addContent(0, layer1);
+
+		File layer2 = new File(tmpDir, "layer2");
+		write(new File(layer2, "layer2.gml"), repeated(100000));
+		write(new File(layer2, "broken.gml"), repeated(10));
+		try {
+			archive.addContent(1, layer2);
+			fail("the layer cannot be added");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(archive.isFailed());
+
+		// the layer is extracted again
+		File retry = new File(tmpDir, "retry");
+		write(new File(retry, "layer2.gml"), repeated(1000));
+		archive.addContent(1, retry);
+		archive.close();
+
+		List<String> entries = FileUtils.listZip(storageFile);
+		assertEquals(new HashSet<String>(Arrays.asList("bundle/layer1.gml", "bundle/layer2.gml")),
+				new HashSet<String>(entries));
+		assertEquals(2, entries.size());
+		ZipFile zip = new ZipFile(storageFile);
+		try {
+			assertEquals(2, zip.size());
+			assertEquals(100000, zip.getEntry("bundle/layer1.gml").getSize());
+			assertEquals(1000, zip.getEntry("bundle/layer2.gml").getSize());
+		} finally {
+			zip.close();
+		}
+	}
+
+	/**
+	 * An interrupted archive is reopened with the layers which were checkpointed
+	 */
+	@Test
+	public void testResume() throws Exception {
+		File storageFile = new File(tmpDir, "test" + ExtractorController.EXTRACTION_ZIP_EXT);
+		assertNull(IncrementalZipArchive.resume(storageFile, "bundle", new HashSet<Integer>(Arrays.asList(0))));
+
+		IncrementalZipArchive interrupted = new IncrementalZipArchive(storageFile, "bundle");
+		for (int i = 0; i < 3; i++) {
+			File layer = new File(tmpDir, "layer" + i);
+			write(new File(layer, "layer" + i + ".gml"), repeated(10000));
+			write(new File(layer, "metadata/layer" + i + ".xml"), repeated(100));
+			interrupted.addContent(i, layer);
+		}
+		// the application stops while the next layer is listed
+		FileWriter index = new FileWriter(storageFile.getPath() + ".index", true);
+		index.write("3 -1 bundle/lay");
+		index.close();
+
+		// the layer 1 was not checkpointed
+		IncrementalZipArchive archive = IncrementalZipArchive.resume(storageFile, "bundle",
+				new HashSet<Integer>(Arrays.asList(0, 2)));
+		assertEquals(new HashSet<Integer>(Arrays.asList(0, 2)), archive.getLayers());
+
+		File layer1 = new File(tmpDir, "layer1");
+		write(new File(layer1, "layer1.gml"), repeated(20000));
+		archive.addContent(1, layer1);
+		archive.close();
+
+		List<String> entries = FileUtils.listZip(storageFile);
+		assertEquals(new HashSet<String>(Arrays.asList("bundle/layer0.gml", "bundle/metadata/layer0.xml",
+				"bundle/layer2.gml", "bundle/metadata/layer2.xml", "bundle/layer1.gml")), new HashSet<String>(entries));
+		assertEquals(5, entries.size());
+		ZipFile zip = new ZipFile(storageFile);
+		try {
+			assertEquals(20000, zip.getEntry("bundle/layer1.gml").getSize());
+		} finally {
+			zip.close();
+		}
+		assertFalse(new File(storageFile.getPath() + ".index").exists());
+	}
+
+	@Test
+	public void testDiscard() throws Exception {
+		File storageFile = new File(tmpDir, "test" + ExtractorController.EXTRACTION_ZIP_EXT);
+		IncrementalZipArchive archive = new IncrementalZipArchive(storageFile, "bundle");
+		archive.add(write(new File(tmpDir, "failures.html"), repeated(10)));
+		archive.discard();
+
+		assertFalse(storageFile.exists());
+		assertFalse(new File(storageFile.getPath() + ".part").exists());
+	}
+
+	private static File write(File file, byte[] content) throws IOException {
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] repeated(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) ('a' + (i % 26));
+		}
+		return content;
+	}
+
+	private static byte[] random(int size) {
+		byte[] content = new byte[size];
+		new Random(1).nextBytes(content);
+		return content;
+	}
+}
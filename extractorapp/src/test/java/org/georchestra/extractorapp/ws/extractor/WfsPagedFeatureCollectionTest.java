@@ -0,0 +1,109 @@
+package org.georchestra.extractorapp.ws.extractor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.data.Query;
+import org.geotools.data.memory.MemoryDataStore;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.GeometryFactory;
+
+public class WfsPagedFeatureCollectionTest {
+
+    private static final int POINTS_PER_ROW = 20;
+    private static final int LINES = 5;
+
+    private SimpleFeatureSource source;
+    private SimpleFeatureType schema;
+    private ReferencedEnvelope bbox;
+
+    @Before
+    public void setUp() throws Exception {
+        schema = DataUtilities.createType("layer", "geom:Geometry:srid=4326,name:String");
+        GeometryFactory geometryFactory = new GeometryFactory();
+        List<SimpleFeature> features = new ArrayList<SimpleFeature>();
+        // some of the points are on the border of the tiles
+        for (int i = 0; i < POINTS_PER_ROW; i++) {
+            for (int j = 0; j < POINTS_PER_ROW; j++) {
+                features.add(SimpleFeatureBuilder.build(schema, new Object[] {
+                        geometryFactory.createPoint(new Coordinate(0.25 + 0.5 * i, 0.25 + 0.5 * j)), "point" },
+                        "layer.point" + i + "_" + j));
+            }
+        }
+        // the lines cross many tiles
+        for (int i = 0; i < LINES; i++) {
+            features.add(SimpleFeatureBuilder.build(schema, new Object[] {
+                    geometryFactory.createLineString(new Coordinate[] { new Coordinate(0.1, 1 + 2 * i), new Coordinate(9.9, 1 + 2 * i) }),
+                    "line" }, "layer.line" + i));
+        }
+        MemoryDataStore ds = new MemoryDataStore(features.toArray(new SimpleFeature[features.size()]));
+        source = ds.getFeatureSource("layer");
+        bbox = new ReferencedEnvelope(0, 10, 0, 10, schema.getCoordinateReferenceSystem());
+    }
+
+    @Test
+    public void testPages() throws Exception {
+        Set<String> ids = readIds(new WfsPagedFeatureCollection(source, query(), bbox, 10));
+
+        assertEquals(POINTS_PER_ROW * POINTS_PER_ROW + LINES, ids.size());
+        assertTrue(ids.contains("layer.line0"));
+    }
+
+    @Test
+    public void testSinglePage() throws Exception {
+        Set<String> ids = readIds(new WfsPagedFeatureCollection(source, query(), bbox, 10000));
+
+        assertEquals(POINTS_PER_ROW * POINTS_PER_ROW + LINES, ids.size());
+    }
+
+    @Test
+    public void testCloseBeforeTheEnd() throws Exception {
+        WfsPagedFeatureCollection features = new WfsPagedFeatureCollection(source, query(), bbox, 10);
+        SimpleFeatureIterator iter = features.features();
+        try {
+            for (int i = 0; i < 3; i++) {
+                iter.next();
+            }
+        } finally {
+            iter.close();
+        }
+        // the collection can be iterated again
+        assertEquals(POINTS_PER_ROW * POINTS_PER_ROW + LINES, features.size());
+    }
+
+    private Query query() throws Exception {
+        return new Query("layer", WfsExtractor.intersects(schema, bbox));
+    }
+
+    /**
+     * @return the ids of the features, checking that each feature is returned once
+     */
+    private static Set<String> readIds(WfsPagedFeatureCollection features) {
+        Set<String> ids = new HashSet<String>();
+        SimpleFeatureIterator iter = features.features();
+        try {
+            while (iter.hasNext()) {
+                String id = iter.next().getID();
+                assertTrue("returned twice: " + id, ids.add(id));
+            }
+        } finally {
+            iter.close();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,93 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.georchestra.extractorapp.ws.extractor.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExtractionJobStoreTest {
+
+	private File tmpDir;
+
+	@Before
+	public void setUp() {
+		tmpDir = FileUtils.createTempDirectory();
+	}
+
+	@After
+	public void tearDown() {
+		FileUtils.delete(tmpDir);
+	}
+
+	@Test
+	public void testReopen() throws Exception {
+		ExtractionJobStore store = new ExtractionJobStore(tmpDir);
+		Map<String, String> headers = Collections.singletonMap("sec-username", "testadmin");
+		store.create("job1", new Date(1000), "{\"layers\":[]}", headers, ExecutionPriority.MEDIUM);
+		store.create("job2", new Date(2000), "{}", headers, ExecutionPriority.LOW);
+		store.updatePriority("job1", ExecutionPriority.HIGH);
+		store.updateState("job2", ExecutionState.PAUSED);
+		store.checkpoint("job1", 0, "SUCCESS");
+		store.checkpoint("job1", 2, "FAILURE");
+		File workDir = store.workDirectory("job1");
+		assertTrue(workDir.isDirectory());
+
+		// the application restarts
+		List<ExtractionJobStore.Job> jobs = new ExtractionJobStore(tmpDir).list();
+
+		assertEquals(2, jobs.size());
+		ExtractionJobStore.Job job1 = jobs.get(0);
+		assertEquals("job1", job1.getUuid());
+		assertEquals("{\"layers\":[]}", job1.getRequest());
+		assertEquals(new Date(1000), job1.getRequestTime());
+		assertEquals(ExecutionPriority.HIGH, job1.getPriority());
+		assertEquals(ExecutionState.WAITING, job1.getState());
+		assertEquals("testadmin", job1.getHeaders().get("sec-username"));
+		assertEquals(2, job1.getLayerOutcomes().size());
+		assertEquals("SUCCESS", job1.getLayerOutcomes().get(0));
+		assertEquals("FAILURE", job1.getLayerOutcomes().get(2));
+		assertTrue(workDir.isDirectory());
+
+		ExtractionJobStore.Job job2 = jobs.get(1);
+		assertEquals(ExecutionState.PAUSED, job2.getState());
+		assertTrue(job2.getLayerOutcomes().isEmpty());
+	}
+
+	@Test
+	public void testRemove() throws Exception {
+		ExtractionJobStore store = new ExtractionJobStore(tmpDir);
+		store.create("job1", new Date(), "{}", Collections.<String, String> emptyMap(), ExecutionPriority.MEDIUM);
+		File workDir = store.workDirectory("job1");
+
+		store.remove("job1");
+		// updates of a removed job are ignored
+		store.checkpoint("job1", 0, "SUCCESS");
+
+		assertNull(store.get("job1"));
+		assertFalse(workDir.exists());
+		assertTrue(new ExtractionJobStore(tmpDir).list().isEmpty());
+	}
+
+	@Test
+	public void testIncompleteJob() throws Exception {
+		// a job directory without job file, the application stopped while the job was created
+		File incomplete = new File(tmpDir, "job1");
+		assertTrue(new File(incomplete, "work").mkdirs());
+
+		ExtractionJobStore store = new ExtractionJobStore(tmpDir);
+
+		assertTrue(store.list().isEmpty());
+		assertFalse(incomplete.exists());
+	}
+}
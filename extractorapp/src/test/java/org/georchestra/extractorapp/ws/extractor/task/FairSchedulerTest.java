@@ -0,0 +1,250 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Checks the scheduler with a deterministic simulation: the tasks are run by simulated threads and the time is
+ * simulated too.
+ */
+public class FairSchedulerTest {
+
+	private static final long MINUTE = 60 * 1000;
+
+	@Test
+	public void testFairnessBetweenUsers() {
+		List<SimulatedTask> tasks = new ArrayList<SimulatedTask>();
+		// one user submits many tasks, then another one submits a few tasks
+		for (int i = 0; i < 30; i++) {
+			tasks.add(new SimulatedTask("greedy", null, ExecutionPriority.MEDIUM, 0, 10 * MINUTE));
+		}
+		for (int i = 0; i < 3; i++) {
+			tasks.add(new SimulatedTask("other", null, ExecutionPriority.MEDIUM, MINUTE, 10 * MINUTE));
+		}
+
+		simulate(new FairScheduler(0, null, null), 2, tasks);
+
+		// the tasks of the other user are interleaved with the tasks of the greedy user
+		for (SimulatedTask task : tasks) {
+			if (task.getUser().equals("other")) {
+				assertTrue("started at " + task.start / MINUTE, task.start <= 30 * MINUTE);
+			}
+		}
+		// no thread is idle while tasks are waiting
+		assertEquals(170 * MINUTE, lastEnd(tasks));
+	}
+
+	@Test
+	public void testRoleWeights() {
+		List<SimulatedTask> tasks = new ArrayList<SimulatedTask>();
+		for (int i = 0; i < 10; i++) {
+			tasks.add(new SimulatedTask("user", "ROLE_SV_USER", ExecutionPriority.MEDIUM, 0, MINUTE));
+			tasks.add(new SimulatedTask("admin", "ROLE_SV_USER;ROLE_SV_ADMIN", ExecutionPriority.MEDIUM, 0, MINUTE));
+		}
+		Map<String, Integer> weights = Collections.singletonMap("ROLE_SV_ADMIN", 2);
+
+		List<SimulatedTask> order = simulate(new FairScheduler(0, weights, null), 1, tasks);
+
+		// the admin gets twice the share of the user
+		int admin = 0;
+		for (SimulatedTask task : order.subList(0, 9)) {
+			if (task.getUser().equals("admin")) {
+				admin++;
+			}
+		}
+		assertEquals(6, admin);
+	}
+
+	@Test
+	public void testAging() {
+		List<SimulatedTask> tasks = new ArrayList<SimulatedTask>();
+		SimulatedTask low = new SimulatedTask("patient", null, ExecutionPriority.LOW, 0, 10 * MINUTE);
+		tasks.add(low);
+		for (int i = 0; i < 20; i++) {
+			tasks.add(new SimulatedTask("busy" + i, null, ExecutionPriority.MEDIUM, 0, 10 * MINUTE));
+		}
+
+		simulate(new FairScheduler(30 * MINUTE, null, null), 1, tasks);
+		// the LOW task runs once it has waited for the aging period
+		assertEquals(30 * MINUTE, low.start);
+
+		simulate(new FairScheduler(0, null, null), 1, tasks);
+		// without aging it runs last
+		assertEquals(200 * MINUTE, low.start);
+	}
+
+	@Test
+	public void testHighPriorityFirst() {
+		List<SimulatedTask> tasks = new ArrayList<SimulatedTask>();
+		for (int i = 0; i < 5; i++) {
+			tasks.add(new SimulatedTask("user" + i, null, ExecutionPriority.MEDIUM, 0, MINUTE));
+		}
+		SimulatedTask high = new SimulatedTask("late", null, ExecutionPriority.HIGH, 2 * MINUTE, MINUTE);
+		tasks.add(high);
+
+		simulate(new FairScheduler(30 * MINUTE, null, null), 1, tasks);
+
+		assertEquals(2 * MINUTE, high.start);
+	}
+
+	@Test
+	public void testSaturatedHost() throws Exception {
+		HostRequestLimiter limiter = new HostRequestLimiter(1);
+		FairScheduler scheduler = new FairScheduler(0, null, limiter);
+		List<SimulatedTask> waiting = new ArrayList<SimulatedTask>();
+		waiting.add(new SimulatedTask("user1", null, ExecutionPriority.MEDIUM, 0, MINUTE, "busy.georchestra.org"));
+		waiting.add(new SimulatedTask("user2", null, ExecutionPriority.MEDIUM, MINUTE, MINUTE, "idle.georchestra.org"));
+
+		assertEquals(0, scheduler.select(waiting, 2 * MINUTE));
+		// the first task waits while its host is busy
+		limiter.acquire("busy.georchestra.org");
+		assertEquals(1, scheduler.select(waiting, 2 * MINUTE));
+	}
+
+	@Test
+	public void testOrder() {
+		List<SimulatedTask> waiting = new ArrayList<SimulatedTask>();
+		for (int i = 0; i < 4; i++) {
+			waiting.add(new SimulatedTask("user1", null, ExecutionPriority.MEDIUM, i, MINUTE));
+			waiting.add(new SimulatedTask("user2", null, ExecutionPriority.values()[i % 3], i, MINUTE));
+		}
+		FairScheduler scheduler = new FairScheduler(0, null, null);
+		scheduler.dispatched(new SimulatedTask("user1", null, ExecutionPriority.MEDIUM, 0, MINUTE));
+
+		List<SimulatedTask> order = scheduler.order(waiting, 0);
+		// the state of the scheduler is not changed
+		assertEquals(order, scheduler.order(waiting, 0));
+
+		List<SimulatedTask> remaining = new ArrayList<SimulatedTask>(waiting);
+		for (SimulatedTask expected : order) {
+			SimulatedTask next = remaining.remove(scheduler.select(remaining, 0));
+			scheduler.dispatched(next);
+			assertTrue(expected == next);
+		}
+	}
+
+	/**
+	 * Runs the tasks with the given number of threads
+	 *
+	 * @return the tasks in the order they started
+	 */
+	private static List<SimulatedTask> simulate(FairScheduler scheduler, int threads, List<SimulatedTask> tasks) {
+		List<SimulatedTask> submitted = new ArrayList<SimulatedTask>(tasks);
+		List<SimulatedTask> waiting = new ArrayList<SimulatedTask>();
+		List<SimulatedTask> running = new ArrayList<SimulatedTask>();
+		List<SimulatedTask> started = new ArrayList<SimulatedTask>();
+		long now = 0;
+		while (!submitted.isEmpty() || !waiting.isEmpty() || !running.isEmpty()) {
+			for (int i = running.size() - 1; i >= 0; i--) {
+				if (running.get(i).end <= now) {
+					running.remove(i);
+				}
+			}
+			for (int i = 0; i < submitted.size(); i++) {
+				if (submitted.get(i).getQueuedTime() <= now) {
+					waiting.add(submitted.remove(i--));
+				}
+			}
+			while (running.size() < threads && !waiting.isEmpty()) {
+				SimulatedTask next = waiting.remove(scheduler.select(waiting, now));
+				scheduler.dispatched(next);
+				next.start = now;
+				next.end = now + next.duration;
+				running.add(next);
+				started.add(next);
+			}
+			// next event
+			long next = Long.MAX_VALUE;
+			for (SimulatedTask task : running) {
+				next = Math.min(next, task.end);
+			}
+			for (SimulatedTask task : submitted) {
+				next = Math.min(next, task.getQueuedTime());
+			}
+			now = next;
+		}
+		return started;
+	}
+
+	private static long lastEnd(List<SimulatedTask> tasks) {
+		long end = 0;
+		for (SimulatedTask task : tasks) {
+			end = Math.max(end, task.end);
+		}
+		return end;
+	}
+
+	private static final class SimulatedTask implements SchedulableTask {
+
+		private static int count = 0;
+
+		private final String id = "task" + (count++);
+		private final String user;
+		private final String roles;
+		private final ExecutionPriority priority;
+		private final long queuedTime;
+		private final long duration;
+		private final List<String> hosts;
+		long start = -1;
+		long end = -1;
+
+		SimulatedTask(String user, String roles, ExecutionPriority priority, long queuedTime, long duration,
+				String... hosts) {
+			this.user = user;
+			this.roles = roles;
+			this.priority = priority;
+			this.queuedTime = queuedTime;
+			this.duration = duration;
+			this.hosts = Arrays.asList(hosts);
+		}
+
+		@Override
+		public String getId() {
+			return id;
+		}
+
+		@Override
+		public String getUser() {
+			return user;
+		}
+
+		@Override
+		public String getRoles() {
+			return roles;
+		}
+
+		@Override
+		public ExecutionPriority getPriority() {
+			return priority;
+		}
+
+		@Override
+		public long getQueuedTime() {
+			return queuedTime;
+		}
+
+		@Override
+		public Collection<String> getHosts() {
+			return hosts;
+		}
+
+		@Override
+		public int getCost() {
+			return 1;
+		}
+
+		@Override
+		public String toString() {
+			return id + " " + user + " " + priority;
+		}
+	}
+}
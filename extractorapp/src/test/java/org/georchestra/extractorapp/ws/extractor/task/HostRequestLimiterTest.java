@@ -0,0 +1,69 @@
+package org.georchestra.extractorapp.ws.extractor.task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class HostRequestLimiterTest {
+
+	@Test
+	public void testLimitPerHost() throws Exception {
+		final HostRequestLimiter limiter = new HostRequestLimiter(2);
+
+		limiter.acquire("sdi.georchestra.org");
+		limiter.acquire("sdi.georchestra.org");
+		assertEquals(0, limiter.availablePermits("sdi.georchestra.org"));
+		// the other hosts are not limited by this one
+		assertEquals(2, limiter.availablePermits("demo.georchestra.org"));
+
+		// a third request waits until one of the previous is done
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiting = new Thread() {
+			@Override
+			public void run() {
+				try {
+					limiter.acquire("sdi.georchestra.org");
+					acquired.countDown();
+				} catch (InterruptedException e) {
+					// the test fails
+				}
+			}
+		};
+		waiting.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+		limiter.release("sdi.georchestra.org");
+		assertTrue(acquired.await(5, TimeUnit.SECONDS));
+		waiting.join();
+	}
+
+	/**
+	 * The tiles of a coverage take the permits of the host of the layer
+	 */
+	@Test
+	public void testPermitsShared() throws Exception {
+		HostRequestLimiter limiter = new HostRequestLimiter(2);
+
+		limiter.acquire("sdi.georchestra.org");
+		assertTrue(limiter.permits("sdi.georchestra.org").tryAcquire());
+		assertEquals(0, limiter.availablePermits("sdi.georchestra.org"));
+		assertFalse(limiter.permits("sdi.georchestra.org").tryAcquire());
+	}
+
+	@Test
+	public void testUnlimited() throws Exception {
+		HostRequestLimiter limiter = new HostRequestLimiter(0);
+
+		for (int i = 0; i < 100; i++) {
+			limiter.acquire("sdi.georchestra.org");
+		}
+		assertEquals(Integer.MAX_VALUE, limiter.availablePermits("sdi.georchestra.org"));
+		assertNull(limiter.permits("sdi.georchestra.org"));
+	}
+}
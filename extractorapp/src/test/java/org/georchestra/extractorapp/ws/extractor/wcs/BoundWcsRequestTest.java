@@ -7,6 +7,7 @@ import static org.junit.Assert.assertTrue;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.http.Header;
@@ -21,12 +22,15 @@ import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.impl.conn.SchemeRegistryFactory;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.vividsolutions.jts.geom.Envelope;
+
 public class BoundWcsRequestTest {
 	private InputStream describeCoverageSample;
 	private InputStream getCapabilitiesSample;
@@ -143,4 +147,29 @@ public class BoundWcsRequestTest {
 		assertTrue(bwr.getCapabilities() instanceof String);
 	}
 
+	@Test
+	public void testSplit() throws Throwable {
+		WcsReaderRequest rq = new WcsReaderRequestFactory().create("1.0", "myCov", 0, 0, 1000, 800, CRS.decode("EPSG:2154"),
+				CRS.decode("EPSG:2154"), 1, "GeoTiff", true, true, true, "scott", "tiger");
+
+		BoundWcsRequest bwr = new BoundWcsRequest(new URL("http://localhost/"), rq);
+		bwr.setHttpClient(getMockHttpClient());
+		setOutputDocument(describeCoverageSample);
+
+		// 1000 x 800 pixels, 1 band
+		assertEquals(800000, bwr.size(), 0.1);
+		assertEquals(1, bwr.split(1000000).size());
+
+		List<BoundWcsRequest> tiles = bwr.split(200000);
+		assertEquals(4, tiles.size());
+		// row by row from the upper left corner
+		ReferencedEnvelope first = tiles.get(0).requestBbox;
+		assertEquals(new Envelope(0, 500, 400, 800), new Envelope(first));
+		ReferencedEnvelope last = tiles.get(3).requestBbox;
+		assertEquals(new Envelope(500, 1000, 0, 400), new Envelope(last));
+		for (BoundWcsRequest tile : tiles) {
+			assertTrue(tile.size() <= 200000);
+		}
+	}
+
 }
@@ -6,11 +6,13 @@ create table mapfishapp.geodocs (
   id bigserial primary key, -- 1 to 9223372036854775807 (~ 1E19)
   username varchar(200), -- can be NULL (eg: anonymous user)
   standard varchar(3) not null, -- eg: CSV, KML, SLD, WMC, GML
-  raw_file_content text not null, -- file content
+  raw_file_content text, -- file content
+  gzip_file_content bytea, -- file content, gzip-compressed (when raw_file_content is NULL)
   file_hash varchar(32) unique not null, -- md5sum
   created_at timestamp without time zone default NOW(), -- creation date
   last_access timestamp without time zone, -- last access date
-  access_count integer default 0 -- access count, defaults to 0
+  access_count integer default 0, -- access count, defaults to 0
+  check (raw_file_content is not null or gzip_file_content is not null)
 );
 
 create index geodocs_file_hash on mapfishapp.geodocs using btree (file_hash);
@@ -1,21 +1,33 @@
 package org.georchestra.mapfishapp.ws;
 
+import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.StringReader;
+import java.io.Writer;
 import java.net.URL;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.Source;
@@ -52,6 +64,18 @@ public abstract class A_DocService {
      */
     protected static final String DOC_PREFIX = "geodoc";
 
+    /**
+     * Documents bigger than this number of characters are not indented (see {@link #setIndentThreshold(int)})
+     */
+    public static final int DEFAULT_INDENT_THRESHOLD = 1024 * 1024;
+
+    /**
+     * Encoding of the documents stored compressed, and of the temporary files
+     */
+    private static final String STORAGE_ENCODING = "UTF-8";
+
+    private static final int BUFFER_SIZE = 8192;
+
     /**
      * File extension.
      */
@@ -91,6 +115,43 @@ public abstract class A_DocService {
      */
     private String _tempDirectory;
 
+    /**
+     * Documents bigger than this are stored as they are sent
+     */
+    private int _indentThreshold = DEFAULT_INDENT_THRESHOLD;
+
+    /**
+     * true: the documents are stored gzip-compressed
+     */
+    private boolean _compressed = false;
+
+    /**
+     * Documents loaded recently, null to always read them from the database
+     */
+    private DocCache _cache;
+
+    /**
+     * @param indentThreshold number of characters above which the documents are not indented nor loaded in memory
+     * (unless the service is not streamable)
+     */
+    public void setIndentThreshold(int indentThreshold) {
+        _indentThreshold = indentThreshold;
+    }
+
+    /**
+     * @param cache cache of the documents and of their access counts, null to disable it
+     */
+    public void setCache(DocCache cache) {
+        _cache = cache;
+    }
+
+    /**
+     * @param compressed true to store the new documents gzip-compressed (gzip_file_content column)
+     */
+    public void setCompressed(boolean compressed) {
+        _compressed = compressed;
+    }
+
 	/**
 	 * Creates the temporal directory if it doesn't exist and set the path
 	 */
@@ -141,17 +202,105 @@ public abstract class A_DocService {
      * @throws DocServiceException
      */
     protected String saveData(final String data, final String username) throws DocServiceException {
+        return saveData(data, username, data.length() <= _indentThreshold);
+    }
+
+    /**
+     * Store the data read from the reader. The small documents (see {@link #setIndentThreshold(int)})
+     * are indented as usual, the bigger ones are written to a temporary file and sent from there to the
+     * database, unless the service needs them in memory (see {@link #isStreamable()}).
+     * @param data raw data to be stored, it is not closed
+     * @param username the current user name or empty string if anonymous
+     * @return file name
+     * @throws DocServiceException
+     * @throws IOException if the data cannot be read
+     */
+    protected String saveData(final Reader data, final String username) throws DocServiceException, IOException {
+
+        // read the beginning of the document, which is often the whole document
+        StringBuilder head = new StringBuilder();
+        char[] buf = new char[BUFFER_SIZE];
+        int len;
+        while (head.length() <= _indentThreshold && (len = data.read(buf)) > 0) {
+            head.append(buf, 0, len);
+        }
+        if (head.length() <= _indentThreshold) {
+            return saveData(head.toString(), username, true);
+        }
+        if (!isStreamable()) {
+            // preSave needs the whole content
+            while ((len = data.read(buf)) > 0) {
+                head.append(buf, 0, len);
+            }
+            return saveData(head.toString(), username, false);
+        }
+
+        // big document: written to a temporary file, it is neither indented nor kept in memory
+        File spool = File.createTempFile(DOC_PREFIX, ".tmp", new File(_tempDirectory));
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            long length = head.length();
+            OutputStream fileStream = new FileOutputStream(spool);
+            Writer out = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(
+                    _compressed ? new GZIPOutputStream(fileStream, BUFFER_SIZE) : fileStream, digest), STORAGE_ENCODING));
+            try {
+                out.append(head);
+                head = null;
+                while ((len = data.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                    length += len;
+                }
+            } finally {
+                out.close();
+            }
+
+            // as for the small documents, the hash is made unique by a random string
+            digest.update(Double.toString(new Random().nextDouble()).getBytes());
+            String hash = toHex(digest.digest());
+
+            InputStream content = new FileInputStream(spool);
+            try {
+                if (_compressed) {
+                    insert(username, hash, null, content, spool.length());
+                } else {
+                    insert(username, hash, new InputStreamReader(content, STORAGE_ENCODING), null, length);
+                }
+            } finally {
+                content.close();
+            }
+            return DOC_PREFIX + hash + _fileExtension;
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (!spool.delete()) {
+                LOG.error("cannot delete the temporary file " + spool);
+            }
+        }
+    }
+
+    /**
+     * Store the given data
+     * @param data raw data to be stored
+     * @param username the current user name
+     * @param indent true to try to indent the document
+     * @return file name
+     * @throws DocServiceException
+     */
+    private String saveData(final String data, final String username, boolean indent) throws DocServiceException {
 
         _content = data;
 
         // Tries to indent the document before saving it
-        try {
-            _content = indentData(data);
+        if (indent) {
+            try {
+                _content = indentData(data);
 
-        } catch (Exception e1) {
-            // actually give up (if malformed, or if another issue
-            // has been caught), keeping the old behaviour.
-            _content = data;
+            } catch (Exception e1) {
+                // actually give up (if malformed, or if another issue
+                // has been caught), keeping the old behaviour.
+                _content = data;
+            }
         }
 
         // actions to take before saving data
@@ -168,19 +317,55 @@ public abstract class A_DocService {
             throw new RuntimeException(e);
         }
 
+        // write data to Db
+        try {
+            if (_compressed) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), STORAGE_ENCODING);
+                out.write(_content);
+                out.close();
+                insert(username, hash, null, new ByteArrayInputStream(bytes.toByteArray()), bytes.size());
+            } else {
+                insert(username, hash, new StringReader(_content), null, _content.length());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        return DOC_PREFIX + hash + _fileExtension;
+    }
+
+    /**
+     * Inserts a document in the database, either as text or gzip-compressed
+     * @param text the document, null if it is compressed
+     * @param compressed the gzip-compressed document, null if it is text
+     * @param length number of characters of the text, or number of bytes of the compressed document
+     */
+    private void insert(final String username, final String hash, final Reader text, final InputStream compressed,
+            final long length) {
+
+        if (length > Integer.MAX_VALUE) {
+            throw new RuntimeException("Document is too big");
+        }
         // extract standard
         String standard = _fileExtension.substring(1);
 
-        // write data to Db
         Connection connection = null;
         PreparedStatement st = null;
         try {
             connection = pgPool.getConnection();
-            st = connection.prepareStatement("INSERT INTO mapfishapp.geodocs (username, standard, raw_file_content, file_hash) VALUES (?,?,?,?);");
+            st = connection.prepareStatement("INSERT INTO mapfishapp.geodocs (username, standard, raw_file_content, "
+                    + "gzip_file_content, file_hash) VALUES (?,?,?,?,?);");
             st.setString(1, username);
             st.setString(2, standard);
-            st.setString(3, _content);
-            st.setString(4, hash);
+            if (text != null) {
+                st.setCharacterStream(3, text, (int) length);
+                st.setNull(4, Types.BINARY);
+            } else {
+                st.setNull(3, Types.VARCHAR);
+                st.setBinaryStream(4, compressed, (int) length);
+            }
+            st.setString(5, hash);
             st.executeUpdate();
         }
         catch (SQLException e) {
@@ -189,8 +374,6 @@ public abstract class A_DocService {
             if (st != null) try { st.close(); } catch (SQLException e) {LOG.error(e);}
             if (connection != null) try { connection.close(); } catch (SQLException e) {LOG.error(e);}
         }
-
-        return DOC_PREFIX + hash + _fileExtension;
     }
 
     /**
@@ -200,23 +383,48 @@ public abstract class A_DocService {
      * @throws DocServiceException
      */
     public void loadFile(final String fileName) throws DocServiceException {
-        // check first if data exists somewhere (db / file)
+        Reader content = openFile(fileName);
         try {
-            if (!isFileExist(fileName)) {
-                throw new DocServiceException("Requested file does not exist.", HttpServletResponse.SC_NOT_FOUND);
+            if (isStreamable()) {
+                _content = readContent(content);
             }
-        } catch (Exception e) {
+        } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            try { content.close(); } catch (IOException e) {LOG.error(e);}
         }
+    }
 
+    /**
+     * Opens the file corresponding to the file name in the service, its name can be accessed via getName.
+     * The content of the streamable services (see {@link #isStreamable()}) is returned as it is read from the
+     * database (in memory or in a temporary file if it is big), the other ones are loaded in memory and postLoad is
+     * called.
+     * @param fileName file name
+     * @return the file content, it must be closed
+     * @throws DocServiceException
+     */
+    public Reader openFile(final String fileName) throws DocServiceException {
         // default, file name will be the one generated by OS
         _name = fileName;
 
-        // load file content
-        _content = loadContent(fileName);
+        // open file content, fails if it does not exist
+        Reader content = openContent(fileName);
+        if (isStreamable()) {
+            return content;
+        }
+        try {
+            _content = readContent(content);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            try { content.close(); } catch (IOException e) {LOG.error(e);}
+        }
 
         // actions to take after loading the content
         postLoad();
+
+        return new StringReader(_content);
     }
 
     /*========================Accessor Methods====================================================*/
@@ -253,6 +461,15 @@ public abstract class A_DocService {
 
     /*========================Protected Methods - Variable algorithms==============================================*/
 
+    /**
+     * Tells whether the documents can be stored and sent without being loaded in memory. <br />
+     * Services whose preSave or postLoad read or alter the content must return false.
+     * @return true by default
+     */
+    protected boolean isStreamable() {
+        return true;
+    }
+
     /**
      * Must be override to take actions before the data are saved. <br />
      * Examples: valid data format or integrity, interpret or transform data.
@@ -263,6 +480,7 @@ public abstract class A_DocService {
 
     /**
      * Must be override to take actions once the file is load in memory <br />
+     * Only called for the services which are not streamable, see {@link #isStreamable()} <br />
      * Examples: parse the file to get the real file name
      * @throws DocServiceException
      */
@@ -314,13 +532,20 @@ public abstract class A_DocService {
     private String MD5(final String text) throws NoSuchAlgorithmException {
         byte[] toHash = text.getBytes();
         byte[] MD5Digest = null;
-        StringBuilder hashString = new StringBuilder();
 
         MessageDigest algo = MessageDigest.getInstance("MD5");
         algo.reset();
         algo.update(toHash);
         MD5Digest = algo.digest();
 
+        return toHex(MD5Digest);
+    }
+
+    /**
+     * @return the hexadecimal form of the digest
+     */
+    private String toHex(final byte[] MD5Digest) {
+        StringBuilder hashString = new StringBuilder();
         for (int i = 0; i < MD5Digest.length; i++) {
             String hex = Integer.toHexString(MD5Digest[i]);
             if (hex.length() == 1) {
@@ -334,96 +559,105 @@ public abstract class A_DocService {
     }
 
     /**
-     * Check that data exists in db under provided hash
-     * @param fileName eg geodoc1694e3cc580768d5125816b574915e97.wmc or geodoc\d{19}.wmc
+     * Check that the file exists in DIR_PATH
+     * @param fileName eg geodoc\d{19}.wmc
      * @return true: exists, false: not exists
      */
-    private boolean isFileExist(final String fileName) throws SQLException, RuntimeException {
-        // test fileName to know if file is stored in db or file.
-        if (fileName.length() == 4+32+DOC_PREFIX.length()) {
-            // newest database storage
-            ResultSet rs = null;
-            PreparedStatement st = null;
-            Connection connection = null;
-
-            boolean exists = false;
-            int count = 0;
-            try {
-                connection = pgPool.getConnection();
-                st = connection.prepareStatement("SELECT count(*)::integer from mapfishapp.geodocs WHERE file_hash = ?;");
-                st.setString(1, fileName.substring(DOC_PREFIX.length(), DOC_PREFIX.length() + 32));
-                rs = st.executeQuery();
-
-                if (rs.next()) {
-                    count = rs.getInt(1);
-                }
-            } catch(SQLException e) {
-                throw new RuntimeException(e);
-            } finally {
-                if (rs != null) try { rs.close(); } catch (SQLException e) {LOG.error(e);}
-                if (st != null) try { st.close(); } catch (SQLException e) {LOG.error(e);}
-                if (connection != null) try { connection.close(); } catch (SQLException e) {LOG.error(e);}
-            }
-
-            return count > 0;
-
-        } else { // plain old "file" storage
+    private boolean isFileExist(final String fileName) throws RuntimeException {
+        // file was stored previously in a known place
+        File dir = new File(_tempDirectory);
 
-            // file was stored previously in a known place
-            File dir = new File(_tempDirectory);
-
-            if(!dir.exists()) {
-                throw new RuntimeException(_tempDirectory + " directory not found");
-            }
+        if(!dir.exists()) {
+            throw new RuntimeException(_tempDirectory + " directory not found");
+        }
 
-            // prepare filter to get the right file
-            FilenameFilter filter =
-                new FilenameFilter() {
-                                        public boolean accept(File dir, String name) {
+        // prepare filter to get the right file
+        FilenameFilter filter =
+            new FilenameFilter() {
+                                    public boolean accept(File dir, String name) {
 
-                                            return fileName.equals(name);
-                                        }
-                                    };
+                                        return fileName.equals(name);
+                                    }
+                                };
 
-            // get file thanks to the previous filter
-            String[] fileList = dir.list(filter);
+        // get file thanks to the previous filter
+        String[] fileList = dir.list(filter);
 
-            return fileList.length == 1;
-        }
+        return fileList.length == 1;
     }
 
     /**
-     * Get file content of the given file stored in DIR_PATH
+     * Opens the file content of the given file stored in the database or in DIR_PATH
      * @param fileName file name
-     * @return file content
+     * @return file content, empty if it cannot be read
+     * @throws DocServiceException if the file does not exist
      */
-    private String loadContent(final String fileName) {
-        String content = "";
+    private Reader openContent(final String fileName) throws DocServiceException {
         // test fileName to know if the file is stored in db or file.
         if (fileName.length() == 4+32+DOC_PREFIX.length()) {
             String hash = fileName.substring(DOC_PREFIX.length(), DOC_PREFIX.length() + 32);
-            // newest database storage
+            if (_cache != null) {
+                DocCache.Entry cached = _cache.get(hash);
+                if (cached != null) {
+                    _cache.accessed(hash);
+                    try {
+                        return cached.open();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+            // newest database storage: the document is looked up and loaded by the same query
             ResultSet rs = null;
             PreparedStatement st = null;
+            PreparedStatement update = null;
             Connection connection = null;
             try {
                 connection = pgPool.getConnection();
-                st = connection.prepareStatement("SELECT raw_file_content from mapfishapp.geodocs WHERE file_hash = ?;");
+                st = connection.prepareStatement("SELECT raw_file_content, gzip_file_content from mapfishapp.geodocs WHERE file_hash = ?;");
                 st.setString(1, hash);
                 rs = st.executeQuery();
 
-                if (rs.next()) {
-                    content = rs.getString(1);
+                if (!rs.next()) {
+                    throw new DocServiceException("Requested file does not exist.", HttpServletResponse.SC_NOT_FOUND);
+                }
+                InputStream compressed = rs.getBinaryStream(2);
+                Reader text = (compressed != null) ? null : rs.getCharacterStream(1);
+                if (compressed == null && text == null) {
+                    text = new StringReader("");
                 }
 
-                // now that we have loaded the content, update the metadata fields
-                st = connection.prepareStatement("UPDATE mapfishapp.geodocs set last_access = now() , access_count = access_count + 1 WHERE file_hash = ?;");
-                st.setString(1, hash);
-                st.executeUpdate();
+                Reader content;
+                if (_cache != null) {
+                    // the small documents are kept, the access is written later
+                    content = (compressed != null) ? _cache.cacheCompressed(hash, compressed, STORAGE_ENCODING)
+                            : _cache.cache(hash, text);
+                    _cache.accessed(hash);
+                } else {
+                    content = (compressed != null)
+                            ? new InputStreamReader(new GZIPInputStream(compressed, BUFFER_SIZE), STORAGE_ENCODING)
+                            : text;
+
+                    // now that we have found the content, update the metadata fields
+                    update = connection.prepareStatement("UPDATE mapfishapp.geodocs set last_access = now() , access_count = access_count + 1 WHERE file_hash = ?;");
+                    update.setString(1, hash);
+                    update.executeUpdate();
+                }
+
+                // the connection is returned before the document is sent
+                try {
+                    return detach(content);
+                } finally {
+                    content.close();
+                }
             }
             catch (SQLException e) {
                 throw new RuntimeException(e);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
             } finally {
+                if (update != null) try { update.close(); } catch (SQLException e) {LOG.error(e);}
                 if (rs != null) try { rs.close(); } catch (SQLException e) {LOG.error(e);}
                 if (st != null) try { st.close(); } catch (SQLException e) {LOG.error(e);}
                 if (connection != null) try { connection.close(); } catch (SQLException e) {LOG.error(e);}
@@ -431,51 +665,88 @@ public abstract class A_DocService {
 
         } else {
             // plain old "file" storage
+            if (!isFileExist(fileName)) {
+                throw new DocServiceException("Requested file does not exist.", HttpServletResponse.SC_NOT_FOUND);
+            }
             File file = new File(_tempDirectory + File.separatorChar + fileName);
-
-            FileInputStream  fis = null;
             try {
-                fis = new FileInputStream(file);
-
-                // get file size
-                long fileSize = file.length();
-                if (fileSize > Integer.MAX_VALUE) {
-                    throw new IOException("File is too big");
-                }
-
-                // allocate necessary memory to store content
-                byte[] bytes = new byte[(int) fileSize];
-
-                // read the content in the byte array
-                int offset = 0;
-                int numRead = 0;
-                while (offset < bytes.length && (numRead=fis.read(bytes, offset, bytes.length-offset)) >= 0) {
-                    offset += numRead;
-                }
-
-                // Ensure all the bytes have been read
-                if (offset < bytes.length) {
-                    throw new IOException("Could not completely read file " + file.getName());
-                }
-
-                // return the file content
-                content = new String(bytes);
-
+                return new InputStreamReader(new FileInputStream(file));
             } catch (FileNotFoundException fnfExc) {
                 fnfExc.printStackTrace();
-            } catch (IOException ioExc) {
-                ioExc.printStackTrace();
-            } finally{
-                if(fis != null) {
+                return new StringReader("");
+            }
+        }
+    }
+
+    /**
+     * Reads the document out of the result set, so that the database connection can be returned before the
+     * document is sent to the client. The documents up to indentThreshold characters are kept in memory, the
+     * bigger ones are copied to a temporary file which is deleted when the returned reader is closed.
+     * @param content the document, it is not closed
+     * @return the whole document
+     * @throws IOException
+     */
+    private Reader detach(final Reader content) throws IOException {
+        StringBuilder head = new StringBuilder();
+        char[] buf = new char[BUFFER_SIZE];
+        int len;
+        boolean read = false;
+        while (!read && head.length() < _indentThreshold) {
+            len = content.read(buf);
+            if (len < 0) {
+                read = true;
+            } else {
+                head.append(buf, 0, len);
+            }
+        }
+        if (read) {
+            return new StringReader(head.toString());
+        }
+
+        final File spool = File.createTempFile(DOC_PREFIX, ".tmp", new File(_tempDirectory));
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), STORAGE_ENCODING), BUFFER_SIZE);
+            out.append(head);
+            head = null;
+            while ((len = content.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+            out.close();
+            out = null;
+            return new InputStreamReader(new FileInputStream(spool), STORAGE_ENCODING) {
+                @Override
+                public void close() throws IOException {
                     try {
-                        fis.close();
-                    } catch (IOException e) {
-                        LOG.error(e);
+                        super.close();
+                    } finally {
+                        if (!spool.delete()) {
+                            LOG.warn("Unable to delete " + spool);
+                        }
                     }
                 }
-            }
+            };
+        } catch (IOException e) {
+            if (out != null) try { out.close(); } catch (IOException e1) {LOG.error(e1);}
+            spool.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the whole content
+     * @param content file content, it is not closed
+     * @return the content
+     * @throws IOException
+     */
+    private String readContent(final Reader content) throws IOException {
+        StringBuilder sBuilder = new StringBuilder();
+        char[] buf = new char[BUFFER_SIZE];
+        int len;
+        while ((len = content.read(buf)) > 0) {
+            sBuilder.append(buf, 0, len);
         }
-        return content;
+        return sBuilder.toString();
     }
 
 }
@@ -27,6 +27,14 @@ public class CSVDocService extends A_DocService {
         super(FILE_EXTENSION, MIME_TYPE, tempDir, pgpool);
     }
 
+    /**
+     * Not streamable: the JSON content is converted in memory
+     */
+    @Override
+    protected boolean isStreamable() {
+        return false;
+    }
+
     /**
      * Convert content in JSON format to CSV
      * @throws DocServiceException
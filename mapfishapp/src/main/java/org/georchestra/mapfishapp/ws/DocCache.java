@@ -0,0 +1,312 @@
+package org.georchestra.mapfishapp.ws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.georchestra.mapfishapp.model.ConnectionPool;
+
+/**
+ * Cache of the documents stored in mapfishapp.geodocs, shared by the document services.
+ * <p>
+ * The documents never change once they are stored, thus they are cached by hash. The least recently
+ * used documents are evicted when the cache is bigger than <code>maxSize</code> (characters of the
+ * text documents plus bytes of the compressed ones), the documents bigger than
+ * <code>maxDocumentSize</code> are not cached.
+ * </p>
+ * <p>
+ * The accesses to the documents are counted in memory, last_access and access_count are updated
+ * every <code>flushPeriod</code> seconds in one transaction.
+ * </p>
+ */
+public class DocCache {
+
+    private static final Log LOG = LogFactory.getLog(DocCache.class.getPackage().getName());
+
+    private static final String UPDATE_ACCESS = "UPDATE mapfishapp.geodocs SET last_access = ?, "
+            + "access_count = access_count + ? WHERE file_hash = ?;";
+
+    private final ConnectionPool pgPool;
+
+    private int maxSize = 32 * 1024 * 1024;
+    private int maxDocumentSize = 1024 * 1024;
+    private int flushPeriod = 60;
+
+    /**
+     * hash -> document, in access order
+     */
+    private final LinkedHashMap<String, Entry> documents = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * hash -> {count, last access}, the accesses not written yet
+     */
+    private Map<String, long[]> accesses = new TreeMap<String, long[]>();
+    private final Object accessLock = new Object();
+
+    private Timer timer;
+
+    public DocCache(ConnectionPool pgPool) {
+        this.pgPool = pgPool;
+    }
+
+    /**
+     * @param maxSize size of the cache, in characters or bytes
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @param maxDocumentSize size above which the documents are not cached
+     */
+    public void setMaxDocumentSize(int maxDocumentSize) {
+        this.maxDocumentSize = maxDocumentSize;
+    }
+
+    /**
+     * @param flushPeriod time between two updates of the access counts, in seconds
+     */
+    public void setFlushPeriod(int flushPeriod) {
+        this.flushPeriod = flushPeriod;
+    }
+
+    /**
+     * Starts writing the access counts periodically
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        timer = new Timer("geodocs-access-counts", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, flushPeriod * 1000L, flushPeriod * 1000L);
+    }
+
+    /**
+     * Stops the timer and writes the pending access counts
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+        flush();
+    }
+
+    /**
+     * @return the cached document, null if it is not in the cache
+     */
+    public synchronized Entry get(String hash) {
+        return documents.get(hash);
+    }
+
+    /**
+     * Caches the text document if it is small enough
+     *
+     * @param text the document content, it is read
+     * @return a reader of the whole document
+     */
+    public Reader cache(String hash, Reader text) throws IOException {
+        StringBuilder head = new StringBuilder();
+        char[] buf = new char[8192];
+        int len;
+        while (head.length() <= maxDocumentSize && (len = text.read(buf)) > 0) {
+            head.append(buf, 0, len);
+        }
+        if (head.length() <= maxDocumentSize) {
+            String content = head.toString();
+            put(hash, new Entry(content, null, null));
+            return new StringReader(content);
+        }
+        // too big: the beginning is read again
+        PushbackReader reader = new PushbackReader(text, head.length());
+        reader.unread(head.toString().toCharArray());
+        return reader;
+    }
+
+    /**
+     * Caches the compressed document if it is small enough
+     *
+     * @param compressed the gzip-compressed document, it is read
+     * @param encoding encoding of the uncompressed document
+     * @return a reader of the whole document
+     */
+    public Reader cacheCompressed(String hash, InputStream compressed, String encoding) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int len;
+        while (head.size() <= maxDocumentSize && (len = compressed.read(buf)) > 0) {
+            head.write(buf, 0, len);
+        }
+        if (head.size() <= maxDocumentSize) {
+            Entry entry = new Entry(null, head.toByteArray(), encoding);
+            put(hash, entry);
+            return entry.open();
+        }
+        // too big: the beginning is read again
+        InputStream whole = new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), compressed);
+        return new InputStreamReader(new GZIPInputStream(whole), encoding);
+    }
+
+    /**
+     * Counts an access to the document, it is written by the next {@link #flush()}
+     */
+    public void accessed(String hash) {
+        long now = System.currentTimeMillis();
+        synchronized (accessLock) {
+            long[] access = accesses.get(hash);
+            if (access == null) {
+                accesses.put(hash, new long[] { 1, now });
+            } else {
+                access[0]++;
+                access[1] = now;
+            }
+        }
+    }
+
+    /**
+     * Writes the pending access counts. They are kept for the next flush if the database is not available.
+     */
+    public void flush() {
+        Map<String, long[]> pending;
+        synchronized (accessLock) {
+            if (accesses.isEmpty()) {
+                return;
+            }
+            pending = accesses;
+            accesses = new TreeMap<String, long[]>();
+        }
+
+        Connection connection = null;
+        PreparedStatement st = null;
+        try {
+            connection = pgPool.getConnection();
+            connection.setAutoCommit(false);
+            // the rows are locked in hash order, as by the other instances
+            st = connection.prepareStatement(UPDATE_ACCESS);
+            for (Map.Entry<String, long[]> access : pending.entrySet()) {
+                st.setTimestamp(1, new Timestamp(access.getValue()[1]));
+                st.setInt(2, (int) access.getValue()[0]);
+                st.setString(3, access.getKey());
+                st.addBatch();
+            }
+            st.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            LOG.error("Unable to update the geodocs access counts", e);
+            if (connection != null) try { connection.rollback(); } catch (SQLException e2) {LOG.error(e2);}
+            restore(pending);
+        } finally {
+            if (st != null) try { st.close(); } catch (SQLException e) {LOG.error(e);}
+            if (connection != null) {
+                try { connection.setAutoCommit(true); } catch (SQLException e) {LOG.error(e);}
+                try { connection.close(); } catch (SQLException e) {LOG.error(e);}
+            }
+        }
+    }
+
+    /**
+     * @return the number of documents in the cache
+     */
+    public synchronized int getCount() {
+        return documents.size();
+    }
+
+    /**
+     * @return the size of the cache, in characters or bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of documents whose access has not been written yet
+     */
+    public int getPendingAccesses() {
+        synchronized (accessLock) {
+            return accesses.size();
+        }
+    }
+
+    private synchronized void put(String hash, Entry entry) {
+        Entry previous = documents.put(hash, entry);
+        if (previous != null) {
+            size -= previous.size();
+        }
+        size += entry.size();
+        // evicts the least recently used documents
+        for (Iterator<Entry> i = documents.values().iterator(); size > maxSize && i.hasNext();) {
+            size -= i.next().size();
+            i.remove();
+        }
+    }
+
+    /**
+     * Adds the accesses which could not be written to the new ones
+     */
+    private void restore(Map<String, long[]> pending) {
+        synchronized (accessLock) {
+            for (Map.Entry<String, long[]> access : pending.entrySet()) {
+                long[] current = accesses.get(access.getKey());
+                if (current == null) {
+                    accesses.put(access.getKey(), access.getValue());
+                } else {
+                    current[0] += access.getValue()[0];
+                }
+            }
+        }
+    }
+
+    /**
+     * A cached document, either text or gzip-compressed
+     */
+    public static final class Entry {
+        private final String text;
+        private final byte[] compressed;
+        private final String encoding;
+
+        private Entry(String text, byte[] compressed, String encoding) {
+            this.text = text;
+            this.compressed = compressed;
+            this.encoding = encoding;
+        }
+
+        /**
+         * @return a reader of the document
+         */
+        public Reader open() throws IOException {
+            if (text != null) {
+                return new StringReader(text);
+            }
+            return new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(compressed)), encoding);
+        }
+
+        private int size() {
+            return (text != null) ? text.length() : compressed.length;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -13,6 +14,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.georchestra.mapfishapp.ws.classif.ClassificationCache;
 import org.georchestra.mapfishapp.ws.classif.ClassifierCommand;
 import org.georchestra.mapfishapp.ws.classif.SLDClassifier;
 import org.springframework.stereotype.Controller;
@@ -63,6 +65,30 @@ public class DocController {
     public ConnectionPool getConnectionPool() {return connectionPool;}
 	public void setConnectionPool(ConnectionPool connectionPool) {	this.connectionPool = connectionPool; }
 
+	/** documents bigger than this number of characters are neither indented nor loaded in memory */
+	private int indentThreshold = A_DocService.DEFAULT_INDENT_THRESHOLD;
+
+	public int getIndentThreshold() {return indentThreshold;}
+	public void setIndentThreshold(int indentThreshold) { this.indentThreshold = indentThreshold; }
+
+	/** true: the new documents are stored gzip-compressed */
+	private boolean compressDocuments = false;
+
+	public boolean isCompressDocuments() {return compressDocuments;}
+	public void setCompressDocuments(boolean compressDocuments) { this.compressDocuments = compressDocuments; }
+
+	/** documents loaded recently and their access counts, shared by the document services (optional) */
+	private DocCache docCache;
+
+	public DocCache getDocCache() {return docCache;}
+	public void setDocCache(DocCache docCache) { this.docCache = docCache; }
+
+	/** recent classifications of continuous values (optional) */
+	private ClassificationCache classificationCache;
+
+	public ClassificationCache getClassificationCache() {return classificationCache;}
+	public void setClassificationCache(ClassificationCache classificationCache) { this.classificationCache = classificationCache; }
+
 	private WFSDataStoreFactory factory = new WFSDataStoreFactory();
 	public void setWFSDataStoreFactory(WFSDataStoreFactory fac) { factory = fac; }
 	/**
@@ -106,6 +132,13 @@ public class DocController {
      * Absolute (from domain name) URL path where the gml service can be called
      */
     public static final String GML_URL = DOC_URL + "gml/";
+
+    /**
+     * Encoding of the documents sent without charset
+     */
+    private static final String DOC_ENCODING = "UTF-8";
+
+    private static final int BUFFER_SIZE = 8192;
     
     /*=======================Services entry points==========================================================================*/
     
@@ -118,7 +151,7 @@ public class DocController {
      */
     @RequestMapping(value="/wmc/", method=RequestMethod.POST)
     public void storeWMCFile(HttpServletRequest request, HttpServletResponse response) {   
-        storeFile(new WMCDocService(this.docTempDir, this.connectionPool), WMC_URL, request, response);   
+        storeFile(configure(new WMCDocService(this.docTempDir, this.connectionPool)), WMC_URL, request, response);   
     }
     
     /**
@@ -128,7 +161,7 @@ public class DocController {
      */
     @RequestMapping(value="/wmc/*", method=RequestMethod.GET)
     public void getWMCFile(HttpServletRequest request, HttpServletResponse response) { 
-        getFile(new WMCDocService(this.docTempDir, this.connectionPool), request, response);
+        getFile(configure(new WMCDocService(this.docTempDir, this.connectionPool)), request, response);
     }
 
     /*======================= KML =====================================================================*/
@@ -139,7 +172,7 @@ public class DocController {
      */
     @RequestMapping(value="/kml/", method=RequestMethod.POST)
     public void storeKMLFile(HttpServletRequest request, HttpServletResponse response) {   
-        storeFile(new KMLDocService(this.docTempDir, this.connectionPool), KML_URL, request, response);   
+        storeFile(configure(new KMLDocService(this.docTempDir, this.connectionPool)), KML_URL, request, response);   
     }
 
     /**
@@ -149,7 +182,7 @@ public class DocController {
      */
     @RequestMapping(value="/kml/*", method=RequestMethod.GET)
     public void getKMLFile(HttpServletRequest request, HttpServletResponse response) { 
-        getFile(new KMLDocService(this.docTempDir, this.connectionPool), request, response);
+        getFile(configure(new KMLDocService(this.docTempDir, this.connectionPool)), request, response);
     }
 
     /*======================= GML =====================================================================*/
@@ -160,7 +193,7 @@ public class DocController {
      */
     @RequestMapping(value="/gml/", method=RequestMethod.POST)
     public void storeGMLFile(HttpServletRequest request, HttpServletResponse response) {
-        storeFile(new GMLDocService(this.docTempDir, this.connectionPool), GML_URL, request, response);
+        storeFile(configure(new GMLDocService(this.docTempDir, this.connectionPool)), GML_URL, request, response);
     }
 
     /**
@@ -170,7 +203,7 @@ public class DocController {
      */
     @RequestMapping(value="/gml/*", method=RequestMethod.GET)
     public void getGMLFile(HttpServletRequest request, HttpServletResponse response) {
-        getFile(new GMLDocService(this.docTempDir, this.connectionPool), request, response);
+        getFile(configure(new GMLDocService(this.docTempDir, this.connectionPool)), request, response);
     }
 
     /*======================= JSON to CSV =====================================================================*/
@@ -181,7 +214,7 @@ public class DocController {
      */
     @RequestMapping(value="/csv/", method=RequestMethod.POST)
     public void storeCSVFile(HttpServletRequest request, HttpServletResponse response) {   
-        storeFile(new CSVDocService(this.docTempDir, this.connectionPool), CSV_URL, request, response);   
+        storeFile(configure(new CSVDocService(this.docTempDir, this.connectionPool)), CSV_URL, request, response);   
     }
     
     /**
@@ -191,7 +224,7 @@ public class DocController {
      */
     @RequestMapping(value="/csv/*", method=RequestMethod.GET)
     public void getCSVFile(HttpServletRequest request, HttpServletResponse response) { 
-        getFile(new CSVDocService(this.docTempDir, this.connectionPool), request, response);
+        getFile(configure(new CSVDocService(this.docTempDir, this.connectionPool)), request, response);
     }
     
     /*======================= SLD =====================================================================*/
@@ -217,7 +250,7 @@ public class DocController {
 
         if(request.getContentType().contains("application/vnd.ogc.sld+xml")) {
             // sld to store
-            storeFile(new SLDDocService(this.docTempDir, this.connectionPool), SLD_URL, request, response);   
+            storeFile(configure(new SLDDocService(this.docTempDir, this.connectionPool)), SLD_URL, request, response);   
         }
         else if(request.getContentType().contains("application/json") || request.getContentType().contains("text/json")) {
             // classification based on client request
@@ -235,7 +268,7 @@ public class DocController {
      */
     @RequestMapping(value="/sld/*", method=RequestMethod.GET)
     public void getSLDFile(HttpServletRequest request, HttpServletResponse response) { 
-        getFile(new SLDDocService(this.docTempDir, this.connectionPool), request, response);
+        getFile(configure(new SLDDocService(this.docTempDir, this.connectionPool)), request, response);
     }
     
     /*=======================Private Methods==========================================================================*/
@@ -247,10 +280,10 @@ public class DocController {
         try {
             // classification based on client request in json
             SLDClassifier c = new SLDClassifier(credentials, new ClassifierCommand(getBodyFromRequest(request)),
-            		factory);
+            		factory, classificationCache);
             
             // save SLD content under a file
-            SLDDocService service = new SLDDocService(this.docTempDir, this.connectionPool);
+            SLDDocService service = configure(new SLDDocService(this.docTempDir, this.connectionPool));
             String fileName = service.saveData(c.getSLD(), request.getHeader("sec-username"));
             
             PrintWriter out = response.getWriter(); 
@@ -277,7 +310,7 @@ public class DocController {
     private void storeFile(A_DocService docService, String docUrl, HttpServletRequest request, HttpServletResponse response) {  
         try {
             
-            String fileContent;
+            Reader fileContent;
             
             if(request instanceof MultipartHttpServletRequest)
             {
@@ -302,19 +335,25 @@ public class DocController {
                 }
 
                 // get file content
-                fileContent = new String(file.getBytes());
+                fileContent = new InputStreamReader(file.getInputStream(), DOC_ENCODING);
 
             }
             else {
                 // service has been called normally: RESTful style 
                 
-                // extract body from the client request, it should contain the file content
-                fileContent = getBodyFromRequest(request);
+                // the body of the client request should contain the file content
+                String encoding = request.getCharacterEncoding();
+                fileContent = new InputStreamReader(request.getInputStream(), encoding != null ? encoding : DOC_ENCODING);
             }
                
             // let the specific service handles the storage on the server
             // get back the file name under which it is saved
-            String fileName = docService.saveData(fileContent, request.getHeader("sec-username"));
+            String fileName;
+            try {
+                fileName = docService.saveData(fileContent, request.getHeader("sec-username"));
+            } finally {
+                fileContent.close();
+            }
 
             // send back to client the url path to retrieve this file later on
             response.setStatus(HttpServletResponse.SC_CREATED); // 201 created, new resource created
@@ -352,20 +391,12 @@ public class DocController {
             }
             
             // let the specific service retrieve the file stored on the server
-            docService.loadFile(fileName);
-            
-            // send back the file content
-            response.setStatus(HttpServletResponse.SC_OK); 
-            response.setContentType(docService.getMIMEType()); // MIME type of the file
-            response.setCharacterEncoding("utf-8");
-            response.setHeader("Content-Disposition", "attachment; filename=\"" + docService.getName() + "\"");
-            response.setHeader("Cache-Control", "public, max-age=31536000"); // 1 year
-            // see http://stackoverflow.com/questions/3339859/what-is-the-risk-of-having-http-header-cache-control-public
-            // there is a tradeoff between privacy and performance here ...
-            // Documents like CSV may contain sensitive information => private
-            // but we want it to be be fast => cached by proxies => public
-            PrintWriter out = response.getWriter();
-            out.println(docService.getContent());
+            Reader content = docService.openFile(fileName);
+            try {
+                sendFile(docService, content, response);
+            } finally {
+                content.close();
+            }
         } 
         catch (DocServiceException docExc) {
             sendErrorToClient(response, docExc.getErrorCode() , docExc.toString());
@@ -376,6 +407,42 @@ public class DocController {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Sends the file content as it is read
+     * @param docService the service which has opened the file
+     * @param content the file content
+     * @param response contains the file content
+     */
+    private void sendFile(A_DocService docService, Reader content, HttpServletResponse response) throws IOException {
+        // send back the file content
+        response.setStatus(HttpServletResponse.SC_OK); 
+        response.setContentType(docService.getMIMEType()); // MIME type of the file
+        response.setCharacterEncoding("utf-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + docService.getName() + "\"");
+        response.setHeader("Cache-Control", "public, max-age=31536000"); // 1 year
+        // see http://stackoverflow.com/questions/3339859/what-is-the-risk-of-having-http-header-cache-control-public
+        // there is a tradeoff between privacy and performance here ...
+        // Documents like CSV may contain sensitive information => private
+        // but we want it to be be fast => cached by proxies => public
+        PrintWriter out = response.getWriter();
+        char[] buf = new char[BUFFER_SIZE];
+        int len;
+        while ((len = content.read(buf)) > 0) {
+            out.write(buf, 0, len);
+        }
+        out.println();
+    }
+
+    /**
+     * Applies the storage settings to a document service
+     */
+    private <T extends A_DocService> T configure(T docService) {
+        docService.setIndentThreshold(this.indentThreshold);
+        docService.setCompressed(this.compressDocuments);
+        docService.setCache(this.docCache);
+        return docService;
+    }
     
     /**
      * Try to get the filename argument from the URI. Method will be simplified with Spring 3.0
@@ -1,26 +1,32 @@
 package org.georchestra.mapfishapp.ws;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.Enumeration;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
-import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.entity.InputStreamEntity;
+import org.georchestra.proxyengine.ProxyHttpEngine;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
@@ -43,6 +49,17 @@ import org.springframework.web.bind.annotation.RequestParam;
 @RequestMapping("/ogcproxy/*")
 public class OGCProxy {
 
+    private static final Log LOG = LogFactory.getLog(OGCProxy.class.getPackage().getName());
+
+    /**
+     * Number of bytes read at most to find the encoding of the responses without charset
+     */
+    private static final int CHARSET_LOOKUP_SIZE = 1024;
+
+    /**
+     * Connections to the remote hosts
+     */
+    private ProxyHttpEngine _engine = new ProxyHttpEngine();
 
     /**
      * List of allowed hosts.
@@ -69,54 +86,30 @@ public class OGCProxy {
                                     };
 
 
-    /**
-     * Method POST used for instrumentation (tests) convenience
-     * @param request
-     * @param response
-     * @param sURL
-     * @param htc
-     */
-    public void handlePOSTRequest(HttpServletRequest request, HttpServletResponse response, String sURL, HttpURLConnection htc) {
-        handleRequest(request, response, sURL, htc);
-    }
-
-    /**
-     * Method Get used for instrumentation (tests) convenience
-     * @param request
-     * @param response
-     * @param sURL
-     * @param htc
-     */
-    public void handleGETRequest(HttpServletRequest request, HttpServletResponse response, String sURL, HttpURLConnection htc) {
-        handleRequest(request, response, sURL, htc);
-    }
-
     /**
      * Proxy entry point. Accessible via GET.
      * @param request. Must contains a "url" parameter pointing to the remote host
      * @param response. Contains in its content response from remote host
      * @param sURL. Automatically filled by the Spring url mapping
-     * @param HttpConnection. To use a specific HttpConnection, can be null
      */
     @RequestMapping(method=RequestMethod.GET)
 	public void handleGETRequest(HttpServletRequest _request, HttpServletResponse _response, @RequestParam("url") String sURL) {
-		handleGETRequest(_request, _response, sURL, null);
+		handleRequest(_request, _response, sURL);
 	}
     /**
      * Proxy entry point. Accessible via POST.
      * @param request. Must contains a "url" parameter pointing to the remote host
      * @param response. Contains in its content response from remote host
      * @param sURL. Automatically filled by the Spring url mapping
-     * @param HttpConnection. To use a specific HttpConnection, can be null
      */
     @RequestMapping(method=RequestMethod.POST)
 	public void handlePOSTRequest(HttpServletRequest _request, HttpServletResponse _response, @RequestParam("url") String sURL) {
-		handlePOSTRequest(_request, _response, sURL, null);
+		handleRequest(_request, _response, sURL);
 	}
     /**
      *
      */
-    private void handleRequest(HttpServletRequest request, HttpServletResponse response, String sURL, HttpURLConnection htc) {
+    private void handleRequest(HttpServletRequest request, HttpServletResponse response, String sURL) {
         try {
 
             URL url = null;
@@ -145,65 +138,91 @@ public class OGCProxy {
                 }
             }
 
-            String requestMethod = request.getMethod();
+            URI uri = null;
+            try {
+                uri = ProxyHttpEngine.toURI(url);
+            }
+            catch (URISyntaxException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
 
-            // open communication between proxy and final host
-            // all actions before the connection can be taken now
-           	HttpURLConnection connectionWithFinalHost ;
+            proxyRequest(request, response, uri);
+        }
+        catch (ConnectionPoolTimeoutException e) {
+            // every connection to the host is in use
+            LOG.warn("No connection available to forward the request to " + sURL, e);
+            sendError(response, HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "The remote host is busy, please retry later");
+        }
+        catch (IOException e) {
+            // connection problem with the host
+            LOG.error("Cannot forward the request to " + sURL, e);
+            sendError(response, HttpServletResponse.SC_BAD_GATEWAY, "The remote host cannot be reached");
+        }
+    }
 
-            if (htc == null) {
-            	connectionWithFinalHost = (HttpURLConnection) url.openConnection();
-            } else {
-            	connectionWithFinalHost = htc;
-        	}
-            // set request method
-            connectionWithFinalHost.setRequestMethod(requestMethod);
+    /**
+     * Sends an error to the client, unless a part of the response has already been sent
+     */
+    private void sendError(HttpServletResponse response, int status, String message) {
+        if (response.isCommitted()) {
+            return;
+        }
+        try {
+            response.sendError(status, message);
+        } catch (IOException e) {
+            LOG.debug("The error cannot be sent to the client", e);
+        }
+    }
 
-            // set doOutput to true if we are POSTing
-            if (requestMethod.equalsIgnoreCase("POST")) {
-                connectionWithFinalHost.setDoOutput(true);
-            }
+    /**
+     * Forwards the request to the remote host and its response to the client
+     */
+    private void proxyRequest(HttpServletRequest request, HttpServletResponse response, URI uri) throws IOException {
+
+        HttpRequestBase requestToFinalHost;
+        if (request.getMethod().equalsIgnoreCase("POST")) {
+            // the body is streamed to the remote host
+            HttpPost post = new HttpPost(uri);
+            post.setEntity(new InputStreamEntity(request.getInputStream(), request.getContentLength()));
+            requestToFinalHost = post;
+        } else {
+            requestToFinalHost = new HttpGet(uri);
+        }
 
-            // copy headers from client's request to request that will be send to the final host
-            copyHeadersToConnection(request, connectionWithFinalHost);
-            connectionWithFinalHost.setRequestProperty("Accept-Encoding", "");
-
-            // connect to remote host
-            // interactions with the resource are enabled now
-            connectionWithFinalHost.connect();
-
-            if (requestMethod.equalsIgnoreCase("POST")) {
-                ServletInputStream in = request.getInputStream();
-                OutputStream out = connectionWithFinalHost.getOutputStream();
-                byte[] buf = new byte[1024]; // read maximum 1024 bytes
-                int len;                     // number of bytes read from the stream
-                while ((len = in.read(buf)) > 0) {
-                    out.write(buf, 0, len);
-                }
-            }
+        // copy headers from client's request to request that will be send to the final host
+        copyHeadersToRequest(request, requestToFinalHost);
+
+        // waits until a connection to the remote host is available
+        CloseableHttpResponse responseFromFinalHost = _engine.execute(requestToFinalHost);
+        try {
+            int statusCode = responseFromFinalHost.getStatusLine().getStatusCode();
+            HttpEntity entity = responseFromFinalHost.getEntity();
 
             // get content type
-            String contentType = connectionWithFinalHost.getContentType();
-            if (contentType == null) {
+            Header contentTypeHeader = responseFromFinalHost.getFirstHeader("Content-Type");
+            if (entity == null || contentTypeHeader == null) {
                 response.sendError(HttpServletResponse.SC_FORBIDDEN,
                         "Host url has been validated by proxy but content type given by remote host is null");
                 return;
             }
+            String contentType = contentTypeHeader.getValue();
+
+            // content type has to be valid
+            if (!isContentTypeValid(contentType)) {
+                if (statusCode == HttpServletResponse.SC_NOT_FOUND) {
+                    // content type was not valid because page was not found (text/html)
+                    response.sendError(HttpServletResponse.SC_NOT_FOUND, "Remote host answered with 404 not found");
+                    return;
+                }
 
-			// content type has to be valid
-			if (!isContentTypeValid(contentType)) {
-				if (connectionWithFinalHost.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
-					// content type was not valid because page was not found (text/html)
-					response.sendError(HttpServletResponse.SC_NOT_FOUND, "Remote host answered with 404 not found");
-					return;
-				}
-
-				response.sendError(HttpServletResponse.SC_FORBIDDEN,
-						"The content type of the remote host's response \""
-								+ contentType
-								+ "\" is not allowed by the proxy rules");
-				return;
-			}
+                response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                        "The content type of the remote host's response \""
+                                + contentType
+                                + "\" is not allowed by the proxy rules");
+                return;
+            }
 
             // send remote host's response to client
 
@@ -225,92 +244,55 @@ public class OGCProxy {
              *     Once the charset is found, the content-type header is overridden and the
              *     charset is appended.
              *
-             *     /!\ Special case: whenever data are compressed in gzip/deflate the stream has to
-             *     be uncompressed and compressed
+             *     /!\ Special case: whenever data are compressed in gzip/deflate the beginning
+             *     of the stream is decompressed to find the charset, the compressed stream itself
+             *     is forwarded unchanged, with its Content-Length
              */
 
-            boolean isCharsetKnown = connectionWithFinalHost.getContentType().toLowerCase().contains("charset");
-            String contentEncoding = getContentEncoding(connectionWithFinalHost.getHeaderFields());
-
-            // copy headers from the remote server's response to the response to send to the client
-            if (isCharsetKnown) {
-                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost);
-            } else {
-                // copy everything except Content-Type header
-                // because we need to concatenate the charset later
-                copyHeadersFromConnectionToResponse(response, connectionWithFinalHost, new String[] {"Content-Type"});
-            }
-
-            InputStream streamFromServer = null;
-            OutputStream streamToClient = null;
-            if(contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = connectionWithFinalHost.getInputStream();
-                streamToClient = response.getOutputStream();
-            }
-            else if ("gzip".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream content
-                streamFromServer = new GZIPInputStream(connectionWithFinalHost.getInputStream());
-                streamToClient = new GZIPOutputStream(response.getOutputStream());
-            }
-            else if("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(connectionWithFinalHost.getInputStream());
-                streamToClient = new DeflaterOutputStream(response.getOutputStream());
-            } else {
-                throw new UnsupportedOperationException("Please handle the stream when it is encoded in " + contentEncoding);
+            boolean isCharsetKnown = contentType.toLowerCase().contains("charset");
+            String contentEncoding = getContentEncoding(responseFromFinalHost);
+
+            InputStream streamFromServer = entity.getContent();
+            // beginning of the file as sent by the remote host, should contain the encoding
+            ByteArrayOutputStream head = new ByteArrayOutputStream();
+            if (!isCharsetKnown) {
+                // charset is unknown try to find it in the file content
+                byte[] decodedHead = _engine.readHead(streamFromServer, contentEncoding, CHARSET_LOOKUP_SIZE, head);
+
+                // get the beginning of the file as ASCII and extract charset
+                String charset = getCharset(new String(decodedHead, "ISO-8859-1"));
+
+                if (charset == null) {
+                    // the charset cannot be found, IE users must be warned
+                    // that the request cannot be fulfilled, nothing good would happen otherwise
+                    String userAgent = request.getHeader("User-Agent");
+                    if (userAgent != null && userAgent.toLowerCase().contains("msie")) {
+                        response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
+                            "Charset of the response is unknown");
+                        return;
+                    }
+                } else {
+                    // override content-type header and add the charset found
+                    contentType = contentType + ";charset=" + charset;
+                }
             }
 
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len;                     // number of bytes read from the stream
-            boolean first = true;        // helps to find the encoding once and only once
-            String s = "";               // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-
-                if (first && !isCharsetKnown) {
-                    // charset is unknown try to find it in the file content
-                    for(int i=0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as ASCII
-                    }
+            response.setStatus(statusCode);
 
-                    // s has to be long enough to contain the encoding
-                    if(s.length() > 200) {
-                        String charset = getCharset(s); // extract charset
-
-                        if (charset == null) {
-                            // the charset cannot be found, IE users must be warned
-                            // that the request cannot be fulfilled, nothing good would happen otherwise
-                            if(request.getHeader("User-Agent").toLowerCase().contains("msie")) {
-                                response.sendError(HttpServletResponse.SC_NOT_ACCEPTABLE,
-                                    "Charset of the response is unknown");
-                                streamFromServer.close();
-                                connectionWithFinalHost.disconnect();
-                                streamToClient.close();
-                                return;
-                            }
-                        } else {
-                            // override content-type header and add the charset found
-                            response.addHeader("Content-Type",
-                                    connectionWithFinalHost.getContentType()
-                                    + ";charset=" + charset);
-                            first = false; // we found the encoding, don't try to do it again
-                        }
-                    }
-                }
+            // copy headers from the remote server's response to the response to send to the client,
+            // except Content-Type header because the charset may have been concatenated
+            copyHeadersFromResponse(response, responseFromFinalHost, new String[] {"Content-Type"});
+            response.addHeader("Content-Type", contentType);
 
-                // for everyone, the stream is just forwarded to the client
-                streamToClient.write(buf, 0, len);
-            }
+            // for everyone, the stream is just forwarded to the client
+            OutputStream streamToClient = response.getOutputStream();
+            head.writeTo(streamToClient);
+            _engine.copy(streamFromServer, streamToClient);
 
-            streamFromServer.close();
-            connectionWithFinalHost.disconnect();
             streamToClient.close();
-        }
-        catch (IOException e) {
-            // connection problem with the host
-            e.printStackTrace();
+        } finally {
+            // the connection goes back to the pool when the response is entirely read
+            _engine.release(responseFromFinalHost);
         }
     }
 
@@ -342,56 +324,35 @@ public class OGCProxy {
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
-     * @param headerFields headers of the HttpURLConnection
+     * @param responseFromFinalHost response of the remote host
      * @return null if not exists otherwise name of the encoding (gzip, deflate...)
      */
-    private String getContentEncoding(Map<String, List<String>> headerFields) {
-        for (Iterator<String> i = headerFields.keySet().iterator() ; i.hasNext() ; ) {
-            String headerName = i.next();
-            if(headerName != null) {
-                if("Content-Encoding".equalsIgnoreCase(headerName)) {
-                    List<String> valuesList = headerFields.get(headerName);
-                    StringBuilder sBuilder = new StringBuilder();
-                    for(String value : valuesList) {
-                        sBuilder.append(value);
-                    }
-
-                    return sBuilder.toString().toLowerCase();
-                }
-            }
+    private String getContentEncoding(HttpResponse responseFromFinalHost) {
+        Header header = responseFromFinalHost.getFirstHeader("Content-Encoding");
+        if (header == null) {
+            return null;
         }
-        return null;
+        return header.getValue().toLowerCase();
     }
 
     /**
-     * Copy headers from the connection to the response
+     * Copy headers from the response of the remote host to the response
      * @param response to copy headers in
-     * @param uc contains headers to copy
+     * @param responseFromFinalHost contains headers to copy
      * @param ignoreList list of headers that mustn't be copied
      */
-    private void copyHeadersFromConnectionToResponse(HttpServletResponse response, HttpURLConnection uc, String... ignoreList) {
-        Map<String, List<String>> map =  uc.getHeaderFields();
-        for (Iterator<String> i = map.keySet().iterator() ; i.hasNext() ; ) {
+    private void copyHeadersFromResponse(HttpServletResponse response, HttpResponse responseFromFinalHost, String... ignoreList) {
+        for (Header header : responseFromFinalHost.getAllHeaders()) {
 
-            String headerName = i.next();
+            String headerName = header.getName();
 
             if(! isInIgnoreList(headerName, ignoreList)) {
-
-                // concatenate all values from the header
-                List<String> valuesList = map.get(headerName);
-                StringBuilder sBuilder = new StringBuilder();
-                for(String value : valuesList) {
-                    sBuilder.append(value);
+                if("Transfer-Encoding".equalsIgnoreCase(headerName) && "chunked".equalsIgnoreCase(header.getValue())) {
+                    // do not write this header because Tomcat already assembled the chunks itself
+                    continue;
                 }
-
                 // add header to HttpServletResponse object
-                if (headerName != null) {
-                    if("Transfer-Encoding".equalsIgnoreCase(headerName) && "chunked".equalsIgnoreCase(sBuilder.toString())) {
-                        // do not write this header because Tomcat already assembled the chunks itself
-                        continue;
-                    }
-                    response.addHeader(headerName, sBuilder.toString());
-                }
+                response.addHeader(headerName, header.getValue());
             }
         }
     }
@@ -416,18 +377,29 @@ public class OGCProxy {
      * Copy client's headers in the request to send to the final host
      * Trick the host by hiding the proxy indirection and keep useful headers information
      * @param request
-     * @param uc. Contains now headers from client request except Host
+     * @param requestToFinalHost. Contains now headers from client request except Host and the length of the body,
+     * the Accept-Encoding header keeps the encodings the proxy can decode
      */
-    protected void copyHeadersToConnection(HttpServletRequest request, HttpURLConnection uc) {
+    protected void copyHeadersToRequest(HttpServletRequest request, HttpRequestBase requestToFinalHost) {
 
         for (Enumeration enumHeader=request.getHeaderNames(); enumHeader.hasMoreElements();) {
             String headerName = (String)enumHeader.nextElement();
             String headerValue = request.getHeader(headerName);
 
-            // copy every header except host
-            if (!"host".equalsIgnoreCase(headerName)) {
-                uc.setRequestProperty(headerName, headerValue);
+            // copy every header except host and the ones of the connection with the proxy,
+            // the length of the body is given by the entity
+            if ("host".equalsIgnoreCase(headerName) || "connection".equalsIgnoreCase(headerName)
+                    || "content-length".equalsIgnoreCase(headerName)
+                    || "transfer-encoding".equalsIgnoreCase(headerName)) {
+                continue;
+            }
+            if ("accept-encoding".equalsIgnoreCase(headerName)) {
+                headerValue = ProxyHttpEngine.acceptedEncodings(headerValue);
+                if (headerValue == null) {
+                    continue;
+                }
             }
+            requestToFinalHost.setHeader(headerName, headerValue);
         }
     }
 
@@ -477,6 +449,14 @@ public class OGCProxy {
     	_allowedHosts = hosts;
     }
 
+    public ProxyHttpEngine getEngine() {
+        return _engine;
+    }
+
+    public void setEngine(ProxyHttpEngine engine) {
+        _engine = engine;
+    }
+
     public void setValidContentTypes(String[] vct) {
     	if (vct == null) {
     		String[] emptyString = {};
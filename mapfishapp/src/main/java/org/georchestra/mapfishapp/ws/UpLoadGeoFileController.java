@@ -6,7 +6,6 @@ package org.georchestra.mapfishapp.ws;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.net.URL;
@@ -204,6 +203,9 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
     private long gmlSizeLimit;
     private long osmSizeLimit;
 
+    private int decimals = UpLoadFileManagement.DEFAULT_DECIMALS;
+    private double simplificationTolerance = 0;
+
     /**
      * The current file that was upload an is in processing
      *
@@ -242,6 +244,22 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
         this.osmSizeLimit = osmSizeLimit;
     }
 
+    /**
+     * @param decimals number of decimals written for each coordinate
+     */
+    public void setDecimals(int decimals) {
+        this.decimals = decimals;
+    }
+
+    /**
+     * @param simplificationTolerance if greater than 0 the geometries are
+     *            simplified with this distance tolerance (in the units of the
+     *            response's crs)
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
     /**
      * Returns the set of file formats which this service can manage.
      *
@@ -499,6 +517,11 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
      *
      * "{\"success\": \"true\", \"geojson\":" + jsonFeatures+"}"
      * </p>
+     * <p>
+     * The features are written in the response while they are read, thus they
+     * are not maintained in memory. An error found once the response was
+     * committed cannot be reported.
+     * </p>
      *
      * @param response
      * @param fileManagement
@@ -510,8 +533,6 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
             final UpLoadFileManagement fileManagement,
             final CoordinateReferenceSystem crs) throws Exception {
 
-        StringWriter json_out = new StringWriter();
-
         response.setCharacterEncoding(responseCharset);
         response.setContentType("text/html");
         response.setStatus(HttpServletResponse.SC_OK);
@@ -519,12 +540,11 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
         PrintWriter out = response.getWriter();
         try {
 
-            fileManagement.writeFeatureCollectionAsJSON(json_out, crs);
-
             // builds the following response:
             // "{\"success\": \"true\", \"geojson\":" + jsonFeatures+"}");
             out.print("{\"success\": \"true\", \"geojson\":");
-            out.print(json_out.toString());
+            fileManagement.writeFeatureCollectionAsJSON(out, crs,
+                    this.decimals, this.simplificationTolerance);
             out.println("}");
 
             out.flush();
@@ -563,6 +583,12 @@ public final class UpLoadGeoFileController implements HandlerExceptionResolver {
     private void writeErrorResponse(HttpServletResponse response,
             final Status st, final String errorDetail,
             final int responseStatusError) {
+        if (response.isCommitted()) {
+            // part of the features were sent, the status cannot be changed
+            LOG.error("the response was committed, cannot report: " + st
+                    + " " + errorDetail);
+            return;
+        }
         response.reset();
         PrintWriter out = null;
         try {
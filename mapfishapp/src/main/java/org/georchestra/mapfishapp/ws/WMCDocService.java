@@ -33,6 +33,14 @@ public class WMCDocService extends A_DocService {
 
     /*=================================Overridden methods===============================================*/
 
+    /**
+     * Not streamable: the file name is read in the loaded content
+     */
+    @Override
+    protected boolean isStreamable() {
+        return false;
+    }
+
     /**
      * Called before saving the content
      * @throws DocServiceException
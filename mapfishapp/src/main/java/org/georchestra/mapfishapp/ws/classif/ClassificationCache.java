@@ -0,0 +1,85 @@
+package org.georchestra.mapfishapp.ws.classif;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the recent classifications of continuous values, by WFS url, feature type, property, method and
+ * number of classes, so that the values are not downloaded again each time a user changes the colors or the
+ * sizes. <br />
+ * The classifications expire after <code>timeToLive</code> seconds since the remote data may change, the least
+ * recently used ones are evicted beyond <code>maxEntries</code>.
+ */
+public class ClassificationCache {
+
+    private int _maxEntries = 100;
+    private int _timeToLive = 600;
+
+    private final Map<String, Cached> _entries = new LinkedHashMap<String, Cached>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Cached> eldest) {
+            return size() > _maxEntries;
+        }
+    };
+
+    /**
+     * @param maxEntries maximum number of classifications kept
+     */
+    public void setMaxEntries(int maxEntries) {
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * @param timeToLive time a classification is kept, in seconds
+     */
+    public void setTimeToLive(int timeToLive) {
+        _timeToLive = timeToLive;
+    }
+
+    /**
+     * Gets the classification of the values requested by the command
+     * @return the classification, null if it is not in the cache or expired
+     */
+    public synchronized ContinuousClassification get(final ClassifierCommand command) {
+        String key = key(command);
+        Cached cached = _entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.created > _timeToLive * 1000L) {
+            _entries.remove(key);
+            return null;
+        }
+        return cached.classification;
+    }
+
+    /**
+     * Stores the classification of the values requested by the command
+     */
+    public synchronized void put(final ClassifierCommand command, final ContinuousClassification classification) {
+        _entries.put(key(command), new Cached(classification));
+    }
+
+    /**
+     * @return number of classifications in the cache, expired ones included
+     */
+    public synchronized int size() {
+        return _entries.size();
+    }
+
+    private static String key(final ClassifierCommand command) {
+        return command.getWFSUrl() + "|" + command.getFeatureTypeName() + "|" + command.getPropertyName() + "|"
+                + command.getClassifMethod() + "|" + command.getClassCount();
+    }
+
+    private static final class Cached {
+        private final ContinuousClassification classification;
+        private final long created = System.currentTimeMillis();
+
+        private Cached(ContinuousClassification classification) {
+            this.classification = classification;
+        }
+    }
+}
@@ -34,18 +34,24 @@ public class ClassifierCommand {
     private static final String JSON_MAXSIZE            = "max_size";
     private static final String JSON_CLASSCOUNT         = "class_count";
     private static final String JSON_PALETTEID          = "palette";
+    private static final String JSON_METHOD             = "method";
     
     /**
      * Type of classification
      */
     public enum E_ClassifType {CHOROPLETHS, PROP_SYMBOLS, UNIQUE_VALUES};
     public enum E_SymbolType {POINT, LINE, POLYGON};
+    /**
+     * Method used to classify continuous values
+     */
+    public enum E_ClassifMethod {QUANTILE, EQUAL_INTERVAL, NATURAL_BREAKS};
     
     private URL _wfsUrl;
     private String _featureTypeName;
     private String _propertyName;
     private E_ClassifType _classifType;
     private E_SymbolType _symbolType;
+    private E_ClassifMethod _classifMethod = E_ClassifMethod.QUANTILE;
     
     private Color _firstColor;
     private Color _lastColor;
@@ -112,6 +118,7 @@ public class ClassifierCommand {
                 if(_classCount <= 0) {
                     throw new DocServiceException("Number of classes cannot negative", HttpServletResponse.SC_BAD_REQUEST);
                 }
+                setClassifMethod(jsonRequest.optString(JSON_METHOD, null));
             }
             else if (_classifType == E_ClassifType.PROP_SYMBOLS) {
                 _minSize = jsonRequest.getInt(JSON_MINSIZE);
@@ -127,6 +134,7 @@ public class ClassifierCommand {
                 if(_maxSize <= _minSize) {
                     throw new DocServiceException("Maximum size cannot be greater or equal than minimum size", HttpServletResponse.SC_BAD_REQUEST);
                 }
+                setClassifMethod(jsonRequest.optString(JSON_METHOD, null));
             }
             else if (_classifType == E_ClassifType.UNIQUE_VALUES) {
                 _paletteID = jsonRequest.getInt(JSON_PALETTEID);
@@ -178,6 +186,24 @@ public class ClassifierCommand {
         }
     }
 
+    /**
+     * Determine if the classification method requested by the user is known. Quantile is used when no method is given.
+     * @param method method requested by the customer, may be null
+     * @throws DocServiceException 
+     */
+    private void setClassifMethod(final String method) throws DocServiceException {
+        if (method == null) {
+            return;
+        }
+        for (E_ClassifMethod e_method : E_ClassifMethod.values()) {
+            if(e_method.toString().toLowerCase().equals(method.toLowerCase())) {
+                _classifMethod = e_method;
+                return;
+            }
+        }
+        throw new DocServiceException("Unknown classification method:" + method, HttpServletResponse.SC_BAD_REQUEST);
+    }
+
     /**
      * Get the URL of the WFS
      * @return URL
@@ -274,6 +300,18 @@ public class ClassifierCommand {
         return _classCount;
     }
 
+    /**
+     * Get the method used to classify continuous values. Should only be used when Command was filled with anything
+     * but UNIQUE_VALUES type.
+     * @return E_ClassifMethod, QUANTILE by default
+     */
+    public E_ClassifMethod getClassifMethod() {
+        if(_classifType == E_ClassifType.UNIQUE_VALUES) {
+            throw new RuntimeException("No method is necessary to classify in UNIQUE_VALUES mode");
+        }
+        return _classifMethod;
+    }
+
     /**
      * Get the palette id. Should only be used when Command was filled with PROP_SYMBOLS type. <br />
      * This id corresponds to a specific palette known on server side.
@@ -0,0 +1,232 @@
+package org.georchestra.mapfishapp.ws.classif;
+
+import java.util.Arrays;
+
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
+
+/**
+ * Classifies continuous values into intervals. Works on a primitive array, so that millions of values can be
+ * classified. <br />
+ * Supported methods: <br />
+ * - QUANTILE: each class has the same number of values, values that are the same belong to the same class <br />
+ * - EQUAL_INTERVAL: each class has the same width <br />
+ * - NATURAL_BREAKS: Jenks optimization, the sum of the squared deviations from the class means is minimal. Above
+ * {@link #MAX_BINS} distinct values, the breaks are searched between bins of consecutive values. <br />
+ * Instances are immutable, they can be shared (see {@link ClassificationCache}).
+ */
+public class ContinuousClassification {
+
+    /**
+     * Maximum number of bins of consecutive values among which the natural breaks are searched
+     */
+    public static final int MAX_BINS = 1000;
+
+    private double[] _lefts;
+    private double[] _rights;
+    private int _count = 0;
+
+    /**
+     * Classifies the values. For n classes, there are at most n intervals.
+     * @param values values to classify, the array is sorted
+     * @param classCount number of classes
+     * @param method classification method
+     */
+    public ContinuousClassification(final double[] values, final int classCount, final E_ClassifMethod method) {
+        if(values == null) {
+            throw new IllegalArgumentException("values cannot be null");
+        }
+        if(values.length == 0) {
+            throw new IllegalArgumentException("values cannot be empty");
+        }
+        if(classCount <= 0) {
+            throw new IllegalArgumentException("classCount must be positive");
+        }
+
+        _lefts = new double[classCount];
+        _rights = new double[classCount];
+
+        Arrays.sort(values);
+        switch (method) {
+            case QUANTILE:
+                doQuantile(values, classCount);
+                break;
+            case EQUAL_INTERVAL:
+                doEqualInterval(values, classCount);
+                break;
+            case NATURAL_BREAKS:
+                doNaturalBreaks(values, classCount);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown classification method: " + method);
+        }
+    }
+
+    /**
+     * @return number of intervals
+     */
+    public int getIntervalCount() {
+        return _count;
+    }
+
+    /**
+     * @return lower boundary of the interval (inclusive)
+     */
+    public double getLeft(int index) {
+        if(index >= _count) {
+            throw new IndexOutOfBoundsException(index + " >= " + _count);
+        }
+        return _lefts[index];
+    }
+
+    /**
+     * @return upper boundary of the interval (inclusive, unless it is the lower boundary of the next one)
+     */
+    public double getRight(int index) {
+        if(index >= _count) {
+            throw new IndexOutOfBoundsException(index + " >= " + _count);
+        }
+        return _rights[index];
+    }
+
+    private void addInterval(double left, double right) {
+        _lefts[_count] = left;
+        _rights[_count] = right;
+        _count++;
+    }
+
+    /**
+     * Quantile classification on sorted values. <br />
+     * Values that are the same MUST belong to the same class
+     */
+    private void doQuantile(final double[] values, final int classCount) {
+        // get number of values that a class should have in average
+        double dIntervalSize = (double) values.length / classCount;
+        int intervalSize = (int) Math.ceil(dIntervalSize); // ceil value to be sure to include all the values
+
+        int currentIndex = 0;
+        while(currentIndex < values.length) {
+            int rightIndex = nextBoundary(values, currentIndex, intervalSize);
+            addInterval(values[currentIndex], values[rightIndex]);
+            currentIndex = rightIndex + 1;
+        }
+    }
+
+    /**
+     * Equal interval classification on sorted values. Every class is kept, even the empty ones, so that
+     * the legend is regular.
+     */
+    private void doEqualInterval(final double[] values, final int classCount) {
+        double min = values[0];
+        double max = values[values.length - 1];
+        if(min == max) {
+            addInterval(min, max);
+            return;
+        }
+        double width = (max - min) / classCount;
+        for(int i = 0; i < classCount; i++) {
+            double right = (i == classCount - 1) ? max : min + (i + 1) * width;
+            addInterval(min + i * width, right);
+        }
+    }
+
+    /**
+     * Jenks natural breaks on sorted values. The values are first gathered in bins (one per distinct value
+     * when there are few), then the partition of the bins minimizing the sum of squared deviations is found
+     * by dynamic programming, in O(classCount * bins^2).
+     */
+    private void doNaturalBreaks(final double[] values, final int classCount) {
+        // values are centered to keep the sums of squares accurate
+        double shift = (values[0] + values[values.length - 1]) / 2;
+
+        // gather the values in bins, cumulative counts, sums and sums of squares
+        int binSize = (int) Math.ceil((double) values.length / MAX_BINS);
+        double[] mins = new double[MAX_BINS];
+        double[] maxs = new double[MAX_BINS];
+        double[] counts = new double[MAX_BINS + 1];
+        double[] sums = new double[MAX_BINS + 1];
+        double[] squares = new double[MAX_BINS + 1];
+        int binCount = 0;
+        int currentIndex = 0;
+        while(currentIndex < values.length) {
+            int rightIndex = nextBoundary(values, currentIndex, binSize);
+            double sum = 0;
+            double square = 0;
+            for(int i = currentIndex; i <= rightIndex; i++) {
+                double v = values[i] - shift;
+                sum += v;
+                square += v * v;
+            }
+            mins[binCount] = values[currentIndex];
+            maxs[binCount] = values[rightIndex];
+            counts[binCount + 1] = counts[binCount] + (rightIndex - currentIndex + 1);
+            sums[binCount + 1] = sums[binCount] + sum;
+            squares[binCount + 1] = squares[binCount] + square;
+            binCount++;
+            currentIndex = rightIndex + 1;
+        }
+
+        int k = Math.min(classCount, binCount);
+
+        // cost[c][j]: minimal deviation of bins 0..j in c+1 classes, start[c][j]: first bin of the last class
+        double[][] cost = new double[k][binCount];
+        int[][] start = new int[k][binCount];
+        for(int j = 0; j < binCount; j++) {
+            cost[0][j] = deviation(counts, sums, squares, 0, j);
+        }
+        for(int c = 1; c < k; c++) {
+            for(int j = c; j < binCount; j++) {
+                double best = Double.MAX_VALUE;
+                int bestStart = c;
+                for(int i = c; i <= j; i++) {
+                    double d = cost[c - 1][i - 1] + deviation(counts, sums, squares, i, j);
+                    if(d < best) {
+                        best = d;
+                        bestStart = i;
+                    }
+                }
+                cost[c][j] = best;
+                start[c][j] = bestStart;
+            }
+        }
+
+        // walk back from the last bin
+        int[] firstBins = new int[k];
+        int j = binCount - 1;
+        for(int c = k - 1; c >= 0; c--) {
+            firstBins[c] = start[c][j];
+            j = firstBins[c] - 1;
+        }
+        for(int c = 0; c < k; c++) {
+            int lastBin = (c == k - 1) ? binCount - 1 : firstBins[c + 1] - 1;
+            addInterval(mins[firstBins[c]], maxs[lastBin]);
+        }
+    }
+
+    /**
+     * Sum of the squared deviations from the mean of the bins first..last
+     */
+    private static double deviation(double[] counts, double[] sums, double[] squares, int first, int last) {
+        double n = counts[last + 1] - counts[first];
+        double sum = sums[last + 1] - sums[first];
+        double d = squares[last + 1] - squares[first] - sum * sum / n;
+        return (d < 0) ? 0 : d;
+    }
+
+    /**
+     * Gets the index of the last value of a class starting at currentIndex, which should contain size values
+     * and all the values equal to its last one.
+     */
+    private static int nextBoundary(final double[] values, final int currentIndex, final int size) {
+        if(currentIndex + size >= values.length) {
+            // less values than space available in a class
+            // let's add the rest
+            return values.length - 1;
+        }
+        int rightIndex = currentIndex + size - 1;
+        // add any further value that is equal to the last value
+        while((rightIndex + 1 < values.length) && (values[rightIndex] == values[rightIndex + 1])) {
+            rightIndex++;
+        }
+        return rightIndex;
+    }
+}
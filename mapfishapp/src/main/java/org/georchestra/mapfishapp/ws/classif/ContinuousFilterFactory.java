@@ -2,15 +2,18 @@ package org.georchestra.mapfishapp.ws.classif;
 
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
 import org.geotools.factory.CommonFactoryFinder;
 import org.opengis.filter.FilterFactory2;
 
 /**
  * Provides Filter objects from continuous values. These SLD filters corresponds to the PropertyIsBetween tags 
- * from the SLD specifications. It can be therefore added to any Rule. 
+ * from the SLD specifications. It can be therefore added to any Rule. <br />
+ * When an interval ends where the next one starts (equal intervals), its upper boundary is excluded so
+ * that a value on the boundary matches a single Rule.
  * @author yoann.buch@gmail.com
  *
  */
@@ -52,33 +55,41 @@ public class ContinuousFilterFactory implements I_FilterFactory {
      */
     public class InternalIterator implements Iterator<Filter> {
 
-        private Iterator<Interval> _it;
-        
-        public InternalIterator() {
-            _it = _intervals.iterator();
-        }
+        private int _index = 0;
         
         /**
          * Does it have any Filter left?
          */
         public boolean hasNext() {
-            return _it.hasNext();
+            return _index < _intervals.size();
         }
 
         /**
          * Gets next Filter object
          */
         public Filter next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
             // Considered by SLD specification as inclusive intervals
-            Interval interval = _it.next();
+            Interval interval = _intervals.get(_index++);
             double lowerBoundary = interval.getLeft();
             double upperBoundary = interval.getRight();
+            boolean sharedBoundary = hasNext() && _intervals.get(_index).getLeft() == upperBoundary;
             
             FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2(null);
-            org.opengis.filter.Filter _filter = filterFactory.between(
-                filterFactory.property(_propertyName), 
-                filterFactory.literal(lowerBoundary),
-                filterFactory.literal(upperBoundary));
+            org.opengis.filter.Filter _filter;
+            if(sharedBoundary) {
+                // the boundary belongs to the next interval
+                _filter = filterFactory.and(
+                    filterFactory.greaterOrEqual(filterFactory.property(_propertyName), filterFactory.literal(lowerBoundary)),
+                    filterFactory.less(filterFactory.property(_propertyName), filterFactory.literal(upperBoundary)));
+            } else {
+                _filter = filterFactory.between(
+                    filterFactory.property(_propertyName), 
+                    filterFactory.literal(lowerBoundary),
+                    filterFactory.literal(upperBoundary));
+            }
             Filter filter = new Filter(_filter, "entre " + lowerBoundary + " et " + upperBoundary);
             return filter;
         }
@@ -109,56 +120,35 @@ public class ContinuousFilterFactory implements I_FilterFactory {
             throw new IllegalArgumentException("values cannot be empty");
         }
         
-        _propertyName = propertyName;
+        double[] array = new double[values.size()];
+        for(int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
         
         // classify
-        doQuantile(values, classCount);
+        init(new ContinuousClassification(array, classCount, E_ClassifMethod.QUANTILE), propertyName);
     }
     
     /**
-     * Execute Quantile classification on the values. Store computed intervals for further use. <br />
-     * Values that are the same MUST belong to the same class
-     * @param values values to classify
-     * @param classCount number of classes
+     * Uses the intervals of a classification already done to generate Filter objects
+     * @param classification classification of the values
+     * @param propertyName property name corresponding to the WFS request
      */
-    private void doQuantile(ArrayList<Double> values, int classCount) {
-        //sort values
-        Collections.sort(values);
-        
-        // get number of values that a class should have in average
-        double dIntervalSize = (double) values.size() / classCount;
-        int intervalSize = (int) Math.ceil(dIntervalSize); // ceil value to be sure to include all the values
-        
-        // assign values to different intervals
-        int currentIndex = 0;
-        while(currentIndex < values.size()) {
-            int leftIndex = currentIndex;
-            int rightIndex;
-            if(currentIndex + intervalSize < values.size() ) {
-                // class must contain as many values as space available in a class
-                rightIndex = currentIndex + intervalSize -1;
-                
-                // add any further value that is equal to the last value
-                while((rightIndex+1 < values.size()) &&
-                        (values.get(rightIndex).equals(values.get(rightIndex+1)))) {
-                    // even though the value should belong to the next class, it is added because
-                    // the same value is already present in this one
-                    rightIndex++;
-                }
-            }
-            else {
-                // less values than space available in a class
-                // let's add the rest
-                rightIndex = values.size() - 1;
-            }       
-            
-            // store this interval
-            Interval interval = new Interval(values.get(leftIndex), values.get(rightIndex));
-            _intervals.add(interval);
-
-            // push cursor further away along the values
-            currentIndex = rightIndex + 1;
-        }    
+    public ContinuousFilterFactory(final ContinuousClassification classification, final String propertyName) {
+        if(classification == null) {
+            throw new IllegalArgumentException("classification cannot be null");
+        }
+        init(classification, propertyName);
+    }
+    
+    /**
+     * Store the intervals computed by the classification for further use.
+     */
+    private void init(ContinuousClassification classification, String propertyName) {
+        _propertyName = propertyName;
+        for(int i = 0; i < classification.getIntervalCount(); i++) {
+            _intervals.add(new Interval(classification.getLeft(i), classification.getRight(i)));
+        }
     }
 
     /**
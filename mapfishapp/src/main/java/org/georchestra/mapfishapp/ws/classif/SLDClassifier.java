@@ -5,7 +5,7 @@ import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -23,10 +23,10 @@ import org.georchestra.mapfishapp.ws.DocServiceException;
 import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifType;
 import org.geotools.data.DataSourceException;
 import org.geotools.data.FeatureSource;
+import org.geotools.data.Query;
 import org.geotools.data.wfs.WFSDataStore;
 import org.geotools.data.wfs.WFSDataStoreFactory;
 import org.geotools.factory.CommonFactoryFinder;
-import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.FeatureIterator;
 import org.geotools.styling.FeatureTypeStyle;
 import org.geotools.styling.Rule;
@@ -42,18 +42,27 @@ import org.opengis.feature.simple.SimpleFeatureType;
 /**
  * Provides automatic styling by generating a SLD file given a parameterizable request on a WFS. <br />
  * Types of display: polygons filled with colors or proportional symbols <br />
- * Types of classification: on continuous or discrete values (Quantile method only) <br />
+ * Types of classification: on continuous (quantile, equal interval or natural breaks methods) or discrete values <br />
+ * Only the classified property is requested from the WFS, without any limit on the number of features. A unique
+ * values classification is refused beyond {@link #MAX_UNIQUE_VALUES} distinct values. <br />
  * Check ClassifierCommand to see all the parameters that need to be provided.
  * @see ClassifierCommand
  * @author yoann.buch@gmail.com
  *
  */
 public class SLDClassifier {
+
+    /**
+     * Maximum number of distinct values of a unique values classification, there is one rule per value
+     */
+    public static final int MAX_UNIQUE_VALUES = 2000;
     
     private ClassifierCommand _command = null;
     private StyledLayerDescriptor _sld = null;
     private Map<String, UsernamePasswordCredentials> _credentials;
     
+    private ClassificationCache _cache;
+    
     private WFSDataStoreFactory _factory = new WFSDataStoreFactory();
     
     public void setWFSDataStoreFactory(WFSDataStoreFactory f) { _factory = f; } 
@@ -65,7 +74,19 @@ public class SLDClassifier {
      * @throws DocServiceException When client request is not valid
      */
     public SLDClassifier(Map<String, UsernamePasswordCredentials> credentials, final ClassifierCommand command, WFSDataStoreFactory fac) throws DocServiceException {
+        this(credentials, command, fac, null);
+    }
+
+    /**
+     * Same as {@link SLDClassifier#SLDClassifier(Map, ClassifierCommand, WFSDataStoreFactory)}, the classifications
+     * of continuous values are looked for in the cache before the values are requested from the WFS.
+     * @param cache recent classifications, may be null
+     * @throws DocServiceException When client request is not valid
+     */
+    public SLDClassifier(Map<String, UsernamePasswordCredentials> credentials, final ClassifierCommand command, WFSDataStoreFactory fac,
+            ClassificationCache cache) throws DocServiceException {
         this._credentials = credentials;
+        this._cache = cache;
             _command = command;
             if (fac != null)
             	_factory = fac;
@@ -109,27 +130,13 @@ public class SLDClassifier {
     }
 
     /**
-     * Upload all the features from the WFS and then prepare the factories to fulfill the different type of
+     * Request the values of the property from the WFS and then prepare the factories to fulfill the different type of
      * classifications and displays
      * @throws DocServiceException
      */
     private void doClassification() throws DocServiceException {
         try {
             
-            // connect to the remote WFS
-            WFSDataStore wfs = connectToWFS(_command.getWFSUrl());
-            
-            // check if property name exists
-            int index = wfs.getSchema(_command.getFeatureTypeName()).indexOf(_command.getPropertyName());
-            if(index == -1) {
-                throw new DocServiceException(_command.getPropertyName() + " is not an attribute of " + _command.getFeatureTypeName(),
-                        HttpServletResponse.SC_BAD_REQUEST);
-            }
-                       
-            // Load all the features
-            FeatureSource<SimpleFeatureType, SimpleFeature> source = wfs.getFeatureSource(_command.getFeatureTypeName());
-            FeatureCollection<SimpleFeatureType, SimpleFeature> featuresCollection = source.getFeatures();
-
             // We need a display (Symbolizers) and a value (Filters) fatories to generate a SLD file
             I_SymbolizerFactory symbolizerFact = null; // create symbols
             I_FilterFactory filterFact = null; // create filters
@@ -140,32 +147,14 @@ public class SLDClassifier {
                 
                 // Classification on continuous values. Sorting is needed to classify: 
                 // Double values are mandatory (for now)
-
-                if (getDataType(wfs) == String.class) {
-                    // choropleths and prop symbols use quantile classification
-                    // therefore classify on string type has no purpose
-                    throw new DocServiceException("Classification on continous values (" + _command.getClassifType()+ ").\n" +
-                    		"Attribute " + _command.getPropertyName() + " is string type." +
-                    		" Therefore no classification on contiuous values can be done." +
-                    		" It needs be a meaningful comparable type (numerical, date...)." +
-                    		" Use unique values classification instead." , 
-                            HttpServletResponse.SC_BAD_REQUEST);
-                } else if ((getDataType(wfs) != Double.class) &&
-                        (getDataType(wfs) != Float.class) && 
-                        (getDataType(wfs) != Integer.class) && 
-                        (getDataType(wfs) != Long.class) && 
-                        (getDataType(wfs) != Short.class)) {
-                    // for now, only double, float, integer, and short types are supported
-                    // FIXME deal with others numerical types, dates...
-                    // they all must be comparable type as sorting is required for classification
-                    throw new DocServiceException("Classification on " + getDataType(wfs).getName() +
-                    		" type is not supported.",
-                            HttpServletResponse.SC_NOT_IMPLEMENTED);
+                ContinuousClassification classification = (_cache != null) ? _cache.get(_command) : null;
+                if (classification == null) {
+                    classification = classify();
+                    if (_cache != null) {
+                        _cache.put(_command, classification);
+                    }
                 }
-                    
-                // get values to classify
-                ArrayList<Double> values  = getDoubleValues(featuresCollection.features(), _command.getPropertyName());
-                filterFact = new ContinuousFilterFactory(values, _command.getClassCount(), _command.getPropertyName());        
+                filterFact = new ContinuousFilterFactory(classification, _command.getPropertyName());        
                 
                 if (_command.getClassifType() == E_ClassifType.CHOROPLETHS) {
                     switch (_command.getSymbolType()) {
@@ -205,7 +194,9 @@ public class SLDClassifier {
             else if (_command.getClassifType() == E_ClassifType.UNIQUE_VALUES ) {
 
                 // no needs to classify on Unique Values. They can be kept as Strings.
-                Set<String> values  = getUniqueStringValues(featuresCollection.features(), _command.getPropertyName());
+                WFSDataStore wfs = connectToWFS(_command.getWFSUrl());
+                checkPropertyName(wfs);
+                Set<String> values  = getUniqueStringValues(getValues(wfs), _command.getPropertyName());
                 filterFact = new DiscreteFilterFactory(values, _command.getPropertyName());
 
                 switch (_command.getSymbolType()) {
@@ -242,6 +233,72 @@ public class SLDClassifier {
         }
     }
     
+    /**
+     * Requests the values of the property from the WFS and classifies them
+     * @return classification of the values
+     * @throws DocServiceException When the property cannot be classified
+     */
+    private ContinuousClassification classify() throws DocServiceException, IOException {
+        
+        // connect to the remote WFS
+        WFSDataStore wfs = connectToWFS(_command.getWFSUrl());
+        checkPropertyName(wfs);
+        
+        if (getDataType(wfs) == String.class) {
+            // choropleths and prop symbols use quantile classification
+            // therefore classify on string type has no purpose
+            throw new DocServiceException("Classification on continous values (" + _command.getClassifType()+ ").\n" +
+            		"Attribute " + _command.getPropertyName() + " is string type." +
+            		" Therefore no classification on contiuous values can be done." +
+            		" It needs be a meaningful comparable type (numerical, date...)." +
+            		" Use unique values classification instead." , 
+                    HttpServletResponse.SC_BAD_REQUEST);
+        } else if ((getDataType(wfs) != Double.class) &&
+                (getDataType(wfs) != Float.class) && 
+                (getDataType(wfs) != Integer.class) && 
+                (getDataType(wfs) != Long.class) && 
+                (getDataType(wfs) != Short.class)) {
+            // for now, only double, float, integer, and short types are supported
+            // FIXME deal with others numerical types, dates...
+            // they all must be comparable type as sorting is required for classification
+            throw new DocServiceException("Classification on " + getDataType(wfs).getName() +
+            		" type is not supported.",
+                    HttpServletResponse.SC_NOT_IMPLEMENTED);
+        }
+        
+        // get values to classify
+        double[] values = getDoubleValues(getValues(wfs), _command.getPropertyName());
+        if (values.length == 0) {
+            throw new DocServiceException("Attribute " + _command.getPropertyName() + " has no value to classify",
+                    HttpServletResponse.SC_BAD_REQUEST);
+        }
+        return new ContinuousClassification(values, _command.getClassCount(), _command.getClassifMethod());
+    }
+    
+    /**
+     * Checks if the property name exists
+     * @throws DocServiceException When the feature type has no such attribute
+     */
+    private void checkPropertyName(WFSDataStore wfs) throws DocServiceException, IOException {
+        int index = wfs.getSchema(_command.getFeatureTypeName()).indexOf(_command.getPropertyName());
+        if(index == -1) {
+            throw new DocServiceException(_command.getPropertyName() + " is not an attribute of " + _command.getFeatureTypeName(),
+                    HttpServletResponse.SC_BAD_REQUEST);
+        }
+    }
+    
+    /**
+     * Requests all the features of the feature type, with the classified property only: neither the geometries nor
+     * the other attributes are downloaded.
+     * @return Iterator to access the features, it must be closed
+     */
+    private FeatureIterator<SimpleFeature> getValues(WFSDataStore wfs) throws IOException {
+        FeatureSource<SimpleFeatureType, SimpleFeature> source = wfs.getFeatureSource(_command.getFeatureTypeName());
+        Query query = new Query(_command.getFeatureTypeName(), org.opengis.filter.Filter.INCLUDE,
+                new String[] { _command.getPropertyName() });
+        return source.getFeatures(query).features();
+    }
+    
     /**
      * Creates a FeatureTypeStyle (core part of a SLD file). It is composed by Rules (tag <sld:Rule>) and each Rule 
      * can contain one Filter (filters values) and one Symbolizer (what's displayed). It Needs 2 factories: <br />
@@ -338,8 +395,7 @@ public class SLDClassifier {
             // TODO : .key necessary for those two ?
             m.put(WFSDataStoreFactory.TRY_GZIP, true); // try to optimize communication
             m.put(WFSDataStoreFactory.ENCODING, "UTF-8"); // try to force UTF-8
-            // TODO : configurable ?
-            m.put(WFSDataStoreFactory.MAXFEATURES.key, 2000);
+            // no MAXFEATURES: the classification must take all the values into account
             wfs = _factory.createDataStore(m);     
         } 
         catch(SocketTimeoutException e) {
@@ -377,51 +433,79 @@ public class SLDClassifier {
     }
 
     /**
-     * Extract values as Double from the given features and property name. Executes the same job as
-     * {@link SLDClassifier#getStringValues(FeatureIterator, String)} provides comparable values: useful to sort.
+     * Extract values as double from the given features and property name. Executes the same job as
+     * {@link SLDClassifier#getUniqueStringValues(FeatureIterator, String)} provides comparable values: useful to sort.
+     * The values are streamed into a primitive array, the iterator is closed.
      * @param features Iterator to access all the Features from the WFS request
      * @param propertyName Property Name. Property from which values has to be extracted
-     * @return List of Double values
+     * @return array of the values
      */
-    private ArrayList<Double> getDoubleValues(final FeatureIterator<SimpleFeature> features, final String propertyName) {
-        ArrayList<Double> values = new ArrayList<Double>();
+    private double[] getDoubleValues(final FeatureIterator<SimpleFeature> features, final String propertyName) {
+        double[] values = new double[1024];
+        int count = 0;
         
-        while(features.hasNext()) {
-            SimpleFeature feature = features.next();
-            if (feature.getProperty(_command.getPropertyName()).getValue() == null) {
-            	continue;
-            }
-            String val = feature.getProperty(_command.getPropertyName()).getValue().toString();
-            if(! val.trim().isEmpty() ) { // don't take into account attributes that are empty, it would corrupt the sld file
-                values.add(Double.parseDouble(val));  
+        try {
+            while(features.hasNext()) {
+                SimpleFeature feature = features.next();
+                Object value = feature.getProperty(propertyName).getValue();
+                if (value == null) {
+                    continue;
+                }
+                double val;
+                if (value instanceof Number) {
+                    val = ((Number) value).doubleValue();
+                } else if (! value.toString().trim().isEmpty()) {
+                    val = Double.parseDouble(value.toString());
+                } else {
+                    // don't take into account attributes that are empty, it would corrupt the sld file
+                    continue;
+                }
+                if (Double.isNaN(val)) {
+                    continue;
+                }
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, count * 2);
+                }
+                values[count++] = val;
             }
+        } finally {
+            features.close();
         }
         
-        return values;
+        return Arrays.copyOf(values, count);
     }
     
     /**
      * Extract values as String from the given features and property name. Executes the same job as
      * {@link SLDClassifier#getDoubleValues(FeatureIterator, String)} but it is regardless from the type.
-     * Values are stored in a Set, it guarantees unique values.
+     * Values are stored in a Set, it guarantees unique values. The iterator is closed.
      * @param features Iterator to access all the Features from the WFS request
      * @param propertyName Property Name. Property from which values has to be extracted
      * @return List of String values
+     * @throws DocServiceException When there are more than {@link #MAX_UNIQUE_VALUES} distinct values
      */
-    private Set<String> getUniqueStringValues(final FeatureIterator<SimpleFeature> features, final String propertyName) {
+    private Set<String> getUniqueStringValues(final FeatureIterator<SimpleFeature> features, final String propertyName)
+            throws DocServiceException {
         Set<String> values = new HashSet<String>();
 
-        while(features.hasNext()) {
-            SimpleFeature feature = features.next();
-            String val;
-            if (feature.getProperty(_command.getPropertyName()).getValue() == null) {
-            	continue;
-            } else {
-            	val = feature.getProperty(_command.getPropertyName()).getValue().toString();
-            }
-            if (! val.trim().isEmpty() ) { // don't take into account attributes that are empty, it would corrupt the sld file
-            	values.add(val);
+        try {
+            while(features.hasNext()) {
+                SimpleFeature feature = features.next();
+                Object value = feature.getProperty(propertyName).getValue();
+                if (value == null) {
+                	continue;
+                }
+                String val = value.toString();
+                if (! val.trim().isEmpty() ) { // don't take into account attributes that are empty, it would corrupt the sld file
+                	values.add(val);
+                	if (values.size() > MAX_UNIQUE_VALUES) {
+                	    throw new DocServiceException("Unique values classification on " + propertyName
+                	            + ": more than " + MAX_UNIQUE_VALUES + " distinct values", HttpServletResponse.SC_BAD_REQUEST);
+                	}
+                }
             }
+        } finally {
+            features.close();
         }
         return values;
     }
@@ -31,7 +31,6 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONWriter;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONAware;
 import org.json.simple.JSONStreamAware;
@@ -46,6 +45,7 @@ import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
 
 /**
  * This is a workaround to fix the problem found in the CRS generation.
@@ -65,6 +65,7 @@ final class FeatureJSON2 extends FeatureJSON {
     boolean encodeFeatureCRS = false;
     boolean encodeFeatureCollectionCRS = false;
     boolean encodeNullValues = false;
+    double simplificationTolerance = 0;
 
     public FeatureJSON2() {
         this(new GeometryJSON());
@@ -191,6 +192,24 @@ final class FeatureJSON2 extends FeatureJSON {
         return encodeNullValues;
     }
 
+    /**
+     * Sets the distance tolerance used to simplify the geometries while they are
+     * encoded. The tolerance is in the units of the feature's crs, 0 (the default)
+     * writes the geometries as they are.
+     *
+     * @param simplificationTolerance
+     */
+    public void setSimplificationTolerance(double simplificationTolerance) {
+        this.simplificationTolerance = simplificationTolerance;
+    }
+
+    /**
+     * The tolerance used to simplify the geometries.
+     */
+    public double getSimplificationTolerance() {
+        return simplificationTolerance;
+    }
+
     /**
      * Writes a feature as GeoJSON.
      *
@@ -265,9 +284,9 @@ final class FeatureJSON2 extends FeatureJSON {
       obj.put("type", "FeatureCollection");
       if (encodeFeatureCollectionBounds || encodeFeatureCollectionCRS) {
 
-          final ReferencedEnvelope bounds = features.getBounds();
-
           if (encodeFeatureCollectionBounds) {
+              // the bounds could require a pass over the whole collection, thus it is only computed if required
+              final ReferencedEnvelope bounds = features.getBounds();
 
               obj.put("bbox", new JSONStreamAware() {
 
@@ -480,6 +499,15 @@ final class FeatureJSON2 extends FeatureJSON {
 
         public String toJSONString(SimpleFeature feature) {
             try {
+                return toJSONObject(feature).toString(4);
+            } catch (JSONException e) {
+                LOG.error("Unable to encode the feature into GeoJSON, returning an empty object.");
+                return "{}";
+            }
+        }
+
+        JSONObject toJSONObject(SimpleFeature feature) throws JSONException {
+
             JSONObject ret = new JSONObject();
             ret.put("type", "Feature");
             //crs
@@ -502,7 +530,11 @@ final class FeatureJSON2 extends FeatureJSON {
 
             //geometry
             if (feature.getDefaultGeometry() != null) {
-                JSONObject geom = new JSONObject(gjson.toString((Geometry) feature.getDefaultGeometry()));
+                Geometry geometry = (Geometry) feature.getDefaultGeometry();
+                if (simplificationTolerance > 0) {
+                    geometry = TopologyPreservingSimplifier.simplify(geometry, simplificationTolerance);
+                }
+                JSONObject geom = new JSONObject(gjson.toString(geometry));
                 ret.put("geometry", geom);
             }
 
@@ -547,12 +579,7 @@ final class FeatureJSON2 extends FeatureJSON {
 
             ret.put("id", feature.getID());
 
-            return ret.toString(4);
-
-            } catch (JSONException e) {
-                LOG.error("Unable to encode the feature into GeoJSON, returning an empty object.");
-                return "{}";
-            }
+            return ret;
         }
 
         public String toJSONString() {
@@ -570,40 +597,48 @@ final class FeatureJSON2 extends FeatureJSON {
             this.gjson = gjson;
         }
 
+        /**
+         * Writes the features while they are read from the collection, thus
+         * only the feature in process is maintained in memory.
+         */
         public void writeJSONString(Writer out) throws IOException {
             SimpleFeatureType ft = (SimpleFeatureType) features.getSchema();
             FeatureEncoder featureEncoder = new FeatureEncoder(ft);
-            JSONWriter jsRet = new JSONWriter(out);
+            out.write('[');
+            FeatureIterator i = features.features();
             try {
-                jsRet.array();
-                FeatureIterator i = features.features();
-                try {
-                    if (i == null) {
-                        jsRet.endArray();
-                        return;
-                    }
-                    while (i.hasNext()) {
-                        Feature f = i.next();
-                        try {
-                            if (f instanceof SimpleFeature) {
-                                jsRet.value(new JSONObject(featureEncoder.toJSONString((SimpleFeature) f)));
+                if (i == null) {
+                    return;
+                }
+                boolean first = true;
+                while (i.hasNext()) {
+                    Feature f = i.next();
+                    try {
+                        if (f instanceof SimpleFeature) {
+                            String json = featureEncoder.toJSONObject((SimpleFeature) f).toString();
+                            if (!first) {
+                                out.write(',');
                             }
-                        } catch (NullPointerException e) {
-                            LOG.error("Unable to convert feature into JSON, skipping it. " + e.getMessage());
+                            out.write(json);
+                            first = false;
                         }
+                    } catch (NullPointerException e) {
+                        LOG.error("Unable to convert feature into JSON, skipping it. " + e.getMessage());
+                    } catch (JSONException e) {
+                        LOG.error("Unable to convert feature into JSON, skipping it. " + e.getMessage());
                     }
-                }  catch (Throwable e) {
-                    LOG.error("Unable to convert the featurecollection into JSON: " + e.getMessage());
-                    LOG.error("Ignoring ...");
-                }finally {
-                    if (i != null) {
-                        i.close();
-                    }
-                    jsRet.endArray();
                 }
-
-            } catch (JSONException e) {
-                LOG.error("Unable to generate JSON: " + e.getMessage());
+            } catch (IOException e) {
+                // the client could be gone, there is no reason to go on
+                throw e;
+            } catch (Throwable e) {
+                LOG.error("Unable to convert the featurecollection into JSON: " + e.getMessage());
+                LOG.error("Ignoring ...");
+            } finally {
+                if (i != null) {
+                    i.close();
+                }
+                out.write(']');
             }
         }
     }
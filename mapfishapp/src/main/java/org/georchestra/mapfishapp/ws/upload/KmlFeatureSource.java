@@ -3,10 +3,13 @@
  */
 package org.georchestra.mapfishapp.ws.upload;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
@@ -16,13 +19,15 @@ import javax.xml.parsers.SAXParserFactory;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.Query;
-import org.geotools.data.collection.ListFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.feature.collection.AbstractFeatureCollection;
 import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.referencing.CRS;
 import org.geotools.xml.Configuration;
 import org.geotools.xml.PullParser;
 import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
 import org.xml.sax.Attributes;
@@ -151,16 +156,18 @@ class KmlFeatureSource {
     /**
      * Reads the kml file
      * <p>
+     * The placemarks are not loaded in memory, they are parsed (and reprojected)
+     * one by one each time the returned collection is iterated.
+     * </p>
+     * <p>
      * Note: only Filter.INCLUDE is implemented
      *</p>
      * @param q
-     * @return {@link ListFeatureCollection }
+     * @return {@link SimpleFeatureCollection } null if the file does not contain placemarks
      */
     public SimpleFeatureCollection getFeatures(Query q) throws IOException {
 
-        InputStream is = new FileInputStream(this.file);
         try{
-
             CoordinateReferenceSystem sourceCRS = q.getCoordinateSystem();
             CoordinateReferenceSystem targetCRS = q.getCoordinateSystemReproject();
 
@@ -169,42 +176,159 @@ class KmlFeatureSource {
                 mathTransform = CRS.findMathTransform(sourceCRS, targetCRS, true);
             }
 
-            PullParser parser = new PullParser(configuration, is, this.qname);
+            // the feature type of the first placemark is used as schema
+            PlacemarkIterator first = new PlacemarkIterator(null);
+            try {
+                if (!first.hasNext()) {
+                    return null;
+                }
+                return new PlacemarkCollection(first.next().getFeatureType(), mathTransform);
+            } finally {
+                first.close();
+            }
+        } catch (IOException e ){
+            LOG.error(e.getMessage());
+            throw e;
+        } catch (Exception e ){
+            LOG.error(e.getMessage());
+            throw new IOException(e.getMessage());
+        }
+    }
 
-            ListFeatureCollection list = null;
-            SimpleFeature f;
+    /**
+     * The placemarks of the kml file, read each time the collection is iterated.
+     */
+    private final class PlacemarkCollection extends AbstractFeatureCollection {
+
+        private final MathTransform mathTransform;
+
+        PlacemarkCollection(SimpleFeatureType schema, MathTransform mathTransform) {
+            super(schema);
+            this.mathTransform = mathTransform;
+        }
 
-            while ((f = (SimpleFeature)parser.parse()) != null) {
+        @Override
+        protected Iterator<SimpleFeature> openIterator() {
+            try {
+                return new PlacemarkIterator(this.mathTransform);
+            } catch (IOException e) {
+                LOG.error(e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
 
-                Geometry geom = (Geometry) f.getDefaultGeometry();
+        @Override
+        protected void closeIterator(Iterator<SimpleFeature> close) {
+            ((PlacemarkIterator) close).close();
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            PlacemarkIterator iter = (PlacemarkIterator) openIterator();
+            try {
+                while (iter.hasNext()) {
+                    iter.next();
+                    size++;
+                }
+            } finally {
+                iter.close();
+            }
+            return size;
+        }
 
-                int srid = geom.getFactory().getSRID();
-                if (srid < 0) {
-                    srid = 4326; // set the default
-                    sourceCRS = CRS.decode("EPSG:" + srid);
+        @Override
+        public ReferencedEnvelope getBounds() {
+            ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+            PlacemarkIterator iter = (PlacemarkIterator) openIterator();
+            try {
+                while (iter.hasNext()) {
+                    bounds.expandToInclude(ReferencedEnvelope.reference(iter.next().getBounds()));
                 }
-                geom.setSRID(srid);
+            } finally {
+                iter.close();
+            }
+            return bounds;
+        }
+    }
+
+    /**
+     * Pulls the placemarks from the kml file, the geometries are reprojected if a transformation is provided.
+     */
+    private final class PlacemarkIterator implements Iterator<SimpleFeature> {
 
-                if (mathTransform != null) {
-                    // transformation is required
-                    Geometry reprojectedGeometry = JTS.transform(geom, mathTransform);
-                    f.setDefaultGeometry(reprojectedGeometry);
+        private final MathTransform mathTransform;
+        private InputStream is;
+        private PullParser parser;
+        private SimpleFeature next;
+
+        PlacemarkIterator(MathTransform mathTransform) throws IOException {
+            this.mathTransform = mathTransform;
+            this.is = new BufferedInputStream(new FileInputStream(file));
+            this.parser = new PullParser(configuration, this.is, qname);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (this.next != null) {
+                return true;
+            }
+            if (this.parser == null) {
+                return false;
+            }
+            try {
+                this.next = (SimpleFeature) this.parser.parse();
+                if (this.next == null) {
+                    close();
+                    return false;
                 }
-                if (list == null) {
-                    list = new ListFeatureCollection(f.getFeatureType());
+                Geometry geom = (Geometry) this.next.getDefaultGeometry();
+                if (geom != null) {
+                    int srid = geom.getFactory().getSRID();
+                    if (srid < 0) {
+                        srid = 4326; // set the default
+                    }
+                    geom.setSRID(srid);
+                    if (this.mathTransform != null) {
+                        // transformation is required
+                        Geometry reprojectedGeometry = JTS.transform(geom, this.mathTransform);
+                        this.next.setDefaultGeometry(reprojectedGeometry);
+                    }
                 }
+                return true;
+            } catch (Exception e) {
+                close();
+                LOG.error(e.getMessage());
+                throw new RuntimeException(e);
+            }
+        }
 
-                list.add(f);
+        @Override
+        public SimpleFeature next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            SimpleFeature f = this.next;
+            this.next = null;
+            return f;
+        }
 
-            return list;
-        } catch (Exception e ){
-            LOG.error(e.getMessage());
-            throw new IOException(e.getMessage());
-        } finally {
-            is.close();
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
         }
 
+        void close() {
+            this.parser = null;
+            if (this.is != null) {
+                try {
+                    this.is.close();
+                } catch (IOException e) {
+                    LOG.warn(e.getMessage());
+                }
+                this.is = null;
+            }
+        }
     }
 
 }
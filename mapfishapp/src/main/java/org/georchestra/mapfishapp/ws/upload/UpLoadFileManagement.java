@@ -20,7 +20,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
-import org.geotools.geojson.feature.FeatureJSON;
 import org.geotools.geojson.geom.GeometryJSON;
 import org.geotools.referencing.operation.projection.ProjectionException;
 import org.json.JSONArray;
@@ -39,6 +38,11 @@ public class UpLoadFileManagement {
 
     private static final Log LOG = LogFactory.getLog(UpLoadFileManagement.class.getPackage().getName());
 
+    /**
+     * Number of decimals written by default for each coordinate
+     */
+    public static final int DEFAULT_DECIMALS = 18;
+
     public enum Implementation {
         geotools, ogr
     };
@@ -350,6 +354,26 @@ public class UpLoadFileManagement {
      */
     public void writeFeatureCollectionAsJSON(Writer writer, final CoordinateReferenceSystem crs) throws Exception {
 
+        writeFeatureCollectionAsJSON(writer, crs, DEFAULT_DECIMALS, 0);
+    }
+
+    /**
+     * Writes the features in json syntax while they are read from the geofile,
+     * thus the features are not maintained in memory (if the reader streams them).
+     *
+     * @param writer where the featrue must be written.
+     * @param crs if it is not null the features should be transformed to this
+     *            {@link CoordinateReferenceSystem}, in other case they won't
+     *            transformed.
+     * @param decimals number of decimals written for each coordinate
+     * @param simplificationTolerance if greater than 0 the geometries are simplified
+     *            using this distance tolerance (in the units of the crs)
+     * @throws IOException
+     * @see #writeFeatureCollectionAsJSON(Writer, CoordinateReferenceSystem)
+     */
+    public void writeFeatureCollectionAsJSON(Writer writer, final CoordinateReferenceSystem crs,
+            final int decimals, final double simplificationTolerance) throws Exception {
+
         if (LOG.isDebugEnabled()) {
             LOG.debug("CRS to reproject:" + crs);
         }
@@ -367,10 +391,11 @@ public class UpLoadFileManagement {
                 return;
             }
             // TODO FeatureJSON2 is a workaround to solve the crs bug
-            FeatureJSON fjson = new FeatureJSON2(new GeometryJSON(18));
+            FeatureJSON2 fjson = new FeatureJSON2(new GeometryJSON(decimals));
             SimpleFeatureType schema = featureCollection.getSchema();
 
             fjson.setFeatureType(schema);
+            fjson.setSimplificationTolerance(simplificationTolerance);
             fjson.setEncodeFeatureCollectionCRS(true);
 
             fjson.writeFeatureCollection(featureCollection, writer);
@@ -0,0 +1,98 @@
+package org.georchestra.mapfishapp.ws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.georchestra.mapfishapp.model.ConnectionPool;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class DocCacheTest {
+
+    private static String read(Reader reader) throws IOException {
+        StringBuilder content = new StringBuilder();
+        int c;
+        while ((c = reader.read()) != -1) {
+            content.append((char) c);
+        }
+        reader.close();
+        return content.toString();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        DocCache cache = new DocCache(null);
+        cache.setMaxSize(10);
+        cache.setMaxDocumentSize(6);
+
+        assertEquals("12345", read(cache.cache("a", new StringReader("12345"))));
+        assertEquals("67890", read(cache.cache("b", new StringReader("67890"))));
+        assertEquals(10, cache.getSize());
+
+        // "a" is used again, "b" is evicted
+        assertEquals("12345", read(cache.get("a").open()));
+        cache.cache("c", new StringReader("abc"));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("abc", read(cache.get("c").open()));
+        assertEquals(8, cache.getSize());
+    }
+
+    @Test
+    public void testDocumentTooBig() throws Exception {
+        DocCache cache = new DocCache(null);
+        cache.setMaxDocumentSize(6);
+
+        // the document is read entirely, but not cached
+        assertEquals("1234567", read(cache.cache("big", new StringReader("1234567"))));
+        assertNull(cache.get("big"));
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void testAccessCountsFlushedInBatch() throws Exception {
+        ConnectionPool pool = Mockito.mock(ConnectionPool.class);
+        Connection connection = Mockito.mock(Connection.class);
+        PreparedStatement st = Mockito.mock(PreparedStatement.class);
+        Mockito.when(pool.getConnection()).thenReturn(connection);
+        Mockito.when(connection.prepareStatement(Mockito.anyString())).thenReturn(st);
+
+        DocCache cache = new DocCache(pool);
+        cache.accessed("h1");
+        cache.accessed("h2");
+        cache.accessed("h1");
+        assertEquals(2, cache.getPendingAccesses());
+
+        cache.flush();
+
+        // one statement, one transaction for all the documents
+        Mockito.verify(connection, Mockito.times(1)).prepareStatement(Mockito.anyString());
+        Mockito.verify(st, Mockito.times(2)).addBatch();
+        Mockito.verify(st).setInt(2, 2);
+        Mockito.verify(st).setInt(2, 1);
+        Mockito.verify(st).executeBatch();
+        Mockito.verify(connection).commit();
+        assertEquals(0, cache.getPendingAccesses());
+    }
+
+    @Test
+    public void testAccessCountsKeptOnError() throws Exception {
+        ConnectionPool pool = Mockito.mock(ConnectionPool.class);
+        Mockito.when(pool.getConnection()).thenThrow(new SQLException("database unavailable"));
+
+        DocCache cache = new DocCache(pool);
+        cache.accessed("h1");
+        cache.flush();
+
+        assertEquals(1, cache.getPendingAccesses());
+    }
+}
@@ -5,13 +5,17 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.InputStream;
 import java.lang.reflect.Method;
+import java.sql.Types;
 
 import org.georchestra.mapfishapp.ws.classif.MockWFSDataStoreFactory;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 import org.springframework.mock.web.MockHttpServletRequest;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.util.ReflectionUtils;
@@ -40,6 +44,7 @@ public class DocControllerTest {
     private MockHttpServletResponse _responseGet = new MockHttpServletResponse();
 
     private MockConnectionPool mockConnectionPool = new MockConnectionPool("ignored");
+    private File testTempDir;
 
     @Before
     public void setUp() {
@@ -47,7 +52,7 @@ public class DocControllerTest {
         _requestGet.setMethod("GET");
 
         File workDir = new File(".");
-        File testTempDir = new File(workDir.getAbsolutePath() + File.separatorChar + "test-temporary");
+        testTempDir = new File(workDir.getAbsolutePath() + File.separatorChar + "test-temporary");
         testTempDir.deleteOnExit();
 
         _controller.setDocTempDir(testTempDir.getAbsolutePath());
@@ -186,6 +191,44 @@ public class DocControllerTest {
                                                                                // back
     }
 
+    /**
+     * A document bigger than the indentation threshold is stored compressed as it is sent, and sent back through a
+     * temporary file which is deleted once sent.
+     * @throws Exception
+     */
+    @Test
+    public void testCompressedKMLService() throws Exception {
+
+        String kmlContent = "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Placemark><name>Rennes</name>"
+                + "<Point><coordinates>-1.68,48.11</coordinates></Point></Placemark></kml>";
+        mockConnectionPool.setExpectedCompressedDocument(kmlContent);
+        _controller.setIndentThreshold(16);
+        _controller.setCompressDocuments(true);
+
+        _requestPost.setRequestURI(DOMAIN_NAME + DocController.KML_URL); // fake URI, Rest style
+        _requestPost.setContent(kmlContent.getBytes("UTF-8"));
+
+        _controller.storeKMLFile(_requestPost, _responsePost);
+        assertEquals(201, _responsePost.getStatus()); // 201 Created
+
+        // stored in the compressed column
+        Mockito.verify(mockConnectionPool.mockedStatementSet).setNull(3, Types.VARCHAR);
+        Mockito.verify(mockConnectionPool.mockedStatementSet).setBinaryStream(Mockito.eq(4), Mockito.any(InputStream.class),
+                Mockito.anyInt());
+
+        String filePath = (String) new JSONObject(_responsePost.getContentAsString()).get(DocController.FILEPATH_VARNAME);
+        _requestGet.setRequestURI(DOMAIN_NAME + filePath); // fake URI, Rest style
+
+        _controller.getKMLFile(_requestGet, _responseGet);
+        assertEquals(200, _responseGet.getStatus()); // 200 OK
+        assertEquals(kmlContent, _responseGet.getContentAsString().trim());
+        assertEquals(0, testTempDir.list(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".tmp");
+            }
+        }).length);
+    }
+
     @Test
     public void testClassifier() throws Exception {
 
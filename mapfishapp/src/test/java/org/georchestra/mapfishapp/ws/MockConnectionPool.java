@@ -1,22 +1,31 @@
 package org.georchestra.mapfishapp.ws;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.zip.GZIPOutputStream;
 
 import org.georchestra.mapfishapp.model.ConnectionPool;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class MockConnectionPool extends ConnectionPool {
 
 	Connection mockedConnection = Mockito.mock(Connection.class);
 	PreparedStatement mockedStatementSet = Mockito.mock(PreparedStatement.class);
-	PreparedStatement mockedStatementGet = Mockito.mock(PreparedStatement.class);
 	PreparedStatement mockedStatementGet2 = Mockito.mock(PreparedStatement.class);
 	PreparedStatement mockedStatementGet3 = Mockito.mock(PreparedStatement.class);		
 
-	ResultSet rsGet = Mockito.mock(ResultSet.class);
 	ResultSet rsGet2 = Mockito.mock(ResultSet.class);
 
 	public MockConnectionPool(String jdbcUrl) { 
@@ -27,34 +36,46 @@ public class MockConnectionPool extends ConnectionPool {
 
 		
 		Mockito.when(mockedConnection.prepareStatement("INSERT INTO mapfishapp.geodocs (username, standard, raw_file_content, "
-				+ "file_hash) VALUES (?,?,?,?);"))
+				+ "gzip_file_content, file_hash) VALUES (?,?,?,?,?);"))
 			.thenReturn(mockedStatementSet);
 		
 		
-		Mockito.when(mockedConnection.prepareStatement("SELECT count(*)::integer from mapfishapp.geodocs WHERE file_hash = ?;"))
-			.thenReturn(mockedStatementGet);
-
-		Mockito.when(mockedConnection.prepareStatement("SELECT raw_file_content from mapfishapp.geodocs WHERE file_hash = ?;"))
+		Mockito.when(mockedConnection.prepareStatement("SELECT raw_file_content, gzip_file_content from mapfishapp.geodocs WHERE file_hash = ?;"))
 		.thenReturn(mockedStatementGet2);
 
 		Mockito.when(mockedConnection.prepareStatement("UPDATE mapfishapp.geodocs set last_access = now() , access_count = "
 				+ "access_count + 1 WHERE file_hash = ?;"))
 		.thenReturn(mockedStatementGet3);		
 
-		Mockito.when(rsGet.next()).thenReturn(true);
-		Mockito.when(rsGet.getInt(Mockito.anyInt())).thenReturn(1);
-
 		Mockito.when(rsGet2.next()).thenReturn(true);
 		
 		
-		Mockito.when(mockedStatementGet.executeQuery()).thenReturn(rsGet);
 		Mockito.when(mockedStatementGet2.executeQuery()).thenReturn(rsGet2);
 		
 
 		return mockedConnection;
 	}
-	public void setExpectedDocument(String s) throws SQLException {
-		Mockito.when(rsGet2.getString(Mockito.anyInt())).thenReturn(s);
+	public void setExpectedDocument(final String s) throws SQLException {
+		Mockito.when(rsGet2.getCharacterStream(1)).thenAnswer(new Answer<Reader>() {
+			public Reader answer(InvocationOnMock invocation) {
+				return new StringReader(s);
+			}
+		});
+		Mockito.when(rsGet2.getBinaryStream(2)).thenReturn(null);
+	}
+
+	public void setExpectedCompressedDocument(String s) throws SQLException, IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), "UTF-8");
+		out.write(s);
+		out.close();
+		final byte[] compressed = bytes.toByteArray();
+		Mockito.when(rsGet2.getCharacterStream(1)).thenReturn(null);
+		Mockito.when(rsGet2.getBinaryStream(2)).thenAnswer(new Answer<InputStream>() {
+			public InputStream answer(InvocationOnMock invocation) {
+				return new ByteArrayInputStream(compressed);
+			}
+		});
 	}
 	
 
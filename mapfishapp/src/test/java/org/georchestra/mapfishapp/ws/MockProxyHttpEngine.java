@@ -0,0 +1,100 @@
+package org.georchestra.mapfishapp.ws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.georchestra.proxyengine.ProxyHttpEngine;
+
+/**
+ * Answers the requests with the faked response instead of sending them to the remote host
+ */
+final class MockProxyHttpEngine extends ProxyHttpEngine {
+
+	private List<Header> headerFields = new ArrayList<Header>();
+
+	private InputStream fakedInputStream;
+	private String contentType = null;
+	private int fakedResponseCode = HttpStatus.SC_OK;
+
+	private HttpUriRequest request;
+	private IOException exception;
+
+	public void setResponseCode(int c) { fakedResponseCode = c ; }
+
+	public void setContentType(String ct) { contentType = ct; }
+
+	public void setHeaderFields(String k, String v) {
+		headerFields.add(new BasicHeader(k, v));
+	}
+
+	public void setInputStream(InputStream stream) {
+		fakedInputStream = stream;
+	}
+
+	/**
+	 * @param e thrown instead of answering, as when the remote host cannot be reached
+	 */
+	public void setException(IOException e) {
+		exception = e;
+	}
+
+	/**
+	 * @return the last request sent to the remote host
+	 */
+	public HttpUriRequest getRequest() {
+		return request;
+	}
+
+	@Override
+	public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+		this.request = request;
+		if (exception != null) {
+			throw exception;
+		}
+		MockResponse response = new MockResponse(fakedResponseCode);
+		for (Header header : headerFields) {
+			response.addHeader(header);
+		}
+		if (contentType != null && !response.containsHeader("Content-Type")) {
+			response.addHeader("Content-Type", contentType);
+		}
+		if (fakedInputStream != null) {
+			BasicHttpEntity entity = new BasicHttpEntity();
+			entity.setContent(fakedInputStream);
+			response.setEntity(entity);
+		}
+		return response;
+	}
+
+	public void reset() {
+		headerFields = new ArrayList<Header>();
+		try { fakedInputStream.close(); } catch (Throwable e) {};
+		fakedInputStream = null;
+		contentType = null;
+		fakedResponseCode = HttpStatus.SC_OK;
+		request = null;
+		exception = null;
+	}
+
+	private static final class MockResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+		private MockResponse(int code) {
+			super(HttpVersion.HTTP_1_1, code, null);
+		}
+
+		@Override
+		public void close() {
+			return;
+		}
+	}
+}
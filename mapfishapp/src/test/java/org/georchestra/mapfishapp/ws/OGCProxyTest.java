@@ -1,14 +1,17 @@
 package org.georchestra.mapfishapp.ws;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -33,6 +36,7 @@ public class OGCProxyTest {
 	
 	@Before
 	public void setUp() throws Exception {
+		_proxy.setEngine(mockedEngine);
 		featureCollection = OGCProxyTest.class.getResourceAsStream("/opengeo_featurecollection_post.xml");
 		getFeatureInfo = OGCProxyTest.class.getResourceAsStream("/opengeo_getfeatureinfo_1.1.0.xml");
 		getCapabilities = OGCProxyTest.class.getResourceAsStream("/opengeo_getcapabilities_1.1.0.xml");
@@ -41,13 +45,13 @@ public class OGCProxyTest {
 
 	@After
 	public void tearDown() throws IOException {
-    	mockedHttpUrlConnection.reset();
+    	mockedEngine.reset();
 		try { featureCollection.close(); } catch (Throwable e) {};
 		try { getFeatureInfo.close(); } catch (Throwable e) {};
 		try { getCapabilities.close(); } catch (Throwable e) {};
 	}
 
-    private MockHttpURLConnection mockedHttpUrlConnection = new MockHttpURLConnection();
+    private MockProxyHttpEngine mockedEngine = new MockProxyHttpEngine();
     
     
     public final String[] localHostList = {"localhost"};
@@ -62,8 +66,8 @@ public class OGCProxyTest {
         MockHttpServletRequest _request = new MockHttpServletRequest();
         MockHttpServletResponse _response = new MockHttpServletResponse();
         
-        mockedHttpUrlConnection.setContentType("application/vnd.ogc.gml");
-        mockedHttpUrlConnection.setInputStream(getFeatureInfo);
+        mockedEngine.setContentType("application/vnd.ogc.gml");
+        mockedEngine.setInputStream(getFeatureInfo);
         
         // remote host to test
         String url = "http://demo.opengeo.org/geoserver/wms?service=WMS&version=1.1.0&request=getfeatureinfo&layers=topp%3Atasmania_water_bodies&query_layers=topp%3Atasmania_water_bodies&styles=&bbox=140.5315%2C-44.423%2C151.7815%2C-38.798&srs=EPSG%3A4326&feature_count=10&x=281&y=141&height=256&width=512&info_format=application/vnd.ogc.gml";
@@ -74,7 +78,7 @@ public class OGCProxyTest {
         _request.setMethod("GET"); 
         
         // launch request 
-        _proxy.handleGETRequest(_request, _response, url, mockedHttpUrlConnection);
+        _proxy.handleGETRequest(_request, _response, url);
         
         // tests
 
@@ -93,10 +97,10 @@ public class OGCProxyTest {
         MockHttpServletRequest _request = new MockHttpServletRequest();
         MockHttpServletResponse _response = new MockHttpServletResponse();
         
-        mockedHttpUrlConnection.setContentType("application/vnd.ogc.wms_xml;charset=UTF-8");
-        mockedHttpUrlConnection.setHeaderFields("Content-Type", "application/vnd.ogc.wms_xml;charset=UTF-8");
+        mockedEngine.setContentType("application/vnd.ogc.wms_xml;charset=UTF-8");
+        mockedEngine.setHeaderFields("Content-Type", "application/vnd.ogc.wms_xml;charset=UTF-8");
         
-        mockedHttpUrlConnection.setInputStream(getCapabilities);
+        mockedEngine.setInputStream(getCapabilities);
         
         // remote host to test
         String url = "http://demo.opengeo.org/geoserver/wms?service=WMS&version=1.1.0&request=getcapabilities";
@@ -108,7 +112,7 @@ public class OGCProxyTest {
         _request.setMethod("GET"); 
 
         // launch request
-        _proxy.handleGETRequest(_request, _response, url, mockedHttpUrlConnection);
+        _proxy.handleGETRequest(_request, _response, url);
             
         assertEquals(_response.getErrorMessage(), 200, _response.getStatus()); // status code 200 expected : OK
         
@@ -122,8 +126,8 @@ public class OGCProxyTest {
         MockHttpServletRequest _request = new MockHttpServletRequest();
         MockHttpServletResponse _response = new MockHttpServletResponse();
 
-        mockedHttpUrlConnection.setContentType("application/xml");
-        mockedHttpUrlConnection.setInputStream(featureCollection);
+        mockedEngine.setContentType("application/xml");
+        mockedEngine.setInputStream(featureCollection);
         
         String url = "http://demo.opengeo.org/geoserver/wfs";
         String content = "<wfs:GetFeature xmlns:wfs=\"http://www.opengis.net/wfs\" service=\"WFS\" "
@@ -143,7 +147,7 @@ public class OGCProxyTest {
         _request.setContent(content.getBytes());
 
         // launch request
-        _proxy.handlePOSTRequest(_request, _response, url, mockedHttpUrlConnection);
+        _proxy.handlePOSTRequest(_request, _response, url);
 
         // status code 200 expected : OK
         assertEquals(_response.getErrorMessage(), 200, _response.getStatus());
@@ -157,10 +161,10 @@ public class OGCProxyTest {
         MockHttpServletRequest _request = new MockHttpServletRequest();
         MockHttpServletResponse _response = new MockHttpServletResponse();        
         String url = "http://localhost/wms?request=GetCapabilities&service=WMS";        
-        mockedHttpUrlConnection.setContentType("application/xml");
-        mockedHttpUrlConnection.setInputStream(getCapabilitiesGZipped);
+        mockedEngine.setContentType("application/xml");
+        mockedEngine.setInputStream(getCapabilitiesGZipped);
 
-        mockedHttpUrlConnection.setHeaderFields("Content-Encoding", "gzip");
+        mockedEngine.setHeaderFields("Content-Encoding", "gzip");
         
         _request.addHeader("Accept-Encoding", "gzip,deflate"); // some browser let servers return compressed data
         
@@ -168,7 +172,7 @@ public class OGCProxyTest {
         _request.setMethod("GET"); 
 
         // launch request
-        _proxy.handleGETRequest(_request, _response, url, mockedHttpUrlConnection);
+        _proxy.handleGETRequest(_request, _response, url);
 
         assertEquals(_response.getErrorMessage(), 200, _response.getStatus()); // status code 200 expected : OK  
         
@@ -179,7 +183,95 @@ public class OGCProxyTest {
                                                                                   // therefore headers must contain the gzip one
                                                                                   // to warn browser
     }
+
+    /**
+     * Only the encodings the proxy can decode are asked to the remote host
+     * @throws Exception
+     */
+    @Test
+    public void testCompressedRequest() throws Exception {
+        MockHttpServletRequest _request = new MockHttpServletRequest();
+        MockHttpServletResponse _response = new MockHttpServletResponse();
+        String url = "http://localhost/wms?request=GetCapabilities&service=WMS";
+        mockedEngine.setContentType("application/xml");
+        mockedEngine.setInputStream(getCapabilitiesGZipped);
+        mockedEngine.setHeaderFields("Content-Encoding", "gzip");
+
+        _request.addHeader("Accept-Encoding", "gzip, deflate, br");
+        _request.setMethod("GET");
+
+        _proxy.handleGETRequest(_request, _response, url);
+
+        assertEquals(_response.getErrorMessage(), 200, _response.getStatus());
+        assertEquals("gzip,deflate", mockedEngine.getRequest().getFirstHeader("Accept-Encoding").getValue());
+    }
     
+    /**
+     * A compressed response without charset is forwarded unchanged, with its length,
+     * the charset found in the file is added to its content type
+     * @throws Exception
+     */
+    @Test
+    public void testCompressedResponseWithoutCharset() throws Exception {
+        MockHttpServletRequest _request = new MockHttpServletRequest();
+        MockHttpServletResponse _response = new MockHttpServletResponse();
+        String url = "http://localhost/wms?request=GetCapabilities&service=WMS";
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int len;
+        while ((len = getCapabilitiesGZipped.read(buf)) > 0) {
+            gzipped.write(buf, 0, len);
+        }
+        mockedEngine.setContentType("application/vnd.ogc.wms_xml");
+        mockedEngine.setInputStream(new ByteArrayInputStream(gzipped.toByteArray()));
+        mockedEngine.setHeaderFields("Content-Encoding", "gzip");
+        mockedEngine.setHeaderFields("Content-Length", String.valueOf(gzipped.size()));
+
+        _request.addHeader("Accept-Encoding", "gzip,deflate");
+        _request.setMethod("GET");
+
+        _proxy.handleGETRequest(_request, _response, url);
+
+        assertEquals(_response.getErrorMessage(), 200, _response.getStatus());
+        assertEquals("application/vnd.ogc.wms_xml;charset=UTF-8", _response.getHeader("Content-Type"));
+        assertEquals("gzip", _response.getHeader("Content-Encoding"));
+        assertEquals(String.valueOf(gzipped.size()), _response.getHeader("Content-Length"));
+        assertArrayEquals(gzipped.toByteArray(), _response.getContentAsByteArray());
+    }
+
+    /**
+     * The client is asked to retry when every connection to the remote host is in use
+     * @throws Exception
+     */
+    @Test
+    public void testBusyHost() throws Exception {
+        MockHttpServletRequest _request = new MockHttpServletRequest();
+        MockHttpServletResponse _response = new MockHttpServletResponse();
+        mockedEngine.setException(new ConnectionPoolTimeoutException("Timeout waiting for connection from pool"));
+        _request.setMethod("GET");
+
+        _proxy.handleGETRequest(_request, _response, "http://localhost/wms?request=GetCapabilities&service=WMS");
+
+        assertEquals(_response.getErrorMessage(), 503, _response.getStatus());
+    }
+
+    /**
+     * The client is warned when the remote host cannot be reached
+     * @throws Exception
+     */
+    @Test
+    public void testUnreachableHost() throws Exception {
+        MockHttpServletRequest _request = new MockHttpServletRequest();
+        MockHttpServletResponse _response = new MockHttpServletResponse();
+        mockedEngine.setException(new IOException("Connection refused"));
+        _request.setMethod("GET");
+
+        _proxy.handleGETRequest(_request, _response, "http://localhost/wms?request=GetCapabilities&service=WMS");
+
+        assertEquals(_response.getErrorMessage(), 502, _response.getStatus());
+    }
+
     /**
      * Test reject from proxy when it filters on host.
      * @throws Exception
@@ -196,7 +288,7 @@ public class OGCProxyTest {
 		_request.setMethod("GET");
 
 		// set host forbidden by Proxy
-		_proxy.handleGETRequest(_request, _response, "http://www.example.com/", mockedHttpUrlConnection);
+		_proxy.handleGETRequest(_request, _response, "http://www.example.com/");
 		// expect reject from proxy : status 400, bad request
 		assertEquals(_response.getErrorMessage(), 400, _response.getStatus());
 
@@ -211,9 +303,9 @@ public class OGCProxyTest {
 		assertFalse(_proxy.isFilteringOnFinalHost());
 		// set method
 		_request.setMethod("GET");
-		mockedHttpUrlConnection.setContentType(null);
+		mockedEngine.setContentType(null);
 		// set host forbidden by Proxy		
-		_proxy.handleGETRequest(_request, _response, "http://www.example.com/", mockedHttpUrlConnection);
+		_proxy.handleGETRequest(_request, _response, "http://www.example.com/");
 		// content-type returned is null
 		assertEquals(_response.getErrorMessage(), 403, _response.getStatus());
     }
@@ -255,7 +347,7 @@ public class OGCProxyTest {
         // set method
         _request.setMethod("GET"); 
 
-        _proxy.handleGETRequest(_request, _response, url, mockedHttpUrlConnection);
+        _proxy.handleGETRequest(_request, _response, url);
         
         assertEquals(_response.getErrorMessage(), 400, _response.getStatus()); // expect reject from proxy : status 400, bad request
     }
@@ -307,7 +399,7 @@ public class OGCProxyTest {
      * @throws Exception
      */
     @Test
-    public void testCopyHeadersToConnection() throws Exception {
+    public void testCopyHeadersToRequest() throws Exception {
 
  
         MockHttpServletRequest _request = new MockHttpServletRequest();
@@ -325,9 +417,10 @@ public class OGCProxyTest {
         _request.setMethod("GET");
  
        
-        // copy headers from request to connection
-        _proxy.copyHeadersToConnection(_request, mockedHttpUrlConnection);
-        assertEquals(2, mockedHttpUrlConnection.getRequestProperties().size()); // connection should contain headers
+        // copy headers from request to the request sent to the remote host
+        HttpGet requestToFinalHost = new HttpGet("http://localhost/");
+        _proxy.copyHeadersToRequest(_request, requestToFinalHost);
+        assertEquals(2, requestToFinalHost.getAllHeaders().length); // request should contain headers
     }
 
     
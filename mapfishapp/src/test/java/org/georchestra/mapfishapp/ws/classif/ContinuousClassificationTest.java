@@ -0,0 +1,98 @@
+package org.georchestra.mapfishapp.ws.classif;
+
+import static org.junit.Assert.assertEquals;
+
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
+import org.junit.Test;
+
+/**
+ * Tests ContinuousClassification
+ */
+public class ContinuousClassificationTest {
+
+    private static final double[] VALUES = {2.0, 1.0, -3.0, -6.0, 3.0, 10.0, 6.0, 7.0, 6.0, 6.0, 3.0, -2.0, 0.0, 34.0};
+
+    /**
+     * Same intervals as the quantile classification of ContinuousFilterFactory
+     */
+    @Test
+    public void testQuantile() {
+        ContinuousClassification c = new ContinuousClassification(VALUES.clone(), 3, E_ClassifMethod.QUANTILE);
+
+        assertEquals(3, c.getIntervalCount());
+        assertEquals(-6.0, c.getLeft(0), 0);
+        assertEquals(1.0, c.getRight(0), 0);
+        assertEquals(2.0, c.getLeft(1), 0);
+        assertEquals(6.0, c.getRight(1), 0);
+        assertEquals(7.0, c.getLeft(2), 0);
+        assertEquals(34.0, c.getRight(2), 0);
+    }
+
+    @Test
+    public void testEqualInterval() {
+        ContinuousClassification c = new ContinuousClassification(VALUES.clone(), 4, E_ClassifMethod.EQUAL_INTERVAL);
+
+        assertEquals(4, c.getIntervalCount());
+        assertEquals(-6.0, c.getLeft(0), 0);
+        assertEquals(4.0, c.getRight(0), 0);
+        assertEquals(4.0, c.getLeft(1), 0);
+        assertEquals(24.0, c.getLeft(3), 0);
+        assertEquals(34.0, c.getRight(3), 0);
+    }
+
+    /**
+     * The outlier gets its own class
+     */
+    @Test
+    public void testNaturalBreaks() {
+        ContinuousClassification c = new ContinuousClassification(VALUES.clone(), 3, E_ClassifMethod.NATURAL_BREAKS);
+
+        assertEquals(3, c.getIntervalCount());
+        assertEquals(-6.0, c.getLeft(0), 0);
+        assertEquals(1.0, c.getRight(0), 0);
+        assertEquals(2.0, c.getLeft(1), 0);
+        assertEquals(10.0, c.getRight(1), 0);
+        assertEquals(34.0, c.getLeft(2), 0);
+        assertEquals(34.0, c.getRight(2), 0);
+    }
+
+    /**
+     * Above MAX_BINS values, the bins keep the values that are the same together
+     */
+    @Test
+    public void testNaturalBreaksManyValues() {
+        double[] values = new double[300000];
+        for (int i = 0; i < values.length; i++) {
+            // three groups of 100 values repeated 1000 times, from 0, 1000 and 5000
+            values[i] = (i % 3 == 0 ? 0 : i % 3 == 1 ? 1000 : 5000) + (i / 3) % 100;
+        }
+        ContinuousClassification c = new ContinuousClassification(values, 3, E_ClassifMethod.NATURAL_BREAKS);
+
+        assertEquals(3, c.getIntervalCount());
+        assertEquals(0.0, c.getLeft(0), 0);
+        assertEquals(99.0, c.getRight(0), 0);
+        assertEquals(1000.0, c.getLeft(1), 0);
+        assertEquals(1099.0, c.getRight(1), 0);
+        assertEquals(5000.0, c.getLeft(2), 0);
+        assertEquals(5099.0, c.getRight(2), 0);
+    }
+
+    /**
+     * No more classes than distinct values
+     */
+    @Test
+    public void testSingleValue() {
+        for (E_ClassifMethod method : E_ClassifMethod.values()) {
+            ContinuousClassification c = new ContinuousClassification(new double[] {2.0, 2.0}, 3, method);
+
+            assertEquals(1, c.getIntervalCount());
+            assertEquals(2.0, c.getLeft(0), 0);
+            assertEquals(2.0, c.getRight(0), 0);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testZeroValues() {
+        new ContinuousClassification(new double[0], 3, E_ClassifMethod.NATURAL_BREAKS);
+    }
+}
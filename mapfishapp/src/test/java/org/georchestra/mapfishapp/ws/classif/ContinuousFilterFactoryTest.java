@@ -7,11 +7,16 @@ import java.util.Arrays;
 import java.util.Iterator;
 
 
+import org.georchestra.mapfishapp.ws.classif.ClassifierCommand.E_ClassifMethod;
 import org.georchestra.mapfishapp.ws.classif.ContinuousFilterFactory;
 import org.georchestra.mapfishapp.ws.classif.Filter;
 import org.georchestra.mapfishapp.ws.classif.ContinuousFilterFactory.Interval;
+import org.geotools.data.DataUtilities;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
 import org.geotools.filter.visitor.DefaultFilterVisitor;
 import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.filter.FilterVisitor;
 import org.opengis.filter.PropertyIsBetween;
 
@@ -165,4 +170,29 @@ public class ContinuousFilterFactoryTest {
         assertEquals(propertyName, (String) filter1.getGISFilter().accept(nameVisitor, null));
         assertEquals(propertyName, (String) filter2.getGISFilter().accept(nameVisitor, null));
     }
+
+    /**
+     * Equal intervals share their boundaries, a value on a boundary MUST match a single filter
+     */
+    @Test
+    public void testBoundaryValues() throws Exception {
+        double[] values = {-6.0, -3.0, 0.0, 4.0, 14.0, 24.0, 34.0};
+        ContinuousClassification classification = new ContinuousClassification(values.clone(), 4, E_ClassifMethod.EQUAL_INTERVAL);
+        ContinuousFilterFactory cff = new ContinuousFilterFactory(classification, "foo");
+        assertEquals(4.0, cff.getIntervals().get(0).getRight(), 0);
+        assertEquals(4.0, cff.getIntervals().get(1).getLeft(), 0);
+
+        SimpleFeatureType type = DataUtilities.createType("test", "foo:Double");
+        for(double value : values) {
+            SimpleFeature feature = SimpleFeatureBuilder.build(type, new Object[] {value}, null);
+            int matches = 0;
+            Iterator<Filter> filters = cff.iterator();
+            while(filters.hasNext()) {
+                if(filters.next().getGISFilter().evaluate(feature)) {
+                    matches++;
+                }
+            }
+            assertEquals("value " + value, 1, matches);
+        }
+    }
 }
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
+import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
@@ -18,6 +19,19 @@ import org.opengis.feature.type.AttributeType;
 
 public class MockWFSDataStoreFactory extends WFSDataStoreFactory {
 
+	private final int featureCount;
+
+	public MockWFSDataStoreFactory() {
+		this(10);
+	}
+
+	/**
+	 * @param featureCount number of features returned, each one with a different value
+	 */
+	public MockWFSDataStoreFactory(int featureCount) {
+		this.featureCount = featureCount;
+	}
+
 	@Override
 	public WFSDataStore createDataStore(Map arg0) throws IOException {
 		WFSDataStore mockDs = Mockito.mock(WFSDataStore.class);
@@ -40,6 +54,7 @@ public class MockWFSDataStoreFactory extends WFSDataStoreFactory {
 		
 		// SimpleFetureSource actions
 		Mockito.when(mockFeatureSource.getFeatures()).thenReturn(mockFeatureCollection);
+		Mockito.when(mockFeatureSource.getFeatures(Mockito.any(Query.class))).thenReturn(mockFeatureCollection);
 
 		// AttributeType actions
 		Mockito.when(mockAttributeType.getBinding()).thenReturn((Class) Integer.class);
@@ -55,7 +70,7 @@ public class MockWFSDataStoreFactory extends WFSDataStoreFactory {
 		@Override
 		public boolean hasNext() {
 			count ++;
-			if (count > 10)
+			if (count > featureCount)
 				return false;
 			return true;
 		}
@@ -1,16 +1,21 @@
 package org.georchestra.mapfishapp.ws.classif;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
 import java.util.Map;
 
+import javax.servlet.http.HttpServletResponse;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.georchestra.mapfishapp.ws.DocServiceException;
+import org.geotools.data.wfs.WFSDataStore;
 import org.json.JSONObject;
 import org.junit.Test;
 import org.w3c.dom.Document;
@@ -118,6 +123,61 @@ public class SLDClassifierTest {
         assertEquals(true, doc.getElementsByTagName("sld:PolygonSymbolizer").getLength() != 0);
     }
 
+    /**
+     * One rule per value: too many distinct values are refused
+     */
+    @Test
+    public void testTooManyUniqueValues() throws Exception {
+
+        JSONObject jsReq = new JSONObject().put("type", "unique_values")
+                .put("wfs_url", "http://sigma.openplans.org/geoserver/wfs?service=WFS&request=GetCapabilities")
+                .put("layer_name", "topp:states")
+                .put("attribute_name", "STATE_NAME")
+                .put("symbol_type", "polygon")
+                .put("palette", 1);
+
+        try {
+            new SLDClassifier(EMPTY_MAP, new ClassifierCommand(jsReq),
+                    new MockWFSDataStoreFactory(SLDClassifier.MAX_UNIQUE_VALUES + 1));
+            fail("DocServiceException expected");
+        } catch (DocServiceException e) {
+            assertEquals(HttpServletResponse.SC_BAD_REQUEST, e.getErrorCode());
+        }
+    }
+
+    /**
+     * The second classification of the same values is taken from the cache, the WFS is not requested again
+     */
+    @Test
+    public void testClassificationCache() throws Exception {
+
+        JSONObject jsReq = new JSONObject().put("type", "CHOROPLETHS")
+                .put("wfs_url", "http://sigma.openplans.org/geoserver/wfs?service=WFS&request=GetCapabilities")
+                .put("layer_name", "topp:states")
+                .put("attribute_name", "PERSONS")
+                .put("class_count", 3).put("first_color", "#0000ff")
+                .put("symbol_type", "polygon").put("last_color", "#ff0000")
+                .put("method", "natural_breaks");
+
+        final int[] connections = {0};
+        MockWFSDataStoreFactory factory = new MockWFSDataStoreFactory() {
+            @Override
+            public WFSDataStore createDataStore(Map arg0) throws IOException {
+                connections[0]++;
+                return super.createDataStore(arg0);
+            }
+        };
+        ClassificationCache cache = new ClassificationCache();
+
+        String first = new SLDClassifier(EMPTY_MAP, new ClassifierCommand(jsReq), factory, cache).getSLD();
+        String second = new SLDClassifier(EMPTY_MAP, new ClassifierCommand(jsReq), factory, cache).getSLD();
+
+        assertEquals(1, connections[0]);
+        assertEquals(1, cache.size());
+        assertEquals(first, second);
+        assertEquals(3, createDomDocument(second).getElementsByTagName("sld:Rule").getLength());
+    }
+
     private Document createDomDocument(final String content) throws Exception {
         // create xml doc
         final DocumentBuilderFactory lDocumentBuilderFactory = DocumentBuilderFactory.newInstance();
@@ -184,6 +184,42 @@ public class UpLoadFileManagementGTImplTest {
         assertCoordinateContains(-2.265330624649336, 48.421434814828025, json);
     }
 
+    /**
+     * The coordinates are written with the required number of decimals
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testKMLCoordinatesDecimals() throws Exception {
+
+        String fileName = "kml_4326_accidents.kml";
+        String fullName = makeFullName(fileName);
+
+        String json = getFeatureCollectionAsJSON(fullName, "EPSG:4326", 3, 0);
+
+        assertCoordinateContains(-2.265, 48.421, json);
+    }
+
+    /**
+     * The simplified geometries are written with less coordinates
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testKMLSimplified() throws Exception {
+
+        String fileName = "regions.kml";
+        String fullName = makeFullName(fileName);
+
+        String regions = getFeatureCollectionAsJSON(fullName, null, UpLoadFileManagement.DEFAULT_DECIMALS, 0);
+        String simplified = getFeatureCollectionAsJSON(fullName, null, UpLoadFileManagement.DEFAULT_DECIMALS, 0.1);
+
+        JSONArray features = new JSONObject(regions).getJSONArray("features");
+        JSONArray simplifiedFeatures = new JSONObject(simplified).getJSONArray("features");
+        assertEquals(features.length(), simplifiedFeatures.length());
+        assertTrue(simplified.length() < regions.length());
+    }
+
     /**
      * Read features no reprojected
      * 
@@ -319,6 +355,12 @@ public class UpLoadFileManagementGTImplTest {
     protected String getFeatureCollectionAsJSON(final String fileName,
             final String epsg) throws Exception {
 
+        return getFeatureCollectionAsJSON(fileName, epsg, UpLoadFileManagement.DEFAULT_DECIMALS, 0);
+    }
+
+    protected String getFeatureCollectionAsJSON(final String fileName,
+            final String epsg, final int decimals, final double tolerance) throws Exception {
+
         FileDescriptor fd = new FileDescriptor(fileName);
         fd.listOfFiles.add(fileName);
         fd.listOfExtensions.add(FilenameUtils.getExtension(fileName));
@@ -330,9 +372,9 @@ public class UpLoadFileManagementGTImplTest {
 
         StringWriter out = new StringWriter();
         if (epsg != null) {
-            fm.writeFeatureCollectionAsJSON(out, CRS.decode(epsg));
+            fm.writeFeatureCollectionAsJSON(out, CRS.decode(epsg), decimals, tolerance);
         } else {
-            fm.writeFeatureCollectionAsJSON(out, null);
+            fm.writeFeatureCollectionAsJSON(out, null, decimals, tolerance);
         }
         return out.toString();
 	}
@@ -21,4 +21,90 @@ CREATE TABLE ogc_services_log (
 CREATE INDEX user_name_index ON ogc_services_log USING btree (user_name);
 CREATE INDEX date_index ON ogc_services_log USING btree (date);
 CREATE INDEX service_index ON ogc_services_log USING btree (service);
-CREATE INDEX layer_index ON ogc_services_log USING btree (layer);
\ No newline at end of file
+CREATE INDEX layer_index ON ogc_services_log USING btree (layer);
+
+--
+-- Monthly partitions: the rows are stored in the child tables ogc_services_log_YYYYMM,
+-- which have the same indexes as the parent table. The parent table keeps the rows
+-- logged before the partitioning and is the one to query.
+-- The partitions are created by the ogc-server-statistics module (see LogPartitions),
+-- which inserts straight into them, the trigger routes the other inserts (spill file
+-- loaded with COPY, ...).
+--
+
+CREATE OR REPLACE FUNCTION ogc_services_log_partition(day date) RETURNS text AS $$
+DECLARE
+  first_day date := date_trunc('month', day)::date;
+  partition_name text := 'ogc_services_log_' || to_char(day, 'YYYYMM');
+BEGIN
+  IF NOT EXISTS (SELECT 1 FROM pg_tables WHERE schemaname = 'ogcstatistics' AND tablename = partition_name) THEN
+    BEGIN
+      EXECUTE 'CREATE TABLE ogcstatistics.' || partition_name || ' ('
+        || 'CONSTRAINT ' || partition_name || '_date CHECK (date >= ' || quote_literal(first_day)
+        || ' AND date < ' || quote_literal((first_day + interval '1 month')::date) || '),'
+        || 'CONSTRAINT ' || partition_name || '_pkey PRIMARY KEY (id)'
+        || ') INHERITS (ogcstatistics.ogc_services_log)';
+      EXECUTE 'CREATE INDEX ' || partition_name || '_user_name_index ON ogcstatistics.' || partition_name || ' USING btree (user_name)';
+      EXECUTE 'CREATE INDEX ' || partition_name || '_date_index ON ogcstatistics.' || partition_name || ' USING btree (date)';
+      EXECUTE 'CREATE INDEX ' || partition_name || '_service_index ON ogcstatistics.' || partition_name || ' USING btree (service)';
+      EXECUTE 'CREATE INDEX ' || partition_name || '_layer_index ON ogcstatistics.' || partition_name || ' USING btree (layer)';
+    EXCEPTION WHEN duplicate_table OR unique_violation THEN
+      -- created by a concurrent transaction
+    END;
+  END IF;
+  RETURN partition_name;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION ogc_services_log_insert() RETURNS trigger AS $$
+BEGIN
+  IF NEW.date IS NULL THEN
+    RETURN NEW;
+  END IF;
+  EXECUTE 'INSERT INTO ogcstatistics.' || ogcstatistics.ogc_services_log_partition(NEW.date)
+    || ' SELECT ($1).*' USING NEW;
+  RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER ogc_services_log_insert BEFORE INSERT ON ogc_services_log
+  FOR EACH ROW EXECUTE PROCEDURE ogc_services_log_insert();
+
+--
+-- Rollups of ogc_services_log, read by the analytics module instead of the log.
+-- They are maintained by analytics (OGCStatsRollup) which aggregates the log rows
+-- whose id is greater than the watermark stored in ogc_services_rollup_state.
+-- The history is loaded by running OGCStatsRollup from the command line.
+--
+
+CREATE TABLE ogc_services_rollup_state (
+  name character varying(32) NOT NULL,
+  last_id bigint NOT NULL,
+  last_update timestamp,
+  CONSTRAINT ogc_services_rollup_state_pkey PRIMARY KEY (name)
+);
+
+INSERT INTO ogc_services_rollup_state (name, last_id) VALUES ('ogc_services_log', 0);
+
+CREATE TABLE ogc_layers_monthly (
+  month date NOT NULL,
+  service character varying(5),
+  layer character varying(255),
+  request character varying(20),
+  count bigint NOT NULL
+);
+CREATE INDEX ogc_layers_monthly_index ON ogc_layers_monthly USING btree (month, service, layer, request);
+
+CREATE TABLE ogc_users_monthly (
+  month date NOT NULL,
+  user_name character varying(255),
+  count bigint NOT NULL
+);
+CREATE INDEX ogc_users_monthly_index ON ogc_users_monthly USING btree (month, user_name);
+
+CREATE TABLE ogc_groups_monthly (
+  month date NOT NULL,
+  org character varying(255),
+  count bigint NOT NULL
+);
+CREATE INDEX ogc_groups_monthly_index ON ogc_groups_monthly USING btree (month, org);
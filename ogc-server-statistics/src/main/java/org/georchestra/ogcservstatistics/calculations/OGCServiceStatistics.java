@@ -338,9 +338,7 @@ public final class OGCServiceStatistics {
 	private static List<Map<String, Object>> execute(QueryCommand cmd) 
 			throws OGCServStatisticsException{
 		try {
-			cmd.setConnection(dsConfiguration.getConnection());
-
-			cmd.execute();
+			cmd.execute(dsConfiguration.getDataSource());
 
 			List<Map<String, Object>> result = cmd.getResult();
 			
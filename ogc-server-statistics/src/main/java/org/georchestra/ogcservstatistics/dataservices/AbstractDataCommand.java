@@ -1,6 +1,11 @@
 package org.georchestra.ogcservstatistics.dataservices;
 
 import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.helpers.LogLog;
 
 public abstract class AbstractDataCommand implements DataCommand{
 	
@@ -11,5 +16,33 @@ public abstract class AbstractDataCommand implements DataCommand{
 		this.connection = connection;
 	}
 	
+	/**
+	 * Borrows a connection from the data source, executes the command with it and returns it.
+	 * 
+	 * @see org.georchestra.ogcservstatistics.dataservices.DataCommand#execute(javax.sql.DataSource)
+	 */
+	@Override
+	public void execute(DataSource dataSource) throws DataCommandException {
+
+		Connection borrowed = null;
+		try {
+			borrowed = dataSource.getConnection();
+			setConnection(borrowed);
+
+			execute();
+
+		} catch (SQLException e) {
+			throw new DataCommandException(e);
+		} finally {
+			setConnection(null);
+			if (borrowed != null) {
+				try {
+					borrowed.close();
+				} catch (SQLException e) {
+					LogLog.warn("Error returning the connection", e);
+				}
+			}
+		}
+	}
 
 }
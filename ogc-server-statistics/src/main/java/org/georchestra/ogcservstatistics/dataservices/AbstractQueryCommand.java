@@ -3,9 +3,11 @@
  */
 package org.georchestra.ogcservstatistics.dataservices;
 
+import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -28,6 +30,12 @@ public abstract class AbstractQueryCommand extends AbstractDataCommand implement
 	protected int month = -1;
 	protected int limit = -1;
 	
+	/**
+	 * Selects the rows of the year, or of the month if it is set (see {@link #setDateRange(PreparedStatement, int)}).
+	 * The date column is compared with a range so that its index and the partitions of the table are used.
+	 */
+	protected static final String DATE_RANGE_CONDITION = " WHERE date >= ? AND date < ?";
+	
 	
 	@Override
 	public void setYear(int year){
@@ -89,6 +97,35 @@ public abstract class AbstractQueryCommand extends AbstractDataCommand implement
         }
 	}
 
+	/**
+	 * Sets the parameters of the {@link #DATE_RANGE_CONDITION}: the first day of the year (or of the month)
+	 * and the first day of the following one.
+	 * 
+	 * @param pStmt
+	 * @param index index of the first parameter
+	 * @return the index of the next parameter
+	 * @throws SQLException
+	 */
+	protected int setDateRange(PreparedStatement pStmt, int index) throws SQLException {
+
+		assert year > 0 :"year is expected";
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		if(this.month > 0){
+			calendar.set(this.year, this.month - 1, 1);
+			pStmt.setDate(index, new Date(calendar.getTimeInMillis()));
+			calendar.add(Calendar.MONTH, 1);
+		} else {
+			calendar.set(this.year, Calendar.JANUARY, 1);
+			pStmt.setDate(index, new Date(calendar.getTimeInMillis()));
+			calendar.add(Calendar.YEAR, 1);
+		}
+		pStmt.setDate(index + 1, new Date(calendar.getTimeInMillis()));
+
+		return index + 2;
+	}
+
 	/**
 	 * The subclass must to define the sql statement to exectue
 	 * 
@@ -5,6 +5,8 @@ package org.georchestra.ogcservstatistics.dataservices;
 
 import java.sql.Connection;
 
+import javax.sql.DataSource;
+
 /**
  * @author Mauricio Pazos
  *
@@ -23,4 +25,12 @@ public interface DataCommand {
 	 */
 	public void execute() throws DataCommandException;
 
+	/**
+	 * Execute the sql command with a connection borrowed from the data source, 
+	 * the connection is returned when the command is done
+	 * @param dataSource
+	 * @throws DataCommandException
+	 */
+	public void execute(DataSource dataSource) throws DataCommandException;
+
 }
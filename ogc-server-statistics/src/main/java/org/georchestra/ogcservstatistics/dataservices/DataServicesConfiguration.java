@@ -1,81 +1,216 @@
 /**
- * 
+ *
  */
 package org.georchestra.ogcservstatistics.dataservices;
 
-import java.sql.*;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.apache.log4j.helpers.LogLog;
 
 /**
  * This Singleton maintains the configuration data required to access to the database where
- * the ogc services are logged.  
- * 
+ * the ogc services are logged.
+ * <p>
+ * The connections are provided by a pool: the container one if a <code>jndiName</code> is
+ * configured and found, otherwise a pool created with the <code>jdbcURL</code>, which
+ * validates the connections when they are borrowed and reclaims those which are not
+ * returned after <code>abandonedTimeout</code> seconds.
+ * </p>
+ *
  * @author Mauricio Pazos
  *
  */
 public final class DataServicesConfiguration {
 
-	
+
 	private static final DataServicesConfiguration THIS = new DataServicesConfiguration();
-	private Connection connection;
+	private static final String VALIDATION_QUERY = "SELECT 1";
+
 	private String user;
 	private String password;
 	private String jdbcURL;
-	
+	private String jndiName;
+	private int maxConnections = 5;
+	private int abandonedTimeout = 300;
+
+	private volatile DataSource dataSource;
+	/**
+	 * the pool created by this configuration, null if the container one is used
+	 */
+	private BasicDataSource pool;
+
 	private DataServicesConfiguration(){
-		
+
 	}
-	
+
 	public static DataServicesConfiguration getInstance(){
 
 		return THIS;
 	}
-	
-	public void setJdbcURL(String jdbcURL) {
+
+	public synchronized void setJdbcURL(String jdbcURL) {
 		this.jdbcURL = jdbcURL;
+		reset();
 	}
-	
 
-	public void setUser(String user) {
+
+	public synchronized void setUser(String user) {
 
 		this.user = user;
+		reset();
 	}
 
-	public void setPassword(String password) {
-		
+	public synchronized void setPassword(String password) {
+
 		this.password = password;
+		reset();
+	}
+
+	/**
+	 * @param jndiName name of the container data source (like java:comp/env/jdbc/ogcstatistics), empty to create a pool
+	 */
+	public synchronized void setJndiName(String jndiName) {
+
+		this.jndiName = jndiName;
+		reset();
 	}
 
+	/**
+	 * @param maxConnections max number of connections opened by the pool
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+
+		if(maxConnections <= 0){
+			throw new IllegalArgumentException("maxConnections must be greater than 0");
+		}
+		this.maxConnections = maxConnections;
+		reset();
+	}
 
 	/**
-	 * The connection to database
-	 * 
-	 * @return {@link Connection}
-	 * @throws SQLException
+	 * @param abandonedTimeout time (in seconds) after which a connection not returned to the pool is closed and logged
 	 */
-	public Connection getConnection() throws SQLException, ClassNotFoundException {
+	public synchronized void setAbandonedTimeout(int abandonedTimeout) {
+
+		this.abandonedTimeout = abandonedTimeout;
+		reset();
+	}
 
-		Class.forName("org.postgresql.Driver");
+	/**
+	 * The pool of connections to the database
+	 *
+	 * @return {@link DataSource}
+	 */
+	public DataSource getDataSource() {
 
-		if(this.connection == null){
+		DataSource ds = this.dataSource;
+		if(ds == null){
 			synchronized (this) {
-				
-				this.connection = DriverManager.getConnection(this.jdbcURL, this.user, this.password);
+				if(this.dataSource == null){
+					this.dataSource = createDataSource();
+				}
+				ds = this.dataSource;
 			}
 		}
-		return this.connection;
+		return ds;
 	}
 
-	public void closeConnection() throws SQLException {
+	private DataSource createDataSource() {
 
-		if (this.connection != null) {
-			synchronized (this) {
-				if (!this.connection.isClosed()) {
-					this.connection.close();
+		if((this.jndiName != null) && (this.jndiName.trim().length() > 0)){
+			try {
+				DataSource container = (DataSource) new InitialContext().lookup(this.jndiName.trim());
+				if(container != null){
+					return container;
 				}
-				this.connection = null;
+			} catch (NamingException e) {
+				LogLog.warn("Data source " + this.jndiName + " not found, a pool is created with " + this.jdbcURL);
 			}
 		}
+		BasicDataSource basicDataSource = new BasicDataSource();
+
+		basicDataSource.setDriverClassName("org.postgresql.Driver");
+		basicDataSource.setUrl(this.jdbcURL);
+		basicDataSource.setUsername(this.user);
+		basicDataSource.setPassword(this.password);
+
+		basicDataSource.setMaxActive(this.maxConnections);
+		basicDataSource.setMaxIdle(this.maxConnections);
+
+		// dead connections are discarded
+		basicDataSource.setValidationQuery(VALIDATION_QUERY);
+		basicDataSource.setTestOnBorrow(true);
+
+		// leaked connections are reclaimed and the code which borrowed them is logged
+		basicDataSource.setRemoveAbandoned(true);
+		basicDataSource.setRemoveAbandonedTimeout(this.abandonedTimeout);
+		basicDataSource.setLogAbandoned(true);
+
+		basicDataSource.setDefaultAutoCommit(true);
+
+		this.pool = basicDataSource;
+		return basicDataSource;
+	}
+
+	/**
+	 * Borrows a connection from the pool, it must be closed to return it.
+	 *
+	 * @return {@link Connection}
+	 * @throws SQLException
+	 */
+	public Connection getConnection() throws SQLException {
+
+		return getDataSource().getConnection();
+	}
+
+	/**
+	 * @return number of connections borrowed from the pool, -1 if the container pool is used
+	 */
+	public synchronized int getActiveConnections() {
+
+		return (this.pool != null) ? this.pool.getNumActive() : -1;
+	}
+
+	/**
+	 * @return number of connections waiting in the pool, -1 if the container pool is used
+	 */
+	public synchronized int getIdleConnections() {
+
+		return (this.pool != null) ? this.pool.getNumIdle() : -1;
+	}
+
+	/**
+	 * Closes the pool created by this configuration (not the container one).
+	 * A new one is created if a connection is required later.
+	 *
+	 * @throws SQLException
+	 */
+	public synchronized void closeConnection() throws SQLException {
+
+		BasicDataSource closing = this.pool;
+		this.pool = null;
+		this.dataSource = null;
+		if (closing != null) {
+			closing.close();
+		}
 	}
 
+	/**
+	 * The configuration changed, the next connections are borrowed from a new pool
+	 */
+	private void reset() {
+
+		try {
+			closeConnection();
+		} catch (SQLException e) {
+			LogLog.warn("Error closing the connection pool", e);
+		}
+	}
 
 }
@@ -5,10 +5,19 @@ package org.georchestra.ogcservstatistics.dataservices;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
- * Insert an ogc service log
+ * Insert ogc service logs. The rows are sent as one JDBC batch, in a single transaction.
+ * <p>
+ * If the {@link LogPartitions} are set, the rows are inserted straight into the partition
+ * of their month (one batch per partition), which is created if needed.
+ * </p>
  * 
  * @author Mauricio Pazos
  *
@@ -23,32 +32,91 @@ public final class InsertCommand extends AbstractDataCommand {
 	public final static String REQUEST_COLUMN = "request";
 	public final static String ORG_COLUMN = "org";
 	
-	private static final String SQL_INSERT= "INSERT INTO ogcstatistics.ogc_services_log("+USER__COLUMN+","+ DATE_COLUMN+ ","+  SERVICE_COLUMN+ "," +LAYER_COLUMN+ "," +REQUEST_COLUMN+ "," +ORG_COLUMN+ ") VALUES (?, ?, ?, ?, ?,?)";
+	private static final String TABLE = "ogc_services_log";
+	private static final String SQL_INSERT= "INSERT INTO ogcstatistics.@table@("+USER__COLUMN+","+ DATE_COLUMN+ ","+  SERVICE_COLUMN+ "," +LAYER_COLUMN+ "," +REQUEST_COLUMN+ "," +ORG_COLUMN+ ") VALUES (?, ?, ?, ?, ?,?)";
 	
-	private Map<String, Object> rowValues;
+	private List<OGCServiceLog> rows;
 	
+	private LogPartitions partitions;
+	
+
+	public void setRowValues(final OGCServiceLog ogcServiceLog) {
+		
+		this.rows = Collections.singletonList(ogcServiceLog);
+	}
 
-	public void setRowValues(final Map<String, Object> ogcServiceLog) {
+	/**
+	 * @param ogcServiceLogs the rows to insert
+	 */
+	public void setRows(final List<OGCServiceLog> ogcServiceLogs) {
 		
-		this.rowValues = ogcServiceLog;
+		this.rows = ogcServiceLogs;
 	}
 
-	private PreparedStatement prepareStatement() throws SQLException {
+	/**
+	 * @param partitions the partitions of the table, null to insert the rows in the table
+	 */
+	public void setPartitions(final LogPartitions partitions) {
+		
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Groups the rows by the table they are inserted in. The partitions are created
+	 * before the insert transaction.
+	 */
+	private Map<String, List<OGCServiceLog>> rowsByTable() throws SQLException {
+
+		Map<String, List<OGCServiceLog>> tables = new LinkedHashMap<String, List<OGCServiceLog>>();
+		if(this.partitions == null){
+			tables.put(TABLE, this.rows);
+			return tables;
+		}
+		for (OGCServiceLog rowValues : this.rows) {
+			String table = this.partitions.partitionFor(this.connection, rowValues.getDate());
+			List<OGCServiceLog> tableRows = tables.get(table);
+			if(tableRows == null){
+				tableRows = new ArrayList<OGCServiceLog>();
+				tables.put(table, tableRows);
+			}
+			tableRows.add(rowValues);
+		}
+		return tables;
+	}
+
+	private PreparedStatement prepareStatement(String table, List<OGCServiceLog> tableRows) throws SQLException {
 
         assert this.connection != null: "database connection is null, use setConnection";
 
-        PreparedStatement pStmt = this.connection.prepareStatement(SQL_INSERT);
-        pStmt.setString(1, (String)this.rowValues.get(USER__COLUMN));
+        PreparedStatement pStmt = this.connection.prepareStatement(SQL_INSERT.replace("@table@", table));
+        for (OGCServiceLog rowValues : tableRows) {
+        	setValues(pStmt, rowValues);
+        	pStmt.addBatch();
+		}
+		return pStmt;
+	}
+
+	private void setValues(PreparedStatement pStmt, OGCServiceLog rowValues) throws SQLException {
+
+        pStmt.setString(1, rowValues.getUser());
         
-        java.sql.Date sqlDate = new java.sql.Date(((java.util.Date) this.rowValues.get(DATE_COLUMN)).getTime());
+        java.sql.Date sqlDate = new java.sql.Date(rowValues.getTime());
 		pStmt.setDate(2, sqlDate);
         
-		pStmt.setString(3, ((String)this.rowValues.get(SERVICE_COLUMN)).trim());
-        pStmt.setString(4, ((String)this.rowValues.get(LAYER_COLUMN)).trim());
-        pStmt.setString(5, ((String)this.rowValues.get(REQUEST_COLUMN)).trim());
-        pStmt.setString(6, ((String)this.rowValues.get(ORG_COLUMN)).trim());
-		
-		return pStmt;
+		pStmt.setString(3, rowValues.getService().trim());
+        pStmt.setString(4, rowValues.getLayer().trim());
+        pStmt.setString(5, rowValues.getRequest().trim());
+        pStmt.setString(6, rowValues.getOrg().trim());
+	}
+
+	private static boolean allInserted(int[] updatedRows) {
+
+		for (int updated : updatedRows) {
+			if((updated < 1) && (updated != Statement.SUCCESS_NO_INFO)){
+				return false;
+			}
+		}
+		return true;
 	}
 
 	@Override
@@ -56,19 +124,31 @@ public final class InsertCommand extends AbstractDataCommand {
 		
         assert this.connection != null: "database connection is null, use setConnection";
 
-        // executes the sql statement and checks that the update operation will be inserted one row in the table
+        // executes the sql statement and checks that each row of the batch was inserted in the table,
+        // before committing: once committed, the rows must not be reported as failed (they would be written again)
         PreparedStatement pStmt=null;
         try {
+        	Map<String, List<OGCServiceLog>> tables = rowsByTable();
         	this.connection.setAutoCommit(false);
-            pStmt = prepareStatement();
-            int updatedRows = pStmt.executeUpdate();
+        	for (Map.Entry<String, List<OGCServiceLog>> table : tables.entrySet()) {
+        		pStmt = prepareStatement(table.getKey(), table.getValue());
+        		int[] updatedRows = pStmt.executeBatch();
+        		pStmt.close();
+        		pStmt = null;
+        		// in the parent table the partitioning trigger, if any, routes the rows to the partitions:
+        		// they are reported as not inserted
+        		if((this.partitions != null) && !allInserted(updatedRows)){
+        			this.connection.rollback();
+        			throw new DataCommandException("Failed inserting the OGC Service Log. " + table.getKey());
+        		}
+        	}
             this.connection.commit();
-            
-            if(updatedRows < 1){
-                throw new DataCommandException("Failed inserting the OGC Service Log. " + pStmt.toString());
-            }
 
         } catch (SQLException e) {
+        	if(this.partitions != null){
+        		// a partition may have been dropped since it was created
+        		this.partitions.reset();
+        	}
         	if(this.connection != null){
         		try {
 					this.connection.rollback();
@@ -0,0 +1,222 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.helpers.LogLog;
+
+/**
+ * Manages the monthly partitions of the ogc_services_log table.
+ * <p>
+ * The partitions are the child tables <code>ogc_services_log_YYYYMM</code>, they are created by the
+ * <code>ogc_services_log_partition</code> function (see database.sql) the first time a month is used,
+ * and in advance by {@link #maintain(Connection)}.
+ * </p>
+ * <p>
+ * The retention policy removes the partitions which are older than <code>retentionMonths</code> (0 keeps them all):
+ * they are moved to the <code>archiveSchema</code> if it is set (it must exist), dropped otherwise.
+ * </p>
+ */
+public final class LogPartitions {
+
+	static final String PARTITION_PREFIX = "ogc_services_log_";
+
+	private static final String SQL_CREATE = "SELECT ogcstatistics.ogc_services_log_partition(?)";
+
+	private static final String SQL_LIST = "SELECT c.relname FROM pg_inherits i "
+			+ "JOIN pg_class c ON c.oid = i.inhrelid "
+			+ "WHERE i.inhparent = 'ogcstatistics.ogc_services_log'::regclass";
+
+	/**
+	 * number of months ahead whose partitions are created by {@link #maintain(Connection)}
+	 */
+	private int upcomingMonths = 2;
+
+	private int retentionMonths = 0;
+
+	private String archiveSchema;
+
+	/**
+	 * the partitions created (or found) by this instance
+	 */
+	private final Set<String> known = Collections.synchronizedSet(new HashSet<String>());
+
+	public void setUpcomingMonths(int upcomingMonths) {
+		this.upcomingMonths = upcomingMonths;
+	}
+
+	/**
+	 * @param retentionMonths number of months kept, the current one included, 0 to keep all the partitions
+	 */
+	public void setRetentionMonths(int retentionMonths) {
+		this.retentionMonths = retentionMonths;
+	}
+
+	/**
+	 * @param archiveSchema the schema where the old partitions are moved, null or empty to drop them
+	 */
+	public void setArchiveSchema(String archiveSchema) {
+		this.archiveSchema = (archiveSchema != null && archiveSchema.trim().length() > 0) ? archiveSchema.trim() : null;
+	}
+
+	/**
+	 * @return the name of the partition of the month (like ogc_services_log_201403)
+	 */
+	public static String partitionName(int year, int month) {
+
+		return PARTITION_PREFIX + String.format("%04d%02d", year, month);
+	}
+
+	/**
+	 * @return the name of the partition of the day
+	 */
+	public static String partitionName(Date day) {
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTime(day);
+		return partitionName(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+	}
+
+	/**
+	 * Returns the partition of the day, it is created if it does not exist yet
+	 *
+	 * @return the partition name
+	 * @throws SQLException
+	 */
+	public String partitionFor(Connection connection, Date day) throws SQLException {
+
+		String partition = partitionName(day);
+		if (!this.known.contains(partition)) {
+			create(connection, day);
+			this.known.add(partition);
+		}
+		return partition;
+	}
+
+	/**
+	 * Forgets the partitions already created, for instance after an insert failed because a partition was dropped
+	 */
+	public void reset() {
+		this.known.clear();
+	}
+
+	/**
+	 * Creates the partitions of the current and upcoming months, and applies the retention policy
+	 *
+	 * @throws SQLException
+	 */
+	public void maintain(Connection connection) throws SQLException {
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		for (int i = 0; i <= this.upcomingMonths; i++) {
+			partitionFor(connection, calendar.getTime());
+			calendar.add(Calendar.MONTH, 1);
+		}
+		if (this.retentionMonths > 0) {
+			Calendar now = Calendar.getInstance();
+			for (String partition : expired(list(connection), now.get(Calendar.YEAR), now.get(Calendar.MONTH) + 1,
+					this.retentionMonths)) {
+				remove(connection, partition);
+			}
+		}
+	}
+
+	/**
+	 * @param partitions partition names
+	 * @param year current year
+	 * @param month current month (1-12)
+	 * @param retentionMonths number of months kept, the current one included
+	 * @return the partitions which are older than the retention period
+	 */
+	static List<String> expired(List<String> partitions, int year, int month, int retentionMonths) {
+
+		// months since year 0
+		int oldestKept = year * 12 + (month - 1) - (retentionMonths - 1);
+		List<String> expired = new ArrayList<String>();
+		for (String partition : partitions) {
+			if (!partition.matches(PARTITION_PREFIX + "\\d{6}")) {
+				continue;
+			}
+			String suffix = partition.substring(PARTITION_PREFIX.length());
+			int partitionMonth = Integer.parseInt(suffix.substring(0, 4)) * 12 + Integer.parseInt(suffix.substring(4)) - 1;
+			if (partitionMonth < oldestKept) {
+				expired.add(partition);
+			}
+		}
+		Collections.sort(expired);
+		return expired;
+	}
+
+	private void create(Connection connection, Date day) throws SQLException {
+
+		PreparedStatement pStmt = null;
+		try {
+			pStmt = connection.prepareStatement(SQL_CREATE);
+			pStmt.setDate(1, new java.sql.Date(day.getTime()));
+			pStmt.execute();
+		} finally {
+			if (pStmt != null) pStmt.close();
+		}
+	}
+
+	private List<String> list(Connection connection) throws SQLException {
+
+		List<String> partitions = new ArrayList<String>();
+		Statement stmt = null;
+		ResultSet rs = null;
+		try {
+			stmt = connection.createStatement();
+			rs = stmt.executeQuery(SQL_LIST);
+			while (rs.next()) {
+				partitions.add(rs.getString(1));
+			}
+		} finally {
+			if (rs != null) rs.close();
+			if (stmt != null) stmt.close();
+		}
+		return partitions;
+	}
+
+	/**
+	 * Archives or drops the partition, in its own transaction
+	 */
+	private void remove(Connection connection, String partition) throws SQLException {
+
+		boolean autoCommit = connection.getAutoCommit();
+		Statement stmt = null;
+		try {
+			connection.setAutoCommit(false);
+			stmt = connection.createStatement();
+			if (this.archiveSchema != null) {
+				stmt.executeUpdate("ALTER TABLE ogcstatistics." + partition + " NO INHERIT ogcstatistics.ogc_services_log");
+				stmt.executeUpdate("ALTER TABLE ogcstatistics." + partition + " SET SCHEMA " + this.archiveSchema);
+			} else {
+				stmt.executeUpdate("DROP TABLE ogcstatistics." + partition);
+			}
+			connection.commit();
+			this.known.remove(partition);
+			LogLog.debug((this.archiveSchema != null ? "Archived " : "Dropped ") + partition);
+
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			if (stmt != null) stmt.close();
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+}
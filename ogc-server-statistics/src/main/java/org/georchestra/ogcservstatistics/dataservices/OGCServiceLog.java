@@ -0,0 +1,94 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import java.util.Date;
+
+/**
+ * A row of the ogc_services_log table: one OGC request on one layer.
+ * <p>
+ * Instances are immutable, thus they can be queued and inserted by other threads.
+ * </p>
+ */
+public final class OGCServiceLog {
+
+	private final String user;
+	private final long date;
+	private final String service;
+	private final String layer;
+	private final String request;
+	private final String org;
+
+	/**
+	 * @param user user name
+	 * @param date date of the request
+	 * @param service WMS, WFS, WCS, WMTS or ""
+	 * @param layer layer name or ""
+	 * @param request OGC operation (getmap, getfeature, ...) or ""
+	 * @param org organization of the user (can be null)
+	 */
+	public OGCServiceLog(final String user, final Date date, final String service, final String layer, final String request, final String org) {
+		this(user, date.getTime(), service, layer, request, org);
+	}
+
+	/**
+	 * @param date date of the request in milliseconds
+	 */
+	public OGCServiceLog(final String user, final long date, final String service, final String layer, final String request, final String org) {
+		this.user = user;
+		this.date = date;
+		this.service = service;
+		this.layer = layer;
+		this.request = request;
+		this.org = org;
+	}
+
+	public String getUser() {
+		return this.user;
+	}
+
+	/**
+	 * @return a copy of the date
+	 */
+	public Date getDate() {
+		return new Date(this.date);
+	}
+
+	/**
+	 * @return date in milliseconds
+	 */
+	public long getTime() {
+		return this.date;
+	}
+
+	public String getService() {
+		return this.service;
+	}
+
+	public String getLayer() {
+		return this.layer;
+	}
+
+	public String getRequest() {
+		return this.request;
+	}
+
+	public String getOrg() {
+		return this.org;
+	}
+
+	/**
+	 * @param layer
+	 * @return a log of the same request on another layer
+	 */
+	public OGCServiceLog withLayer(final String layer) {
+		return new OGCServiceLog(this.user, this.date, this.service, layer, this.request, this.org);
+	}
+
+	@Override
+	public String toString() {
+		return "OGCServiceLog [user=" + this.user + ", date=" + getDate() + ", service=" + this.service + ", layer=" + this.layer
+				+ ", request=" + this.request + ", org=" + this.org + "]";
+	}
+}
@@ -34,11 +34,7 @@ final public class RetrieveLayerConnectionsForUserCommand extends AbstractQueryC
 				.append(USER_COLUMN).append(",").append(LAYER_COLUMN )
 				.append(",count(").append(LAYER_COLUMN).append(") as ").append(CONNECTIONS_COLUMN)
 				.append(" FROM ogcstatistics.OGC_SERVICES_LOG");
-		if(this.month > 0){
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-		} else {
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-		}
+		sql.append(DATE_RANGE_CONDITION);
 		sql.append(" GROUP BY ").append(USER_COLUMN).append(",").append(LAYER_COLUMN);
 		sql.append(" ORDER BY ").append(USER_COLUMN).append(",").append(LAYER_COLUMN);
 		
@@ -53,14 +49,9 @@ final public class RetrieveLayerConnectionsForUserCommand extends AbstractQueryC
 	protected PreparedStatement prepareStatement() throws SQLException {
 
 		PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-		assert year > 0 :"year is expected";
 
-		pStmt.setInt(1, this.year);
-
-		//if the month was specified then set it in the statement
-		if(this.month > 0){ 
-			pStmt.setInt(2, this.month);
-		}
+		// the year or the month
+		setDateRange(pStmt, 1);
 
 		return pStmt;
 	}
@@ -30,11 +30,7 @@ final public class RetrieveMostConsultedLayers extends AbstractQueryCommand {
 				.append(LAYER_COLUMN)
 				.append(",count(").append(LAYER_COLUMN).append(") as ").append(CONNECTIONS_COLUMN)
 				.append(" FROM ogcstatistics.OGC_SERVICES_LOG");
-		if(this.month > 0){
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-		} else {
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-		}
+		sql.append(DATE_RANGE_CONDITION);
 		sql.append(" GROUP BY ").append(LAYER_COLUMN);
 		sql.append(" ORDER BY ").append(CONNECTIONS_COLUMN).append(" DESC");
 		sql.append(" LIMIT ?");
@@ -47,21 +43,13 @@ final public class RetrieveMostConsultedLayers extends AbstractQueryCommand {
 	protected PreparedStatement prepareStatement() throws SQLException {
 
 		PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-		assert year > 0 :"year is expected";
 
-		pStmt.setInt(1, this.year);
+		// the year or the month
+		int next = setDateRange(pStmt, 1);
 
-		//if the month was specified then set it in the statement
-		if(this.month > 0){ 
-			pStmt.setInt(2, this.month);
-			assert this.limit > 0;
-			pStmt.setInt(3, this.limit);
-		} else {
-			assert this.limit > 0;
-			pStmt.setInt(2, this.limit);
-		}
+		assert this.limit > 0;
+		pStmt.setInt(next, this.limit);
 
-		
 		return pStmt;
 	}
 
@@ -32,11 +32,7 @@ public final class RetrieveUserConnectionForLayerCommand extends AbstractQueryCo
 
 		sql.append(" SELECT ").append(LAYER_COLUMN ).append(",").append(USER_COLUMN ).append(",count("+USER_COLUMN+") as ").append(CONNECTIONS_COLUMN)
 				.append(" FROM ogcstatistics.OGC_SERVICES_LOG");
-		if(this.month > 0){
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? AND EXTRACT(MONTH FROM date) = ?");
-		} else {
-			sql.append(" WHERE EXTRACT(ISOYEAR FROM date) = ? ");
-		}
+		sql.append(DATE_RANGE_CONDITION);
 		sql.append(" GROUP BY ").append( LAYER_COLUMN ).append( ",").append(USER_COLUMN);
 		sql.append(" ORDER BY ").append( LAYER_COLUMN ).append( ",").append(USER_COLUMN);
 		
@@ -50,15 +46,10 @@ public final class RetrieveUserConnectionForLayerCommand extends AbstractQueryCo
 	protected PreparedStatement prepareStatement() throws SQLException {
 
 		PreparedStatement pStmt = this.connection.prepareStatement(getSQLStatement());
-		assert year > 0 :"year is expected";
 
-		pStmt.setInt(1, this.year);
+		// the year or the month
+		setDateRange(pStmt, 1);
 
-		//if the month was specified then sets it in the statement
-		if(this.month > 0){
-			pStmt.setInt(2, this.month);
-		}
-		
 		return pStmt;
 	}
 	
@@ -0,0 +1,306 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.helpers.LogLog;
+import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
+import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
+import org.georchestra.ogcservstatistics.dataservices.LogPartitions;
+import org.georchestra.ogcservstatistics.dataservices.OGCServiceLog;
+
+/**
+ * Inserts the OGC service logs in background.
+ * <p>
+ * The logs are queued by {@link #offer(OGCServiceLog)}, which never waits, and a thread
+ * inserts them in batches of <code>batchSize</code> rows, at least every
+ * <code>flushInterval</code> ms when there are logs waiting.
+ * </p>
+ * <p>
+ * When the queue is full, the logs are appended to the spill file (if configured)
+ * in the PostgreSQL COPY text format, so that they can be loaded later with:
+ * </p>
+ * <pre>
+ * \copy ogcstatistics.ogc_services_log(user_name,date,service,layer,request,org) FROM '[spill file]'
+ * </pre>
+ * Otherwise they are dropped.
+ */
+class OGCServiceLogWriter implements Runnable {
+
+	/**
+	 * max time (in ms) the writer waits for logs before checking if it is closed
+	 */
+	private static final long WAKE_UP_INTERVAL = 100;
+
+	private final BlockingQueue<OGCServiceLog> queue;
+	private final int batchSize;
+	private final long flushInterval;
+	private final File spillFile;
+	private volatile LogPartitions partitions;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+
+	private volatile boolean running = false;
+	private Thread thread;
+	/**
+	 * guards the spill file, which is written by the logging threads and the writer thread
+	 */
+	private final Object spillLock = new Object();
+	private Writer spillWriter;
+
+	/**
+	 * @param queueSize max number of logs waiting to be inserted
+	 * @param batchSize max number of logs inserted in one batch
+	 * @param flushInterval max time (in ms) a log waits for its batch to be complete
+	 * @param spillFile file where the logs are written when the queue is full, null to drop them
+	 */
+	OGCServiceLogWriter(int queueSize, int batchSize, long flushInterval, File spillFile) {
+		if(queueSize <= 0 || batchSize <= 0 || flushInterval <= 0){
+			throw new IllegalArgumentException("queueSize, batchSize and flushInterval must be greater than 0");
+		}
+		this.queue = new ArrayBlockingQueue<OGCServiceLog>(queueSize);
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		this.spillFile = spillFile;
+	}
+
+	/**
+	 * @param partitions the partitions the logs are inserted in, null to insert them in the ogc_services_log table
+	 */
+	void setPartitions(LogPartitions partitions) {
+		this.partitions = partitions;
+	}
+
+	synchronized void start() {
+		if(this.thread != null){
+			return;
+		}
+		this.running = true;
+		this.thread = new Thread(this, "ogc-services-log-writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops accepting logs, and waits (at most <code>timeout</code> ms) for the
+	 * queued ones to be inserted. Those which could not be inserted are spilled or dropped.
+	 */
+	synchronized void close(long timeout) {
+		this.running = false;
+		if(this.thread != null){
+			try {
+				this.thread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if(this.thread.isAlive()){
+				this.thread.interrupt();
+			}
+			this.thread = null;
+		}
+		List<OGCServiceLog> remaining = new ArrayList<OGCServiceLog>();
+		this.queue.drainTo(remaining);
+		for (OGCServiceLog log : remaining) {
+			overflow(log);
+		}
+		closeSpillFile();
+	}
+
+	/**
+	 * Queues a log, it is spilled or dropped if the queue is full or the writer is closed
+	 *
+	 * @return true if the log has been queued
+	 */
+	boolean offer(OGCServiceLog log) {
+		if(this.running && this.queue.offer(log)){
+			this.queued.incrementAndGet();
+			return true;
+		}
+		overflow(log);
+		return false;
+	}
+
+	@Override
+	public void run() {
+		List<OGCServiceLog> batch = new ArrayList<OGCServiceLog>(this.batchSize);
+		while(this.running || !this.queue.isEmpty()){
+			try {
+				OGCServiceLog first = this.queue.poll(Math.min(this.flushInterval, WAKE_UP_INTERVAL), TimeUnit.MILLISECONDS);
+				if(first == null){
+					continue;
+				}
+				batch.add(first);
+				// waits for the batch to be complete, at most flushInterval ms
+				final long deadline = System.currentTimeMillis() + this.flushInterval;
+				while(batch.size() < this.batchSize){
+					this.queue.drainTo(batch, this.batchSize - batch.size());
+					long remaining = deadline - System.currentTimeMillis();
+					if(batch.size() >= this.batchSize || remaining <= 0 || !this.running){
+						break;
+					}
+					OGCServiceLog next = this.queue.poll(Math.min(remaining, WAKE_UP_INTERVAL), TimeUnit.MILLISECONDS);
+					if(next != null){
+						batch.add(next);
+					}
+				}
+				insert(batch);
+
+			} catch (InterruptedException e) {
+				// closing, the logs left in the queue are handled by close()
+				for (OGCServiceLog log : batch) {
+					overflow(log);
+				}
+				return;
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void insert(List<OGCServiceLog> batch) {
+		try {
+			write(batch);
+			this.written.addAndGet(batch.size());
+
+		} catch (Exception e) {
+			LogLog.error("Failed to insert " + batch.size() + " ogc service logs", e);
+			// the pool discards the broken connections, the next batch is inserted with a valid one
+			for (OGCServiceLog log : batch) {
+				overflow(log);
+			}
+		}
+	}
+
+	/**
+	 * Inserts the logs in the database
+	 */
+	void write(List<OGCServiceLog> batch) throws Exception {
+		InsertCommand cmd = new InsertCommand();
+		cmd.setRows(batch);
+		cmd.setPartitions(this.partitions);
+		cmd.execute(DataServicesConfiguration.getInstance().getDataSource());
+	}
+
+	private void overflow(OGCServiceLog log) {
+		if(this.spillFile != null && spill(log)){
+			this.spilled.incrementAndGet();
+		} else {
+			this.dropped.incrementAndGet();
+		}
+	}
+
+	private boolean spill(OGCServiceLog log) {
+		synchronized (this.spillLock) {
+			try {
+				if(this.spillWriter == null){
+					this.spillWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(this.spillFile, true), "UTF-8"));
+				}
+				this.spillWriter.write(copyValue(log.getUser()));
+				this.spillWriter.write('\t');
+				this.spillWriter.write(new SimpleDateFormat("yyyy-MM-dd").format(log.getDate()));
+				this.spillWriter.write('\t');
+				this.spillWriter.write(copyValue(log.getService()));
+				this.spillWriter.write('\t');
+				this.spillWriter.write(copyValue(log.getLayer()));
+				this.spillWriter.write('\t');
+				this.spillWriter.write(copyValue(log.getRequest()));
+				this.spillWriter.write('\t');
+				this.spillWriter.write(copyValue(log.getOrg()));
+				this.spillWriter.write('\n');
+				this.spillWriter.flush();
+				return true;
+
+			} catch (IOException e) {
+				LogLog.error("Failed to write the ogc service log in " + this.spillFile, e);
+				return false;
+			}
+		}
+	}
+
+	private void closeSpillFile() {
+		synchronized (this.spillLock) {
+			if(this.spillWriter != null){
+				try {
+					this.spillWriter.close();
+				} catch (IOException e) {
+					LogLog.warn("Error closing " + this.spillFile, e);
+				}
+				this.spillWriter = null;
+			}
+		}
+	}
+
+	/**
+	 * Escapes a value for the COPY text format
+	 */
+	private static String copyValue(String value) {
+		if(value == null){
+			return "\\N";
+		}
+		String str = value.trim();
+		StringBuilder escaped = new StringBuilder(str.length());
+		for (int i = 0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			switch (c) {
+			case '\\': escaped.append("\\\\"); break;
+			case '\t': escaped.append("\\t"); break;
+			case '\n': escaped.append("\\n"); break;
+			case '\r': escaped.append("\\r"); break;
+			default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	/**
+	 * @return number of logs queued since the start
+	 */
+	long getQueuedCount() {
+		return this.queued.get();
+	}
+
+	/**
+	 * @return number of logs inserted in the database
+	 */
+	long getWrittenCount() {
+		return this.written.get();
+	}
+
+	/**
+	 * @return number of logs lost (queue full or database errors without spill file)
+	 */
+	long getDroppedCount() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * @return number of logs written in the spill file
+	 */
+	long getSpilledCount() {
+		return this.spilled.get();
+	}
+
+	/**
+	 * @return number of logs waiting to be inserted
+	 */
+	int getPendingCount() {
+		return this.queue.size();
+	}
+}
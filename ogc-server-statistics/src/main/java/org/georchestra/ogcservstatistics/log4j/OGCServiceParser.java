@@ -1,317 +1,351 @@
 /**
- * 
+ *
  */
 package org.georchestra.ogcservstatistics.log4j;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 import org.apache.log4j.spi.LoggingEvent;
+import org.georchestra.ogcservstatistics.dataservices.OGCServiceLog;
 
 /**
- * This parse recognizes an OGC service taking into account the syntax convention 
+ * This parse recognizes an OGC service taking into account the syntax convention
  * implemented by {@link OGCServiceMessageFormatter}.
- * 
+ * <p>
+ * The request is scanned once, the keywords are compared ignoring the case
+ * in place, thus neither upper case copies nor intermediate strings are built.
+ * The request is only URL decoded if it contains encoded characters.
+ * </p>
+ *
  * @author Mauricio Pazos
  *
  */
 final class OGCServiceParser {
 
+	private static final char SEPARATOR = OGCServiceMessageFormatter.SEPARATOR.charAt(0);
+
 	private static final String SERVICE_KEYWORD = "SERVICE=";
 	private static final String REQUEST_KEYWORD = "REQUEST=";
-			
+
 	// service types
-	private static final String WFS = "WFS";
 	private static final String WMS = "WMS";
-	private static final String WCS = "WCS";
-	private static final String[] SERVICE_TYPE = 
-		{ 	SERVICE_KEYWORD+WFS,SERVICE_KEYWORD+WCS, SERVICE_KEYWORD+WMS, 
-			SERVICE_KEYWORD+ "WMTS", 
-			SERVICE_KEYWORD+"\"WFS\"", SERVICE_KEYWORD+"\"WCS\"", SERVICE_KEYWORD+"\"WMTS\"" };
-	
-	// request type
-	private static final String GETCAPABILITIES = "GETCAPABILITIES";
-	private static final String GETMAP = "GETMAP";
-	private static final String GETLEGENDGRAPHIC = "GETLEGENDGRAPHIC";
-	private static final String GETFEATUREINFO = "GETFEATUREINFO";
-	private static final String DESCRIBELAYER = "DESCRIBELAYER";
-	private static final String GETFEATURE = "GETFEATURE";
-	private static final String DESCRIBEFEATURETYPE = "DESCRIBEFEATURETYPE";
-	private static final String GETCOVERAGE = "GETCOVERAGE";
-	private static final String DESCRIBECOVERAGE = "DESCRIBECOVERAGE";
-	private static final String GETTILE = "GETTILE";
-	private static final String GETSTYLES = "GETSTYLES";
-	// WFS2 support
-	private static final String GETPROPERTYVALUE = "GETPROPERTYVALUE";
-	private static final String LOCKFEATURE = "LOCKFEATURE";
-	private static final String GETFEATUREWITHLOCK = "GETFEATUREWITHLOCK";
-	private static final String LISTSTOREDQUERIES = "LISTSTOREDQUERIES";
-	private static final String DESCRIBESTOREDQUERIES = "DESCRIBESTOREDQUERIES";
-	private static final String CREATESTOREDQUERY = "CREATESTOREDQUERY";
-	private static final String DROPSTOREDQUERY = "DROPSTOREDQUERY";
-	
-	
-	
-	private static final String[] REQUEST_TYPE = 
-		{ 	REQUEST_KEYWORD+GETCAPABILITIES,
-			REQUEST_KEYWORD+GETMAP,
-			REQUEST_KEYWORD+GETLEGENDGRAPHIC,
-			REQUEST_KEYWORD+GETFEATUREINFO,
-			REQUEST_KEYWORD+DESCRIBELAYER,
-			REQUEST_KEYWORD+GETFEATURE,
-			REQUEST_KEYWORD+DESCRIBEFEATURETYPE,
-			REQUEST_KEYWORD+GETCOVERAGE,
-			REQUEST_KEYWORD+DESCRIBECOVERAGE,
-			REQUEST_KEYWORD+GETTILE,
-			REQUEST_KEYWORD+GETSTYLES,
+	private static final String[] SERVICE_TYPE = { "WFS", "WCS", "WMTS", WMS };
+
+	// request types
+	private static final String[] REQUEST_TYPE =
+		{ 	"GETCAPABILITIES",
+			"GETMAP",
+			"GETLEGENDGRAPHIC",
+			"GETFEATUREINFO",
+			"DESCRIBELAYER",
+			"GETFEATURE",
+			"DESCRIBEFEATURETYPE",
+			"GETCOVERAGE",
+			"DESCRIBECOVERAGE",
+			"GETTILE",
+			"GETSTYLES",
 			// WFS2
-			REQUEST_KEYWORD+GETPROPERTYVALUE,
-			REQUEST_KEYWORD+LOCKFEATURE,
-			REQUEST_KEYWORD+GETFEATUREWITHLOCK,
-			REQUEST_KEYWORD+LISTSTOREDQUERIES,
-			REQUEST_KEYWORD+DESCRIBESTOREDQUERIES,
-			REQUEST_KEYWORD+CREATESTOREDQUERY,
-			REQUEST_KEYWORD+DROPSTOREDQUERY
+			"GETPROPERTYVALUE",
+			"LOCKFEATURE",
+			"GETFEATUREWITHLOCK",
+			"LISTSTOREDQUERIES",
+			"DESCRIBESTOREDQUERIES",
+			"CREATESTOREDQUERY",
+			"DROPSTOREDQUERY"
 		};
-	
+	private static final String[] REQUEST_NAME = new String[REQUEST_TYPE.length];
+	static{
+		// the requests are logged in lower case
+		for (int i = 0; i < REQUEST_TYPE.length; i++) {
+			REQUEST_NAME[i] = REQUEST_TYPE[i].toLowerCase();
+		}
+	}
+
+	/**
+	 * When several keywords are present, the last one of this list gives the layers
+	 */
 	private static final String[] LAYER_KEYWORD = {"LAYERS=", "LAYER=","TYPENAME=", "QUERY_LAYERS="};
 
 	private static final String OPERATION_GET_LEGEND_GRAPHIC = "GETLEGENDGRAPHIC";
 	private static final char COMMA = ',';
 	private static final char QUOTE = '\"';
-	
-	private static final char[]  DELIMITER = {'&', ' ',  '\r', '\t', '>' };
-	static{
-		// sorts the delimiters to allow binary search
-		Arrays.sort(DELIMITER);
-	}
-	
+
+	/**
+	 * The date of the last parsed message. The messages are logged with the current day,
+	 * thus the date format is rarely used.
+	 */
+	private static volatile ParsedDate lastDate = new ParsedDate("", 0);
+
 	private OGCServiceParser(){
 		// utility class
 	}
 
 	public  static boolean isOGCService(LoggingEvent event) {
-		
-		String service = parseService(event.getMessage().toString());
-		
-		return !"".equals(service);
+
+		return isOGCService(event.getMessage().toString());
 	}
+
 	/**
-	 * Parses the OGC service.
-	 * 
+	 * Checks if the message contains an OGC service, without copying it.
+	 *
 	 * @param message
-	 * 
-	 * @return an OGC service symbol, "" in other case.
+	 * @return true if an OGC service is recognized
 	 */
-	private static String parseService(final String message){
-		
-		String msg = new String(message); // defensive copy 
-		msg = msg.toUpperCase();
-		// checks if it is an ogc service
-		for (int i = 0; i < SERVICE_TYPE.length; i++) {
-			if (msg.contains(SERVICE_TYPE[i])) {
-				
-				String service = SERVICE_TYPE[i].substring(SERVICE_KEYWORD.length());
-				return removeQuote(service);
+	public static boolean isOGCService(final String message) {
+
+		final int end = message.length();
+		for (int i = 0; i < end; i++) {
+			char c = message.charAt(i);
+			if ((c == 'S' || c == 's') && matchKeywordValue(message, i, end, SERVICE_KEYWORD, SERVICE_TYPE) >= 0) {
+				return true;
 			}
-		}
-		// Particular case: the following does not contain the WMS service key 
-		if(msg.contains(OPERATION_GET_LEGEND_GRAPHIC)){
-			return WMS;
-		}
-		return "";
-	}
-	
-	private static String parseRequest(final String message){
-		
-		String msg = new String(message); // defensive copy 
-		msg = msg.toUpperCase();
-		// checks if it is an ogc service
-		for (int i = 0; i < REQUEST_TYPE.length; i++) {
-			if (msg.contains(REQUEST_TYPE[i])) {
-				
-				String request = REQUEST_TYPE[i].substring(REQUEST_KEYWORD.length());
-				return removeQuote(request);
+			// Particular case: the following does not contain the WMS service key
+			if ((c == 'G' || c == 'g') && matchKeyword(message, i, end, OPERATION_GET_LEGEND_GRAPHIC)) {
+				return true;
 			}
 		}
-		return "";
+		return false;
 	}
 
 	/**
 	 * Parses the request string in order to extract service, layer, user, date
-	 * 
+	 *
 	 * @param message
-	 * @return list of logs
-	 * 
+	 * @return list of logs, one for each layer
+	 *
 	 * @throws ParseException
-	 * @throws UnsupportedEncodingException 
+	 * @throws UnsupportedEncodingException
 	 */
-	public static List<Map<String, Object>> parseLog(final String message) throws ParseException, UnsupportedEncodingException {
+	public static List<OGCServiceLog> parseLog(final String message) throws ParseException, UnsupportedEncodingException {
 
-		String work = new String(message);
-		String[] splittedMessage = work.split("["+OGCServiceMessageFormatter.SEPARATOR+"]");
-		if(splittedMessage.length < 3){
+		final int userEnd = message.indexOf(SEPARATOR);
+		final int dateEnd = (userEnd < 0) ? -1 : message.indexOf(SEPARATOR, userEnd + 1);
+		if((dateEnd < 0) || (dateEnd == message.length() - 1)){
 			throw new ParseException("the message has not be recognized. Use OGCServiceMessageFormatter.format(...) to build the message", 0);
 		}
 
-		// extracts user 
-		final String user=  splittedMessage[0];
-		
+		// extracts user
+		final String user = message.substring(0, userEnd);
+
 		// extracts date
-		DateFormat format = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT);
-		Date date = format.parse(splittedMessage[1] );
-		
-		// parses service and layer from request
-		String request = URLDecoder.decode(splittedMessage[2], "UTF-8");
-		String service = parseService(request);
-		String ogcReq = parseRequest(request).toLowerCase();
-		
-		// parses org (it is optional)
-		String org;
-		if(splittedMessage.length == 4){
-			org = splittedMessage[3];
+		final long date = parseDate(message, userEnd + 1, dateEnd);
+
+		// parses org (it is optional, ignored if the request contains the separator)
+		int requestEnd = message.indexOf(SEPARATOR, dateEnd + 1);
+		final String org;
+		if(requestEnd < 0){
+			requestEnd = message.length();
+			org = "";
+		} else if(message.indexOf(SEPARATOR, requestEnd + 1) < 0){
+			org = message.substring(requestEnd + 1);
 		} else {
 			org = "";
 		}
-		
+
+		// parses service, request and layers from the request, only decoded if required
+		String request = message;
+		int requestBegin = dateEnd + 1;
+		if(isEncoded(message, requestBegin, requestEnd)){
+			request = URLDecoder.decode(message.substring(requestBegin, requestEnd), "UTF-8");
+			requestBegin = 0;
+			requestEnd = request.length();
+		}
+		Tokens tokens = scan(request, requestBegin, requestEnd);
+
+		String service = (tokens.service >= 0) ? SERVICE_TYPE[tokens.service] : "";
+		if((tokens.service < 0) && tokens.legendGraphic){
+			service = WMS;
+		}
+		String ogcReq = (tokens.request >= 0) ? REQUEST_NAME[tokens.request] : "";
+
+		OGCServiceLog log = new OGCServiceLog(user, date, service, "", ogcReq, org);
+		if(tokens.layerKeyword < 0){
+			// a log without layer
+			return Collections.singletonList(log);
+		}
+
 		// for each layer adds a log to the list
-		List<Map<String, Object>> logList = new LinkedList<Map<String,Object>>(); 
-		List<String> layerList = parseLayer(request);
-		if(layerList.isEmpty() ){
-			// create a log without layer
-			Map<String, Object>  log = new HashMap<String, Object>(6);
-			
-			log.put("user_name", user );
-			log.put("date", date);
-			log.put("service", service );
-			log.put("layer", "" );
-			log.put("request", ogcReq );
-			log.put("org", org);
-			
-			logList.add(log);
-		} else{ // there are one ore more layers
-			
-			for(String layer : layerList){
-				Map<String, Object>  log = new HashMap<String, Object>(6);
-				
-				log.put("user_name", user );
-				log.put("date", date);
-				log.put("service", service );
-				log.put("layer", layer.toLowerCase() );
-				log.put("request", ogcReq );
-				log.put("org", org);
-				
-				logList.add(log);
-			}
+		final int layersEnd = searchEndOfLayerValue(request, tokens.layerBegin, requestEnd);
+		int layerBegin = tokens.layerBegin;
+		int layerEnd = indexOf(request, COMMA, layerBegin, layersEnd);
+		if(layerEnd < 0){
+			return Collections.singletonList(log.withLayer(layer(request, layerBegin, layersEnd)));
+		}
+		List<OGCServiceLog> logList = new ArrayList<OGCServiceLog>(4);
+		while(layerEnd >= 0){
+			logList.add(log.withLayer(layer(request, layerBegin, layerEnd)));
+			layerBegin = layerEnd + 1;
+			layerEnd = indexOf(request, COMMA, layerBegin, layersEnd);
 		}
+		logList.add(log.withLayer(layer(request, layerBegin, layersEnd)));
+
 		return logList;
 	}
 
 	/**
-	 * Parses the layer name
-	 * 
-	 * @param request
-	 * 
-	 * @return a list of layer names
+	 * Positions of the keyword values found in the request
 	 */
-	private static List<String> parseLayer(final String request) {
-
-		String msg = new String(request); // defensive copy
-		msg = msg.toUpperCase();
-
-		List<String> layerList = Collections.emptyList();
-		for (int i = 0; i < LAYER_KEYWORD.length; i++) {
-			if (msg.contains(LAYER_KEYWORD[i])) {
-
-				int begin = msg.indexOf(LAYER_KEYWORD[i]);
-				begin = begin + LAYER_KEYWORD[i].length();
-				String layers = msg.substring(begin);
-				int end = searchEndOfLayerValue(layers);
-				layers = layers.substring(0, end);
-				
-				layerList = buildLayerList(layers);
+	private static final class Tokens {
+		int service = -1;
+		int request = -1;
+		boolean legendGraphic = false;
+		int layerKeyword = -1;
+		int layerBegin = -1;
+	}
+
+	/**
+	 * Looks for the service, request and layers in one pass.
+	 */
+	private static Tokens scan(final String request, final int begin, final int end) {
+
+		Tokens tokens = new Tokens();
+		for (int i = begin; i < end; i++) {
+			switch (request.charAt(i)) {
+			case 'S': case 's':
+				if(tokens.service < 0){
+					tokens.service = matchKeywordValue(request, i, end, SERVICE_KEYWORD, SERVICE_TYPE);
+				}
+				break;
+			case 'R': case 'r':
+				if(tokens.request < 0){
+					tokens.request = matchKeywordValue(request, i, end, REQUEST_KEYWORD, REQUEST_TYPE);
+				}
+				break;
+			case 'G': case 'g':
+				if(!tokens.legendGraphic){
+					tokens.legendGraphic = matchKeyword(request, i, end, OPERATION_GET_LEGEND_GRAPHIC);
+				}
+				break;
+			case 'L': case 'l': case 'T': case 't': case 'Q': case 'q':
+				// the first occurrence of a keyword, unless a following keyword of the list was found
+				for (int k = tokens.layerKeyword + 1; k < LAYER_KEYWORD.length; k++) {
+					if(matchKeyword(request, i, end, LAYER_KEYWORD[k])){
+						tokens.layerKeyword = k;
+						tokens.layerBegin = i + LAYER_KEYWORD[k].length();
+					}
+				}
+				break;
+			default:
+				break;
 			}
 		}
-		return layerList;
+		return tokens;
+	}
+
+	/**
+	 * @return true if the keyword is at the position (ignoring the case)
+	 */
+	private static boolean matchKeyword(final String text, final int position, final int end, final String keyword) {
+
+		return (position + keyword.length() <= end) && text.regionMatches(true, position, keyword, 0, keyword.length());
+	}
+
+	/**
+	 * Matches <code>keyword=value</code> or <code>keyword="value"</code> at the position.
+	 *
+	 * @return index of the longest value found at the position, -1 if there is none
+	 */
+	private static int matchKeywordValue(final String text, final int position, final int end, final String keyword, final String[] values) {
+
+		if(!matchKeyword(text, position, end, keyword)){
+			return -1;
+		}
+		int valuePosition = position + keyword.length();
+		if((valuePosition < end) && (text.charAt(valuePosition) == QUOTE)){
+			valuePosition++;
+		}
+		int found = -1;
+		for (int i = 0; i < values.length; i++) {
+			if(matchKeyword(text, valuePosition, end, values[i])
+					&& ((found < 0) || (values[i].length() > values[found].length()))){
+				found = i;
+			}
+		}
+		return found;
 	}
 
 	/**
 	 * Index of the end of list of the layer names.
-	 * 
-	 * @param layer
-	 * @return index 
 	 */
-	private static int searchEndOfLayerValue(String layer) {
+	private static int searchEndOfLayerValue(final String request, final int begin, final int end) {
 
-		int end = -1;
 		// search the delimiter the layer element
-		for(int i = 0; i < layer.length(); i ++){
-			
-			char current = layer.charAt(i);
-			if(Arrays.binarySearch(DELIMITER, current) >= 0){
+		for(int i = begin; i < end; i ++){
+			switch (request.charAt(i)) {
+			case '&': case ' ': case '\r': case '\t': case '>':
 				return i;
+			default:
+				break;
 			}
 		}
-		if( end == -1){
-			end = layer.length() - 1;
-		}
 		return end;
 	}
 
 	/**
-	 * Extract the layer name from a list like
-	 * layer1, layer2, ...., layerN
-	 * 
-	 * @param strLayerList
-	 * 
-	 * @return List of layers
+	 * @return the layer name in lower case, without quotes
 	 */
-	private static List<String> buildLayerList(final String strLayerList) {
-		
-		List<String> layerList = new LinkedList<String>();
-		
-		StringBuilder currentLayer = new StringBuilder(strLayerList.length());
-		currentLayer.append("");
-		for(int i = 0; i < strLayerList.length(); i++){
-
-			if(strLayerList.charAt(i) == COMMA){
-
-				layerList.add(removeQuote(currentLayer.toString()));
-				
-				int capacity = strLayerList.length() - currentLayer.length();
-				currentLayer = new StringBuilder(capacity);
-			} else {
-				currentLayer.append(strLayerList.charAt(i));
-			}
+	private static String layer(final String request, int begin, int end) {
+
+		while((begin < end) && isBlankOrQuote(request.charAt(begin))){
+			begin++;
+		}
+		while((end > begin) && isBlankOrQuote(request.charAt(end - 1))){
+			end--;
 		}
-		if( !"".equals(currentLayer) ){
-			
-			layerList.add(removeQuote(currentLayer.toString()));
+		String layer = request.substring(begin, end);
+		if(layer.indexOf(QUOTE) >= 0){
+			layer = layer.replace(QUOTE, ' ');
 		}
-		
-		return layerList;
+		return layer.toLowerCase();
 	}
 
-	/**
-	 * Remove quotes from string
-	 * @param string
-	 * @return string without string
-	 */
-	private static String removeQuote(String string) {
+	private static boolean isBlankOrQuote(final char c) {
+		return (c <= ' ') || (c == QUOTE);
+	}
+
+	private static int indexOf(final String text, final char c, final int begin, final int end) {
 
-		string = string.replace(QUOTE, ' ');
-		
-		return string.trim();
+		int i = text.indexOf(c, begin);
+		return (i < end) ? i : -1;
 	}
 
+	private static boolean isEncoded(final String text, final int begin, final int end) {
+
+		for (int i = begin; i < end; i++) {
+			char c = text.charAt(i);
+			if((c == '%') || (c == '+')){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static long parseDate(final String message, final int begin, final int end) throws ParseException {
+
+		final ParsedDate last = lastDate;
+		final int length = end - begin;
+		if((last.text.length() == length) && (length > 0) && message.regionMatches(begin, last.text, 0, length)){
+			return last.time;
+		}
+		final String text = message.substring(begin, end);
+		final long time = new SimpleDateFormat(OGCServiceMessageFormatter.DATE_FORMAT).parse(text).getTime();
+		lastDate = new ParsedDate(text, time);
+		return time;
+	}
+
+	private static final class ParsedDate {
+		final String text;
+		final long time;
+
+		ParsedDate(final String text, final long time) {
+			this.text = text;
+			this.time = time;
+		}
+	}
 }
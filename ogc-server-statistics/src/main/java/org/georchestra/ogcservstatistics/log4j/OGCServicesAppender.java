@@ -1,16 +1,22 @@
 package org.georchestra.ogcservstatistics.log4j;
 
+import java.io.File;
+import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 
 import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.helpers.LogLog;
 import org.apache.log4j.spi.ErrorCode;
 import org.apache.log4j.spi.LoggingEvent;
 import org.georchestra.ogcservstatistics.OGCServStatisticsException;
 import org.georchestra.ogcservstatistics.dataservices.DataServicesConfiguration;
 import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
+import org.georchestra.ogcservstatistics.dataservices.LogPartitions;
+import org.georchestra.ogcservstatistics.dataservices.OGCServiceLog;
 
 
 /**
@@ -29,11 +35,36 @@ import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
  * log4j.appender.OGCSERVICES.jdbcURL=jdbc:postgresql://localhost:5432/testdb
  * log4j.appender.OGCSERVICES.databaseUser=postgres
  * log4j.appender.OGCSERVICES.databasePassword=postgres
- * log4j.appender.OGCSERVICES.bufferSize=1
+ * log4j.appender.OGCSERVICES.maxConnections=5
+ * log4j.appender.OGCSERVICES.queueSize=10000
+ * log4j.appender.OGCSERVICES.batchSize=100
+ * log4j.appender.OGCSERVICES.flushInterval=1000
+ * log4j.appender.OGCSERVICES.spillFile=/var/log/ogc_services_log.copy
+ * log4j.appender.OGCSERVICES.partitioned=true
+ * log4j.appender.OGCSERVICES.retentionMonths=24
+ * log4j.appender.OGCSERVICES.archiveSchema=ogcstatistics_archive
  * 
  * </pre>
  * <p>
- * Note: you could improve the performance increasing the <b>bufferSize</b> value.
+ * By default the logs are queued and inserted in background, in batches of <b>batchSize</b>
+ * rows, by a {@link OGCServiceLogWriter}: logging never waits for the database. When more than
+ * <b>queueSize</b> logs are waiting, the new ones are written in the <b>spillFile</b> if it is
+ * set, otherwise they are dropped.
+ * </p>
+ * <p>
+ * The connections are borrowed from a pool of at most <b>maxConnections</b>, shared with
+ * {@link org.georchestra.ogcservstatistics.calculations.OGCServiceStatistics}. If <b>jndiName</b> is set
+ * (like java:comp/env/jdbc/ogcstatistics) and the container provides this data source, its pool is used instead.
+ * </p>
+ * <p>
+ * When <b>partitioned</b> (false by default, it requires the partitioning part of database.sql), the logs are
+ * inserted in the monthly partitions of the table (see {@link LogPartitions}). The partitions of the next months are created in advance, and those older than
+ * <b>retentionMonths</b> (0, the default, keeps them all) are moved to the <b>archiveSchema</b> or dropped if
+ * it is not set. This maintenance runs when the appender is activated, then every day.
+ * </p>
+ * <p>
+ * With <b>asynchronous=false</b> the logs are inserted by the logging thread, every
+ * <b>bufferSize</b> logs.
  * </p>
  * 
  * <p>
@@ -62,6 +93,8 @@ import org.georchestra.ogcservstatistics.dataservices.InsertCommand;
  */
 public class OGCServicesAppender extends AppenderSkeleton {
 
+	private static final long MAINTENANCE_PERIOD = 24 * 60 * 60 * 1000L;
+
 	protected String databaseUser = "";
 
 	protected String databasePassword = "";
@@ -74,6 +107,21 @@ public class OGCServicesAppender extends AppenderSkeleton {
 
 	protected String databasePort = "";
 
+	/**
+	 * name of the container data source, if it is not found a pool is created with the jdbcURL
+	 */
+	protected String jndiName = "";
+
+	/**
+	 * max number of connections opened by the pool
+	 */
+	protected int maxConnections = 5;
+
+	/**
+	 * time (in seconds) after which a connection not returned to the pool is reclaimed
+	 */
+	protected int abandonedTimeout = 300;
+
 	/**
 	 * size of LoggingEvent buffer before writing to the database. 
 	 * Default is 1.
@@ -83,7 +131,63 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	/**
 	 * ArrayList holding the buffer of Logging Events.
 	 */
-	protected ArrayList<Map<String, Object>> buffer;
+	protected ArrayList<OGCServiceLog> buffer;
+
+	/**
+	 * true: the logs are inserted in background (default)
+	 * false: the logs are inserted by the logging thread, every bufferSize logs
+	 */
+	protected boolean asynchronous = true;
+
+	/**
+	 * max number of logs waiting to be inserted in asynchronous mode
+	 */
+	protected int queueSize = 10000;
+
+	/**
+	 * max number of logs inserted in one batch in asynchronous mode
+	 */
+	protected int batchSize = 100;
+
+	/**
+	 * max time (in ms) a log waits for its batch in asynchronous mode
+	 */
+	protected long flushInterval = 1000;
+
+	/**
+	 * file where the logs are written when the queue is full. If not set they are dropped.
+	 */
+	protected String spillFile;
+
+	/**
+	 * max time (in ms) to insert the queued logs when the appender is closed
+	 */
+	protected long shutdownTimeout = 10000;
+
+	private OGCServiceLogWriter writer;
+
+	/**
+	 * true: the logs are inserted in the monthly partitions of the table, which requires the
+	 * ogc_services_log_partition function of database.sql
+	 */
+	protected boolean partitioned = false;
+
+	/**
+	 * number of months whose partitions are kept, the current one included. 0 keeps all of them.
+	 */
+	protected int retentionMonths = 0;
+
+	/**
+	 * schema where the partitions older than retentionMonths are moved. If not set they are dropped.
+	 */
+	protected String archiveSchema;
+
+	private LogPartitions partitions;
+
+	/**
+	 * runs the maintenance of the partitions
+	 */
+	private Timer maintenance;
 
 	/**
 	 * Activated 
@@ -97,7 +201,7 @@ public class OGCServicesAppender extends AppenderSkeleton {
 
 	public OGCServicesAppender() {
 		super();
-		this.buffer = new ArrayList<Map<String, Object>>(this.bufferSize);
+		this.buffer = new ArrayList<OGCServiceLog>(this.bufferSize);
 	}
 
 	
@@ -138,6 +242,30 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	}
 
 
+	public String getJndiName() {
+		return jndiName;
+	}
+
+	public void setJndiName(String jndiName) {
+		this.jndiName = jndiName;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public int getAbandonedTimeout() {
+		return abandonedTimeout;
+	}
+
+	public void setAbandonedTimeout(int abandonedTimeout) {
+		this.abandonedTimeout = abandonedTimeout;
+	}
+
 	public String getDatabaseUser() {
 		return databaseUser;
 	}
@@ -163,6 +291,106 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		this.buffer.ensureCapacity(this.bufferSize);
 	}
 	
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	public void setAsynchronous(boolean asynchronous) {
+		this.asynchronous = asynchronous;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public long getFlushInterval() {
+		return flushInterval;
+	}
+
+	public void setFlushInterval(long flushInterval) {
+		this.flushInterval = flushInterval;
+	}
+
+	public String getSpillFile() {
+		return spillFile;
+	}
+
+	public void setSpillFile(String spillFile) {
+		this.spillFile = spillFile;
+	}
+
+	public long getShutdownTimeout() {
+		return shutdownTimeout;
+	}
+
+	public void setShutdownTimeout(long shutdownTimeout) {
+		this.shutdownTimeout = shutdownTimeout;
+	}
+
+	/**
+	 * @return number of logs queued (asynchronous mode)
+	 */
+	public long getQueuedCount() {
+		return (this.writer != null) ? this.writer.getQueuedCount() : 0;
+	}
+
+	/**
+	 * @return number of logs inserted by the writer thread (asynchronous mode)
+	 */
+	public long getWrittenCount() {
+		return (this.writer != null) ? this.writer.getWrittenCount() : 0;
+	}
+
+	/**
+	 * @return number of logs lost because the queue was full or the database failed (asynchronous mode)
+	 */
+	public long getDroppedCount() {
+		return (this.writer != null) ? this.writer.getDroppedCount() : 0;
+	}
+
+	/**
+	 * @return number of logs written in the spill file (asynchronous mode)
+	 */
+	public long getSpilledCount() {
+		return (this.writer != null) ? this.writer.getSpilledCount() : 0;
+	}
+
+	public boolean isPartitioned() {
+		return partitioned;
+	}
+
+	public void setPartitioned(boolean partitioned) {
+		this.partitioned = partitioned;
+	}
+
+	public int getRetentionMonths() {
+		return retentionMonths;
+	}
+
+	public void setRetentionMonths(int retentionMonths) {
+		this.retentionMonths = retentionMonths;
+	}
+
+	public String getArchiveSchema() {
+		return archiveSchema;
+	}
+
+	public void setArchiveSchema(String archiveSchema) {
+		this.archiveSchema = archiveSchema;
+	}
+
 	public boolean isActivated() {
 		return activated;
 	}
@@ -182,6 +410,65 @@ public class OGCServicesAppender extends AppenderSkeleton {
 		this.dataServiceConfiguration.setUser(getDatabaseUser());
 		this.dataServiceConfiguration.setPassword(getDatabasePassword());
 		this.dataServiceConfiguration.setJdbcURL(getJdbcURL());
+		this.dataServiceConfiguration.setJndiName(getJndiName());
+		this.dataServiceConfiguration.setMaxConnections(getMaxConnections());
+		this.dataServiceConfiguration.setAbandonedTimeout(getAbandonedTimeout());
+
+		if(this.writer != null){
+			// reconfiguration
+			this.writer.close(this.shutdownTimeout);
+			this.writer = null;
+		}
+		stopMaintenance();
+		this.partitions = null;
+		if(this.activated && this.partitioned){
+			this.partitions = new LogPartitions();
+			this.partitions.setRetentionMonths(this.retentionMonths);
+			this.partitions.setArchiveSchema(this.archiveSchema);
+			startMaintenance(this.partitions);
+		}
+		if(this.activated && this.asynchronous){
+			File spill = (this.spillFile != null && this.spillFile.trim().length() > 0) ? new File(this.spillFile.trim()) : null;
+			this.writer = new OGCServiceLogWriter(this.queueSize, this.batchSize, this.flushInterval, spill);
+			this.writer.setPartitions(this.partitions);
+			this.writer.start();
+		}
+	}
+
+	/**
+	 * Maintains the partitions now, then every day
+	 */
+	private void startMaintenance(final LogPartitions logPartitions) {
+
+		this.maintenance = new Timer("ogc-services-log-partitions", true);
+		this.maintenance.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				Connection connection = null;
+				try {
+					connection = dataServiceConfiguration.getConnection();
+					logPartitions.maintain(connection);
+				} catch (SQLException e) {
+					LogLog.error("Failed to maintain the partitions of the ogc services log", e);
+				} finally {
+					if(connection != null){
+						try {
+							connection.close();
+						} catch (SQLException e) {
+							LogLog.warn("Error returning the connection", e);
+						}
+					}
+				}
+			}
+		}, 0, MAINTENANCE_PERIOD);
+	}
+
+	private void stopMaintenance() {
+
+		if(this.maintenance != null){
+			this.maintenance.cancel();
+			this.maintenance = null;
+		}
 	}
 
 
@@ -199,13 +486,17 @@ public class OGCServicesAppender extends AppenderSkeleton {
 
 		try {
 
-			if (OGCServiceParser.isOGCService(event)) {
+			String msg = event.getRenderedMessage();
 
-				String msg = event.getRenderedMessage();
+			if (OGCServiceParser.isOGCService(msg)) {
 
-				List<Map<String, Object>> logList = OGCServiceParser.parseLog(msg);
+				List<OGCServiceLog> logList = OGCServiceParser.parseLog(msg);
 				
-				for (Map<String, Object> log : logList) {
+				for (OGCServiceLog log : logList) {
+					if (this.writer != null) {
+						this.writer.offer(log);
+						continue;
+					}
 					this.buffer.add(log);
 					if (this.buffer.size() >= this.bufferSize) {
 						flushBuffer();
@@ -225,30 +516,22 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	 */
 	private void flushBuffer() {
 		
-		ArrayList<Map<String, Object>> removed = new ArrayList<Map<String,Object>>(this.buffer.size());
-		for (Map<String,Object> log: this.buffer) {
-
-			insert(log);
-			removed.add(log);
+		if(this.buffer.isEmpty()){
+			return;
 		}
-		this.buffer.removeAll(removed);
-	}
-
-
-	private void insert(Map<String, Object> ogcServiceRecord)  {
-
 		try {
 			InsertCommand cmd = new InsertCommand();
-			cmd.setConnection(this.dataServiceConfiguration .getConnection());
-			cmd.setRowValues( ogcServiceRecord);
-			cmd.execute();
+			cmd.setRows(this.buffer);
+			cmd.setPartitions(this.partitions);
+			cmd.execute(this.dataServiceConfiguration.getDataSource());
 
 		} catch (Exception e) {
 
 			errorHandler.error("Failed to insert the log", e,
 					ErrorCode.WRITE_FAILURE);
+		} finally {
+			this.buffer.clear();
 		}
-		
 	}
 	
 	@Override
@@ -260,9 +543,17 @@ public class OGCServicesAppender extends AppenderSkeleton {
 	 * Release all the allocated resources
 	 */
 	@Override
-	public void close() {
+	public synchronized void close() {
+		if(this.closed){
+			return;
+		}
 		try {
 
+			stopMaintenance();
+			if(this.writer != null){
+				this.writer.close(this.shutdownTimeout);
+				this.writer = null;
+			}
 			flushBuffer();
 			this.dataServiceConfiguration.closeConnection();
 			
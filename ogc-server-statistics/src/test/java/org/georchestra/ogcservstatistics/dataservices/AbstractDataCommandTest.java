@@ -0,0 +1,128 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.dbcp.BasicDataSource;
+import org.junit.Test;
+
+/**
+ * Checks that the commands return the connections they borrow, and the pool configuration.
+ */
+public class AbstractDataCommandTest {
+
+	private final AtomicInteger borrowed = new AtomicInteger();
+	private final AtomicInteger returned = new AtomicInteger();
+
+	private class StubCommand extends AbstractDataCommand {
+
+		private Connection used;
+		private boolean failing = false;
+
+		@Override
+		public void execute() throws DataCommandException {
+			this.used = this.connection;
+			if (this.failing) {
+				throw new DataCommandException("syntax error");
+			}
+		}
+	}
+
+	@Test
+	public void testBorrowAndReturn() throws Exception {
+
+		StubCommand cmd = new StubCommand();
+		cmd.execute(stubDataSource());
+
+		assertTrue(cmd.used != null);
+		assertNull(cmd.connection);
+		assertEquals(1, borrowed.get());
+		assertEquals(1, returned.get());
+	}
+
+	@Test
+	public void testReturnOnFailure() throws Exception {
+
+		StubCommand cmd = new StubCommand();
+		cmd.failing = true;
+		try {
+			cmd.execute(stubDataSource());
+			fail("DataCommandException expected");
+		} catch (DataCommandException e) {
+			// expected
+		}
+		assertEquals(1, borrowed.get());
+		assertEquals(1, returned.get());
+	}
+
+	@Test
+	public void testPoolConfiguration() throws Exception {
+
+		DataServicesConfiguration configuration = DataServicesConfiguration.getInstance();
+		try {
+			// without container the pool is created
+			configuration.setJndiName("java:comp/env/jdbc/ogcstatistics");
+			configuration.setJdbcURL("jdbc:postgresql://localhost:5432/testdb");
+			configuration.setMaxConnections(3);
+
+			DataSource dataSource = configuration.getDataSource();
+			assertTrue(dataSource instanceof BasicDataSource);
+			BasicDataSource pool = (BasicDataSource) dataSource;
+			assertEquals(3, pool.getMaxActive());
+			assertTrue(pool.getTestOnBorrow());
+			assertTrue(pool.getRemoveAbandoned());
+			assertSame(dataSource, configuration.getDataSource());
+
+			// a new configuration creates a new pool
+			configuration.setMaxConnections(4);
+			assertNotSame(dataSource, configuration.getDataSource());
+			assertEquals(4, ((BasicDataSource) configuration.getDataSource()).getMaxActive());
+		} finally {
+			configuration.setJndiName("");
+			configuration.closeConnection();
+		}
+	}
+
+	/**
+	 * @return a data source which counts the connections borrowed and closed
+	 */
+	private DataSource stubDataSource() {
+
+		final Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("close")) {
+							returned.incrementAndGet();
+						}
+						return null;
+					}
+				});
+		return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DataSource.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("getConnection")) {
+							borrowed.incrementAndGet();
+							return connection;
+						}
+						return null;
+					}
+				});
+	}
+}
@@ -0,0 +1,125 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that the inserted rows are counted before the transaction is committed.
+ */
+public class InsertCommandTest {
+
+	private final List<String> calls = new ArrayList<String>();
+
+	@Test
+	public void testCommitted() throws Exception {
+
+		InsertCommand cmd = new InsertCommand();
+		cmd.setRows(rows());
+		cmd.setConnection(stubConnection(new int[] { 1, 1 }));
+		cmd.execute();
+
+		assertTrue(calls.contains("commit"));
+		assertFalse(calls.contains("rollback"));
+	}
+
+	/**
+	 * In the parent table the rows routed to the partitions by the trigger are reported as not inserted
+	 */
+	@Test
+	public void testRoutedByTrigger() throws Exception {
+
+		InsertCommand cmd = new InsertCommand();
+		cmd.setRows(rows());
+		cmd.setConnection(stubConnection(new int[] { 0, 0 }));
+		cmd.execute();
+
+		assertTrue(calls.contains("commit"));
+		assertFalse(calls.contains("rollback"));
+	}
+
+	/**
+	 * A row which was not inserted in its partition rolls back the batch, nothing is committed
+	 */
+	@Test
+	public void testRolledBackBeforeCommit() throws Exception {
+
+		InsertCommand cmd = new InsertCommand();
+		cmd.setRows(rows());
+		cmd.setPartitions(new LogPartitions());
+		cmd.setConnection(stubConnection(new int[] { 1, 0 }));
+		try {
+			cmd.execute();
+			fail("DataCommandException expected");
+		} catch (DataCommandException e) {
+			// expected
+		}
+		assertFalse(calls.contains("commit"));
+		assertEquals(1, count("rollback"));
+	}
+
+	private int count(String call) {
+
+		int count = 0;
+		for (String c : calls) {
+			if (c.equals(call)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static List<OGCServiceLog> rows() {
+
+		return Arrays.asList(
+				new OGCServiceLog("testadmin", System.currentTimeMillis(), "WMS", "layer1", "GetMap", "org"),
+				new OGCServiceLog("testadmin", System.currentTimeMillis(), "WMS", "layer2", "GetMap", "org"));
+	}
+
+	/**
+	 * @return a connection recording the calls, whose statements return the given counts
+	 */
+	private Connection stubConnection(final int[] updatedRows) {
+
+		final PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { PreparedStatement.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("executeBatch")) {
+							return updatedRows;
+						}
+						if (method.getName().equals("execute")) {
+							// creation of the partition
+							return Boolean.FALSE;
+						}
+						return null;
+					}
+				});
+		return (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						calls.add(method.getName());
+						if (method.getName().equals("prepareStatement")) {
+							return statement;
+						}
+						return null;
+					}
+				});
+	}
+}
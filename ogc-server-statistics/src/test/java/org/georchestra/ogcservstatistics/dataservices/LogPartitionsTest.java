@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.dataservices;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the names of the partitions and the retention policy, without database.
+ */
+public class LogPartitionsTest {
+
+	@Test
+	public void testPartitionName() {
+
+		assertEquals("ogc_services_log_201403", LogPartitions.partitionName(2014, 3));
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2013, Calendar.DECEMBER, 31, 23, 59);
+		assertEquals("ogc_services_log_201312", LogPartitions.partitionName(calendar.getTime()));
+	}
+
+	@Test
+	public void testExpired() {
+
+		List<String> partitions = Arrays.asList("ogc_services_log_201401", "ogc_services_log_201212",
+				"ogc_services_log_201312", "ogc_services_log_201403", "ogc_services_log_201311",
+				"ogc_services_log_archive");
+
+		// 201403, 201402, 201401, 201312 are kept
+		assertEquals(Arrays.asList("ogc_services_log_201212", "ogc_services_log_201311"),
+				LogPartitions.expired(partitions, 2014, 3, 4));
+
+		// only the current month is kept
+		assertEquals(Arrays.asList("ogc_services_log_201212", "ogc_services_log_201311", "ogc_services_log_201312",
+				"ogc_services_log_201401"), LogPartitions.expired(partitions, 2014, 3, 1));
+
+		assertEquals(Collections.emptyList(), LogPartitions.expired(partitions, 2014, 3, 24));
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ *
+ */
+package org.georchestra.ogcservstatistics.log4j;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.georchestra.ogcservstatistics.dataservices.OGCServiceLog;
+import org.junit.Test;
+
+/**
+ * Test for {@link OGCServiceLogWriter}, the database is replaced by a list of batches.
+ */
+public class OGCServiceLogWriterTest {
+
+	private final List<Integer> batches = Collections.synchronizedList(new ArrayList<Integer>());
+
+	private class StubWriter extends OGCServiceLogWriter {
+
+		private volatile CountDownLatch database = new CountDownLatch(0);
+		private volatile boolean failing = false;
+
+		StubWriter(int queueSize, int batchSize, long flushInterval, File spillFile) {
+			super(queueSize, batchSize, flushInterval, spillFile);
+		}
+
+		@Override
+		void write(List<OGCServiceLog> batch) throws Exception {
+			database.await(5, TimeUnit.SECONDS);
+			if (failing) {
+				throw new Exception("database is down");
+			}
+			batches.add(batch.size());
+		}
+	}
+
+	@Test
+	public void testBatches() throws Exception {
+		StubWriter writer = new StubWriter(100, 10, 60000, null);
+		writer.database = new CountDownLatch(1);
+		writer.start();
+
+		// the first log is taken immediately, the writer then waits for the database
+		for (int i = 0; i < 25; i++) {
+			assertTrue(writer.offer(log("user" + i)));
+		}
+		writer.database.countDown();
+		writer.close(5000);
+
+		assertEquals(25, writer.getQueuedCount());
+		assertEquals(25, writer.getWrittenCount());
+		assertEquals(0, writer.getDroppedCount());
+		int total = 0;
+		for (Integer size : batches) {
+			assertTrue(size <= 10);
+			total += size;
+		}
+		assertEquals(25, total);
+		assertTrue(batches.size() < 25);
+	}
+
+	@Test
+	public void testFlushInterval() throws Exception {
+		StubWriter writer = new StubWriter(100, 10, 50, null);
+		writer.start();
+		writer.offer(log("user1"));
+
+		long timeout = System.currentTimeMillis() + 5000;
+		while (writer.getWrittenCount() == 0 && System.currentTimeMillis() < timeout) {
+			Thread.sleep(10);
+		}
+		// written without waiting for the batch to be complete
+		assertEquals(1, writer.getWrittenCount());
+		writer.close(5000);
+	}
+
+	@Test
+	public void testOverflowDrop() throws Exception {
+		StubWriter writer = new StubWriter(5, 5, 60000, null);
+		writer.database = new CountDownLatch(1);
+		writer.start();
+
+		int accepted = 0;
+		for (int i = 0; i < 20; i++) {
+			if (writer.offer(log("user" + i))) {
+				accepted++;
+			}
+		}
+		assertTrue(accepted < 20);
+		assertEquals(20 - accepted, writer.getDroppedCount());
+
+		writer.database.countDown();
+		writer.close(5000);
+		assertEquals(accepted, writer.getWrittenCount());
+
+		// closed: the logs are not queued anymore
+		assertFalse(writer.offer(log("late")));
+		assertEquals(20 - accepted + 1, writer.getDroppedCount());
+	}
+
+	@Test
+	public void testOverflowSpill() throws Exception {
+		File spillFile = File.createTempFile("ogc_services_log", ".copy");
+		spillFile.deleteOnExit();
+		StubWriter writer = new StubWriter(5, 5, 60000, spillFile);
+		writer.failing = true;
+		writer.start();
+
+		for (int i = 0; i < 3; i++) {
+			writer.offer(log("user" + i));
+		}
+		writer.close(5000);
+
+		assertEquals(0, writer.getWrittenCount());
+		assertEquals(0, writer.getDroppedCount());
+		assertEquals(3, writer.getSpilledCount());
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(spillFile), "UTF-8"));
+		try {
+			String line = reader.readLine();
+			String[] columns = line.split("\t", -1);
+			assertEquals(6, columns.length);
+			assertEquals("user0", columns[0]);
+			assertEquals("2015-06-01", columns[1]);
+			assertEquals("WMS", columns[2]);
+			assertEquals("GetMap\\twith tab", columns[4]);
+			assertEquals("\\N", columns[5]);
+		} finally {
+			reader.close();
+		}
+	}
+
+	private OGCServiceLog log(String user) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(2015, Calendar.JUNE, 1);
+
+		return new OGCServiceLog(user, calendar.getTime(), "WMS", "ign:commune", "GetMap\twith tab", null);
+	}
+}
@@ -0,0 +1,87 @@
+package org.georchestra.ogcservstatistics.log4j;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.georchestra.ogcservstatistics.util.Utility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Cost of the parsing done by the appender for each logged request (isOGCService then parseLog),
+ * single pass parser against the previous one, on messages logged by the security proxy.
+ * <p>
+ * Run with: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.georchestra.ogcservstatistics.log4j.OGCServiceParserBenchmark</code>
+ * </p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+public class OGCServiceParserBenchmark {
+
+	private static final String[] REQUESTS = {
+		"getMap", "testadmin|2015/06/01|http://sdi.georchestra.org/geoserver/wms?SERVICE=WMS&LAYERS=ign%3Acommune%2Cign%3Acanton&TRANSPARENT=true&VERSION=1.1.1&FORMAT=image%2Fpng&REQUEST=GetMap&STYLES=&SRS=EPSG%3A2154&BBOX=358976.61292821,6395407.8064641,430656.57422103,6467087.7677569&WIDTH=512&HEIGHT=512|psc",
+		"getFeatureInfo", "testuser|2015/06/01|http://sdi.georchestra.org/geoserver/ign/wms?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetFeatureInfo&LAYERS=ign%3Acommune&QUERY_LAYERS=ign%3Acommune&STYLES=&BBOX=358085.648684%2C6401524.07185%2C494305.575125%2C6441144.050455&FEATURE_COUNT=1500&HEIGHT=283&WIDTH=973&FORMAT=image%2Fpng&INFO_FORMAT=application%2Fvnd.ogc.gml&SRS=EPSG%3A2154&X=508&Y=147|psc",
+		"getCapabilities", "anonymousUser|2015/06/01|http://sdi.georchestra.org/geoserver/wms?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetCapabilities|",
+		"getTile", "anonymousUser|2015/06/01|http://sdi.georchestra.org/geoserver/gwc/service/wmts?service=WMTS&request=GetTile&version=1.0.0&layer=etopo2&style=default&format=image/png&TileMatrixSet=EPSG:3857&TileMatrix=EPSG:3857:10&TileRow=1&TileCol=3|",
+		"notOgc", "testuser|2015/06/01|http://sdi.georchestra.org/mapfishapp/ws/wmc/|psc"
+	};
+
+	@Param({ "getMap", "getFeatureInfo", "getCapabilities", "getTile", "postGetFeature", "notOgc" })
+	public String request;
+
+	private String message;
+	private LoggingEvent event;
+
+	/**
+	 * postGetFeature is loaded from postWfsGetFeature.txt
+	 */
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < REQUESTS.length; i += 2) {
+			if (REQUESTS[i].equals(this.request)) {
+				this.message = REQUESTS[i + 1];
+			}
+		}
+		if (this.message == null) {
+			this.message = "testuser|2015/06/01|" + Utility.loadRequest("postWfsGetFeature.txt") + "|psc";
+		}
+		this.event = new LoggingEvent(Logger.class.getName(), Logger.getLogger(OGCServiceParserBenchmark.class), Level.INFO, this.message, null);
+	}
+
+	@Benchmark
+	public void singlePass(Blackhole blackhole) throws Exception {
+		if (OGCServiceParser.isOGCService(this.message)) {
+			blackhole.consume(OGCServiceParser.parseLog(this.message));
+		}
+	}
+
+	@Benchmark
+	public void legacy(Blackhole blackhole) throws Exception {
+		if (LegacyOGCServiceParser.isOGCService(this.event)) {
+			blackhole.consume(LegacyOGCServiceParser.parseLog(this.event.getRenderedMessage()));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder().include(OGCServiceParserBenchmark.class.getSimpleName()).build()).run();
+	}
+}
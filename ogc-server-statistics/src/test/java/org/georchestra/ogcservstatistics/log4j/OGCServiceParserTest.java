@@ -1,9 +1,15 @@
 package org.georchestra.ogcservstatistics.log4j;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
-import java.util.Map;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.List;
 
+import org.georchestra.ogcservstatistics.dataservices.OGCServiceLog;
+import org.georchestra.ogcservstatistics.util.Utility;
 import org.junit.Test;
 
 public class OGCServiceParserTest {
@@ -26,16 +32,75 @@ public class OGCServiceParserTest {
 				 "anonymousUser|2013/12/18|http://localhost/mapserver?REQUEsT=UNKOWNOPERATION"
 		 };
 		 for (int i = 0; i < REQUESTS_TO_BE_PARSED.length; i++) {
-			 Map<String, Object> lst = OGCServiceParser.parseLog(REQUESTS_TO_BE_PARSED[i]).get(0);
+			 OGCServiceLog lst = OGCServiceParser.parseLog(REQUESTS_TO_BE_PARSED[i]).get(0);
 
-			 assertTrue(((String) lst.get("service")).length() > 0);
-			 assertTrue(((String) lst.get("request")).length() > 0);
+			 assertTrue(lst.getService().length() > 0);
+			 assertTrue(lst.getRequest().length() > 0);
 		 }
 		 for (int i = 0; i < NONEXISTANT_OPERATION.length; i++) {
-			 Map<String, Object> lst = OGCServiceParser.parseLog(NONEXISTANT_OPERATION[i]).get(0);
+			 OGCServiceLog lst = OGCServiceParser.parseLog(NONEXISTANT_OPERATION[i]).get(0);
 
-			 assertTrue(((String) lst.get("service")).length() == 0);
-			 assertTrue(((String) lst.get("request")).length() == 0);
+			 assertTrue(lst.getService().length() == 0);
+			 assertTrue(lst.getRequest().length() == 0);
 		 }
 	}
+
+	@Test
+	public void testParseLog() throws Exception {
+
+		List<OGCServiceLog> logs = OGCServiceParser.parseLog("jdoe|2015/06/01|http://www.someserver.com/geoserver/ign/wms?SERVICE=WMS&VERSION=1.1.1&REQUEST=GetFeatureInfo&LAYERS=ign%3Acommune&QUERY_LAYERS=ign%3Acommune,ign%3Acanton&STYLES=&X=508&Y=147|psc");
+		assertEquals(2, logs.size());
+		OGCServiceLog log = logs.get(0);
+		assertEquals("jdoe", log.getUser());
+		assertEquals(new SimpleDateFormat("yyyy/MM/dd").parse("2015/06/01"), log.getDate());
+		assertEquals("WMS", log.getService());
+		assertEquals("getfeatureinfo", log.getRequest());
+		assertEquals("ign:commune", log.getLayer());
+		assertEquals("psc", log.getOrg());
+		assertEquals("ign:canton", logs.get(1).getLayer());
+
+		// the longest request name is recognized
+		log = OGCServiceParser.parseLog("jdoe|2015/06/01|http://localhost/geoserver/wfs?SERVICE=WFS&REQUEST=GetFeatureWithLock&TYPENAME=topp:states|").get(0);
+		assertEquals("getfeaturewithlock", log.getRequest());
+		// the last layer of the request is complete
+		assertEquals("topp:states", log.getLayer());
+		assertEquals("", log.getOrg());
+
+		// GetLegendGraphic does not require the service
+		log = OGCServiceParser.parseLog("jdoe|2015/06/01|http://localhost/geoserver/wms?request=GetLegendGraphic&format=image%2Fpng&layer=paln_eau_federaux&SCALE=4000000|psc").get(0);
+		assertEquals("WMS", log.getService());
+		assertEquals("getlegendgraphic", log.getRequest());
+		assertEquals("paln_eau_federaux", log.getLayer());
+
+		// without layer
+		logs = OGCServiceParser.parseLog("jdoe|2015/06/01|http://localhost/geoserver/wms?SERVICE=WMS&REQUEST=GetCapabilities|psc");
+		assertEquals(1, logs.size());
+		assertEquals("", logs.get(0).getLayer());
+	}
+
+	@Test
+	public void testParsePost() throws Exception {
+
+		String request = Utility.loadRequest("postWfsGetFeature.txt");
+		assertTrue(OGCServiceParser.isOGCService(request));
+
+		OGCServiceLog log = OGCServiceParser.parseLog("jdoe|2015/06/01|" + request + "|psc").get(0);
+		assertEquals("WFS", log.getService());
+		assertEquals("ign:commune", log.getLayer());
+	}
+
+	@Test
+	public void testIsOGCService() throws Exception {
+
+		assertTrue(OGCServiceParser.isOGCService("jdoe|2015/06/01|http://localhost/geoserver/wms?service=wms&request=GetMap|psc"));
+		assertTrue(OGCServiceParser.isOGCService("jdoe|2015/06/01|http://localhost/geoserver/wms?request=GetLegendGraphic|psc"));
+		assertFalse(OGCServiceParser.isOGCService("jdoe|2015/06/01|http://localhost/geonetwork/srv/eng/csw?SERVICE=CSW|psc"));
+		assertFalse(OGCServiceParser.isOGCService("jdoe|2015/06/01|http://localhost/mapfishapp/|psc"));
+	}
+
+	@Test(expected = ParseException.class)
+	public void testUnformattedMessage() throws Exception {
+
+		OGCServiceParser.parseLog("http://localhost/geoserver/wms?SERVICE=WMS");
+	}
 }
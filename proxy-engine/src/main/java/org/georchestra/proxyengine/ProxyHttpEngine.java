@@ -0,0 +1,453 @@
+package org.georchestra.proxyengine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+
+/**
+ * Sends the requests of the OGC proxies (mapfishapp and catalogapp) to the remote hosts.
+ * <p>
+ * The connections are kept in a pool and reused as long as the responses are entirely read
+ * or released with {@link #release(CloseableHttpResponse)}. At most
+ * <code>maxConnectionsPerHost</code> requests are sent to a host at the same time, the
+ * following ones wait for a connection <code>connectTimeout</code> ms at most.
+ * </p>
+ * <p>
+ * The client neither stores cookies, since it is shared by all the users, nor decompresses
+ * the responses: the proxies forward them as they are sent, and only decompress a copy of
+ * their beginning when they have to find the charset (see {@link #readHead}).
+ * </p>
+ * <p>
+ * The number of requests, errors, bytes received and the latency are counted by host
+ * (see {@link #getStatistics()}). They are also published through JMX, as the
+ * <code>UpstreamStatistics</code> attribute of
+ * <code>org.georchestra.proxyengine:type=ProxyHttpEngine,name=&lt;name&gt;</code>.
+ * </p>
+ */
+public class ProxyHttpEngine implements ProxyHttpEngineMBean {
+
+    private static final Log LOG = LogFactory.getLog(ProxyHttpEngine.class.getPackage().getName());
+
+    /**
+     * Content encodings the proxies can decode
+     */
+    private static final String[] DECODED_ENCODINGS = { "gzip", "deflate" };
+
+    private int maxConnectionsPerHost = 20;
+    private int maxConnections = 200;
+    private int connectTimeout = 30000;
+    private int readTimeout = 300000;
+    private int bufferSize = 32 * 1024;
+    private String name = "ogcproxy";
+
+    private volatile CloseableHttpClient client;
+    private PoolingHttpClientConnectionManager connectionManager;
+    private ObjectName objectName;
+
+    private final ConcurrentMap<String, UpstreamStatistics> statistics = new ConcurrentHashMap<String, UpstreamStatistics>();
+
+    /**
+     * Creates the connection pool, called once the properties are set. The pool is
+     * otherwise created by the first request.
+     */
+    public synchronized void init() {
+        if (client != null) {
+            return;
+        }
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setStaleConnectionCheckEnabled(true)
+                .build();
+
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .disableCookieManagement()
+                .disableContentCompression()
+                .build();
+
+        try {
+            ObjectName on = new ObjectName("org.georchestra.proxyengine:type=ProxyHttpEngine,name="
+                    + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            LOG.warn("The statistics of the proxy " + name + " cannot be published through JMX", e);
+        }
+    }
+
+    /**
+     * Closes the connections
+     */
+    public synchronized void destroy() throws IOException {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                LOG.warn("Cannot unregister " + objectName, e);
+            }
+            objectName = null;
+        }
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    /**
+     * Sends the request to the remote host, waits until a connection is available.
+     * The latency, the errors and the bytes read from the response are counted for the host.
+     *
+     * @return the response, it must be closed
+     * @throws IOException if the host cannot be reached, or is still busy after connectTimeout ms
+     */
+    public CloseableHttpResponse execute(HttpUriRequest request) throws IOException {
+        CloseableHttpClient c = client;
+        if (c == null) {
+            init();
+            c = client;
+        }
+        String host = URIUtils.extractHost(request.getURI()).toHostString();
+        long start = System.currentTimeMillis();
+        CloseableHttpResponse response;
+        try {
+            response = c.execute(request);
+        } catch (IOException e) {
+            record(host, System.currentTimeMillis() - start, true);
+            throw e;
+        }
+        record(host, System.currentTimeMillis() - start, response.getStatusLine().getStatusCode() >= 500);
+
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            final UpstreamStatistics stats = statistics(host);
+            response.setEntity(new HttpEntityWrapper(entity) {
+                @Override
+                public InputStream getContent() throws IOException {
+                    return count(stats, super.getContent());
+                }
+            });
+        }
+        return response;
+    }
+
+    /**
+     * Records a request to the host
+     *
+     * @param latency time (in ms) until the host has answered
+     * @param failed true if the request has failed
+     */
+    private void record(String host, long latency, boolean failed) {
+        UpstreamStatistics stats = statistics(host);
+        stats.requests.incrementAndGet();
+        stats.latency.addAndGet(latency);
+        if (failed) {
+            stats.errors.incrementAndGet();
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(host + ": " + stats);
+        }
+    }
+
+    /**
+     * Counts the bytes read from the host, whether they are forwarded, looked at or skipped
+     */
+    private static InputStream count(final UpstreamStatistics stats, InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    stats.bytes.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    stats.bytes.addAndGet(read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Reads what is left of the response and closes it, so that the connection goes back to the pool.
+     * The responses which are too long to be skipped close the connection.
+     */
+    public void release(CloseableHttpResponse response) {
+        try {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                InputStream in = entity.getContent();
+                byte[] buf = new byte[bufferSize];
+                int skipped = 0;
+                int len;
+                while (skipped < 4 * bufferSize && (len = in.read(buf)) > 0) {
+                    skipped += len;
+                }
+                if (skipped < 4 * bufferSize) {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            // the connection is discarded
+        } finally {
+            try {
+                response.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    /**
+     * Copies the stream with a large buffer
+     *
+     * @return the number of bytes copied
+     */
+    public long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buf = new byte[bufferSize];
+        long count = 0;
+        int len;
+        while ((len = in.read(buf)) > 0) {
+            out.write(buf, 0, len);
+            count += len;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the beginning of a response, until its first <code>size</code> decoded bytes are known
+     * or <code>4 * bufferSize</code> bytes have been read. The bytes read, as they are sent by the
+     * remote host, are kept in <code>raw</code> to be forwarded unchanged.
+     *
+     * @param contentEncoding Content-Encoding of the response, null if it is not encoded
+     * @return the decoded beginning of the response, at most <code>size</code> bytes
+     * @throws UnsupportedOperationException if the response is neither gzip nor deflate encoded
+     */
+    public byte[] readHead(InputStream in, String contentEncoding, int size, ByteArrayOutputStream raw)
+            throws IOException {
+        byte[] buf = new byte[bufferSize];
+        byte[] head = new byte[0];
+        int len;
+        while (head.length < size && raw.size() < 4 * bufferSize && (len = in.read(buf)) > 0) {
+            raw.write(buf, 0, len);
+            head = decode(raw.toByteArray(), contentEncoding, size);
+        }
+        return head;
+    }
+
+    /**
+     * Decodes the beginning of a response, which may be truncated
+     */
+    private static byte[] decode(byte[] raw, String contentEncoding, int size) throws IOException {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(size);
+        try {
+            InputStream in = new ByteArrayInputStream(raw);
+            if ("gzip".equalsIgnoreCase(contentEncoding)) {
+                in = new GZIPInputStream(in);
+            } else if ("deflate".equalsIgnoreCase(contentEncoding)) {
+                in = new InflaterInputStream(in);
+            } else if (contentEncoding != null) {
+                throw new UnsupportedOperationException("Please handle the stream when it is encoded in "
+                        + contentEncoding);
+            }
+            byte[] buf = new byte[size];
+            int len;
+            while (decoded.size() < size && (len = in.read(buf, 0, size - decoded.size())) > 0) {
+                decoded.write(buf, 0, len);
+            }
+        } catch (EOFException e) {
+            // the rest of the response has not been read yet
+        }
+        return decoded.toByteArray();
+    }
+
+    /**
+     * Keeps the content encodings of the client the proxies can decode: they have to inflate
+     * the beginning of the compressed responses whose charset is unknown.
+     *
+     * @param acceptEncoding Accept-Encoding header of the client
+     * @return the header to send to the remote host, null if none of the encodings is supported
+     */
+    public static String acceptedEncodings(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        StringBuilder accepted = new StringBuilder();
+        for (String coding : acceptEncoding.split(",")) {
+            coding = coding.trim();
+            String name = coding.split(";")[0].trim();
+            for (String decoded : DECODED_ENCODINGS) {
+                if (decoded.equalsIgnoreCase(name)) {
+                    if (accepted.length() > 0) {
+                        accepted.append(',');
+                    }
+                    accepted.append(coding);
+                }
+            }
+        }
+        return (accepted.length() == 0) ? null : accepted.toString();
+    }
+
+    /**
+     * Converts the url requested by the client. The characters which are not allowed in a URI
+     * (spaces, brackets...) are quoted, as the clients do not always encode the OGC parameters.
+     *
+     * @throws URISyntaxException if the url cannot be converted
+     */
+    public static URI toURI(URL url) throws URISyntaxException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(),
+                    url.getQuery(), url.getRef());
+        }
+    }
+
+    /**
+     * @return the statistics of each host, by host name
+     */
+    public Map<String, UpstreamStatistics> getStatistics() {
+        return new TreeMap<String, UpstreamStatistics>(statistics);
+    }
+
+    @Override
+    public String[] getUpstreamStatistics() {
+        List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, UpstreamStatistics> entry : getStatistics().entrySet()) {
+            lines.add(entry.getKey() + ": " + entry.getValue());
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    private UpstreamStatistics statistics(String host) {
+        UpstreamStatistics stats = statistics.get(host);
+        if (stats == null) {
+            UpstreamStatistics newStats = new UpstreamStatistics();
+            stats = statistics.putIfAbsent(host, newStats);
+            if (stats == null) {
+                stats = newStats;
+            }
+        }
+        return stats;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setMaxConnectionsPerHost(int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Name of the engine in JMX, one per webapp
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Counters of the requests sent to a host
+     */
+    public static class UpstreamStatistics {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong latency = new AtomicLong();
+
+        public long getRequests() {
+            return requests.get();
+        }
+
+        /**
+         * @return the number of requests which could not be sent, or were answered with a 5xx status
+         */
+        public long getErrors() {
+            return errors.get();
+        }
+
+        /**
+         * @return the number of bytes received from the host, as they are sent (compressed or not)
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        /**
+         * @return the mean time (in ms) until the host answers
+         */
+        public long getMeanLatency() {
+            long count = requests.get();
+            return (count == 0) ? 0 : latency.get() / count;
+        }
+
+        @Override
+        public String toString() {
+            return getRequests() + " requests, " + getErrors() + " errors, " + getBytes() + " bytes, "
+                    + getMeanLatency() + " ms mean latency";
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package org.georchestra.proxyengine;
+
+/**
+ * Statistics of a {@link ProxyHttpEngine} published through JMX
+ */
+public interface ProxyHttpEngineMBean {
+
+    /**
+     * @return the requests, errors, bytes received and mean latency of each remote host,
+     *         one line per host
+     */
+    String[] getUpstreamStatistics();
+}
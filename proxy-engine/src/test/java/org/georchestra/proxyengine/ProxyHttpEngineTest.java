@@ -0,0 +1,158 @@
+package org.georchestra.proxyengine;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.ObjectName;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.georchestra.proxyengine.ProxyHttpEngine.UpstreamStatistics;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class ProxyHttpEngineTest {
+
+    /**
+     * Only the encodings the proxies can decode are sent to the remote host
+     */
+    @Test
+    public void testAcceptedEncodings() {
+        assertEquals("gzip,deflate", ProxyHttpEngine.acceptedEncodings("gzip,deflate"));
+        assertEquals("gzip,deflate", ProxyHttpEngine.acceptedEncodings("gzip, deflate, sdch, br"));
+        assertEquals("GZIP;q=1.0", ProxyHttpEngine.acceptedEncodings("GZIP;q=1.0, identity; q=0.5, *;q=0"));
+        assertNull(ProxyHttpEngine.acceptedEncodings("br"));
+        assertNull(ProxyHttpEngine.acceptedEncodings(null));
+    }
+
+    @Test
+    public void testToURI() throws Exception {
+        assertEquals("http://localhost/wms?LAYERS=a%20b",
+                ProxyHttpEngine.toURI(new URL("http://localhost/wms?LAYERS=a%20b")).toASCIIString());
+        assertEquals("http://localhost/wms?LAYERS=a%20b&BBOX=[1,2]",
+                ProxyHttpEngine.toURI(new URL("http://localhost/wms?LAYERS=a b&BBOX=[1,2]")).toASCIIString());
+    }
+
+    @Test
+    public void testCopy() throws Exception {
+        ProxyHttpEngine engine = new ProxyHttpEngine();
+        engine.setBufferSize(16);
+        byte[] content = new byte[100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        assertEquals(100, engine.copy(new ByteArrayInputStream(content), out));
+        assertEquals(100, out.size());
+        assertEquals(99, out.toByteArray()[99]);
+    }
+
+    /**
+     * The beginning of a gzip response is decoded, the bytes read are kept as they were sent
+     */
+    @Test
+    public void testReadHead() throws Exception {
+        ProxyHttpEngine engine = new ProxyHttpEngine();
+        engine.setBufferSize(256);
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><root>");
+        for (int i = 0; i < 1000; i++) {
+            xml.append("<value>").append(i).append("</value>");
+        }
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(gzipped);
+        out.write(xml.toString().getBytes("UTF-8"));
+        out.close();
+        byte[] content = gzipped.toByteArray();
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        byte[] head = engine.readHead(new ByteArrayInputStream(content), "gzip", 1024, raw);
+
+        assertEquals(1024, head.length);
+        assertEquals(xml.substring(0, 1024), new String(head, "UTF-8"));
+        assertTrue(raw.size() < content.length);
+        for (int i = 0; i < raw.size(); i++) {
+            assertEquals(content[i], raw.toByteArray()[i]);
+        }
+    }
+
+    /**
+     * The requests, errors and bytes are counted by host, and published through JMX
+     */
+    @Test
+    public void testStatistics() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "hello".getBytes("UTF-8");
+                int status = exchange.getRequestURI().getPath().equals("/ko") ? 500 : 200;
+                exchange.sendResponseHeaders(status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+
+        ServerSocket closed = new ServerSocket(0);
+        int closedPort = closed.getLocalPort();
+        closed.close();
+
+        ProxyHttpEngine engine = new ProxyHttpEngine();
+        engine.setName("test");
+        engine.setConnectTimeout(1000);
+        engine.init();
+        try {
+            String host = "localhost:" + server.getAddress().getPort();
+
+            CloseableHttpResponse response = engine.execute(new HttpGet("http://" + host + "/ok"));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            engine.copy(response.getEntity().getContent(), out);
+            engine.release(response);
+            assertEquals("hello", out.toString("UTF-8"));
+
+            // the content left is read by release
+            engine.release(engine.execute(new HttpGet("http://" + host + "/ko")));
+
+            try {
+                engine.execute(new HttpGet("http://localhost:" + closedPort + "/"));
+            } catch (IOException e) {
+                // expected, nothing listens on this port
+            }
+
+            UpstreamStatistics stats = engine.getStatistics().get(host);
+            assertEquals(2, stats.getRequests());
+            assertEquals(1, stats.getErrors());
+            assertEquals(10, stats.getBytes());
+            assertTrue(stats.getMeanLatency() >= 0);
+
+            UpstreamStatistics refused = engine.getStatistics().get("localhost:" + closedPort);
+            assertEquals(1, refused.getRequests());
+            assertEquals(1, refused.getErrors());
+            assertEquals(0, refused.getBytes());
+
+            ObjectName name = new ObjectName("org.georchestra.proxyengine:type=ProxyHttpEngine,name=\"test\"");
+            assertArrayEquals(engine.getUpstreamStatistics(),
+                    (String[]) ManagementFactory.getPlatformMBeanServer().getAttribute(name, "UpstreamStatistics"));
+        } finally {
+            engine.destroy();
+            server.stop(0);
+        }
+    }
+}
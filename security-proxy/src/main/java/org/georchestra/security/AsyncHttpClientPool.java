@@ -0,0 +1,190 @@
+package org.georchestra.security;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking http client used by the asynchronous mode of the {@link Proxy}.
+ * <p>
+ * A small, fixed number of I/O threads multiplexes all the connections to the
+ * targets, so a slow target does not hold a servlet container thread for the
+ * whole round trip. The connections are pooled and kept alive, the same way as
+ * in the {@link HttpClientPool}.
+ * </p>
+ * <p>
+ * The I/O threads never write to the servlet responses: the blocking writes to
+ * the clients are done by a separate pool of worker threads.
+ * </p>
+ */
+public class AsyncHttpClientPool {
+    protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
+
+    private int ioThreadCount = Runtime.getRuntime().availableProcessors();
+    private int workerThreadCount = 50;
+    private int maxTotalConnections = 1000;
+    private int maxConnectionsPerRoute = 200;
+    private int socketTimeout = 300000;
+    private int connectionTimeout = 30000;
+    private long asyncTimeout = 300000;
+    private long idleConnectionTimeout = 60000;
+    private long evictionInterval = 5000;
+
+    private PoolingNHttpClientConnectionManager connectionManager;
+    private CloseableHttpAsyncClient client;
+    private ScheduledExecutorService evictor;
+    private ExecutorService workers;
+
+    /**
+     * Starts the I/O reactor, called when the application context is loaded.
+     */
+    public synchronized void init() throws IOException {
+        if (client != null) {
+            return;
+        }
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreadCount)
+                .setSoTimeout(socketTimeout)
+                .setConnectTimeout(connectionTimeout)
+                .build();
+        connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setSocketTimeout(socketTimeout)
+                .setConnectTimeout(connectionTimeout)
+                .setRedirectsEnabled(false)
+                .build();
+
+        // cookies are forwarded by the HeadersManagementStrategy, they must not be shared between users
+        client = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .disableCookieManagement()
+                .build();
+        client.start();
+
+        workers = Executors.newFixedThreadPool(workerThreadCount,
+                new ThreadFactoryBuilder().setNameFormat("security-proxy-async-worker-%d").setDaemon(true).build());
+
+        evictor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("security-proxy-async-connection-evictor").setDaemon(true).build());
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the I/O reactor and closes the connections, called when the application context is closed.
+     */
+    public synchronized void destroy() throws IOException {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+        if (client != null) {
+            client.close();
+            client = null;
+        }
+    }
+
+    /**
+     * Sends the request. The response is handed to the consumer by the I/O threads, then the callback is notified.
+     */
+    public <T> Future<T> execute(HttpUriRequest request, HttpAsyncResponseConsumer<T> consumer, FutureCallback<T> callback) {
+        if (client == null) {
+            throw new IllegalStateException("The asynchronous http client has not been started");
+        }
+        return client.execute(HttpAsyncMethods.create(request), consumer, callback);
+    }
+
+    /**
+     * @return the threads writing the responses to the clients, so that the I/O threads are not blocked
+     */
+    public ExecutorService getWorkers() {
+        if (workers == null) {
+            throw new IllegalStateException("The asynchronous http client has not been started");
+        }
+        return workers;
+    }
+
+    /**
+     * @return the leased, pending and available connections of the pool
+     */
+    public PoolStats getPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return the max time (in ms) a proxied request may stay detached from its container thread
+     */
+    public long getAsyncTimeout() {
+        return asyncTimeout;
+    }
+
+    public void setIoThreadCount(int ioThreadCount) {
+        this.ioThreadCount = ioThreadCount;
+    }
+
+    public void setWorkerThreadCount(int workerThreadCount) {
+        this.workerThreadCount = workerThreadCount;
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public void setAsyncTimeout(long asyncTimeout) {
+        this.asyncTimeout = asyncTimeout;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+}
@@ -21,4 +21,6 @@ public class HeaderNames {
     public static final String LOCATION = "location";
     public static final String TRANSFER_ENCODING = "Transfer-Encoding";
     public static final String CHUNKED = "chunked";
+    public static final String CONNECTION = "Connection";
+    public static final String KEEP_ALIVE = "Keep-Alive";
 }
@@ -7,6 +7,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 
 public abstract class HeaderProvider {
@@ -26,4 +27,11 @@ public abstract class HeaderProvider {
         return Collections.emptyList();
     }
 
+    /**
+     * Called by {@link HeadersManagementStrategy#copyResponseHeaders(HttpServletRequest, String, HttpResponse,
+     * javax.servlet.http.HttpServletResponse, java.util.Map)} once the response of the proxied request has been received.
+     */
+    protected void responseReceived(HttpServletRequest originalRequest, HttpResponse proxyResponse) {
+    }
+
 }
@@ -7,21 +7,25 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.message.BasicHeader;
 import org.springframework.util.StringUtils;
+import org.springframework.web.util.WebUtils;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import static org.georchestra.security.HeaderNames.ACCEPT_ENCODING;
+import static org.georchestra.security.HeaderNames.CONNECTION;
 import static org.georchestra.security.HeaderNames.CONTENT_LENGTH;
 import static org.georchestra.security.HeaderNames.COOKIE_ID;
 import static org.georchestra.security.HeaderNames.HOST;
+import static org.georchestra.security.HeaderNames.KEEP_ALIVE;
 import static org.georchestra.security.HeaderNames.LOCATION;
 import static org.georchestra.security.HeaderNames.REFERER_HEADER_NAME;
 import static org.georchestra.security.HeaderNames.SEC_PROXY;
@@ -32,6 +36,11 @@ import static org.georchestra.security.HeaderNames.TRANSFER_ENCODING;
 /**
  * A strategy for copying headers from the request to the proxied request and
  * the same for the response headers.
+ * <p>
+ * The strategy is shared by all the requests and holds no per request state: the
+ * configuration is compiled into immutable structures when it is set, so the
+ * requests never contend on it.
+ * </p>
  * 
  * @author jeichar
  */
@@ -41,53 +50,43 @@ public class HeadersManagementStrategy {
     /**
      * If true (default is false) AcceptEncoding headers are removed from request headers
      */
-    private boolean noAcceptEncoding = false;
-    private List<HeaderProvider> headerProviders = Collections.emptyList(); 
-    private List<HeaderFilter> filters = new ArrayList<HeaderFilter>(1);
-    private String referer = null;
-
-    public HeadersManagementStrategy() {
-        filters.add(new SecurityRequestHeaderFilter());
-    }
+    private volatile boolean noAcceptEncoding = false;
+    private volatile HeaderProvider[] headerProviders = new HeaderProvider[0];
+    private volatile HeaderFilter[] filters = new HeaderFilter[] { new SecurityRequestHeaderFilter() };
+    private volatile String referer = null;
+    /**
+     * Names of the request headers which are never copied, case insensitive
+     */
+    private volatile Set<String> ignoredRequestHeaders = ignoredRequestHeaders(false, null);
 
     /**
      * Copies the request headers from the original request to the proxy request.  It may modify the
      * headers slightly
      */
     @SuppressWarnings("unchecked")
-    public synchronized void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest) {
+    public void configureRequestHeaders(HttpServletRequest originalRequest, HttpRequestBase proxyRequest) {
         Enumeration<String> headerNames = originalRequest.getHeaderNames();
         String headerName = null;
+        final Set<String> ignoredRequestHeaders = this.ignoredRequestHeaders;
+        final String referer = this.referer;
 
-        StringBuilder headersLog = new StringBuilder("Request Headers:\n");
-        headersLog
-                .append("==========================================================\n");
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Request Headers:\n");
+            headersLog
+                    .append("==========================================================\n");
+        }
         if (referer != null) {
-            addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, this.referer);
+            addHeaderToRequestAndLog(proxyRequest, headersLog, REFERER_HEADER_NAME, referer);
         }
         while (headerNames.hasMoreElements()) {
             headerName = headerNames.nextElement();
-            if (headerName.compareToIgnoreCase(CONTENT_LENGTH) == 0) {
-                continue;
-            }
-            if (headerName.equalsIgnoreCase(COOKIE_ID)) {
+            if (ignoredRequestHeaders.contains(headerName)) {
                 continue;
             }
             if (filter(originalRequest, headerName, proxyRequest)) {
                 continue;
             }
-            if (noAcceptEncoding && headerName.equalsIgnoreCase(ACCEPT_ENCODING)) {
-                continue;
-            }
-            if (headerName.equalsIgnoreCase(HOST)) {
-                continue;
-            }
-            if (headerName.equalsIgnoreCase(SEC_USERNAME) || headerName.equalsIgnoreCase(SEC_ROLES) ) {
-                continue;
-            }
-            if (referer != null && headerName.equalsIgnoreCase(REFERER_HEADER_NAME)) {
-                continue;
-            }
             String value = originalRequest.getHeader(headerName);
             addHeaderToRequestAndLog(proxyRequest, headersLog, headerName, value);
         }
@@ -105,35 +104,60 @@ public class HeadersManagementStrategy {
                     proxyRequest.getHeaders(header.getName()).length > 0) {
                     Header[] originalHeaders = proxyRequest.getHeaders(header.getName());
                     for (Header originalHeader : originalHeaders) {
-                        headersLog.append("\t" + originalHeader.getName());
-                        headersLog.append("=");
-                        headersLog.append(originalHeader.getValue());
-                        headersLog.append("\n");
+                        log(headersLog, originalHeader.getName(), originalHeader.getValue());
                     }
                 } else {
                     proxyRequest.addHeader(header);
-                    headersLog.append("\t" + header.getName());
-                    headersLog.append("=");
-                    headersLog.append(header.getValue());
-                    headersLog.append("\n");
+                    log(headersLog, header.getName(), header.getValue());
                 }
             }
         }
 
-        headersLog
-                .append("==========================================================");
+        if (headersLog != null) {
+            headersLog
+                    .append("==========================================================");
 
-        logger.trace(headersLog.toString());
+            logger.trace(headersLog.toString());
+        }
     }
 
     private void addHeaderToRequestAndLog(HttpRequestBase proxyRequest, StringBuilder headersLog, String headerName, String value) {
         proxyRequest.addHeader(new BasicHeader(headerName, value));
-        headersLog.append("\t" + headerName);
-        headersLog.append("=");
-        headersLog.append(value);
-        headersLog.append("\n");
+        log(headersLog, headerName, value);
+    }
+
+    /**
+     * Appends the header to the log, if the log is enabled (not null)
+     */
+    private static void log(StringBuilder headersLog, String headerName, Object value) {
+        if (headersLog != null) {
+            headersLog.append('\t').append(headerName).append('=').append(value).append('\n');
+        }
+    }
+
+    /**
+     * Computes the names of the request headers which are not copied to the proxy request, whatever the filters.
+     */
+    private static Set<String> ignoredRequestHeaders(boolean noAcceptEncoding, String referer) {
+        Set<String> names = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+        names.add(CONTENT_LENGTH);
+        names.add(COOKIE_ID);
+        names.add(HOST);
+        names.add(SEC_USERNAME);
+        names.add(SEC_ROLES);
+        // hop-by-hop headers: the connections to the targets are pooled and kept alive by the proxy
+        names.add(CONNECTION);
+        names.add(KEEP_ALIVE);
+        if (noAcceptEncoding) {
+            names.add(ACCEPT_ENCODING);
+        }
+        if (referer != null) {
+            names.add(REFERER_HEADER_NAME);
+        }
+        return Collections.unmodifiableSet(names);
     }
 
+    @SuppressWarnings("unchecked")
     private void handleRequestCookies(HttpServletRequest originalRequest, HttpRequestBase proxyRequest,
                                       StringBuilder headersLog) {
 
@@ -153,26 +177,27 @@ public class HeadersManagementStrategy {
         }
         HttpSession session = originalRequest.getSession();
         String requestPath = proxyRequest.getURI().getPath();
-        if(session != null && session.getAttribute(HeaderNames.JSESSION_ID)!=null) {
-            Map<String,String> jessionIds = (Map) session.getAttribute(HeaderNames.JSESSION_ID);
+        // the map is never modified once stored in the session (see storeJsessionHeader), no lock is needed to read it
+        Map<String,String> jessionIds = (session == null) ? null : (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
+        if(jessionIds != null) {
             String currentPath = null;
             String currentId = null;
-            for (String path : jessionIds.keySet()) {
+            for (Map.Entry<String, String> jessionId : jessionIds.entrySet()) {
                 // see https://www.owasp.org/index.php/HttpOnly
                 // removing extra suffixes for JSESSIONID cookie ("; HttpOnly")
                 // This is related to some issues with newer versions of tomcat
                 // and session loss, e.g.:
                 // https://github.com/georchestra/georchestra/pull/913
-                String actualPath  = path.split(";")[0].trim();
+                String actualPath  = jessionId.getKey().split(";")[0].trim();
 
                 // the cookie we will use is the cookie with the longest matching path
                 if(requestPath.startsWith(actualPath)) {
                     if(logger.isDebugEnabled()) {
-                        logger.debug("Found possible matching JSessionId: Path = "+actualPath+" id="+jessionIds.get(path)+" for "+requestPath+" of uri "+proxyRequest.getURI());
+                        logger.debug("Found possible matching JSessionId: Path = "+actualPath+" id="+jessionId.getValue()+" for "+requestPath+" of uri "+proxyRequest.getURI());
                     }
                     if(currentPath==null || currentPath.length()<actualPath.length()) {
                         currentPath=actualPath;
-                        currentId = jessionIds.get(path);
+                        currentId = jessionId.getValue();
                     }
                 }
             }
@@ -182,10 +207,7 @@ public class HeadersManagementStrategy {
             }
         }
         
-        headersLog.append("\t" + COOKIE_ID);
-        headersLog.append("=");
-        headersLog.append(cookies);
-        headersLog.append("\n");
+        log(headersLog, COOKIE_ID, cookies);
 
         proxyRequest.addHeader(new BasicHeader(COOKIE_ID, cookies.toString()));
         
@@ -203,45 +225,38 @@ public class HeadersManagementStrategy {
     /**
      * Copy headers from the proxy response to the final response
      */
-    public synchronized void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String,String> proxyTargets) {
+    public void copyResponseHeaders(HttpServletRequest originalRequest, String originalRequestURI, HttpResponse proxyResponse, HttpServletResponse finalResponse, Map<String,String> proxyTargets) {
         HttpSession session = originalRequest.getSession(true);
         session.setMaxInactiveInterval(Integer.MAX_VALUE);
         
-        StringBuilder headersLog = new StringBuilder("Response Headers:\n");
-        headersLog
-                .append("==========================================================\n");
+        StringBuilder headersLog = null;
+        if (logger.isTraceEnabled()) {
+            headersLog = new StringBuilder("Response Headers:\n");
+            headersLog
+                    .append("==========================================================\n");
+        }
 
         // Set Response headers
         for (Header header : proxyResponse.getAllHeaders()) {
-            headersLog.append("\t");
             if (header.getName().equalsIgnoreCase(HeaderNames.SET_COOKIE_ID)) {
                 continue;
             } else if (LOCATION.equalsIgnoreCase(header.getName())) {
 //            	DO NOTHING
 //            	Handle in Proxy.java
-//            	if (logger.isDebugEnabled()) {
-//            		logger.debug("handle location header: " + header.getValue());
-//            	}
-//            	Header locationHeader = handleLocation(originalRequest, header, proxyTargets);
-//            	finalResponse.addHeader(locationHeader.getName(), locationHeader.getValue());
 			} else if (defaultIgnores(header)){
-                headersLog.append("-- IGNORING -- ");
+                log(headersLog, "-- IGNORING -- " + header.getName(), header.getValue());
+                continue;
             } else {
                 finalResponse.addHeader(header.getName(), header.getValue());
             }
-            headersLog.append(header.getName());
-            headersLog.append("=");
-            headersLog.append(header.getValue());
-            headersLog.append("\n");
+            log(headersLog, header.getName(), header.getValue());
         }
         
         for(HeaderProvider provider : headerProviders) {
+            provider.responseReceived(originalRequest, proxyResponse);
             for (Header header : provider.getCustomResponseHeaders()) {
                 finalResponse.addHeader(header.getName(), header.getValue());
-                headersLog.append("\t" + header.getName());
-                headersLog.append("=");
-                headersLog.append(header.getValue());
-                headersLog.append("\n");
+                log(headersLog, header.getName(), header.getValue());
             }
         }
 
@@ -250,10 +265,9 @@ public class HeadersManagementStrategy {
             handleResponseCookies(originalRequestURI, finalResponse, cookieHeaders, session,headersLog);
         }
         
-        headersLog
-                .append("==========================================================\n");
-
-        if (logger.isTraceEnabled()) {
+        if (headersLog != null) {
+            headersLog
+                    .append("==========================================================\n");
         	logger.trace(headersLog.toString());
         }
     }
@@ -330,38 +344,35 @@ public class HeadersManagementStrategy {
             if(cookies.length() > 0) {
                 cookies.append("; Path= /" + originalPath);
                 finalResponse.addHeader(HeaderNames.SET_COOKIE_ID, cookies.toString());
-                headersLog.append("\t" + HeaderNames.SET_COOKIE_ID);
-                headersLog.append("=");
-                headersLog.append(cookies);
-                headersLog.append("\n");
+                log(headersLog, HeaderNames.SET_COOKIE_ID, cookies);
             }
 
         }
     }
 
+    /**
+     * The map of the session ids is replaced rather than modified (copy on write) so that it can be read without lock
+     * by the concurrent requests of the session. The writers, rare, are serialized by the session mutex.
+     */
+    @SuppressWarnings("unchecked")
     private void storeJsessionHeader(HttpSession session, String path, String cookie, StringBuilder headersLog) {
-        Map<String,String> map = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
-        if(map==null) {
-            map = new HashMap<String,String>();
-            session.setAttribute(HeaderNames.JSESSION_ID, map);
-        }
-        if(path.length() > 0) {
-            // clean out session IDs with longer path since this should supercede them
-            for (String key : new HashMap<String,String>(map).keySet()) {
-                if(key.startsWith(path)) {
-                    map.remove(key);
+        synchronized (WebUtils.getSessionMutex(session)) {
+            Map<String,String> current = (Map<String, String>) session.getAttribute(HeaderNames.JSESSION_ID);
+            Map<String,String> map = (current == null) ? new HashMap<String,String>() : new HashMap<String,String>(current);
+            if(path.length() > 0) {
+                // clean out session IDs with longer path since this should supercede them
+                for (String key : new HashMap<String,String>(map).keySet()) {
+                    if(key.startsWith(path)) {
+                        map.remove(key);
+                    }
                 }
-            }
 
+            }
+            map.put(path,cookie);
+            session.setAttribute(HeaderNames.JSESSION_ID, map);
         }
-        map.put(path,cookie);
-
-        headersLog.append("\tStoring JSESSION cookie ");
-        headersLog.append(cookie);
-        headersLog.append(" for path ");
-        headersLog.append(path);
-        headersLog.append("\n");
 
+        log(headersLog, "Storing JSESSION cookie " + cookie + " for path", path);
     }
 
     private boolean defaultIgnores(Header header) {
@@ -372,16 +383,19 @@ public class HeadersManagementStrategy {
 
     public void setNoAcceptEncoding(boolean noAcceptEncoding) {
         this.noAcceptEncoding = noAcceptEncoding;
+        this.ignoredRequestHeaders = ignoredRequestHeaders(noAcceptEncoding, referer);
     }
     
     public void setHeaderProviders(List<HeaderProvider> headerProviders) {
-        this.headerProviders = headerProviders;
+        this.headerProviders = headerProviders.toArray(new HeaderProvider[headerProviders.size()]);
     }
     
     public void setFilters(List<HeaderFilter> filters) {
-        this.filters = filters;
+        this.filters = filters.toArray(new HeaderFilter[filters.size()]);
     }
 
     public void setReferer(String referer){
         this.referer = referer;
-    }}
+        this.ignoredRequestHeaders = ignoredRequestHeaders(noAcceptEncoding, referer);
+    }
+}
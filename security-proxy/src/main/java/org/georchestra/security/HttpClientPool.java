@@ -0,0 +1,259 @@
+package org.georchestra.security;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps one long-lived, pooled {@link HttpClient} per proxy target so that
+ * connections to the backends (geoserver, geonetwork, ...) are reused between
+ * requests instead of being opened and torn down for every proxied request.
+ * <p>
+ * Requests that are not bound to one of the configured targets (i.e. the
+ * requests made through the <code>url</code> parameter) share the
+ * {@link #DEFAULT_POOL} client.
+ * </p>
+ * <p>
+ * The clients do not manage cookies: cookies are forwarded by the
+ * {@link HeadersManagementStrategy}, a client side cookie store would leak the
+ * cookies of one user into the requests of the others. They do not decompress
+ * the responses either, the content is relayed as sent by the targets.
+ * </p>
+ */
+public class HttpClientPool {
+    protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
+
+    /**
+     * Name of the pool used for the requests which do not match a target
+     */
+    public static final String DEFAULT_POOL = "default";
+
+    private int maxTotalConnections = 200;
+    private int maxConnectionsPerRoute = 50;
+    private int socketTimeout = 300000;
+    private int connectionTimeout = 30000;
+    private long keepAliveTimeout = 30000;
+    private long idleConnectionTimeout = 60000;
+    private long evictionInterval = 5000;
+
+    private final ConcurrentMap<String, PooledClient> clients = new ConcurrentHashMap<String, PooledClient>();
+    private ScheduledExecutorService evictor;
+
+    /**
+     * Creates the clients of the given targets up front and starts the thread
+     * evicting the expired and idle connections.
+     *
+     * @throws IllegalArgumentException if a target is named {@link #DEFAULT_POOL}, it would share its
+     *         connections with the requests which do not match a target
+     */
+    public synchronized void init(Collection<String> targets) {
+        if (targets != null) {
+            for (String target : targets) {
+                if (DEFAULT_POOL.equals(target)) {
+                    throw new IllegalArgumentException("'" + DEFAULT_POOL + "' is reserved for the requests which do not "
+                            + "match a target, the target must be renamed");
+                }
+                getClient(target);
+            }
+        }
+        startEvictor();
+    }
+
+    /**
+     * Shuts down all the connection managers, called when the application context is closed.
+     */
+    public synchronized void destroy() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+            evictor = null;
+        }
+        for (PooledClient client : clients.values()) {
+            client.close();
+        }
+        clients.clear();
+    }
+
+    /**
+     * Returns the pooled client of the target.
+     *
+     * @param target key of the target in the proxy targets map, null for the default pool
+     */
+    public HttpClient getClient(String target) {
+        String key = (target == null) ? DEFAULT_POOL : target;
+        PooledClient client = clients.get(key);
+        if (client == null) {
+            PooledClient newClient = createClient();
+            client = clients.putIfAbsent(key, newClient);
+            if (client == null) {
+                client = newClient;
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Created pooled http client for target: " + key);
+                }
+            } else {
+                newClient.close();
+            }
+        }
+        return client.client;
+    }
+
+    /**
+     * Returns the statistics (leased, pending, available and max connections) of each pool, by target.
+     */
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> stats = new TreeMap<String, PoolStats>();
+        for (Map.Entry<String, PooledClient> entry : clients.entrySet()) {
+            stats.put(entry.getKey(), entry.getValue().connectionManager.getTotalStats());
+        }
+        return stats;
+    }
+
+    private PooledClient createClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setSocketTimeout(socketTimeout)
+                .setConnectTimeout(connectionTimeout)
+                .setStaleConnectionCheckEnabled(true)
+                .setRedirectsEnabled(false)
+                .build();
+
+        //
+        // Handle http proxy for external request.
+        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
+        //
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .setKeepAliveStrategy(new BoundedKeepAliveStrategy(keepAliveTimeout))
+                .disableCookieManagement()
+                .disableContentCompression()
+                .build();
+
+        return new PooledClient(client, connectionManager);
+    }
+
+    private void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("security-proxy-connection-evictor").setDaemon(true).build());
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictConnections();
+            }
+        }, evictionInterval, evictionInterval, TimeUnit.MILLISECONDS);
+    }
+
+    void evictConnections() {
+        for (Map.Entry<String, PooledClient> entry : clients.entrySet()) {
+            PoolingHttpClientConnectionManager manager = entry.getValue().connectionManager;
+            try {
+                manager.closeExpiredConnections();
+                manager.closeIdleConnections(idleConnectionTimeout, TimeUnit.MILLISECONDS);
+            } catch (RuntimeException e) {
+                logger.error("Unable to evict the idle connections of target: " + entry.getKey(), e);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("Connection pool " + entry.getKey() + ": " + manager.getTotalStats());
+            }
+        }
+    }
+
+    /**
+     * A client and its connection manager, which gives the statistics and evicts the idle connections
+     */
+    private static class PooledClient {
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        PooledClient(CloseableHttpClient client, PoolingHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+
+        void close() {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.error("Unable to close the pooled http client", e);
+            }
+        }
+    }
+
+    /**
+     * Uses the keep-alive duration sent by the server when there is one, but never keeps
+     * a connection alive for longer than the configured timeout.
+     */
+    private static class BoundedKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final ConnectionKeepAliveStrategy delegate = new DefaultConnectionKeepAliveStrategy();
+        private final long maxKeepAlive;
+
+        BoundedKeepAliveStrategy(long maxKeepAlive) {
+            this.maxKeepAlive = maxKeepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = delegate.getKeepAliveDuration(response, context);
+            if (duration <= 0 || duration > maxKeepAlive) {
+                return maxKeepAlive;
+            }
+            return duration;
+        }
+    }
+
+    public void setMaxTotalConnections(int maxTotalConnections) {
+        this.maxTotalConnections = maxTotalConnections;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    public void setKeepAliveTimeout(long keepAliveTimeout) {
+        this.keepAliveTimeout = keepAliveTimeout;
+    }
+
+    public void setIdleConnectionTimeout(long idleConnectionTimeout) {
+        this.idleConnectionTimeout = idleConnectionTimeout;
+    }
+
+    public void setEvictionInterval(long evictionInterval) {
+        this.evictionInterval = evictionInterval;
+    }
+}
@@ -3,7 +3,12 @@ package org.georchestra.security;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.naming.NamingEnumeration;
 import javax.naming.directory.Attribute;
@@ -13,6 +18,7 @@ import javax.servlet.http.HttpSession;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
+import org.apache.http.HttpResponse;
 import org.apache.http.message.BasicHeader;
 import org.springframework.ldap.core.DirContextOperations;
 import org.springframework.security.authentication.AnonymousAuthenticationToken;
@@ -21,9 +27,21 @@ import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.ldap.search.LdapUserSearch;
 import org.springframework.util.Assert;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 /**
  * Reads information from a user node in LDAP and adds the information as
  * headers to the request.
+ * <p>
+ * The headers of a user are cached for all its sessions, for {@link #setCacheTtl(long) cacheTtl} seconds. Only one
+ * LDAP lookup is done at a time for a given user, the concurrent requests wait for its result. The entry of a
+ * user is invalidated once ldapadmin has successfully answered a request modifying it, so that the headers read
+ * again are the modified ones.
+ * </p>
  * 
  * @author jeichar
  */
@@ -31,77 +49,154 @@ public class LdapUserDetailsRequestHeaderProvider extends HeaderProvider {
 
     protected static final Log logger = LogFactory.getLog(LdapUserDetailsRequestHeaderProvider.class.getPackage().getName());
 
+    /**
+     * The ldapadmin requests modifying a user: the user's own details, or a user of the back office (uid in group 1)
+     */
+    private static final Pattern USER_DETAILS_UPDATE = Pattern.compile(".*/ldapadmin/account/userdetails/?");
+    private static final Pattern USER_UPDATE = Pattern.compile(".*/ldapadmin/private/users/([^/]+)/?");
+    private static final Pattern GROUPS_UPDATE = Pattern.compile(".*/ldapadmin/private/groups.*");
+
     private LdapUserSearch      _userSearch;
     private Map<String, String> _headerMapping;
-    
+    private long cacheTtl = 300;
+    private long cacheSize = 10000;
+    private volatile LoadingCache<String, Collection<Header>> _cache;
+
     public LdapUserDetailsRequestHeaderProvider(LdapUserSearch userSearch, Map<String, String> headerMapping) {
         Assert.notNull(userSearch, "userSearch must not be null");
         Assert.notNull(headerMapping, "headerMapping must not be null");
         this._userSearch = userSearch;
         this._headerMapping = headerMapping;
+        this._cache = buildCache();
     }
 
-    @SuppressWarnings("unchecked")
-	@Override
+    @Override
     protected Collection<Header> getCustomRequestHeaders(HttpSession session, HttpServletRequest originalRequest) {
         Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
-        if(authentication instanceof AnonymousAuthenticationToken){
+        if(authentication == null || authentication instanceof AnonymousAuthenticationToken){
             return Collections.emptyList();
         }
         String username = authentication.getName();
-        DirContextOperations userData;
-
-        Collection<Header> headers = Collections.emptyList();
-
-		synchronized (session) {
-
-			if (session.getAttribute("security-proxy-cached-attrs") != null) {
-				try {
-					headers = (Collection<Header>) session.getAttribute("security-proxy-cached-attrs");
-					String expectedUsername = (String) session.getAttribute("security-proxy-cached-username");
-					
-					if (username.equals(expectedUsername)) {
-						return headers;
-					}
-				} catch (Exception e) {
-					logger.info("Unable to lookup cached user's attributes for user :" + username, e);
-				}
-			} else {
-				try {
-					userData = _userSearch.searchForUser(username);
-				} catch (Exception e) {
-					logger.info("Unable to lookup user:" + username, e);
-					return Collections.emptyList();
-				}
-				headers = new ArrayList<Header>();
-				for (Map.Entry<String, String> entry : _headerMapping
-						.entrySet()) {
-					try {
-						Attribute attributes = userData.getAttributes().get(
-								entry.getValue());
-						if (attributes != null) {
-							NamingEnumeration<?> all = attributes.getAll();
-							StringBuilder value = new StringBuilder();
-							while (all.hasMore()) {
-								if (value.length() > 0) {
-									value.append(',');
-								}
-								value.append(all.next());
-							}
-							headers.add(new BasicHeader(entry.getKey(), value
-									.toString()));
-						}
-					} catch (javax.naming.NamingException e) {
-						logger.error("problem adding headers for request:"
-								+ entry.getKey(), e);
-					}
-				}
-				logger.info("Storing attributes into session for user :" + username);
-				session.setAttribute("security-proxy-cached-username", username);
-				session.setAttribute("security-proxy-cached-attrs", headers);
-			}
-		}
-
-        return headers;
+
+        try {
+            return _cache.get(username);
+        } catch (ExecutionException e) {
+            logger.info("Unable to lookup user:" + username, e.getCause());
+        } catch (UncheckedExecutionException e) {
+            logger.info("Unable to lookup user:" + username, e.getCause());
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Invalidates the users modified by the request, if ldapadmin has accepted the modification.
+     */
+    @Override
+    protected void responseReceived(HttpServletRequest originalRequest, HttpResponse proxyResponse) {
+        int status = proxyResponse.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 400) {
+            return;
+        }
+        Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+        if(authentication == null || authentication instanceof AnonymousAuthenticationToken){
+            return;
+        }
+        invalidateIfModified(originalRequest, authentication.getName());
+    }
+
+    /**
+     * Forgets the cached headers of a user, they will be read again from LDAP by its next request.
+     */
+    public void invalidate(String username) {
+        _cache.invalidate(username);
+    }
+
+    /**
+     * Forgets the cached headers of all the users.
+     */
+    public void invalidateAll() {
+        _cache.invalidateAll();
+    }
+
+    /**
+     * @return the hits, misses and load times of the cache
+     */
+    public CacheStats getCacheStats() {
+        return _cache.stats();
+    }
+
+    /**
+     * @param cacheTtl time (in seconds) during which the headers of a user are reused
+     */
+    public void setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+        this._cache = buildCache();
+    }
+
+    /**
+     * @param cacheSize max number of users whose headers are cached
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+        this._cache = buildCache();
+    }
+
+    private void invalidateIfModified(HttpServletRequest request, String username) {
+        String method = request.getMethod();
+        if (method == null || "GET".equalsIgnoreCase(method) || "HEAD".equalsIgnoreCase(method)) {
+            return;
+        }
+        String uri = request.getRequestURI();
+        if (uri == null) {
+            return;
+        }
+        Matcher userUpdate = USER_UPDATE.matcher(uri);
+        if (userUpdate.matches()) {
+            invalidate(userUpdate.group(1));
+        } else if (USER_DETAILS_UPDATE.matcher(uri).matches()) {
+            invalidate(username);
+        } else if (GROUPS_UPDATE.matcher(uri).matches()) {
+            invalidateAll();
+        }
+    }
+
+    private LoadingCache<String, Collection<Header>> buildCache() {
+        return CacheBuilder.newBuilder()
+                .expireAfterWrite(cacheTtl, TimeUnit.SECONDS)
+                .maximumSize(cacheSize)
+                .recordStats()
+                .build(new CacheLoader<String, Collection<Header>>() {
+                    @Override
+                    public Collection<Header> load(String username) {
+                        return loadHeaders(username);
+                    }
+                });
+    }
+
+    private Collection<Header> loadHeaders(String username) {
+        DirContextOperations userData = _userSearch.searchForUser(username);
+        List<Header> headers = new ArrayList<Header>();
+        for (Map.Entry<String, String> entry : _headerMapping.entrySet()) {
+            try {
+                Attribute attributes = userData.getAttributes().get(entry.getValue());
+                if (attributes != null) {
+                    NamingEnumeration<?> all = attributes.getAll();
+                    StringBuilder value = new StringBuilder();
+                    while (all.hasMore()) {
+                        if (value.length() > 0) {
+                            value.append(',');
+                        }
+                        value.append(all.next());
+                    }
+                    headers.add(new BasicHeader(entry.getKey(), value.toString()));
+                }
+            } catch (javax.naming.NamingException e) {
+                logger.error("problem adding headers for request:" + entry.getKey(), e);
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("Storing attributes into cache for user :" + username + " (hit rate: " + _cache.stats().hitRate() + ")");
+        }
+        return Collections.unmodifiableList(headers);
     }
 }
@@ -2,12 +2,15 @@ package org.georchestra.security;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Maps;
+import com.google.common.io.Closeables;
 import com.google.common.io.Closer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
@@ -20,18 +23,22 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
-import org.apache.http.client.params.ClientPNames;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.georchestra.ogcservstatistics.log4j.OGCServiceMessageFormatter;
 import org.georchestra.security.healthcenter.DatabaseHealthCenter;
+import org.georchestra.security.healthcenter.DatabaseHealthSampler;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
 import org.springframework.oxm.xstream.XStreamMarshaller;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.web.DefaultRedirectStrategy;
 import org.springframework.security.web.RedirectStrategy;
@@ -40,30 +47,34 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.MalformedURLException;
-import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.zip.DeflaterInputStream;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
@@ -107,6 +118,12 @@ public class Proxy {
     protected static final Log logger = LogFactory.getLog(Proxy.class.getPackage().getName());
     protected static final Log statsLogger = LogFactory.getLog(Proxy.class.getPackage().getName() + ".statistics");
 
+    /**
+     * Size of the buffers used to relay the responses
+     */
+    private static final int RELAY_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<byte[]> RELAY_BUFFERS = new ThreadLocal<byte[]>();
+
     protected enum RequestType {
         GET, POST, DELETE, PUT, TRACE, OPTIONS, HEAD
     }
@@ -126,8 +143,20 @@ public class Proxy {
 
     private RedirectStrategy redirectStrategy = new DefaultRedirectStrategy();
 
-    private Permissions proxyPermissions = new Permissions();
+    private HttpClientPool httpClientPool = new HttpClientPool();
+    /**
+     * If defined, the requests are executed asynchronously (requires a Servlet 3.0 container)
+     */
+    private AsyncHttpClientPool asyncHttpClientPool;
+
+    private volatile Permissions proxyPermissions = new Permissions();
     private String proxyPermissionsFile;
+    /**
+     * Interval (in ms) at which the permissions file is checked for changes, 0 to never reload it
+     */
+    private long proxyPermissionsReloadInterval = 0;
+    private volatile long proxyPermissionsLastModified;
+    private ScheduledExecutorService permissionsReloader;
 
     
     /*  ----------  Required for  DatabaseHealthCenter -------------------- */
@@ -137,26 +166,106 @@ public class Proxy {
     private String user;
     private String password;
     private Integer maxDatabaseConnections;
+    /**
+     * Interval (in ms) between two checks of the database connections
+     */
+    private long healthCheckInterval = 10000;
+    /**
+     * If true, the requests are refused (503) while the database connections are saturated
+     */
+    private boolean shedLoadWhenDatabaseSaturated = false;
+    private DatabaseHealthSampler healthSampler;
 
     public void init() throws IOException, ClassNotFoundException {
         if (targets != null) {
             for (String url : targets.values()) {
                 new URL(url); // test that it is a valid URL
             }
+            httpClientPool.init(targets.keySet());
+        } else {
+            httpClientPool.init(null);
         }
         if (proxyPermissionsFile != null) {
-            Closer closer = Closer.create();
-            try {
-                final ClassLoader classLoader = Proxy.class.getClassLoader();
-                InputStream inStream = closer.register(classLoader.getResourceAsStream(proxyPermissionsFile));
-                Map<String, Class<?>> aliases = Maps.newHashMap();
-                aliases.put(Permissions.class.getSimpleName().toLowerCase(), Permissions.class);
-                aliases.put(UriMatcher.class.getSimpleName().toLowerCase(), UriMatcher.class);
-                XStreamMarshaller unmarshaller = new XStreamMarshaller();
-                unmarshaller.setAliasesByType(aliases);
-                setProxyPermissions((Permissions) unmarshaller.unmarshal(new StreamSource(inStream)));
-            } finally {
-                closer.close();
+            reloadPermissions();
+            if (proxyPermissionsReloadInterval > 0) {
+                permissionsReloader = Executors.newSingleThreadScheduledExecutor(
+                        new ThreadFactoryBuilder().setNameFormat("security-proxy-permissions-reloader").setDaemon(true).build());
+                permissionsReloader.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (permissionsLastModified() != proxyPermissionsLastModified) {
+                                reloadPermissions();
+                            }
+                        } catch (Exception e) {
+                            logger.error("Unable to reload " + proxyPermissionsFile + ", the previous permissions are kept", e);
+                        }
+                    }
+                }, proxyPermissionsReloadInterval, proxyPermissionsReloadInterval, TimeUnit.MILLISECONDS);
+            }
+        } else if (!proxyPermissions.isInitialized()) {
+            proxyPermissions.init();
+        }
+        if (isCheckHealth() && healthSampler == null) {
+            healthSampler = new DatabaseHealthSampler(
+                    DatabaseHealthCenter.getInstance(this.database, this.user, this.password, Proxy.class.getSimpleName()),
+                    this.maxDatabaseConnections, this.healthCheckInterval);
+            healthSampler.start();
+        }
+    }
+
+    public void destroy() {
+        if (healthSampler != null) {
+            healthSampler.stop();
+        }
+        if (permissionsReloader != null) {
+            permissionsReloader.shutdownNow();
+            permissionsReloader = null;
+        }
+    }
+
+    /**
+     * Reads the permissions file again and replaces the current permissions (and their caches) once loaded.
+     */
+    public synchronized void reloadPermissions() throws IOException {
+        URL resource = Proxy.class.getClassLoader().getResource(proxyPermissionsFile);
+        if (resource == null) {
+            throw new IOException("Unable to find " + proxyPermissionsFile);
+        }
+        long lastModified = permissionsLastModified();
+        Closer closer = Closer.create();
+        try {
+            InputStream inStream = closer.register(resource.openStream());
+            Map<String, Class<?>> aliases = Maps.newHashMap();
+            aliases.put(Permissions.class.getSimpleName().toLowerCase(), Permissions.class);
+            aliases.put(UriMatcher.class.getSimpleName().toLowerCase(), UriMatcher.class);
+            XStreamMarshaller unmarshaller = new XStreamMarshaller();
+            unmarshaller.setAliasesByType(aliases);
+            setProxyPermissions((Permissions) unmarshaller.unmarshal(new StreamSource(inStream)));
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+        proxyPermissionsLastModified = lastModified;
+        logger.info("Proxy permissions loaded from " + resource);
+    }
+
+    private long permissionsLastModified() throws IOException {
+        URL resource = Proxy.class.getClassLoader().getResource(proxyPermissionsFile);
+        if (resource == null) {
+            return 0;
+        }
+        URLConnection connection = resource.openConnection();
+        connection.setUseCaches(false);
+        try {
+            return connection.getLastModified();
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            } else {
+                // opening the connection to a jar entry or a file keeps it open until the stream is closed
+                Closeables.close(connection.getInputStream(), true);
             }
         }
     }
@@ -257,7 +366,6 @@ public class Proxy {
                 return;
             }
             handleRequest(request, response, type, sURL, false);
-            handleRequest(request, response, type, sURL, false);
         } else {
             handlePathEncodedRequests(request, response, type);
         }
@@ -276,7 +384,14 @@ public class Proxy {
         return false;
     }
     private boolean isSameServer(HttpServletRequest request, URL url) throws UnknownHostException {
-        return InetAddress.getByName(request.getServerName()).equals(InetAddress.getByName(url.getHost()));
+        // resolved through the cache of the permissions, which are checked for the same host just before
+        final Permissions permissions = proxyPermissions;
+        InetAddress[] serverAddresses = permissions.resolve(request.getServerName());
+        InetAddress[] urlAddresses = permissions.resolve(url.getHost());
+        if (urlAddresses.length == 0) {
+            throw new UnknownHostException(url.getHost());
+        }
+        return serverAddresses.length > 0 && serverAddresses[0].equals(urlAddresses[0]);
     }
     private boolean samePathPrefix(String[] requestSegments, String target) throws MalformedURLException {
         String[] targetSegments = splitRequestPath(new URL(target).getPath());
@@ -489,26 +604,17 @@ public class Proxy {
     }
 
     private void handleRequest(HttpServletRequest request, HttpServletResponse finalResponse, RequestType requestType, String sURL, boolean localProxy) {
-        HttpClient httpclient = new DefaultHttpClient();
-        httpclient.getParams().setParameter("http.socket.timeout", new Integer(300000));
-        httpclient.getParams().setBooleanParameter(ClientPNames.HANDLE_REDIRECTS, false);
-
-        if( isCheckHealth() ){
-            DatabaseHealthCenter.getInstance(this.database, this.user, this.password, Proxy.class.getSimpleName())
-				.checkConnections(this.maxDatabaseConnections);
-        }
-
-        //
-        // Handle http proxy for external request.
-        // Proxy must be configured by system variables (e.g.: -Dhttp.proxyHost=proxy -Dhttp.proxyPort=3128)
-        //
-        ProxySelectorRoutePlanner routePlanner = new ProxySelectorRoutePlanner(
-                     httpclient.getConnectionManager().getSchemeRegistry(),
-                     ProxySelector.getDefault());
-
-        ((DefaultHttpClient)httpclient).setRoutePlanner(routePlanner);
+        // the path encoded requests use the connection pool of their target, the others share the default one
+        HttpClient httpclient = httpClientPool.getClient(localProxy ? findMatchingTarget(request) : null);
 
+        HttpRequestBase proxyingRequest = null;
         try {
+            if (shedLoadWhenDatabaseSaturated && healthSampler != null && healthSampler.getSnapshot().isSaturated()) {
+                finalResponse.setHeader("Retry-After", String.valueOf(Math.max(1, healthSampler.getInterval() / 1000)));
+                finalResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "The database connections are saturated");
+                return;
+            }
+
             URL url = null;
             try {
                 url = new URL(sURL);
@@ -533,7 +639,7 @@ public class Proxy {
 
             logger.debug("Final request -- " + sURL);
 
-            HttpRequestBase proxyingRequest = makeRequest(request, requestType, sURL);
+            proxyingRequest = makeRequest(request, requestType, sURL);
             headerManagement.configureRequestHeaders(request, proxyingRequest);
 
             try {
@@ -562,38 +668,18 @@ public class Proxy {
 		        }
             }
 
-            HttpResponse proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
-
-            org.apache.http.StatusLine statusLine = proxiedResponse.getStatusLine();
-
-            int statusCode = statusLine.getStatusCode();
-
-            String reasonPhrase = statusLine.getReasonPhrase();
-
-            if (reasonPhrase != null && statusCode > 399) {
-            	if (logger.isWarnEnabled()) {
-            		logger.warn("Error occurred. statuscode: "+statusCode+", reason: "+reasonPhrase);
-            	}
-
-            	if (statusCode == 401) {
-            		//
-            		// Handle case of basic authentication.
-            		//
-            		Header authHeader = proxiedResponse.getFirstHeader("WWW-Authenticate");
-            		finalResponse.setHeader("WWW-Authenticate", (authHeader == null) ? "Basic realm=\"Authentication required\"" : authHeader.getValue());
-            	}
-
-                // 403 and 404 are handled by specific JSP files provided by the security-proxy webapp
-                if ((statusCode == 404) || (statusCode == 403)) {
-                    finalResponse.sendError(statusCode);
-                    return;
-                }
+            if (isAsyncCandidate(request, proxyingRequest)) {
+                handleRequestAsync(request, finalResponse, proxyingRequest);
+                // the connection is released by the asynchronous client once the response is relayed
+                proxyingRequest = null;
+                return;
             }
 
-            headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse, this.targets);
+            HttpResponse proxiedResponse = executeHttpRequest(httpclient, proxyingRequest);
 
-            if (statusCode == 302 || statusCode == 301)
-            	adjustLocation(request, proxiedResponse, finalResponse);
+            if (!copyResponseHeaders(request, proxiedResponse, finalResponse)) {
+                return;
+            }
 
             // get content type
 
@@ -620,10 +706,83 @@ public class Proxy {
                 finalResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             }
         } finally {
-            httpclient.getConnectionManager().shutdown();
+            // gives the connection back to the pool. If the response has not been
+            // fully read the connection is closed instead of being reused
+            if (proxyingRequest != null) {
+                proxyingRequest.releaseConnection();
+            }
         }
     }
 
+    /**
+     * Handles the error statuses of the proxied response and copies its headers to the final response,
+     * adjusting the location of the redirections.
+     *
+     * @return false if an error page has been sent in place of the proxied response
+     */
+    private boolean copyResponseHeaders(HttpServletRequest request, HttpResponse proxiedResponse, HttpServletResponse finalResponse) throws IOException {
+        org.apache.http.StatusLine statusLine = proxiedResponse.getStatusLine();
+
+        int statusCode = statusLine.getStatusCode();
+
+        String reasonPhrase = statusLine.getReasonPhrase();
+
+        if (reasonPhrase != null && statusCode > 399) {
+        	if (logger.isWarnEnabled()) {
+        		logger.warn("Error occurred. statuscode: "+statusCode+", reason: "+reasonPhrase);
+        	}
+
+        	if (statusCode == 401) {
+        		//
+        		// Handle case of basic authentication.
+        		//
+        		Header authHeader = proxiedResponse.getFirstHeader("WWW-Authenticate");
+        		finalResponse.setHeader("WWW-Authenticate", (authHeader == null) ? "Basic realm=\"Authentication required\"" : authHeader.getValue());
+        	}
+
+            // 403 and 404 are handled by specific JSP files provided by the security-proxy webapp
+            if ((statusCode == 404) || (statusCode == 403)) {
+                finalResponse.sendError(statusCode);
+                return false;
+            }
+        }
+
+        headerManagement.copyResponseHeaders(request, request.getRequestURI(), proxiedResponse, finalResponse, this.targets);
+
+        if (statusCode == 302 || statusCode == 301)
+        	adjustLocation(request, proxiedResponse, finalResponse);
+
+        return true;
+    }
+
+    /**
+     * The asynchronous mode is used when it is configured and supported by the servlet container, for the requests
+     * whose body (if any) is already in memory: a streamed body has to be read by the container thread.
+     */
+    private boolean isAsyncCandidate(HttpServletRequest request, HttpRequestBase proxyingRequest) {
+        if (asyncHttpClientPool == null || !request.isAsyncSupported()) {
+            return false;
+        }
+        if (proxyingRequest instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) proxyingRequest).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * Detaches the request from the container thread and sends the proxied request with the non-blocking client.
+     * The response is relayed to the client by an {@link AsyncResponseRelay}.
+     */
+    private void handleRequestAsync(HttpServletRequest request, HttpServletResponse finalResponse, HttpRequestBase proxyingRequest) {
+        AsyncContext asyncContext = request.startAsync(request, finalResponse);
+        asyncContext.setTimeout(asyncHttpClientPool.getAsyncTimeout());
+
+        AsyncResponseRelay relay = new AsyncResponseRelay(request, finalResponse, asyncContext);
+        asyncContext.addListener(relay);
+        relay.setFuture(asyncHttpClientPool.execute(proxyingRequest, relay, relay));
+    }
+
     @VisibleForTesting
     protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest) throws IOException {
         return httpclient.execute(proxyingRequest);
@@ -707,7 +866,7 @@ public class Proxy {
             // Send the Response
             OutputStream outputStream = finalResponse.getOutputStream();
             try {
-                entity.writeTo(outputStream);
+                relay(entity.getContent(), outputStream);
             } finally {
                 outputStream.flush();
                 outputStream.close();
@@ -837,148 +996,132 @@ public class Proxy {
     /**
      * For certain requests (OGC Web services mainly) the charset is absolutely
      * required. So for certain content types (xml based normally) this method
-     * is called to detect the charset of the data. This method is a slow way of
-     * transferring data so data of any significant size should not enter this
-     * method.
+     * is called to detect the charset of the data. Only the beginning of the
+     * data is inspected, the rest is relayed as is.
      */
     private void doHandleRequestCharsetRequired(HttpServletRequest orignalRequest, HttpServletResponse finalResponse,
-            RequestType requestType, HttpResponse proxiedResponse, String contentType) {
+            RequestType requestType, HttpResponse proxiedResponse, String contentType) throws IOException {
+
+        /* Here comes the tricky part because some host send files without the charset
+         * in the header, therefore we do not know how they are text encoded. It can result
+         * in serious issues on IE browsers when parsing those files.
+         * There is a workaround which consists to read the encoding within the file. It is made
+         * possible because this proxy mainly forwards xml files. They all have the encoding
+         * attribute in the first xml node.
+         *
+         * This is implemented as follows:
+         *
+         * A. The content type provides a charset:
+         *     Nothing special, just send back the stream to the client
+         * B. There is no charset provided:
+         *     The encoding has to be extracted from the file.
+         *     The beginning of the file is read in ASCII, which is common to many charsets,
+         *     like that the encoding located in the first node can be retrieved.
+         *     Once the charset is found, the content-type header is overridden and the
+         *     charset is appended.
+         *
+         *     /!\ Special case: whenever data are compressed in gzip/deflate only the
+         *     beginning of the stream is uncompressed to find the charset, the
+         *     compressed data are sent to the client
+         */
+
+        boolean isCharsetKnown = contentType.toLowerCase().contains("charset");
+        String contentEncoding = getContentEncoding(proxiedResponse.getHeaders("Content-Encoding"));
+
+        if(logger.isDebugEnabled()) {
+
+            String cskString = "\tisCharSetKnown="+isCharsetKnown;
+            String cEString = "\tcontentEncoding="+contentEncoding;
+            logger.debug("Charset is required so verifying that it has been added to the headers\n"+cskString+"\n"+cEString);
+        }
 
-        InputStream streamFromServer = null;
-        OutputStream streamToClient = null;
+        if (isCharsetKnown || !XmlEncodingSniffer.isSupported(contentEncoding)) {
+            doHandleRequest(orignalRequest, finalResponse, requestType, proxiedResponse);
+            return;
+        }
 
+        finalResponse.setStatus(proxiedResponse.getStatusLine().getStatusCode());
+        InputStream streamFromServer = proxiedResponse.getEntity().getContent();
+        OutputStream streamToClient = null;
         try {
-
-            /* Here comes the tricky part because some host send files without the charset
-             * in the header, therefore we do not know how they are text encoded. It can result
-             * in serious issues on IE browsers when parsing those files.
-             * There is a workaround which consists to read the encoding within the file. It is made
-             * possible because this proxy mainly forwards xml files. They all have the encoding
-             * attribute in the first xml node.
-             *
-             * This is implemented as follows:
-             *
-             * A. The content type provides a charset:
-             *     Nothing special, just send back the stream to the client
-             * B. There is no charset provided:
-             *     The encoding has to be extracted from the file.
-             *     The file is read in ASCII, which is common to many charsets,
-             *     like that the encoding located in the first not can be retrieved.
-             *     Once the charset is found, the content-type header is overridden and the
-             *     charset is appended.
-             *
-             *     /!\ Special case: whenever data are compressed in gzip/deflate the stream has to
-             *     be uncompressed and compressed
-             */
-
-            boolean isCharsetKnown = proxiedResponse.getEntity().getContentType().getValue().toLowerCase().contains("charset");
-            // String contentEncoding = getContentEncoding(proxiedResponse.getAllHeaders());
-            String contentEncoding = getContentEncoding(proxiedResponse.getHeaders("Content-Encoding"));
-
-            if(logger.isDebugEnabled()) {
-
-                String cskString = "\tisCharSetKnown="+isCharsetKnown;
-                String cEString = "\tcontentEncoding="+contentEncoding;
-                logger.debug("Charset is required so verifying that it has been added to the headers\n"+cskString+"\n"+cEString);
+            // peek the beginning of the stream, a few bytes at a time, until the charset is found
+            XmlEncodingSniffer sniffer = new XmlEncodingSniffer(contentEncoding);
+            byte[] buf = relayBuffer();
+            boolean detected = false;
+            int len;
+            while (!detected && (len = streamFromServer.read(buf, 0, XmlEncodingSniffer.MAX_PREFIX)) != -1) {
+                detected = sniffer.update(buf, 0, len);
             }
+            sniffer.finish();
 
-            if(contentEncoding == null || isCharsetKnown) {
-                // A simple stream can do the job for data that is not in content encoded
-                // but also for data content encoded with a known charset
-                streamFromServer = proxiedResponse.getEntity().getContent();
-                streamToClient = finalResponse.getOutputStream();
-            }
-            else if (!isCharsetKnown && ("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding))) {
-                // the charset is unknown and the data are compressed in gzip
-                // we add the gzip wrapper to be able to read/write the stream content
-                streamFromServer = new GZIPInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new GZIPOutputStream(finalResponse.getOutputStream());
+            if (sniffer.getCharset() == null && logger.isTraceEnabled()) {
+                // the charset cannot be found, IE users must be warned
+                // that the request cannot be fulfilled, nothing good would happen otherwise
+                logger.trace("unable to find charset from the first bytes of the content");
             }
-            else if("deflate".equalsIgnoreCase(contentEncoding) && !isCharsetKnown) {
-                // same but with deflate
-                streamFromServer = new DeflaterInputStream(proxiedResponse.getEntity().getContent());
-                streamToClient = new DeflaterOutputStream(finalResponse.getOutputStream());
-            } else {
-                doHandleRequest(orignalRequest, finalResponse, requestType, proxiedResponse);
-                return;
-            }
-
-            byte[] buf = new byte[1024]; // read maximum 1024 bytes
-            int len;                     // number of bytes read from the stream
-            boolean first = true;        // helps to find the encoding once and only once
-            String s = "";               // piece of file that should contain the encoding
-            while ((len = streamFromServer.read(buf)) > 0) {
-
-                if (first && !isCharsetKnown) {
-                    // charset is unknown try to find it in the file content
-                    for(int i=0; i < len; i++) {
-                        s += (char) buf[i]; // get the beginning of the file as ASCII
-                    }
-                    // s has to be long enough to contain the encoding
-                    if(s.length() > 200) {
+            setResponseCharset(orignalRequest, finalResponse, contentType, sniffer.getCharset());
 
-                       if(logger.isTraceEnabled()) {
-                           logger.trace("attempting to read charset from: " + s);
-                       }
-                       String charset = getCharset(s); // extract charset
+            // for everyone, the stream is just forwarded to the client
+            streamToClient = finalResponse.getOutputStream();
+            streamToClient.write(sniffer.getBufferedBytes());
+            relay(streamFromServer, streamToClient);
+        } finally {
+            if (streamToClient != null) {
+                streamToClient.flush();
+                streamToClient.close();
+            }
+        }
+    }
 
-                        if (charset == null) {
-                            if(logger.isTraceEnabled()) {
-                               logger.trace("unable to find charset from raw ASCII data.  Trying to unzip it");
-                            }
+    /**
+     * Copies the stream with a large buffer reused by the current thread. The input stream is not closed: once it has
+     * been read up to the end the connection is given back to its pool.
+     */
+    private void relay(InputStream streamFromServer, OutputStream streamToClient) throws IOException {
+        byte[] buf = relayBuffer();
+        int len;
+        while ((len = streamFromServer.read(buf)) != -1) {
+            streamToClient.write(buf, 0, len);
+        }
+    }
 
-                            // the charset cannot be found, IE users must be warned
-                            // that the request cannot be fulfilled, nothing good would happen otherwise
-                        }
-                        if(charset == null) {
-                            String guessedCharset = null;
-                            if(logger.isDebugEnabled()) {
-                                logger.debug("unable to find charset so using the first one from the accept-charset request header");
-                            }
-                            String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
-                            if (calculateDefaultCharset !=null ) {
-                                guessedCharset = calculateDefaultCharset;
-                                if(logger.isDebugEnabled()) {
-                                    logger.debug("hopefully the server responded with this charset: "+calculateDefaultCharset);
-                                }
-                            } else {
-                                guessedCharset = defaultCharset;
-                                if(logger.isDebugEnabled()) {
-                                    logger.debug("unable to find charset, so using default:"+defaultCharset);
-                                }
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + guessedCharset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try to do it again
-                            finalResponse.setCharacterEncoding(guessedCharset);
-
-                        } else {
-                            if(logger.isDebugEnabled()) {
-                                logger.debug("found charset: "+charset);
-                            }
-                            String adjustedContentType = proxiedResponse.getEntity().getContentType().getValue() + ";charset=" + charset;
-                            finalResponse.setHeader("Content-Type", adjustedContentType);
-                            first = false; // we found the encoding, don't try to do it again
-                            finalResponse.setCharacterEncoding(charset);
-                        }
-                    }
-                }
+    private static byte[] relayBuffer() {
+        byte[] buf = RELAY_BUFFERS.get();
+        if (buf == null) {
+            buf = new byte[RELAY_BUFFER_SIZE];
+            RELAY_BUFFERS.set(buf);
+        }
+        return buf;
+    }
 
-                // for everyone, the stream is just forwarded to the client
-                streamToClient.write(buf, 0, len);
+    /**
+     * Appends the charset to the content type of the final response. If the charset could not be found in the
+     * content, the first charset accepted by the client or the default charset is used.
+     */
+    private void setResponseCharset(HttpServletRequest orignalRequest, HttpServletResponse finalResponse, String contentType, String charset) {
+        if(charset == null) {
+            String guessedCharset = null;
+            if(logger.isDebugEnabled()) {
+                logger.debug("unable to find charset so using the first one from the accept-charset request header");
             }
-
-        }
-        catch (IOException e) {
-            // connection problem with the host
-            e.printStackTrace();
-        } finally {
-            IOException exc = close(streamFromServer);
-            exc = close(streamToClient, exc);
-            if(exc!=null){
-                logger.error("Error closing streams", exc);
+            String calculateDefaultCharset = calculateDefaultCharset(orignalRequest);
+            if (calculateDefaultCharset !=null ) {
+                guessedCharset = calculateDefaultCharset;
+                if(logger.isDebugEnabled()) {
+                    logger.debug("hopefully the server responded with this charset: "+calculateDefaultCharset);
+                }
+            } else {
+                guessedCharset = defaultCharset;
+                if(logger.isDebugEnabled()) {
+                    logger.debug("unable to find charset, so using default:"+defaultCharset);
+                }
             }
+            charset = guessedCharset;
+        } else if(logger.isDebugEnabled()) {
+            logger.debug("found charset: "+charset);
         }
+        finalResponse.setHeader("Content-Type", contentType + ";charset=" + charset);
+        finalResponse.setCharacterEncoding(charset);
     }
 
     private String calculateDefaultCharset(HttpServletRequest originalRequest) {
@@ -993,48 +1136,6 @@ public class Proxy {
         return calculatedCharset;
     }
 
-    private IOException close(Closeable stream, IOException... previousExceptions) {
-        try {
-            if(stream!=null){
-                stream.close();
-            }
-        }catch (IOException e) {
-            if( previousExceptions.length > 0) {
-                return previousExceptions[0];
-            }
-            return e;
-        }
-        if( previousExceptions.length > 0) {
-            return previousExceptions[0];
-        }
-        return null;
-    }
-
-    /**
-     * Extract the encoding from a string which is the header node of an xml file
-     * @param header String that should contain the encoding attribute and its value
-     * @return the charset. null if not found
-     */
-    private String getCharset(String header) {
-        Pattern pattern = null;
-        String charset = null;
-        try {
-            // use a regexp but we could also use string functions such as
-            // indexOf...
-            pattern = Pattern.compile("encoding=(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)");
-        } catch (Exception e) {
-            throw new RuntimeException("expression syntax invalid");
-        }
-
-        Matcher matcher = pattern.matcher(header);
-        if (matcher.find()) {
-            String encoding = matcher.group();
-            charset = encoding.split("['\"]")[1];
-        }
-
-        return charset;
-    }
-
     /**
      * Gets the encoding of the content sent by the remote host: extracts the
      * content-encoding header
@@ -1131,6 +1232,293 @@ public class Proxy {
         return match;
     }
 
+    /**
+     * Relays the response of an asynchronous request to the client. It is notified by the I/O threads of the
+     * {@link AsyncHttpClientPool}, which only buffer the received bytes: the headers and the bytes are written to
+     * the client, in order, by the worker threads of the pool while the input of the connection is suspended. The
+     * same header management, redirection and charset handling as the synchronous mode are applied, then the
+     * servlet request is completed.
+     */
+    private class AsyncResponseRelay extends AsyncByteConsumer<Boolean> implements FutureCallback<Boolean>, AsyncListener {
+        private final HttpServletRequest request;
+        private final HttpServletResponse finalResponse;
+        private final AsyncContext asyncContext;
+        /**
+         * The worker threads are not bound to the request, the security context must be restored for the
+         * operations on the response (it is saved in the session when the response is committed)
+         */
+        private final SecurityContext securityContext;
+        private volatile Future<Boolean> future;
+
+        /**
+         * Writes to the client waiting for a worker thread, guarded by itself
+         */
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+        private boolean draining = false;
+
+        // the fields below are guarded by the relay: the writes to the client and the completion
+        // (from a worker thread or from the container on timeout) exclude each other
+        private boolean completed = false;
+        private OutputStream streamToClient;
+        private volatile boolean discardBody = false;
+        private String contentType;
+        private XmlEncodingSniffer sniffer;
+
+        AsyncResponseRelay(HttpServletRequest request, HttpServletResponse finalResponse, AsyncContext asyncContext) {
+            this.request = request;
+            this.finalResponse = finalResponse;
+            this.asyncContext = asyncContext;
+            this.securityContext = SecurityContextHolder.getContext();
+        }
+
+        void setFuture(Future<Boolean> future) {
+            this.future = future;
+        }
+
+        @Override
+        protected void onResponseReceived(final HttpResponse proxiedResponse) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    relayHeaders(proxiedResponse);
+                }
+            });
+        }
+
+        @Override
+        protected void onByteReceived(ByteBuffer buf, final IOControl ioctrl) {
+            if (discardBody) {
+                return;
+            }
+            // the buffer is reused by the I/O thread
+            final byte[] bytes = new byte[buf.remaining()];
+            buf.get(bytes);
+
+            // no more bytes are read from the target until these ones are written to the client
+            ioctrl.suspendInput();
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        relayBytes(bytes);
+                    } finally {
+                        ioctrl.requestInput();
+                    }
+                }
+            });
+        }
+
+        @Override
+        protected Boolean buildResult(HttpContext context) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    relayEnd();
+                }
+            });
+            return Boolean.TRUE;
+        }
+
+        @Override
+        public void completed(Boolean result) {
+            submitComplete(-1);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            // connection problem with the host
+            logger.error("Exception occured when trying to connect to the remote host: ", e);
+            submitComplete(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+
+        @Override
+        public void cancelled() {
+            submitComplete(-1);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            logger.warn("Timeout of the asynchronous request to: " + request.getRequestURI());
+            if (future != null) {
+                future.cancel(true);
+            }
+            // waits for the write in progress, if any, the pending ones are dropped
+            complete(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+
+        private synchronized void relayHeaders(HttpResponse proxiedResponse) {
+            if (completed) {
+                return;
+            }
+            SecurityContextHolder.setContext(securityContext);
+            try {
+                if (!copyResponseHeaders(request, proxiedResponse, finalResponse)) {
+                    discardBody = true;
+                    return;
+                }
+                finalResponse.setStatus(proxiedResponse.getStatusLine().getStatusCode());
+
+                Header contentTypeHeader = proxiedResponse.getFirstHeader("Content-Type");
+                if (contentTypeHeader != null) {
+                    contentType = contentTypeHeader.getValue();
+                    logger.debug("content-type detected: "+contentType);
+                    String contentEncoding = getContentEncoding(proxiedResponse.getHeaders("Content-Encoding"));
+                    if (isCharsetRequiredForContentType(contentType) && !contentType.toLowerCase().contains("charset")
+                            && XmlEncodingSniffer.isSupported(contentEncoding)) {
+                        sniffer = new XmlEncodingSniffer(contentEncoding);
+                    }
+                }
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                SecurityContextHolder.clearContext();
+            }
+        }
+
+        private synchronized void relayBytes(byte[] bytes) {
+            if (completed || discardBody) {
+                return;
+            }
+            SecurityContextHolder.setContext(securityContext);
+            try {
+                if (sniffer == null) {
+                    getStreamToClient().write(bytes);
+                } else if (sniffer.update(bytes, 0, bytes.length)) {
+                    writeSniffedBytes();
+                }
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                SecurityContextHolder.clearContext();
+            }
+        }
+
+        private synchronized void relayEnd() {
+            if (completed || sniffer == null) {
+                return;
+            }
+            SecurityContextHolder.setContext(securityContext);
+            try {
+                sniffer.finish();
+                writeSniffedBytes();
+            } catch (IOException e) {
+                abort(e);
+            } finally {
+                SecurityContextHolder.clearContext();
+            }
+        }
+
+        private void writeSniffedBytes() throws IOException {
+            setResponseCharset(request, finalResponse, contentType, sniffer.getCharset());
+            getStreamToClient().write(sniffer.getBufferedBytes());
+            sniffer = null;
+        }
+
+        private OutputStream getStreamToClient() throws IOException {
+            if (streamToClient == null) {
+                streamToClient = finalResponse.getOutputStream();
+            }
+            return streamToClient;
+        }
+
+        /**
+         * The client is gone, the proxied request is cancelled
+         */
+        private void abort(IOException e) {
+            logger.debug("Error writing the response to the client of: " + request.getRequestURI(), e);
+            if (future != null) {
+                future.cancel(true);
+            }
+            complete(-1);
+        }
+
+        private void submitComplete(final int errorStatus) {
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    complete(errorStatus);
+                }
+            });
+        }
+
+        /**
+         * Queues a write to the client, the writes are done one at a time by the worker threads.
+         */
+        private void submit(Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            try {
+                asyncHttpClientPool.getWorkers().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // the pool is stopped
+                logger.error("Unable to relay the asynchronous response of: " + request.getRequestURI(), e);
+                complete(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (tasks) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+
+        /**
+         * Ends the response, once.
+         *
+         * @param errorStatus error sent to the client if nothing has been sent yet, -1 if none
+         */
+        private synchronized void complete(int errorStatus) {
+            if (completed) {
+                return;
+            }
+            completed = true;
+            SecurityContextHolder.setContext(securityContext);
+            try {
+                if (errorStatus > 0 && !finalResponse.isCommitted()) {
+                    finalResponse.sendError(errorStatus);
+                } else if (streamToClient != null) {
+                    streamToClient.flush();
+                    streamToClient.close();
+                }
+            } catch (IOException e) {
+                logger.error("Error closing streams", e);
+            } finally {
+                SecurityContextHolder.clearContext();
+                asyncContext.complete();
+            }
+        }
+    }
+
     public void setDefaultTarget(String defaultTarget) {
         this.defaultTarget = defaultTarget;
     }
@@ -1173,6 +1561,21 @@ public class Proxy {
 		return this.checkHealth.booleanValue();
 	}
 
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public void setShedLoadWhenDatabaseSaturated(boolean shedLoadWhenDatabaseSaturated) {
+        this.shedLoadWhenDatabaseSaturated = shedLoadWhenDatabaseSaturated;
+    }
+
+    /**
+     * Replaces the sampler created at init when checkHealth is true
+     */
+    public void setHealthSampler(DatabaseHealthSampler healthSampler) {
+        this.healthSampler = healthSampler;
+    }
+
 
 
     public void setRequireCharsetContentTypes(List<String> requireCharsetContentTypes) {
@@ -1201,11 +1604,29 @@ public class Proxy {
     public void setProxyPermissionsFile(String proxyPermissionsFile) {
         this.proxyPermissionsFile = proxyPermissionsFile;
     }
+    public void setProxyPermissionsReloadInterval(long proxyPermissionsReloadInterval) {
+        this.proxyPermissionsReloadInterval = proxyPermissionsReloadInterval;
+    }
     public void setProxyPermissions(Permissions proxyPermissions) throws UnknownHostException {
+        proxyPermissions.init();
         this.proxyPermissions = proxyPermissions;
-        this.proxyPermissions.init();
     }
     public Permissions getProxyPermissions() {
         return proxyPermissions;
     }
+
+    public void setHttpClientPool(HttpClientPool httpClientPool) {
+        this.httpClientPool = httpClientPool;
+    }
+
+    public void setAsyncHttpClientPool(AsyncHttpClientPool asyncHttpClientPool) {
+        this.asyncHttpClientPool = asyncHttpClientPool;
+    }
+
+    /**
+     * @return the leased, pending and available connections of the pool of each target
+     */
+    public Map<String, PoolStats> getPoolStats() {
+        return httpClientPool.getPoolStats();
+    }
 }
@@ -0,0 +1,171 @@
+package org.georchestra.security;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Looks for the encoding attribute of the xml declaration in the first bytes of
+ * a response body, for the responses sent without a charset in their
+ * content-type.
+ * <p>
+ * The bytes are fed as they are received and kept until a decision is made, so
+ * that they can then be sent unchanged to the client. Gzip and deflate encoded
+ * bodies are only inflated for the detection: the bytes kept are the encoded
+ * ones.
+ * </p>
+ */
+class XmlEncodingSniffer {
+
+    /**
+     * Number of decoded bytes which must be read before looking for the encoding
+     */
+    static final int MIN_PREFIX = 200;
+
+    /**
+     * Max number of decoded bytes in which the encoding is looked for
+     */
+    static final int MAX_PREFIX = 1024;
+
+    /**
+     * Max number of (encoded) bytes kept before giving up
+     */
+    static final int MAX_BUFFERED = 16 * 1024;
+
+    private static final Pattern ENCODING_PATTERN = Pattern.compile("encoding=(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)");
+
+    private final String contentEncoding;
+    private final ByteArrayOutputStream buffered = new ByteArrayOutputStream(MAX_PREFIX);
+    private boolean done = false;
+    private String charset;
+
+    /**
+     * @param contentEncoding content-encoding of the response, null if not encoded
+     */
+    XmlEncodingSniffer(String contentEncoding) {
+        if (!isSupported(contentEncoding)) {
+            throw new IllegalArgumentException("Unsupported content encoding: " + contentEncoding);
+        }
+        this.contentEncoding = contentEncoding;
+    }
+
+    /**
+     * @return true if the bodies with this content-encoding can be sniffed
+     */
+    static boolean isSupported(String contentEncoding) {
+        return contentEncoding == null || isGzip(contentEncoding) || "deflate".equalsIgnoreCase(contentEncoding);
+    }
+
+    /**
+     * Extracts the encoding from a string which is the header node of an xml file
+     *
+     * @return the charset. null if not found
+     */
+    static String findCharset(CharSequence header) {
+        Matcher matcher = ENCODING_PATTERN.matcher(header);
+        if (matcher.find()) {
+            return matcher.group(2);
+        }
+        return null;
+    }
+
+    /**
+     * Adds bytes of the body.
+     *
+     * @return true when enough bytes have been read to know the charset (which may still be unknown)
+     */
+    boolean update(byte[] bytes, int offset, int length) {
+        if (done) {
+            throw new IllegalStateException("The charset has already been detected");
+        }
+        buffered.write(bytes, offset, length);
+
+        byte[] prefix = decodedPrefix();
+        if (prefix.length > MIN_PREFIX || buffered.size() >= MAX_BUFFERED) {
+            detect(prefix);
+        }
+        return done;
+    }
+
+    /**
+     * Called at the end of the body, detects the charset from the bytes read so far.
+     */
+    void finish() {
+        if (!done) {
+            detect(decodedPrefix());
+        }
+    }
+
+    /**
+     * @return the charset found, null if it was not found
+     */
+    String getCharset() {
+        return charset;
+    }
+
+    /**
+     * @return the (still encoded) bytes received so far, they have to be sent to the client
+     */
+    byte[] getBufferedBytes() {
+        return buffered.toByteArray();
+    }
+
+    private void detect(byte[] prefix) {
+        // read as ASCII, which is common to many charsets
+        try {
+            charset = findCharset(new String(prefix, "ISO-8859-1"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        done = true;
+    }
+
+    private byte[] decodedPrefix() {
+        byte[] raw = buffered.toByteArray();
+        if (contentEncoding == null) {
+            if (raw.length <= MAX_PREFIX) {
+                return raw;
+            }
+            byte[] prefix = new byte[MAX_PREFIX];
+            System.arraycopy(raw, 0, prefix, 0, MAX_PREFIX);
+            return prefix;
+        }
+
+        // inflates what can be inflated from the bytes read so far
+        ByteArrayOutputStream prefix = new ByteArrayOutputStream(MAX_PREFIX);
+        InputStream in = null;
+        try {
+            InputStream compressed = new ByteArrayInputStream(raw);
+            in = isGzip(contentEncoding) ? new GZIPInputStream(compressed) : new InflaterInputStream(compressed);
+            byte[] buf = new byte[MAX_PREFIX];
+            int len;
+            while (prefix.size() < MAX_PREFIX && (len = in.read(buf, 0, MAX_PREFIX - prefix.size())) > 0) {
+                prefix.write(buf, 0, len);
+            }
+        } catch (EOFException e) {
+            // the compressed stream is truncated, more bytes are needed
+        } catch (IOException e) {
+            // not a valid compressed stream, the charset will not be found
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // in memory stream
+                }
+            }
+        }
+        return prefix.toByteArray();
+    }
+
+    private static boolean isGzip(String contentEncoding) {
+        return "gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding);
+    }
+}
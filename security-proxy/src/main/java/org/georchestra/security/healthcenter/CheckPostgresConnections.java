@@ -25,11 +25,18 @@ final class CheckPostgresConnections {
 
 	public static List<Map<String, Object>> findConnections(String database, String user, String password, String clientName) throws IOException {
 
+		return findConnections(PostgresConnectionProvider.getInstance(database ,user, password, clientName));
+	}
+
+	/**
+	 * @param connProvider provides the connection used to query the connection's state
+	 */
+	static List<Map<String, Object>> findConnections(DBConnectionProvider connProvider) throws IOException {
+
 		List<Map<String, Object>> connectionList; 
 		Connection  connection = null;
 		try {
 			
-			DBConnectionProvider connProvider = PostgresConnectionProvider.getInstance(database ,user, password, clientName);
 			connection = connProvider.getConnection();
 		
 			ConnectionStatsCommand cmd = new ConnectionStatsCommand();
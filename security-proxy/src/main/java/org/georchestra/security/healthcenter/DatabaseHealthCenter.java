@@ -27,9 +27,24 @@ public class DatabaseHealthCenter {
 	private String clientName;
 
 	private String database;
+
+	/**
+	 * if null, the connections are checked through {@link PostgresConnectionProvider}
+	 */
+	private final DBConnectionProvider connectionProvider;
     
 	private DatabaseHealthCenter(){
 		// singleton
+		this.connectionProvider = null;
+	}
+
+	/**
+	 * Health center checking the connections through the given provider
+	 * 
+	 * @param connectionProvider
+	 */
+	DatabaseHealthCenter(DBConnectionProvider connectionProvider){
+		this.connectionProvider = connectionProvider;
 	}
 	public static synchronized DatabaseHealthCenter getInstance(String database, String user, String password, String clientName){
 
@@ -60,34 +75,53 @@ public class DatabaseHealthCenter {
 	 */
 	public boolean checkConnections(final int maxConnections){
 		
+		return sample(maxConnections).isHealthy();
+	}
+
+	/**
+	 * Checks the connections as {@link #checkConnections(int)} does.
+	 * 
+	 * @param maxConnections max connections allowed
+	 * 
+	 * @return the status of the connections, unknown if they could not be retrieved
+	 */
+	public HealthSnapshot sample(final int maxConnections){
+		
 		if(maxConnections <= 0 ){
 			throw new IllegalArgumentException("maxDatabaseConnection must be greater than 0 ");
 		}
 		
-		boolean healthy = true;
 		try {
 			long healthLimit = Math.round( maxConnections * 0.8 );
 			
-			List<Map<String,Object>> listConnections = CheckPostgresConnections.findConnections(this.database,  this.user, this.password, this.clientName);
+			List<Map<String,Object>> listConnections = findConnections();
 			final int liveConnections = listConnections.size();
+			HealthSnapshot.Status status = HealthSnapshot.Status.HEALTHY;
 			if( (liveConnections >= healthLimit) && (liveConnections < maxConnections) ){
 				// the configuration is near to the limit, then log the connections status 
 				warningReport(liveConnections, healthLimit, maxConnections, listConnections);
-				healthy = false;
+				status = HealthSnapshot.Status.NEAR_LIMIT;
 			} else if(liveConnections >= maxConnections){
 			
 				// the system is in unstable situation
 				unstableReport(liveConnections, healthLimit, maxConnections, listConnections);
-				healthy = false;
+				status = HealthSnapshot.Status.SATURATED;
 			}
+			return new HealthSnapshot(status, liveConnections, maxConnections, System.currentTimeMillis());
+
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			LOGGER.error("The database connections could not be checked", e);
+			return HealthSnapshot.unknown(maxConnections);
 		}
-		return healthy;
-		
-		
 	}
+
+	private List<Map<String,Object>> findConnections() throws IOException {
+		if(this.connectionProvider != null){
+			return CheckPostgresConnections.findConnections(this.connectionProvider);
+		}
+		return CheckPostgresConnections.findConnections(this.database,  this.user, this.password, this.clientName);
+	}
+
 	/**
 	 * The system has open all available connection. 
 	 * The information of live connection will be log in order to provide a report
@@ -0,0 +1,102 @@
+package org.georchestra.security.healthcenter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Checks the database connections in background, at a fixed interval.
+ * <p>
+ * The requests only read the last {@link HealthSnapshot}, thus they don't wait
+ * for the database to be queried.
+ * </p>
+ */
+public class DatabaseHealthSampler {
+
+	private static final Log LOGGER = LogFactory.getLog(DatabaseHealthSampler.class.getPackage().getName());
+
+	private final DatabaseHealthCenter healthCenter;
+	private final int maxConnections;
+	private final long interval;
+
+	private volatile HealthSnapshot snapshot;
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param healthCenter checks the connections
+	 * @param maxConnections max connections allowed
+	 * @param interval time (in ms) between two checks
+	 */
+	public DatabaseHealthSampler(DatabaseHealthCenter healthCenter, int maxConnections, long interval) {
+		if(maxConnections <= 0 ){
+			throw new IllegalArgumentException("maxDatabaseConnection must be greater than 0 ");
+		}
+		if(interval <= 0 ){
+			throw new IllegalArgumentException("the health check interval must be greater than 0 ");
+		}
+		this.healthCenter = healthCenter;
+		this.maxConnections = maxConnections;
+		this.interval = interval;
+		this.snapshot = HealthSnapshot.unknown(maxConnections);
+	}
+
+	/**
+	 * Starts the checks, the first one is done immediately
+	 */
+	public synchronized void start() {
+		if(this.scheduler != null){
+			return;
+		}
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("security-proxy-database-health").setDaemon(true).build());
+		this.scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				sample();
+			}
+		}, 0, this.interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the checks
+	 */
+	public synchronized void stop() {
+		if(this.scheduler != null){
+			this.scheduler.shutdownNow();
+			this.scheduler = null;
+		}
+	}
+
+	/**
+	 * Checks the connections and publishes the result
+	 */
+	public void sample() {
+		try {
+			this.snapshot = this.healthCenter.sample(this.maxConnections);
+
+		} catch (RuntimeException e) {
+			// the next checks must still be done
+			LOGGER.error("The database connections could not be checked", e);
+			this.snapshot = HealthSnapshot.unknown(this.maxConnections);
+		}
+	}
+
+	/**
+	 * @return the result of the last check, unknown until the first one is done
+	 */
+	public HealthSnapshot getSnapshot() {
+		return this.snapshot;
+	}
+
+	/**
+	 * @return time (in ms) between two checks
+	 */
+	public long getInterval() {
+		return this.interval;
+	}
+}
@@ -0,0 +1,81 @@
+package org.georchestra.security.healthcenter;
+
+/**
+ * Immutable result of a check of the database connections.
+ */
+public final class HealthSnapshot {
+
+	public enum Status {
+		/** the connections could not be counted */
+		UNKNOWN,
+		/** under 80% of the max connections */
+		HEALTHY,
+		/** between 80% and the max connections */
+		NEAR_LIMIT,
+		/** the max connections is reached */
+		SATURATED
+	}
+
+	private final Status status;
+	private final int liveConnections;
+	private final int maxConnections;
+	private final long sampledAt;
+
+	/**
+	 * @param status status of the connections
+	 * @param liveConnections number of open connections, -1 if unknown
+	 * @param maxConnections max connections allowed
+	 * @param sampledAt time of the check (ms since epoch)
+	 */
+	public HealthSnapshot(Status status, int liveConnections, int maxConnections, long sampledAt) {
+		this.status = status;
+		this.liveConnections = liveConnections;
+		this.maxConnections = maxConnections;
+		this.sampledAt = sampledAt;
+	}
+
+	/**
+	 * @return a snapshot for a database whose connections have not been counted (yet)
+	 */
+	public static HealthSnapshot unknown(int maxConnections) {
+		return new HealthSnapshot(Status.UNKNOWN, -1, maxConnections, System.currentTimeMillis());
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public int getLiveConnections() {
+		return liveConnections;
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public long getSampledAt() {
+		return sampledAt;
+	}
+
+	/**
+	 * An unknown status is not considered unhealthy: the requests are not refused
+	 * because the database could not be checked.
+	 *
+	 * @return false if the connections are near to the limit or saturated
+	 */
+	public boolean isHealthy() {
+		return status != Status.NEAR_LIMIT && status != Status.SATURATED;
+	}
+
+	/**
+	 * @return true if the max connections is reached
+	 */
+	public boolean isSaturated() {
+		return status == Status.SATURATED;
+	}
+
+	@Override
+	public String toString() {
+		return "Database Connections: " + liveConnections + " Max:" + maxConnections + " Status:" + status;
+	}
+}
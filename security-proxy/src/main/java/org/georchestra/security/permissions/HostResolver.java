@@ -0,0 +1,75 @@
+package org.georchestra.security.permissions;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolves host names, keeping the addresses (or the failure to resolve them) for a limited time.
+ * <p>
+ * Concurrent lookups of the same host wait for a single DNS query.
+ * </p>
+ */
+public class HostResolver {
+    private static final InetAddress[] NO_ADDRESS = new InetAddress[0];
+
+    private final LoadingCache<String, Optional<InetAddress[]>> addresses;
+
+    /**
+     * @param ttl     time (in seconds) during which the addresses of a host are reused
+     * @param maxSize max number of hosts kept
+     */
+    public HostResolver(long ttl, long maxSize) {
+        this.addresses = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, TimeUnit.SECONDS)
+                .maximumSize(maxSize)
+                .recordStats()
+                .build(new CacheLoader<String, Optional<InetAddress[]>>() {
+                    @Override
+                    public Optional<InetAddress[]> load(String host) {
+                        try {
+                            return Optional.of(InetAddress.getAllByName(host));
+                        } catch (UnknownHostException e) {
+                            return Optional.absent();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return the addresses of the host, an empty array if it can't be resolved
+     */
+    public InetAddress[] resolve(String host) {
+        try {
+            return addresses.get(host.toLowerCase(Locale.ENGLISH)).or(NO_ADDRESS);
+        } catch (ExecutionException e) {
+            return NO_ADDRESS;
+        } catch (UncheckedExecutionException e) {
+            // e.g. a SecurityException
+            return NO_ADDRESS;
+        }
+    }
+
+    /**
+     * Forgets all the resolved addresses
+     */
+    public void invalidateAll() {
+        addresses.invalidateAll();
+    }
+
+    /**
+     * @return the hits and misses of the cache
+     */
+    public CacheStats getStats() {
+        return addresses.stats();
+    }
+}
@@ -1,31 +1,69 @@
 package org.georchestra.security.permissions;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.Lists;
 
+import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Once initialized, the host names are resolved through a {@link HostResolver} and the decisions are cached per
+ * host, port and path, both for {@link #dnsCacheTtl} seconds.
+ *
  * @author Jesse on 8/15/2014.
  */
 public class Permissions {
+    private static final long DEFAULT_DNS_CACHE_TTL = 60;
+    private static final long DEFAULT_DECISION_CACHE_SIZE = 10000;
+
     private List<UriMatcher> allowed = Lists.newArrayList();
     private List<UriMatcher> denied = Lists.newArrayList();
     private boolean allowByDefault = false;
     private boolean initialized = false;
+    private long dnsCacheTtl = DEFAULT_DNS_CACHE_TTL;
+    private long decisionCacheSize = DEFAULT_DECISION_CACHE_SIZE;
+
+    private transient volatile Engine engine;
 
     public Permissions setAllowed(List<UriMatcher> allowed) {
         this.allowed = allowed;
+        this.engine = null;
         return this;
     }
 
     public Permissions setDenied(List<UriMatcher> denied) {
         this.denied = denied;
+        this.engine = null;
         return this;
     }
 
     public boolean isDenied(URL url) {
+        Engine engine = this.engine;
+        if (engine == null) {
+            return isDeniedUncached(url);
+        }
+        int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+        String key = url.getHost().toLowerCase(Locale.ENGLISH) + ':' + port + url.getPath();
+        Boolean denied = engine.decisions.getIfPresent(key);
+        if (denied == null) {
+            InetAddress[] addresses = engine.hostResolver.resolve(url.getHost());
+            if (allowByDefault) {
+                denied = !engine.allowedIndex.matches(url, addresses) && engine.deniedIndex.matches(url, addresses);
+            } else {
+                denied = engine.deniedIndex.matches(url, addresses) || !engine.allowedIndex.matches(url, addresses);
+            }
+            engine.decisions.put(key, denied);
+        }
+        return denied;
+    }
+
+    private boolean isDeniedUncached(URL url) {
         if (allowByDefault) {
             if (checkIfAllowed(url)) return false;
             if (checkIfDenied(url)) return true;
@@ -68,6 +106,31 @@ public class Permissions {
 
     public void setAllowByDefault(boolean allowByDefault) {
         this.allowByDefault = allowByDefault;
+        this.engine = null;
+    }
+
+    public long getDnsCacheTtl() {
+        return dnsCacheTtl;
+    }
+
+    /**
+     * @param dnsCacheTtl time (in seconds) during which resolved host names and decisions are reused
+     */
+    public Permissions setDnsCacheTtl(long dnsCacheTtl) {
+        this.dnsCacheTtl = dnsCacheTtl;
+        return this;
+    }
+
+    public long getDecisionCacheSize() {
+        return decisionCacheSize;
+    }
+
+    /**
+     * @param decisionCacheSize max number of (host, port, path) decisions kept, the least recently used are evicted
+     */
+    public Permissions setDecisionCacheSize(long decisionCacheSize) {
+        this.decisionCacheSize = decisionCacheSize;
+        return this;
     }
 
     public synchronized void init() throws UnknownHostException {
@@ -78,9 +141,43 @@ public class Permissions {
         for (UriMatcher uriMatcher : denied) {
             uriMatcher.init();
         }
+        engine = new Engine(this);
         initialized = true;
     }
 
+    /**
+     * Resolves a host name, through the cache once initialized.
+     *
+     * @return the addresses of the host, an empty array if it can't be resolved
+     */
+    public InetAddress[] resolve(String host) {
+        Engine engine = this.engine;
+        if (engine != null) {
+            return engine.hostResolver.resolve(host);
+        }
+        try {
+            return InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            return new InetAddress[0];
+        }
+    }
+
+    /**
+     * @return the hits and misses of the decision cache, null if not initialized
+     */
+    public CacheStats getDecisionCacheStats() {
+        Engine engine = this.engine;
+        return engine == null ? null : engine.decisions.stats();
+    }
+
+    /**
+     * @return the hits and misses of the host name cache, null if not initialized
+     */
+    public CacheStats getDnsCacheStats() {
+        Engine engine = this.engine;
+        return engine == null ? null : engine.hostResolver.getStats();
+    }
+
     public synchronized boolean isInitialized() {
         return this.initialized;
     }
@@ -93,6 +190,34 @@ public class Permissions {
         if (this.allowed == null) {
             this.allowed = Lists.newArrayList();
         }
+        // The Xml unmarshaller leaves the missing elements to 0
+        if (this.dnsCacheTtl == 0) {
+            this.dnsCacheTtl = DEFAULT_DNS_CACHE_TTL;
+        }
+        if (this.decisionCacheSize == 0) {
+            this.decisionCacheSize = DEFAULT_DECISION_CACHE_SIZE;
+        }
         return this;
     }
+
+    /**
+     * The caches and indexes built from the initialized matchers
+     */
+    private static final class Engine {
+        final HostResolver hostResolver;
+        final Cache<String, Boolean> decisions;
+        final UriMatcherIndex allowedIndex;
+        final UriMatcherIndex deniedIndex;
+
+        Engine(Permissions permissions) {
+            hostResolver = new HostResolver(permissions.dnsCacheTtl, permissions.decisionCacheSize);
+            decisions = CacheBuilder.newBuilder()
+                    .expireAfterWrite(permissions.dnsCacheTtl, TimeUnit.SECONDS)
+                    .maximumSize(permissions.decisionCacheSize)
+                    .recordStats()
+                    .<String, Boolean>build();
+            allowedIndex = new UriMatcherIndex(permissions.allowed);
+            deniedIndex = new UriMatcherIndex(permissions.denied);
+        }
+    }
 }
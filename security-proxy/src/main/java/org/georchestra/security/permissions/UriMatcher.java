@@ -6,6 +6,7 @@ import java.net.InetAddress;
 import java.net.URL;
 import java.net.UnknownHostException;
 import java.util.HashSet;
+import java.util.Set;
 import java.util.regex.Pattern;
 
 /**
@@ -47,10 +48,14 @@ public class UriMatcher {
     }
 
     private boolean matchesPort(URL url) {
-        if (url.getPort() == this.port) {
+        return matchesPort(url, this.port);
+    }
+
+    static boolean matchesPort(URL url, int port) {
+        if (url.getPort() == port) {
             return true;
         }
-        return url.getPort() == -1 && url.getDefaultPort() == this.port;
+        return url.getPort() == -1 && url.getDefaultPort() == port;
     }
 
     private boolean matchesHost(URL url) {
@@ -96,6 +101,20 @@ public class UriMatcher {
         return path;
     }
 
+    /**
+     * @return the addresses of the host, null if any host matches. Only available once initialized
+     */
+    Set<InetAddress> getHostNames() {
+        return hostNames;
+    }
+
+    /**
+     * @return the compiled path, null if any path matches. Only available once initialized
+     */
+    Pattern getPathPattern() {
+        return pathPattern;
+    }
+
     private Object readResolve() {
         // The Xml unmarshaller will set port to 0 if the port element is missing
         // so I will assume that this means the port is missing and set to -1 which
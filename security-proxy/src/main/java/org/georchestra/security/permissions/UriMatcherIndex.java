@@ -0,0 +1,154 @@
+package org.georchestra.security.permissions;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable index of initialized {@link UriMatcher}s, equivalent to checking them one after the other.
+ * <p>
+ * The matchers are grouped by host and port, and the paths of a group are merged into a single pattern,
+ * so that a url is only checked against the groups of its own addresses (plus the ones without a host)
+ * with one regular expression per group, whatever the number of matchers.
+ * </p>
+ * <p>
+ * Merging renumbers the capturing groups, so the paths containing a backreference are not merged: they are
+ * checked one by one after the merged pattern.
+ * </p>
+ */
+final class UriMatcherIndex {
+
+    /**
+     * Backreference by number or by name, an escaped backslash followed by a digit is also taken for one,
+     * which only means that the path is not merged
+     */
+    private static final Pattern BACKREFERENCE = Pattern.compile("\\\\(\\d|k<)");
+
+    private final List<Group> anyHost;
+    private final Map<InetAddress, List<Group>> byAddress;
+
+    UriMatcherIndex(List<UriMatcher> matchers) {
+        Map<List<Object>, Group> groups = Maps.newLinkedHashMap();
+        for (UriMatcher matcher : matchers) {
+            List<Object> key = Lists.<Object>newArrayList(matcher.getHostNames(), matcher.getPort());
+            Group group = groups.get(key);
+            if (group == null) {
+                group = new Group(matcher.getHostNames(), matcher.getPort());
+                groups.put(key, group);
+            }
+            group.add(matcher.getPathPattern());
+        }
+
+        List<Group> anyHost = Lists.newArrayList();
+        Map<InetAddress, List<Group>> byAddress = Maps.newHashMap();
+        for (Group group : groups.values()) {
+            group.compile();
+            if (group.hostNames == null) {
+                anyHost.add(group);
+                continue;
+            }
+            for (InetAddress address : group.hostNames) {
+                List<Group> addressGroups = byAddress.get(address);
+                if (addressGroups == null) {
+                    addressGroups = Lists.newArrayList();
+                    byAddress.put(address, addressGroups);
+                }
+                addressGroups.add(group);
+            }
+        }
+        this.anyHost = anyHost;
+        this.byAddress = byAddress;
+    }
+
+    /**
+     * @param addresses the resolved addresses of the host of the url, empty if it can't be resolved
+     * @return true if one of the indexed matchers matches the url
+     */
+    boolean matches(URL url, InetAddress[] addresses) {
+        for (Group group : anyHost) {
+            if (group.matches(url)) {
+                return true;
+            }
+        }
+        // a group is checked once even if the host has several of its addresses
+        Set<Group> checked = addresses.length > 1 ? Collections.newSetFromMap(new IdentityHashMap<Group, Boolean>()) : null;
+        for (InetAddress address : addresses) {
+            List<Group> groups = byAddress.get(address);
+            if (groups == null) {
+                continue;
+            }
+            for (Group group : groups) {
+                if ((checked == null || checked.add(group)) && group.matches(url)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static final class Group {
+        final Set<InetAddress> hostNames;
+        final int port;
+        final Set<String> paths = Sets.newLinkedHashSet();
+        final List<Pattern> unmergedPatterns = Lists.newArrayList();
+        boolean anyPath = false;
+        Pattern pathPattern;
+
+        Group(Set<InetAddress> hostNames, int port) {
+            this.hostNames = hostNames;
+            this.port = port;
+        }
+
+        void add(Pattern path) {
+            if (path == null) {
+                anyPath = true;
+            } else if (BACKREFERENCE.matcher(path.pattern()).find()) {
+                unmergedPatterns.add(path);
+            } else {
+                paths.add(path.pattern());
+            }
+        }
+
+        void compile() {
+            if (anyPath || paths.isEmpty()) {
+                return;
+            }
+            StringBuilder combined = new StringBuilder();
+            for (String path : paths) {
+                if (combined.length() > 0) {
+                    combined.append('|');
+                }
+                combined.append("(?:").append(path).append(')');
+            }
+            pathPattern = Pattern.compile(combined.toString());
+        }
+
+        boolean matches(URL url) {
+            if (port != -1 && !UriMatcher.matchesPort(url, port)) {
+                return false;
+            }
+            if (anyPath) {
+                return true;
+            }
+            String path = url.getPath();
+            if (pathPattern != null && pathPattern.matcher(path).matches()) {
+                return true;
+            }
+            for (Pattern unmerged : unmergedPatterns) {
+                if (unmerged.matcher(path).matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
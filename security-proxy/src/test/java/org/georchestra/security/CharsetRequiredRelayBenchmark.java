@@ -0,0 +1,142 @@
+package org.georchestra.security;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the former charset detection loop of {@link Proxy} (string accumulation, 1024 bytes buffer, gzip
+ * decompression and recompression) with the current one ({@link XmlEncodingSniffer} on the first bytes, then
+ * relay of the raw bytes with a large buffer), on a WFS GetFeature GML response of a few megabytes.
+ * <p>
+ * Run with: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.georchestra.security.CharsetRequiredRelayBenchmark</code>
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CharsetRequiredRelayBenchmark {
+
+    @Param({"1000", "20000"})
+    public int features;
+
+    @Param({"identity", "gzip"})
+    public String contentEncoding;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream gml = new ByteArrayOutputStream();
+        OutputStream out = "gzip".equals(contentEncoding) ? new GZIPOutputStream(gml) : gml;
+        out.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<wfs:FeatureCollection xmlns:wfs=\"http://www.opengis.net/wfs\" xmlns:gml=\"http://www.opengis.net/gml\""
+                + " xmlns:geor=\"http://geor.fr\">\n").getBytes("UTF-8"));
+        for (int i = 0; i < features; i++) {
+            out.write(("<gml:featureMember><geor:communes gml:id=\"communes." + i + "\">"
+                    + "<geor:nom>Commune " + i + "</geor:nom><geor:insee>35" + (i % 1000) + "</geor:insee>"
+                    + "<geor:the_geom><gml:MultiPolygon srsName=\"EPSG:2154\"><gml:polygonMember><gml:Polygon>"
+                    + "<gml:outerBoundaryIs><gml:LinearRing><gml:coordinates decimal=\".\" cs=\",\" ts=\" \">"
+                    + "351234.12," + (6789012 + i) + ".34 351334.56," + (6789112 + i) + ".78 351434.9," + (6789012 + i)
+                    + ".12 351234.12," + (6789012 + i) + ".34</gml:coordinates></gml:LinearRing></gml:outerBoundaryIs>"
+                    + "</gml:Polygon></gml:polygonMember></gml:MultiPolygon></geor:the_geom></geor:communes>"
+                    + "</gml:featureMember>\n").getBytes("UTF-8"));
+        }
+        out.write("</wfs:FeatureCollection>\n".getBytes("UTF-8"));
+        out.close();
+        body = gml.toByteArray();
+    }
+
+    @Benchmark
+    public String legacyLoop() throws IOException {
+        boolean gzip = "gzip".equals(contentEncoding);
+        InputStream streamFromServer = new ByteArrayInputStream(body);
+        OutputStream streamToClient = new NullOutputStream();
+        if (gzip) {
+            streamFromServer = new GZIPInputStream(streamFromServer);
+            streamToClient = new GZIPOutputStream(streamToClient);
+        }
+        String charset = null;
+        byte[] buf = new byte[1024];
+        int len;
+        boolean first = true;
+        String s = "";
+        while ((len = streamFromServer.read(buf)) > 0) {
+            if (first) {
+                for (int i = 0; i < len; i++) {
+                    s += (char) buf[i];
+                }
+                if (s.length() > 200) {
+                    Pattern pattern = Pattern.compile("encoding=(['\"])([A-Za-z]([A-Za-z0-9._]|-)*)");
+                    Matcher matcher = pattern.matcher(s);
+                    if (matcher.find()) {
+                        charset = matcher.group().split("['\"]")[1];
+                    }
+                    first = false;
+                }
+            }
+            streamToClient.write(buf, 0, len);
+        }
+        streamToClient.close();
+        return charset;
+    }
+
+    @Benchmark
+    public String sniffAndRelay() throws IOException {
+        InputStream streamFromServer = new ByteArrayInputStream(body);
+        OutputStream streamToClient = new NullOutputStream();
+        XmlEncodingSniffer sniffer = new XmlEncodingSniffer("gzip".equals(contentEncoding) ? "gzip" : null);
+        byte[] buf = new byte[64 * 1024];
+        boolean detected = false;
+        int len;
+        while (!detected && (len = streamFromServer.read(buf, 0, XmlEncodingSniffer.MAX_PREFIX)) != -1) {
+            detected = sniffer.update(buf, 0, len);
+        }
+        sniffer.finish();
+        streamToClient.write(sniffer.getBufferedBytes());
+        while ((len = streamFromServer.read(buf)) != -1) {
+            streamToClient.write(buf, 0, len);
+        }
+        streamToClient.close();
+        return sniffer.getCharset();
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(CharsetRequiredRelayBenchmark.class.getSimpleName()).build()).run();
+    }
+}
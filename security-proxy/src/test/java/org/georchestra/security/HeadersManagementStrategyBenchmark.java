@@ -0,0 +1,115 @@
+package org.georchestra.security;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the header management of a GetMap request (request and response headers), with one strategy
+ * shared by 1, 8 and 64 threads as in the proxy.
+ * <p>
+ * Run with: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.georchestra.security.HeadersManagementStrategyBenchmark</code>
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HeadersManagementStrategyBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class SharedStrategy {
+        HeadersManagementStrategy headerManagement;
+
+        @Setup
+        public void setUp() {
+            headerManagement = new HeadersManagementStrategy();
+            headerManagement.setReferer("http://georchestra.org/");
+            RemoveXForwardedHeaders removeXForwardedHeaders = new RemoveXForwardedHeaders();
+            removeXForwardedHeaders.setIncludes(Collections.singletonList(".*geonetwork.*"));
+            headerManagement.setFilters(Arrays.<HeaderFilter>asList(new SecurityRequestHeaderFilter(), removeXForwardedHeaders));
+            headerManagement.setHeaderProviders(Collections.<HeaderProvider>singletonList(new ImpersonateUserRequestHeaderProvider()));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class GetMapRequest {
+        MockHttpServletRequest request;
+        BasicHttpResponse response;
+
+        @Setup
+        public void setUp() {
+            request = new MockHttpServletRequest("GET", "/sec/geoserver/wms");
+            request.addHeader("Host", "georchestra.org");
+            request.addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:38.0) Gecko/20100101 Firefox/38.0");
+            request.addHeader("Accept", "image/png,image/*;q=0.8,*/*;q=0.5");
+            request.addHeader("Accept-Language", "fr,en-US;q=0.7,en;q=0.3");
+            request.addHeader("Accept-Encoding", "gzip, deflate");
+            request.addHeader("Referer", "http://georchestra.org/mapfishapp/");
+            request.addHeader("Cookie", "JSESSIONID=0A2B3C4D5E6F; _ga=GA1.2.42.42");
+            request.addHeader("Connection", "keep-alive");
+            request.addHeader("x-forwarded-for", "10.0.0.1");
+            request.addHeader("sec-username", "spoofed");
+            request.getSession(true);
+
+            response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            response.addHeader("Content-Type", "image/png");
+            response.addHeader("Content-Length", "5124");
+            response.addHeader("Cache-Control", "max-age=3600");
+            response.addHeader("Transfer-Encoding", "chunked");
+            response.addHeader("Server", "Jetty(6.1.8)");
+        }
+    }
+
+    private Object copyHeaders(SharedStrategy strategy, GetMapRequest getMap) {
+        HttpGet proxyRequest = new HttpGet("http://localhost:8080/geoserver/wms?SERVICE=WMS&REQUEST=GetMap");
+        strategy.headerManagement.configureRequestHeaders(getMap.request, proxyRequest);
+        MockHttpServletResponse finalResponse = new MockHttpServletResponse();
+        strategy.headerManagement.copyResponseHeaders(getMap.request, getMap.request.getRequestURI(), getMap.response,
+                finalResponse, Collections.<String, String>emptyMap());
+        return finalResponse;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object threads1(SharedStrategy strategy, GetMapRequest getMap) {
+        return copyHeaders(strategy, getMap);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object threads8(SharedStrategy strategy, GetMapRequest getMap) {
+        return copyHeaders(strategy, getMap);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public Object threads64(SharedStrategy strategy, GetMapRequest getMap) {
+        return copyHeaders(strategy, getMap);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(HeadersManagementStrategyBenchmark.class.getSimpleName()).build()).run();
+    }
+}
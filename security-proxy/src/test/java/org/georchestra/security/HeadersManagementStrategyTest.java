@@ -5,6 +5,7 @@ import org.apache.http.client.methods.HttpRequestBase;
 import org.junit.Test;
 import org.springframework.mock.web.MockHttpServletRequest;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -34,6 +35,35 @@ public class HeadersManagementStrategyTest {
         assertTrue(hasHeader("other_header", proxyRequest));
     }
 
+    /**
+     * The ignored headers are matched whatever their case
+     */
+    @Test
+    public void testConfigureRequestHeaders_IgnoredHeaders() throws Exception {
+        HeadersManagementStrategy headerManagement = new HeadersManagementStrategy();
+        headerManagement.setNoAcceptEncoding(true);
+        headerManagement.setReferer("http://georchestra.org/");
+
+        HttpRequestBase proxyRequest = new HttpGet("http://localhost/geonetwork");
+        MockHttpServletRequest originalRequest = createTestRequest();
+        originalRequest.addHeader("CONTENT-LENGTH", "42");
+        originalRequest.addHeader("Connection", "close");
+        originalRequest.addHeader("keep-alive", "300");
+        originalRequest.addHeader("accept-encoding", "gzip");
+        originalRequest.addHeader("Referer", "http://somewhere.org/");
+
+        headerManagement.configureRequestHeaders(originalRequest, proxyRequest);
+
+        assertFalse(hasHeader("content-length", proxyRequest));
+        assertFalse(hasHeader("connection", proxyRequest));
+        assertFalse(hasHeader("keep-alive", proxyRequest));
+        assertFalse(hasHeader("accept-encoding", proxyRequest));
+        assertEquals(1, proxyRequest.getHeaders("referer").length);
+        assertEquals("http://georchestra.org/", proxyRequest.getFirstHeader("referer").getValue());
+
+        assertTrue(hasHeader("other_header", proxyRequest));
+        assertTrue(hasHeader("sec-proxy", proxyRequest));
+    }
 
     private MockHttpServletRequest createTestRequest() {
         MockHttpServletRequest originalRequest = new MockHttpServletRequest("get", "http://georchestra.org/geonetwork");
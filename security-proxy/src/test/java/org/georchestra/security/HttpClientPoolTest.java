@@ -0,0 +1,74 @@
+package org.georchestra.security;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.pool.PoolStats;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HttpClientPoolTest {
+    private HttpClientPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new HttpClientPool();
+        pool.setMaxTotalConnections(10);
+        pool.setMaxConnectionsPerRoute(5);
+        pool.init(Arrays.asList("geoserver", "geonetwork"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.destroy();
+    }
+
+    @Test
+    public void testOneClientPerTarget() throws Exception {
+        HttpClient geoserver = pool.getClient("geoserver");
+        assertSame(geoserver, pool.getClient("geoserver"));
+        assertNotSame(geoserver, pool.getClient("geonetwork"));
+        assertSame(pool.getClient(null), pool.getClient(HttpClientPool.DEFAULT_POOL));
+    }
+
+    @Test
+    public void testPoolStats() throws Exception {
+        pool.getClient(null);
+
+        Map<String, PoolStats> stats = pool.getPoolStats();
+        assertEquals(3, stats.size());
+        assertTrue(stats.containsKey(HttpClientPool.DEFAULT_POOL));
+
+        PoolStats geoserver = stats.get("geoserver");
+        assertEquals(0, geoserver.getLeased());
+        assertEquals(0, geoserver.getPending());
+        assertEquals(0, geoserver.getAvailable());
+        assertEquals(10, geoserver.getMax());
+    }
+
+    /**
+     * A target named "default" would silently share the pool of the ?url= requests
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDefaultTargetRejected() throws Exception {
+        HttpClientPool other = new HttpClientPool();
+        try {
+            other.init(Arrays.asList("geoserver", HttpClientPool.DEFAULT_POOL));
+        } finally {
+            other.destroy();
+        }
+    }
+
+    @Test
+    public void testDestroy() throws Exception {
+        pool.destroy();
+        assertTrue(pool.getPoolStats().isEmpty());
+    }
+}
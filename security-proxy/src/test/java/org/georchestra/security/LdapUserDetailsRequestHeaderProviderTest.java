@@ -0,0 +1,148 @@
+package org.georchestra.security;
+
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.ldap.core.DirContextAdapter;
+import org.springframework.ldap.core.DirContextOperations;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.ldap.search.LdapUserSearch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LdapUserDetailsRequestHeaderProviderTest {
+
+    private final AtomicInteger searches = new AtomicInteger();
+    /**
+     * The mails stored in the directory, by user
+     */
+    private final Map<String, String> mails = new ConcurrentHashMap<String, String>();
+    private volatile CountDownLatch searchLatch = new CountDownLatch(0);
+    private LdapUserDetailsRequestHeaderProvider provider;
+
+    @Before
+    public void setUp() {
+        LdapUserSearch userSearch = new LdapUserSearch() {
+            @Override
+            public DirContextOperations searchForUser(String username) {
+                searches.incrementAndGet();
+                try {
+                    searchLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                DirContextAdapter user = new DirContextAdapter();
+                String mail = mails.get(username);
+                user.setAttributeValue("mail", (mail == null) ? username + "@georchestra.org" : mail);
+                return user;
+            }
+        };
+        provider = new LdapUserDetailsRequestHeaderProvider(userSearch, Collections.singletonMap("sec-email", "mail"));
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("jdoe", "secret"));
+    }
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testSharedAcrossSessions() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            // a client without cookies gets a new session for each request
+            Collection<Header> headers = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest("GET", "/geoserver/wms"));
+            assertEquals(1, headers.size());
+            assertEquals("jdoe@georchestra.org", headers.iterator().next().getValue());
+        }
+        assertEquals(1, searches.get());
+        assertEquals(2, provider.getCacheStats().hitCount());
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("rsmith", "secret"));
+        Collection<Header> headers = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest("GET", "/geoserver/wms"));
+        assertEquals("rsmith@georchestra.org", headers.iterator().next().getValue());
+        assertEquals(2, searches.get());
+    }
+
+    /**
+     * The entry of a user is invalidated once ldapadmin has answered the modification, the headers read
+     * afterwards are the modified ones
+     */
+    @Test
+    public void testInvalidation() throws Exception {
+        assertEquals("jdoe@georchestra.org", mail());
+
+        // an administrator modifies jdoe through ldapadmin, jdoe sends a request meanwhile
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("admin", "secret"));
+        MockHttpServletRequest modify = new MockHttpServletRequest("PUT", "/ldapadmin/private/users/jdoe");
+        provider.getCustomRequestHeaders(new MockHttpSession(), modify);
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("jdoe", "secret"));
+        assertEquals("jdoe@georchestra.org", mail());
+        mails.put("jdoe", "john.doe@georchestra.org");
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("admin", "secret"));
+        provider.responseReceived(modify, new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+
+        SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("jdoe", "secret"));
+        assertEquals("john.doe@georchestra.org", mail());
+
+        // jdoe modifies its own details, a refused modification keeps the entry
+        MockHttpServletRequest update = new MockHttpServletRequest("POST", "/ldapadmin/account/userdetails");
+        mails.put("jdoe", "jdoe@example.org");
+        provider.responseReceived(update, new BasicHttpResponse(HttpVersion.HTTP_1_1, 500, "Internal Server Error"));
+        assertEquals("john.doe@georchestra.org", mail());
+        provider.responseReceived(update, new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK"));
+        assertEquals("jdoe@example.org", mail());
+    }
+
+    private String mail() {
+        Collection<Header> headers = provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest("GET", "/geoserver/wms"));
+        return headers.iterator().next().getValue();
+    }
+
+    @Test
+    public void testConcurrentMissesAreCoalesced() throws Exception {
+        searchLatch = new CountDownLatch(1);
+        final List<Collection<Header>> results = Collections.synchronizedList(new ArrayList<Collection<Header>>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    SecurityContextHolder.getContext().setAuthentication(new UsernamePasswordAuthenticationToken("jdoe", "secret"));
+                    results.add(provider.getCustomRequestHeaders(new MockHttpSession(), new MockHttpServletRequest("GET", "/geoserver/wms")));
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        // the first lookup is blocked, the other threads either wait for it or come after it
+        while (searches.get() == 0) {
+            Thread.yield();
+        }
+        searchLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(1, searches.get());
+        assertEquals(8, results.size());
+        for (Collection<Header> headers : results) {
+            assertTrue(headers.size() == 1);
+        }
+    }
+}
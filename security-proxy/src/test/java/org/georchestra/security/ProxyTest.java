@@ -5,7 +5,11 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpVersion;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.message.BasicHttpResponse;
+import org.georchestra.security.healthcenter.DatabaseHealthCenter;
+import org.georchestra.security.healthcenter.DatabaseHealthSampler;
+import org.georchestra.security.healthcenter.HealthSnapshot;
 import org.georchestra.security.permissions.Permissions;
 import org.georchestra.security.permissions.UriMatcher;
 import org.junit.Before;
@@ -17,7 +21,9 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -25,6 +31,7 @@ public class ProxyTest {
     private Proxy proxy;
     private BasicHttpResponse response;
     private boolean executed = true;
+    private int executions;
     private MockHttpServletRequest request;
     private MockHttpServletResponse httpResponse;
 
@@ -32,10 +39,12 @@ public class ProxyTest {
     public void setUp() throws Exception {
         response = null;
         executed = false;
+        executions = 0;
         proxy = new Proxy() {
             @Override
             protected HttpResponse executeHttpRequest(HttpClient httpclient, HttpRequestBase proxyingRequest) throws IOException {
                 executed = true;
+                executions++;
                 return response;
             }
         };
@@ -60,6 +69,7 @@ public class ProxyTest {
     public void testGetUrlLegalUrl() throws Exception {
         proxy.handleUrlGETRequest(request, httpResponse, "http://localhost:8080/path");
         assertTrue(executed);
+        assertEquals(1, executions);
     }
 
     /**
@@ -106,6 +116,59 @@ public class ProxyTest {
         assertFalse(executed);
     }
 
+    /**
+     * The charset of the xml responses sent without charset is read from the xml declaration, the content is
+     * relayed unchanged.
+     */
+    @Test
+    public void testCharsetRequired() throws Exception {
+        proxy.setRequireCharsetContentTypes(Collections.singletonList("text/xml"));
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<root>");
+        for (int i = 0; i < 100; i++) {
+            xml.append("<name>R\u00e9gion ").append(i).append("</name>");
+        }
+        xml.append("</root>");
+        byte[] content = xml.toString().getBytes("ISO-8859-1");
+        ByteArrayEntity entity = new ByteArrayEntity(content);
+        entity.setContentType("text/xml");
+        response.setEntity(entity);
+
+        request = new MockHttpServletRequest("GET", "/extractorapp/wfs");
+        proxy.handleGETRequest(request, httpResponse);
+
+        assertTrue(executed);
+        assertEquals("text/xml;charset=ISO-8859-1", String.valueOf(httpResponse.getHeader("Content-Type")));
+        assertArrayEquals(content, httpResponse.getContentAsByteArray());
+    }
+
+    /**
+     * The requests are refused while the last health check reports saturated database connections.
+     */
+    @Test
+    public void testShedLoadWhenDatabaseSaturated() throws Exception {
+        final HealthSnapshot saturated = new HealthSnapshot(HealthSnapshot.Status.SATURATED, 10, 10, System.currentTimeMillis());
+        proxy.setHealthSampler(new DatabaseHealthSampler(
+                DatabaseHealthCenter.getInstance("postgres", "postgres", "admin", "testCase"), 10, 10000) {
+            @Override
+            public HealthSnapshot getSnapshot() {
+                return saturated;
+            }
+        });
+        request = new MockHttpServletRequest("GET", "/extractorapp/home");
+
+        proxy.handleGETRequest(request, httpResponse);
+        // only refused if enabled
+        assertTrue(executed);
+
+        executed = false;
+        httpResponse = new MockHttpServletResponse();
+        proxy.setShedLoadWhenDatabaseSaturated(true);
+        proxy.handleGETRequest(request, httpResponse);
+        assertFalse(executed);
+        assertEquals(503, httpResponse.getStatus());
+        assertEquals("10", httpResponse.getHeader("Retry-After"));
+    }
+
     @Test
     public void testGetUrlIllegalUrl() throws Exception {
         proxy.handleUrlGETRequest(request, httpResponse, "http://www.google.com:8080/path");
@@ -134,6 +197,21 @@ public class ProxyTest {
         assertTrue(proxyPermissions.isInitialized());
     }
 
+    @Test
+    public void testReloadPermissions() throws Exception {
+        proxy = new Proxy();
+        proxy.setProxyPermissionsFile("test-permissions.xml");
+        proxy.init();
+
+        final Permissions loaded = proxy.getProxyPermissions();
+        proxy.reloadPermissions();
+
+        assertNotSame(loaded, proxy.getProxyPermissions());
+        assertTrue(proxy.getProxyPermissions().isInitialized());
+        assertEquals(1, proxy.getProxyPermissions().getDenied().size());
+        proxy.destroy();
+    }
+
     @Test
     public void testLoadEmptyPermissions() throws Exception {
         proxy = new Proxy();
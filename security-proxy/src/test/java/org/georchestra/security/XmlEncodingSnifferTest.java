@@ -0,0 +1,93 @@
+package org.georchestra.security;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class XmlEncodingSnifferTest {
+
+    private static final String CAPABILITIES = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n"
+            + "<WMT_MS_Capabilities version=\"1.1.1\" updateSequence=\"42\">\n"
+            + "  <Service>\n"
+            + "    <Name>OGC:WMS</Name>\n"
+            + "    <Title>geOrchestra Web Map Service</Title>\n"
+            + "    <Abstract>A compliant implementation of WMS plus most of the SLD extension</Abstract>\n"
+            + "  </Service>\n"
+            + "</WMT_MS_Capabilities>\n";
+
+    @Test
+    public void testPlainContent() throws Exception {
+        byte[] content = CAPABILITIES.getBytes("ISO-8859-1");
+        XmlEncodingSniffer sniffer = new XmlEncodingSniffer(null);
+
+        // not enough bytes yet
+        assertFalse(sniffer.update(content, 0, 50));
+        assertTrue(sniffer.update(content, 50, content.length - 50));
+
+        assertEquals("ISO-8859-1", sniffer.getCharset());
+        assertArrayEquals(content, sniffer.getBufferedBytes());
+    }
+
+    @Test
+    public void testGzipContent() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compress(new GZIPOutputStream(compressed), CAPABILITIES);
+        assertCompressedCharset("gzip", compressed.toByteArray());
+    }
+
+    @Test
+    public void testDeflateContent() throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compress(new DeflaterOutputStream(compressed), CAPABILITIES);
+        assertCompressedCharset("deflate", compressed.toByteArray());
+    }
+
+    @Test
+    public void testCharsetNotFound() throws Exception {
+        byte[] content = "<root/>".getBytes("ISO-8859-1");
+        XmlEncodingSniffer sniffer = new XmlEncodingSniffer(null);
+
+        assertFalse(sniffer.update(content, 0, content.length));
+        sniffer.finish();
+
+        assertNull(sniffer.getCharset());
+        assertArrayEquals(content, sniffer.getBufferedBytes());
+    }
+
+    @Test
+    public void testSupportedEncodings() throws Exception {
+        assertTrue(XmlEncodingSniffer.isSupported(null));
+        assertTrue(XmlEncodingSniffer.isSupported("x-gzip"));
+        assertTrue(XmlEncodingSniffer.isSupported("DEFLATE"));
+        assertFalse(XmlEncodingSniffer.isSupported("br"));
+    }
+
+    private void assertCompressedCharset(String contentEncoding, byte[] compressed) {
+        XmlEncodingSniffer sniffer = new XmlEncodingSniffer(contentEncoding);
+        // feeds the compressed bytes one by one, the truncated streams must not be a problem
+        boolean done = false;
+        for (int i = 0; i < compressed.length && !done; i++) {
+            done = sniffer.update(compressed, i, 1);
+        }
+        sniffer.finish();
+
+        assertEquals("ISO-8859-1", sniffer.getCharset());
+        byte[] buffered = sniffer.getBufferedBytes();
+        assertArrayEquals(Arrays.copyOf(compressed, buffered.length), buffered);
+    }
+
+    private void compress(OutputStream out, String content) throws Exception {
+        out.write(content.getBytes("ISO-8859-1"));
+        out.close();
+    }
+}
@@ -0,0 +1,132 @@
+package org.georchestra.security.healthcenter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.ConnectException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Checks the sampler against a stub JDBC connection which reports a given number of live connections.
+ */
+public class DatabaseHealthSamplerTest {
+
+	/**
+	 * Number of rows returned by the stub pg_stat_activity query, -1 to fail
+	 */
+	private final AtomicInteger liveConnections = new AtomicInteger();
+	private final AtomicInteger queries = new AtomicInteger();
+
+	private final DBConnectionProvider stubProvider = new DBConnectionProvider() {
+		@Override
+		public Connection getConnection() throws ConnectException {
+			if (liveConnections.get() < 0) {
+				throw new ConnectException("database is down");
+			}
+			return stub(Connection.class);
+		}
+	};
+
+	@Test
+	public void testSnapshots() {
+		DatabaseHealthSampler sampler = new DatabaseHealthSampler(new DatabaseHealthCenter(stubProvider), 10, 1000);
+		assertEquals(HealthSnapshot.Status.UNKNOWN, sampler.getSnapshot().getStatus());
+		assertTrue(sampler.getSnapshot().isHealthy());
+
+		liveConnections.set(3);
+		sampler.sample();
+		assertEquals(HealthSnapshot.Status.HEALTHY, sampler.getSnapshot().getStatus());
+		assertEquals(3, sampler.getSnapshot().getLiveConnections());
+
+		liveConnections.set(8);
+		sampler.sample();
+		assertEquals(HealthSnapshot.Status.NEAR_LIMIT, sampler.getSnapshot().getStatus());
+		assertFalse(sampler.getSnapshot().isHealthy());
+		assertFalse(sampler.getSnapshot().isSaturated());
+
+		liveConnections.set(10);
+		sampler.sample();
+		assertTrue(sampler.getSnapshot().isSaturated());
+
+		liveConnections.set(-1);
+		sampler.sample();
+		assertEquals(HealthSnapshot.Status.UNKNOWN, sampler.getSnapshot().getStatus());
+	}
+
+	@Test
+	public void testBackgroundSampling() throws Exception {
+		liveConnections.set(12);
+		DatabaseHealthSampler sampler = new DatabaseHealthSampler(new DatabaseHealthCenter(stubProvider), 10, 50);
+		sampler.start();
+		try {
+			long timeout = System.currentTimeMillis() + 5000;
+			while (queries.get() < 3 && System.currentTimeMillis() < timeout) {
+				Thread.sleep(10);
+			}
+		} finally {
+			sampler.stop();
+		}
+		assertTrue(queries.get() >= 3);
+		assertTrue(sampler.getSnapshot().isSaturated());
+
+		// reading the snapshot does not query the database
+		int count = queries.get();
+		for (int i = 0; i < 100; i++) {
+			sampler.getSnapshot();
+		}
+		assertEquals(count, queries.get());
+	}
+
+	@Test
+	public void testCheckConnections() {
+		DatabaseHealthCenter healthCenter = new DatabaseHealthCenter(stubProvider);
+		liveConnections.set(1);
+		assertTrue(healthCenter.checkConnections(2));
+		liveConnections.set(2);
+		assertFalse(healthCenter.checkConnections(2));
+	}
+
+	/**
+	 * Stub of the JDBC interfaces: the statements return {@link #liveConnections} rows.
+	 */
+	private <T> T stub(final Class<T> type) {
+		final AtomicInteger rows = new AtomicInteger();
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				String name = method.getName();
+				if (name.equals("prepareStatement")) {
+					return stub(PreparedStatement.class);
+				}
+				if (name.equals("executeQuery")) {
+					queries.incrementAndGet();
+					return stub(ResultSet.class);
+				}
+				if (name.equals("next")) {
+					return rows.incrementAndGet() <= liveConnections.get();
+				}
+				if (name.equals("getString")) {
+					return "stub";
+				}
+				Class<?> returnType = method.getReturnType();
+				if (returnType == boolean.class) {
+					return false;
+				}
+				if (returnType == int.class) {
+					return 0;
+				}
+				return null;
+			}
+		};
+		return type.cast(Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { type }, handler));
+	}
+}
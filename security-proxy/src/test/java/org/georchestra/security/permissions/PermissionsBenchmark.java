@@ -0,0 +1,107 @@
+package org.georchestra.security.permissions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the former linear check of every {@link UriMatcher} (one DNS lookup and one regular expression per
+ * matcher) with {@link Permissions#isDenied(URL)}, for thousands of rules and a few hundred distinct urls.
+ * <p>
+ * Run with: <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.georchestra.security.permissions.PermissionsBenchmark</code>
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PermissionsBenchmark {
+
+    private static final String[] HOSTS = {"localhost", "127.0.0.1"};
+
+    @Param({"1000", "5000"})
+    public int rules;
+
+    private Permissions permissions;
+    private URL[] urls;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<UriMatcher> allowed = new ArrayList<UriMatcher>();
+        List<UriMatcher> denied = new ArrayList<UriMatcher>();
+        for (int i = 0; i < rules; i++) {
+            switch (i % 4) {
+                case 0:
+                    allowed.add(new UriMatcher().setHost(HOSTS[i % HOSTS.length]).setPath("/layers" + i + "/.*"));
+                    break;
+                case 1:
+                    allowed.add(new UriMatcher().setHost(HOSTS[i % HOSTS.length]).setPort(8080 + i % 10)
+                            .setPath("/services" + i + "/(wms|wfs)"));
+                    break;
+                case 2:
+                    allowed.add(new UriMatcher().setPath("/public" + i + "/.*"));
+                    break;
+                default:
+                    denied.add(new UriMatcher().setPath("/layers" + (i - 3) + "/private/.*"));
+            }
+        }
+        permissions = new Permissions().setAllowed(allowed).setDenied(denied);
+        permissions.init();
+
+        urls = new URL[256];
+        for (int i = 0; i < urls.length; i++) {
+            int rule = (i * 7919) % rules;
+            String path = (i % 3 == 0 ? "/layers" : i % 3 == 1 ? "/public" : "/unknown") + rule + "/wms";
+            urls[i] = new URL("http://" + HOSTS[i % HOSTS.length] + path + "?SERVICE=WMS&REQUEST=GetMap");
+        }
+    }
+
+    private URL nextUrl() {
+        next = (next + 1) % urls.length;
+        return urls[next];
+    }
+
+    @Benchmark
+    public boolean linearScan() {
+        URL url = nextUrl();
+        for (UriMatcher uriMatcher : permissions.getDenied()) {
+            if (uriMatcher.matches(url)) {
+                return true;
+            }
+        }
+        for (UriMatcher uriMatcher : permissions.getAllowed()) {
+            if (uriMatcher.matches(url)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Benchmark
+    public boolean cachedDecision() {
+        return permissions.isDenied(nextUrl());
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(PermissionsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
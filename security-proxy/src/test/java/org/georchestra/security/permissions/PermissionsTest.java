@@ -0,0 +1,100 @@
+package org.georchestra.security.permissions;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PermissionsTest {
+
+    @Test
+    public void testDeniedByDefault() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Arrays.asList(
+                        new UriMatcher().setHost("localhost").setPath("/geoserver/.*"),
+                        new UriMatcher().setHost("127.0.0.1").setPort(8080).setPath("/geonetwork/.*"),
+                        new UriMatcher().setPath("public/.*")))
+                .setDenied(Collections.singletonList(new UriMatcher().setPath("/geoserver/private/.*")));
+        permissions.init();
+
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver/wms")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/geoserver/private/wms")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/extractorapp/")));
+        // the port is checked
+        assertFalse(permissions.isDenied(new URL("http://localhost:8080/geonetwork/srv")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/geonetwork/srv")));
+        // paths not starting with a slash
+        assertFalse(permissions.isDenied(new URL("http://example.com/public/file")));
+        // unknown hosts only match the rules without host
+        assertTrue(permissions.isDenied(new URL("http://unknown.invalid/geoserver/wms")));
+        assertFalse(permissions.isDenied(new URL("http://unknown.invalid/public/file")));
+    }
+
+    /**
+     * The paths of a group are merged, the ones with a backreference keep their own numbering
+     */
+    @Test
+    public void testBackreference() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Arrays.asList(
+                        new UriMatcher().setHost("localhost").setPath("/(geoserver)/.*"),
+                        new UriMatcher().setHost("localhost").setPath("/(\\w+)/\\1\\.html")));
+        permissions.init();
+
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver/wms")));
+        assertFalse(permissions.isDenied(new URL("http://localhost/docs/docs.html")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/docs/geoserver.html")));
+    }
+
+    @Test
+    public void testAllowedByDefault() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Collections.singletonList(new UriMatcher().setHost("localhost").setPath("/geoserver/.*")))
+                .setDenied(Arrays.asList(
+                        new UriMatcher().setHost("localhost"),
+                        new UriMatcher().setPort(433)));
+        permissions.setAllowByDefault(true);
+        permissions.init();
+
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver/wms")));
+        assertTrue(permissions.isDenied(new URL("http://localhost/geonetwork/")));
+        assertTrue(permissions.isDenied(new URL("http://example.com:433/")));
+        assertFalse(permissions.isDenied(new URL("http://example.com/")));
+    }
+
+    @Test
+    public void testDecisionCache() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Collections.singletonList(new UriMatcher().setHost("localhost")));
+        assertNull(permissions.getDecisionCacheStats());
+        permissions.init();
+
+        assertFalse(permissions.isDenied(new URL("http://localhost/geoserver/wms?REQUEST=GetMap")));
+        assertFalse(permissions.isDenied(new URL("http://LOCALHOST:80/geoserver/wms?REQUEST=GetCapabilities")));
+        assertFalse(permissions.isDenied(new URL("http://localhost/geonetwork/")));
+
+        assertEquals(1, permissions.getDecisionCacheStats().hitCount());
+        assertEquals(2, permissions.getDecisionCacheStats().missCount());
+        assertEquals(1, permissions.getDnsCacheStats().missCount());
+        assertEquals(1, permissions.getDnsCacheStats().hitCount());
+    }
+
+    @Test
+    public void testNotInitialized() throws Exception {
+        Permissions permissions = new Permissions()
+                .setAllowed(Collections.singletonList(new UriMatcher().setHost("localhost").setPath("/geoserver/.*")));
+        permissions.init();
+        assertTrue(permissions.isDenied(new URL("http://localhost/geonetwork/")));
+
+        // changing the rules discards the caches until the next init
+        permissions.setAllowByDefault(true);
+        assertNull(permissions.getDecisionCacheStats());
+        assertFalse(permissions.isDenied(new URL("http://localhost/geonetwork/")));
+    }
+}